@@ -0,0 +1,76 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.jmh;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.spacesuit.SpaceSuit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Cost of computing a spatial index key, one at a time and in bulk, for each key encoding. Results are per key.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyBenchmark
+{
+    @Param({"10", "20", "28"})
+    public int bits;
+
+    @Param({"Z_ORDER", "HILBERT"})
+    public KeyEncoding encoding;
+
+    @Setup
+    public void setup()
+    {
+        spaceSuit = SpaceSuit.create(Queries.space(bits), encoding, "<<", ">>");
+        Random random = new Random(421);
+        for (int i = 0; i < POINTS; i++) {
+            xs[i] = random.nextDouble() * Queries.EXTENT;
+            ys[i] = random.nextDouble() * Queries.EXTENT;
+        }
+    }
+
+    @Benchmark
+    public long spatialIndexKey()
+    {
+        int i = p++ & (POINTS - 1);
+        return spaceSuit.spatialIndexKey(xs[i], ys[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public long[] spatialIndexKeys()
+    {
+        spaceSuit.spatialIndexKeys(xs, ys, zs);
+        return zs;
+    }
+
+    private static final int POINTS = 1024; // power of 2
+
+    private SpaceSuit spaceSuit;
+    private final double[] xs = new double[POINTS];
+    private final double[] ys = new double[POINTS];
+    private final long[] zs = new long[POINTS];
+    private int p;
+}
@@ -0,0 +1,54 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.jmh;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.spacesuit.apiimpl.Curve;
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of parsing an invocation. Independent of the space and the query box.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+    @Setup
+    public void setup()
+    {
+        transformer = new Transformer(new Decomposer(Curve.create(Queries.space(20), KeyEncoding.Z_ORDER), null, 1, 0, null, null));
+        invocations = Queries.inboxInvocations(0.01);
+    }
+
+    @Benchmark
+    public List<String> parse()
+    {
+        transformer.parse(invocations[q++ & (Queries.QUERIES - 1)]);
+        return transformer.arguments();
+    }
+
+    private Transformer transformer;
+    private String[] invocations;
+    private int q;
+}
@@ -0,0 +1,48 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.jmh;
+
+import com.geophile.z.Space;
+
+import java.util.Random;
+
+// Spaces and query boxes shared by the benchmarks. Boxes are square, placed randomly, and cycled through,
+// so that a benchmark does not repeatedly decompose the same box.
+
+class Queries
+{
+    static Space space(int bits)
+    {
+        return Space.newSpace(new double[]{0, 0}, new double[]{EXTENT, EXTENT}, new int[]{bits, bits});
+    }
+
+    static String[] inboxInvocations(double boxFraction)
+    {
+        Random random = new Random(SEED);
+        String[] invocations = new String[QUERIES];
+        double side = EXTENT * boxFraction;
+        for (int q = 0; q < QUERIES; q++) {
+            double xLo = random.nextDouble() * (EXTENT - side);
+            double yLo = random.nextDouble() * (EXTENT - side);
+            invocations[q] = String.format("inbox(z, x, %s, %s, y, %s, %s)", xLo, xLo + side, yLo, yLo + side);
+        }
+        return invocations;
+    }
+
+    static String[] queries(String[] invocations)
+    {
+        String[] queries = new String[invocations.length];
+        for (int q = 0; q < invocations.length; q++) {
+            queries[q] = String.format("select id, x, y from t where << %s >>", invocations[q]);
+        }
+        return queries;
+    }
+
+    static final int QUERIES = 1024; // power of 2
+    static final double EXTENT = 1_000_000;
+    private static final long SEED = 419;
+}
@@ -0,0 +1,91 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.jmh;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.spacesuit.OutputMode;
+import com.geophile.spacesuit.SpaceSuit;
+import com.geophile.spacesuit.apiimpl.Curve;
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.InBox;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.z.Space;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost of rewriting an inbox query: the whole transformation, and the decomposition and rendering done by
+// InBox.invoke alone.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark
+{
+    @Param({"10", "20", "28"})
+    public int bits;
+
+    @Param({"0.0001", "0.01", "0.1"})
+    public double boxFraction;
+
+    @Param({"1", "4", "16", "64"})
+    public int maxZValues;
+
+    @Setup
+    public void setup()
+    {
+        Space space = Queries.space(bits);
+        spaceSuit = SpaceSuit.create(space, "<<", ">>");
+        inBox = new InBox(new Decomposer(Curve.create(space, KeyEncoding.Z_ORDER), null, 1, 0, null, null));
+        String[] invocations = Queries.inboxInvocations(boxFraction);
+        queries = Queries.queries(invocations);
+        arguments = new ArrayList<>();
+        Transformer transformer = new Transformer(new Decomposer(Curve.create(space, KeyEncoding.Z_ORDER), null, 1, 0, null, null));
+        for (String invocation : invocations) {
+            transformer.parse(invocation);
+            arguments.add(new ArrayList<>(transformer.arguments()));
+        }
+    }
+
+    @Benchmark
+    public String[] transformQuery()
+    {
+        return spaceSuit.transformQuery(queries[next()], maxZValues);
+    }
+
+    @Benchmark
+    public String[] inBoxInvoke()
+    {
+        return inBox.invoke(arguments.get(next()), maxZValues, OutputMode.SEPARATE);
+    }
+
+    private int next()
+    {
+        return q++ & (Queries.QUERIES - 1);
+    }
+
+    private SpaceSuit spaceSuit;
+    private InBox inBox;
+    private String[] queries;
+    private List<List<String>> arguments;
+    private int q;
+}
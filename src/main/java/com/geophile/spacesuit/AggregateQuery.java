@@ -0,0 +1,554 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Function;
+import com.geophile.spacesuit.apiimpl.InBox;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.spacesuit.apiimpl.ZRanges;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled query computing aggregates of the rows inside a box, created by
+ * {@link SpaceSuit#prepareAggregate(String)}, e.g.
+ * <pre>
+ *     select count(*), sum(price), avg(price) from place where &lt;&lt; inbox(z, x, ?, ?, y, ?, ?) &gt;&gt;
+ * </pre>
+ * The select list must consist of invocations of count, sum, min, max and avg, (without distinct), each
+ * optionally followed by an alias. The inbox invocation must be combined with the rest of the where clause
+ * using and, not or. The aggregates are pushed down to the database: each z-value range is
+ * aggregated by its own query, and the partial aggregates are combined here. (avg is computed from a sum
+ * and a count.) Ranges of keys whose cells lie entirely inside the box are aggregated without checking
+ * coordinates.
+ * <p>
+ * {@link #approximateCount} counts rows without checking any coordinates, using only the spatial index.
+ * <p>
+ * An AggregateQuery may be used by any number of threads.
+ */
+
+public class AggregateQuery
+{
+    /**
+     * Returns the SQL text computing partial aggregates for a z-value range that needs coordinate checks.
+     * The parameters of the query preceding the inbox invocation come first, followed by the bounds of the
+     * z-value range, and then the bounds of the query box.
+     * @return The SQL text computing partial aggregates.
+     */
+    public String sql()
+    {
+        return sql;
+    }
+
+    /**
+     * Returns the SQL text computing partial aggregates for a z-value range whose rows are all inside the
+     * query box. The parameters of the query preceding the inbox invocation come first, followed by the
+     * bounds of the z-value range.
+     * @return The SQL text computing partial aggregates without coordinate checks.
+     */
+    public String insideSQL()
+    {
+        return insideSQL;
+    }
+
+    /**
+     * Returns the SQL text run by {@link #approximateCount}, counting the rows of a z-value range. The
+     * parameters are those of {@link #insideSQL()}.
+     * @return The SQL text counting the rows of a z-value range.
+     */
+    public String countSQL()
+    {
+        return countSQL;
+    }
+
+    /**
+     * Computes the aggregates of the rows inside a query box.
+     * @param connection Connection on which to run the query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges needing coordinate checks. Up to as many ranges
+     *                   without coordinate checks may be split off from these.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The value of each aggregate in the select list: a Long for count, a Double for avg, and for
+     * sum, a Long if the database's partial sums are integers, a BigDecimal if they are decimals, and a Double
+     * otherwise. min and max are of the type returned by the database. Aggregates other than count are null
+     * if there are no rows with non-null values.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public Object[] execute(Connection connection,
+                            double xLo, double xHi, double yLo, double yHi,
+                            int maxZValues,
+                            Object ... parameters) throws SQLException
+    {
+        return execute(connection, new double[]{xLo, yLo}, new double[]{xHi, yHi}, maxZValues, parameters);
+    }
+
+    /**
+     * Computes the aggregates of the rows inside a query box, in a space of any number of dimensions.
+     * @param connection Connection on which to run the query.
+     * @param lo Low coordinates of the query box, one for each dimension of the space.
+     * @param hi High coordinates of the query box, one for each dimension of the space.
+     * @param maxZValues Maximum number of z-value ranges needing coordinate checks. Up to as many ranges
+     *                   without coordinate checks may be split off from these.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The value of each aggregate in the select list, as described for
+     * {@link #execute(Connection, double, double, double, double, int, Object...)}.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public Object[] execute(Connection connection,
+                            double[] lo, double[] hi,
+                            int maxZValues,
+                            Object ... parameters) throws SQLException
+    {
+        checkParameters(parameters);
+        ZRanges[] ranges = inBox.decomposeInside(lo, hi, maxZValues);
+        Object[] partials = new Object[partialColumns];
+        aggregate(connection, insideSQL, ranges[0], null, null, parameters, partials);
+        aggregate(connection, sql, ranges[1], lo, hi, parameters, partials);
+        Object[] result = new Object[aggregates.size()];
+        for (int a = 0; a < result.length; a++) {
+            result[a] = aggregates.get(a).result(partials);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the rows whose spatial index keys are in the z-value ranges covering a query box, without
+     * checking coordinates, so that only the spatial index is read. Rows in cells entirely inside the box
+     * are counted exactly. Rows in cells crossing the box's boundary, or in gaps between z-values merged into
+     * one range, are counted whether or not they are inside the box, so the count is an upper bound,
+     * approaching the exact count as maxZValues increases.
+     * @param connection Connection on which to run the query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The approximate number of rows inside the query box.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public long approximateCount(Connection connection,
+                                 double xLo, double xHi, double yLo, double yHi,
+                                 int maxZValues,
+                                 Object ... parameters) throws SQLException
+    {
+        return approximateCount(connection, new double[]{xLo, yLo}, new double[]{xHi, yHi}, maxZValues,
+                                parameters);
+    }
+
+    /**
+     * Counts the rows whose spatial index keys are in the z-value ranges covering a query box, in a space of
+     * any number of dimensions, as described for
+     * {@link #approximateCount(Connection, double, double, double, double, int, Object...)}.
+     * @param connection Connection on which to run the query.
+     * @param lo Low coordinates of the query box, one for each dimension of the space.
+     * @param hi High coordinates of the query box, one for each dimension of the space.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The approximate number of rows inside the query box.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public long approximateCount(Connection connection,
+                                 double[] lo, double[] hi,
+                                 int maxZValues,
+                                 Object ... parameters) throws SQLException
+    {
+        checkParameters(parameters);
+        ZRanges ranges = inBox.decompose(lo, hi, maxZValues);
+        long count = 0;
+        if (ranges.count() > 0) {
+            try (PreparedStatement statement = connection.prepareStatement(countSQL)) {
+                for (int p = 0; p < parameters.length; p++) {
+                    statement.setObject(p + 1, parameters[p]);
+                }
+                for (int r = 0; r < ranges.count(); r++) {
+                    statement.setLong(firstParameter, ranges.lo(r));
+                    statement.setLong(firstParameter + 1, ranges.hi(r));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            count += resultSet.getLong(1);
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // For use by this package
+
+    AggregateQuery(Decomposer decomposer, QueryTemplate template)
+    {
+        Transformer transformer = new Transformer(decomposer);
+        transformer.parse(template.invocation());
+        Function function = transformer.function();
+        if (!(function instanceof InBox)) {
+            throw new IllegalArgumentException(String.format("Only inbox can be aggregated: %s",
+                                                             template.invocation()));
+        }
+        if (template.suffixParameters() > 0) {
+            throw new IllegalArgumentException("Parameters not permitted following inbox invocation");
+        }
+        if (UNCOMBINABLE.matcher(template.suffix()).find()) {
+            throw new IllegalArgumentException(
+                String.format("The query must not be grouped, ordered or limited: %s", template.suffix()));
+        }
+        // Locate the select list, following select and any hint.
+        String prefix = template.prefix();
+        Matcher select = SELECT.matcher(prefix);
+        if (!select.lookingAt()) {
+            throw new IllegalArgumentException(String.format("Expected select: %s", prefix));
+        }
+        int listStart = select.end();
+        int listEnd = QueryTemplate.from(prefix, listStart);
+        String selectList = prefix.substring(listStart, listEnd);
+        if (selectList.indexOf('?') >= 0) {
+            throw new IllegalArgumentException(
+                String.format("Parameters not permitted in select list: %s", selectList));
+        }
+        checkConjunct(prefix, listEnd, template.suffix());
+        this.aggregates = new ArrayList<>();
+        StringBuilder partialList = new StringBuilder();
+        int column = 0;
+        for (String item : split(selectList)) {
+            Aggregate aggregate = Aggregate.parse(item, column);
+            column += aggregate.partials();
+            aggregates.add(aggregate);
+            if (partialList.length() > 0) {
+                partialList.append(", ");
+            }
+            partialList.append(aggregate.partialList());
+        }
+        this.partialColumns = column;
+        List<String> arguments = transformer.arguments();
+        this.inBox = (InBox) function;
+        String insidePredicate = String.format("(%s between ? and ?)", inBox.zColumn(arguments));
+        this.sql = replaceSelectList(template.rewrite(inBox.parameterizedPredicate(arguments)),
+                                     listStart, listEnd, partialList.toString());
+        this.insideSQL = replaceSelectList(template.rewrite(insidePredicate),
+                                           listStart, listEnd, partialList.toString());
+        this.countSQL = replaceSelectList(template.rewrite(insidePredicate), listStart, listEnd, "count(*)");
+        this.firstParameter = template.prefixParameters() + 1;
+    }
+
+    // For use by this class
+
+    private void checkParameters(Object[] parameters)
+    {
+        if (parameters.length != firstParameter - 1) {
+            throw new IllegalArgumentException(String.format("Expected %s parameters, found %s",
+                                                             firstParameter - 1, parameters.length));
+        }
+    }
+
+    // The partial aggregates of a range are those of the rows satisfying the rest of the where clause and
+    // the range predicate, so the invocation must be a conjunct of the where clause, and not an operand of
+    // or, or not, (which would count rows outside the box once for each range). Parenthesized expressions
+    // not containing the invocation are skipped.
+    private static void checkConjunct(String prefix, int listEnd, String suffix)
+    {
+        int level = 0;
+        int floor = 0;
+        boolean quoted = false;
+        for (int i = prefix.length() - 1; i >= listEnd; i--) {
+            char c = prefix.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == ')') {
+                    level++;
+                } else if (c == '(') {
+                    floor = Math.min(floor, --level);
+                } else if (level == floor && QueryTemplate.word(prefix, i, "where")) {
+                    break;
+                } else if (level == floor && QueryTemplate.word(prefix, i, "or")) {
+                    throw new IllegalArgumentException(
+                        String.format("The invocation must not be an operand of or: %s", prefix));
+                }
+            }
+        }
+        String preceding = prefix.replaceAll("[\\s(]+$", "");
+        if (QueryTemplate.word(preceding, preceding.length() - 3, "not")) {
+            throw new IllegalArgumentException(
+                String.format("The invocation must not be an operand of not: %s", prefix));
+        }
+        level = 0;
+        floor = 0;
+        quoted = false;
+        for (int i = 0; i < suffix.length(); i++) {
+            char c = suffix.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == '(') {
+                    level++;
+                } else if (c == ')') {
+                    floor = Math.min(floor, --level);
+                } else if (level == floor && QueryTemplate.word(suffix, i, "or")) {
+                    throw new IllegalArgumentException(
+                        String.format("The invocation must not be an operand of or: %s", suffix));
+                }
+            }
+        }
+    }
+
+    // Runs the query for each range, combining the partial aggregates into partials. lo and hi are the
+    // bounds of the query box, or null if the query does not check coordinates.
+    private void aggregate(Connection connection,
+                           String query,
+                           ZRanges ranges,
+                           double[] lo,
+                           double[] hi,
+                           Object[] parameters,
+                           Object[] partials) throws SQLException
+    {
+        if (ranges.count() == 0) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            for (int p = 0; p < parameters.length; p++) {
+                statement.setObject(p + 1, parameters[p]);
+            }
+            for (int r = 0; r < ranges.count(); r++) {
+                int p = firstParameter;
+                statement.setLong(p++, ranges.lo(r));
+                statement.setLong(p++, ranges.hi(r));
+                if (lo != null) {
+                    for (int d = 0; d < lo.length; d++) {
+                        statement.setDouble(p++, lo[d]);
+                        statement.setDouble(p++, hi[d]);
+                    }
+                }
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        for (Aggregate aggregate : aggregates) {
+                            aggregate.combine(resultSet, partials);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Splits the select list at commas outside of parentheses and quotes.
+    private static List<String> split(String selectList)
+    {
+        List<String> items = new ArrayList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < selectList.length(); i++) {
+            char c = selectList.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (c == ',' && depth == 0) {
+                    items.add(selectList.substring(start, i));
+                    start = i + 1;
+                }
+            }
+        }
+        items.add(selectList.substring(start));
+        return items;
+    }
+
+    // Returns the position of the parenthesis closing the one at open, outside of quotes, or -1 if there is none.
+    private static int close(String text, int open)
+    {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = open; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')' && --depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String replaceSelectList(String query, int listStart, int listEnd, String selectList)
+    {
+        return query.substring(0, listStart) + selectList + ' ' + query.substring(listEnd);
+    }
+
+    // Returns the sum of two partial sums, either of which may be null.
+    private static Object add(Object x, Object y)
+    {
+        if (x == null) {
+            return y;
+        }
+        if (y == null) {
+            return x;
+        }
+        if (integer(x) && integer(y)) {
+            return ((Number) x).longValue() + ((Number) y).longValue();
+        }
+        if ((x instanceof BigDecimal || integer(x) || x instanceof BigInteger) &&
+            (y instanceof BigDecimal || integer(y) || y instanceof BigInteger)) {
+            return decimal(x).add(decimal(y));
+        }
+        return ((Number) x).doubleValue() + ((Number) y).doubleValue();
+    }
+
+    private static boolean integer(Object x)
+    {
+        return x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte;
+    }
+
+    private static BigDecimal decimal(Object x)
+    {
+        return x instanceof BigDecimal
+               ? (BigDecimal) x
+               : x instanceof BigInteger
+                 ? new BigDecimal((BigInteger) x)
+                 : BigDecimal.valueOf(((Number) x).longValue());
+    }
+
+    // Class state
+
+    private static final Pattern SELECT =
+        Pattern.compile("\\s*(/\\*.*?\\*/\\s*)?select\\s+(/\\*.*?\\*/\\s*)?",
+                        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern UNCOMBINABLE =
+        Pattern.compile("\\b(group|having|order|limit|fetch|offset|union)\\b", Pattern.CASE_INSENSITIVE);
+
+    // Object state
+
+    private final InBox inBox;
+    private final List<Aggregate> aggregates;
+    private final int partialColumns;
+    private final String sql;
+    private final String insideSQL;
+    private final String countSQL;
+    private final int firstParameter;
+
+    // Inner classes
+
+    // An aggregate of the select list, whose partial aggregates are in the partial columns starting at column.
+    // avg has two partial columns, a sum and a count.
+    private static class Aggregate
+    {
+        static Aggregate parse(String item, int column)
+        {
+            item = item.trim();
+            Matcher matcher = NAME.matcher(item);
+            int close = matcher.lookingAt() ? close(item, matcher.end() - 1) : -1;
+            // The aggregate's argument ends at the matching parenthesis, so that expressions over aggregates,
+            // e.g. max(y) - min(y), are rejected.
+            if (close < 0 || !ALIAS.matcher(item.substring(close + 1)).matches()) {
+                throw new IllegalArgumentException(
+                    String.format("Expected count, sum, min, max or avg: %s", item));
+            }
+            String name = matcher.group(1).toLowerCase();
+            String argument = item.substring(matcher.end(), close).trim();
+            if (argument.isEmpty()) {
+                throw new IllegalArgumentException(String.format("Expected argument: %s", item));
+            }
+            if (DISTINCT.matcher(argument).lookingAt() || argument.equals("*") && !name.equals("count")) {
+                throw new IllegalArgumentException(String.format("Cannot combine partial aggregates: %s",
+                                                                 item));
+            }
+            return new Aggregate(name, argument, column);
+        }
+
+        int partials()
+        {
+            return name.equals("avg") ? 2 : 1;
+        }
+
+        String partialList()
+        {
+            return name.equals("avg")
+                   ? String.format("sum(%s), count(%s)", argument, argument)
+                   : String.format("%s(%s)", name, argument);
+        }
+
+        void combine(ResultSet resultSet, Object[] partials) throws SQLException
+        {
+            Object value = resultSet.getObject(column + 1);
+            switch (name) {
+                case "count":
+                    partials[column] = add(partials[column], resultSet.getLong(column + 1));
+                    break;
+                case "sum":
+                    partials[column] = add(partials[column], value);
+                    break;
+                case "avg":
+                    partials[column] = add(partials[column], value);
+                    partials[column + 1] = add(partials[column + 1], resultSet.getLong(column + 2));
+                    break;
+                default:
+                    Object current = partials[column];
+                    if (value != null) {
+                        @SuppressWarnings("unchecked")
+                        int c = current == null ? 0 : ((Comparable<Object>) value).compareTo(current);
+                        if (current == null || (name.equals("min") ? c < 0 : c > 0)) {
+                            partials[column] = value;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        Object result(Object[] partials)
+        {
+            switch (name) {
+                case "count":
+                    return partials[column] == null ? 0L : partials[column];
+                case "avg":
+                    Object sum = partials[column];
+                    Long count = (Long) partials[column + 1];
+                    return sum == null || count == null || count == 0
+                           ? null
+                           : ((Number) sum).doubleValue() / count;
+                default:
+                    return partials[column];
+            }
+        }
+
+        Aggregate(String name, String argument, int column)
+        {
+            this.name = name;
+            this.argument = argument;
+            this.column = column;
+        }
+
+        private static final Pattern NAME =
+            Pattern.compile("(count|sum|min|max|avg)\\s*\\(", Pattern.CASE_INSENSITIVE);
+        private static final Pattern ALIAS =
+            Pattern.compile("(\\s+(as\\s+)?[\\w$]+)?", Pattern.CASE_INSENSITIVE);
+        private static final Pattern DISTINCT = Pattern.compile("distinct\\b", Pattern.CASE_INSENSITIVE);
+
+        final String name;
+        final String argument;
+        final int column;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Fills in the z-value column of an existing table, while the table remains in use. The table must have
+ * a single-column, integer primary key. The rows are visited in primary key order, in chunks. For each
+ * chunk, z-values are computed, (optionally in a ForkJoinPool), the rows are updated in a JDBC batch, and
+ * the last primary key visited is recorded in a checkpoint table, in the same transaction. The checkpoint
+ * is identified by the table and the z-value column, so backfills of different columns of a table are
+ * independent. Each transaction is short, so locks are held briefly. If the backfill is interrupted, running
+ * it again resumes from the checkpoint.
+ * <p>
+ * A row is updated only if its coordinates have not changed since the chunk was read, so a concurrent
+ * update of the coordinates, (which must also set the z-value), is never overwritten with a stale z-value.
+ * The coordinates are compared with the values read, as returned by the JDBC driver, so the comparison is
+ * exact whatever the type of the coordinate columns.
+ * Rows inserted concurrently must be given z-values by the application. Rows with a NULL coordinate are
+ * skipped, and their z-values are left unchanged.
+ * <p>
+ * The backfill can be throttled to a maximum number of rows per second, and can pause while a
+ * {@link LagMonitor} reports that replicas have fallen too far behind.
+ * <p>
+ * Configuration methods should not be called while the backfill is running.
+ */
+
+public class Backfill
+{
+    /**
+     * Reports replication lag, e.g. using MySQL's SHOW REPLICA STATUS.
+     */
+    public interface LagMonitor
+    {
+        /**
+         * Returns the current replication lag.
+         * @return Replication lag, in milliseconds.
+         * @throws SQLException If the lag cannot be obtained. The backfill stops.
+         */
+        long lagMillis() throws SQLException;
+    }
+
+    /**
+     * Sets the number of rows updated in each transaction. The default is 1000.
+     * @param chunkSize Number of rows updated in each transaction.
+     */
+    public void configure(int chunkSize)
+    {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException(String.format("chunkSize: %s", chunkSize));
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Limits the rate at which rows are updated.
+     * @param maxRowsPerSecond Maximum rows updated per second, or 0 for no limit, (the default).
+     */
+    public void throttle(double maxRowsPerSecond)
+    {
+        if (maxRowsPerSecond < 0) {
+            throw new IllegalArgumentException(String.format("maxRowsPerSecond: %s", maxRowsPerSecond));
+        }
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * Pauses the backfill, before each chunk, while the replication lag exceeds maxLagMillis.
+     * @param lagMonitor Reports replication lag, or null to stop monitoring lag.
+     * @param maxLagMillis Maximum replication lag, in milliseconds.
+     */
+    public void throttle(LagMonitor lagMonitor, long maxLagMillis)
+    {
+        this.lagMonitor = lagMonitor;
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    /**
+     * Specifies a pool in which z-values are computed. If pool is null, (the default), z-values are
+     * computed by the thread running the backfill.
+     * @param pool Pool in which z-values are computed.
+     */
+    public void computeKeysIn(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Runs the backfill, starting after the checkpoint left by a previous run, if there is one. The
+     * checkpoint table is created if it does not exist.
+     * @param connection Connection on which to run the backfill. The connection's auto-commit setting is
+     *                   turned off while the backfill runs.
+     * @return Statistics describing the rows updated by this run.
+     * @throws SQLException Thrown by the JDBC driver or the LagMonitor. Chunks already committed are not
+     * lost.
+     */
+    public LoadStatistics run(Connection connection) throws SQLException
+    {
+        long start = clock.millis();
+        long rows = 0;
+        long commits = 0;
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            createCheckpointTable(connection);
+            connection.setAutoCommit(false);
+            long lastId = checkpoint(connection);
+            double[] xs = new double[chunkSize];
+            double[] ys = new double[chunkSize];
+            Object[] xValues = new Object[chunkSize];
+            Object[] yValues = new Object[chunkSize];
+            long[] ids = new long[chunkSize];
+            long[] zs = new long[chunkSize];
+            try (PreparedStatement select = connection.prepareStatement(selectSql);
+                 PreparedStatement update = connection.prepareStatement(updateSql);
+                 PreparedStatement updateCheckpoint = connection.prepareStatement(UPDATE_CHECKPOINT)) {
+                select.setMaxRows(chunkSize);
+                int read;
+                do {
+                    waitForReplicas();
+                    select.setLong(1, lastId);
+                    read = 0;
+                    long lastRead = lastId;
+                    int n = 0;
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        while (read < chunkSize && resultSet.next()) {
+                            read++;
+                            lastRead = resultSet.getLong(1);
+                            ids[n] = lastRead;
+                            xValues[n] = resultSet.getObject(2);
+                            yValues[n] = resultSet.getObject(3);
+                            // A row with a NULL coordinate has no z-value. It is skipped, but still covered by
+                            // the checkpoint.
+                            if (xValues[n] != null && yValues[n] != null) {
+                                xs[n] = ((Number) xValues[n]).doubleValue();
+                                ys[n] = ((Number) yValues[n]).doubleValue();
+                                n++;
+                            }
+                        }
+                    }
+                    if (read > 0) {
+                        try {
+                            if (n > 0) {
+                                if (pool == null) {
+                                    spaceSuit.spatialIndexKeys(xs, ys, zs, 0, n);
+                                } else {
+                                    spaceSuit.spatialIndexKeys(xs, ys, zs, 0, n, pool);
+                                }
+                                for (int i = 0; i < n; i++) {
+                                    update.setLong(1, zs[i]);
+                                    update.setLong(2, ids[i]);
+                                    update.setObject(3, xValues[i]);
+                                    update.setObject(4, yValues[i]);
+                                    update.addBatch();
+                                }
+                                update.executeBatch();
+                            }
+                            lastId = lastRead;
+                            updateCheckpoint.setLong(1, lastId);
+                            updateCheckpoint.setString(2, name);
+                            updateCheckpoint.executeUpdate();
+                            connection.commit();
+                        } catch (SQLException e) {
+                            update.clearBatch();
+                            connection.rollback();
+                            throw e;
+                        }
+                        rows += n;
+                        commits++;
+                        throttle(start, rows);
+                    }
+                } while (read == chunkSize);
+            }
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        return new LoadStatistics(rows, commits, clock.millis() - start);
+    }
+
+    /**
+     * Removes this backfill's checkpoint, so that the next run starts from the beginning of the table.
+     * @param connection Connection on which to remove the checkpoint.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public void reset(Connection connection) throws SQLException
+    {
+        createCheckpointTable(connection);
+        try (PreparedStatement statement = connection.prepareStatement(DELETE_CHECKPOINT)) {
+            statement.setString(1, name);
+            statement.executeUpdate();
+        }
+        if (!connection.getAutoCommit()) {
+            connection.commit();
+        }
+    }
+
+    /**
+     * Creates a Backfill for a table. The checkpoint is identified by the table name and zColumn.
+     * @param spaceSuit SpaceSuit object describing the space in which the points exist.
+     * @param table Name of the table.
+     * @param idColumn Name of the table's primary key column, which must be an integer.
+     * @param xColumn Name of the column containing x coordinates.
+     * @param yColumn Name of the column containing y coordinates.
+     * @param zColumn Name of the column to be filled with z-values.
+     * @return A new Backfill.
+     */
+    public static Backfill create(SpaceSuit spaceSuit,
+                                  String table,
+                                  String idColumn,
+                                  String xColumn,
+                                  String yColumn,
+                                  String zColumn)
+    {
+        return new Backfill(spaceSuit, table, idColumn, xColumn, yColumn, zColumn);
+    }
+
+    // For use by this package
+
+    // Measures and waits for the passage of time, replaceable for testing.
+    interface Clock
+    {
+        long millis();
+
+        void sleep(long msec) throws InterruptedException;
+    }
+
+    void clock(Clock clock)
+    {
+        this.clock = clock;
+    }
+
+    // For use by this class
+
+    private void createCheckpointTable(Connection connection) throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_CHECKPOINT_TABLE);
+        }
+    }
+
+    // Returns the last primary key updated by a previous run, creating the checkpoint if necessary.
+    private long checkpoint(Connection connection) throws SQLException
+    {
+        try (PreparedStatement statement = connection.prepareStatement(SELECT_CHECKPOINT)) {
+            statement.setString(1, name);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getLong(1);
+                }
+            }
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_CHECKPOINT)) {
+            statement.setString(1, name);
+            statement.setLong(2, Long.MIN_VALUE);
+            statement.executeUpdate();
+        }
+        connection.commit();
+        return Long.MIN_VALUE;
+    }
+
+    private void waitForReplicas() throws SQLException
+    {
+        LagMonitor lagMonitor = this.lagMonitor;
+        if (lagMonitor != null) {
+            while (lagMonitor.lagMillis() > maxLagMillis) {
+                sleep(LAG_WAIT_MSEC);
+            }
+        }
+    }
+
+    // Sleeps as long as necessary to bring the rate down to maxRowsPerSecond.
+    private void throttle(long start, long rows) throws SQLException
+    {
+        if (maxRowsPerSecond > 0) {
+            long earliest = start + (long) (rows * 1000 / maxRowsPerSecond);
+            long wait = earliest - clock.millis();
+            if (wait > 0) {
+                sleep(wait);
+            }
+        }
+    }
+
+    private void sleep(long msec) throws SQLException
+    {
+        try {
+            clock.sleep(msec);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    private Backfill(SpaceSuit spaceSuit,
+                     String table,
+                     String idColumn,
+                     String xColumn,
+                     String yColumn,
+                     String zColumn)
+    {
+        this.spaceSuit = spaceSuit;
+        this.name = table + '.' + zColumn;
+        this.selectSql = String.format(SELECT, idColumn, xColumn, yColumn, table, idColumn, idColumn);
+        this.updateSql = String.format(UPDATE, table, zColumn, idColumn, xColumn, yColumn);
+    }
+
+    // Class state
+
+    private static final String CHECKPOINT_TABLE = "spacesuit_backfill";
+    private static final String CREATE_CHECKPOINT_TABLE =
+        "create table if not exists " + CHECKPOINT_TABLE + "(" +
+        "    name varchar(200) not null, " +
+        "    last_id bigint not null, " +
+        "    primary key(name))";
+    private static final String SELECT_CHECKPOINT =
+        "select last_id from " + CHECKPOINT_TABLE + " where name = ?";
+    private static final String INSERT_CHECKPOINT =
+        "insert into " + CHECKPOINT_TABLE + "(name, last_id) values(?, ?)";
+    private static final String UPDATE_CHECKPOINT =
+        "update " + CHECKPOINT_TABLE + " set last_id = ? where name = ?";
+    private static final String DELETE_CHECKPOINT =
+        "delete from " + CHECKPOINT_TABLE + " where name = ?";
+    private static final String SELECT =
+        "select %s, %s, %s from %s where %s > ? order by %s";
+    private static final String UPDATE =
+        "update %s set %s = ? where %s = ? and %s = ? and %s = ?";
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final long LAG_WAIT_MSEC = 1000;
+    private static final Clock SYSTEM_CLOCK =
+        new Clock()
+        {
+            @Override
+            public long millis()
+            {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public void sleep(long msec) throws InterruptedException
+            {
+                Thread.sleep(msec);
+            }
+        };
+
+    // Object state
+
+    private final SpaceSuit spaceSuit;
+    private final String name;
+    private final String selectSql;
+    private final String updateSql;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile double maxRowsPerSecond = 0;
+    private volatile LagMonitor lagMonitor;
+    private volatile long maxLagMillis;
+    private volatile ForkJoinPool pool;
+    private volatile Clock clock = SYSTEM_CLOCK;
+}
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown by {@link BulkLoader#load} when a load fails. The transaction in progress is rolled back, so
+ * the input rows preceding {@link #rowsCommitted()} are in the database, and the rest are not. The load
+ * can be resumed by passing rowsCommitted() as the number of rows to skip.
+ */
+
+public class BulkLoadException extends SQLException
+{
+    /**
+     * Returns the number of input rows committed before the failure, including any rows skipped.
+     * @return The number of input rows committed before the failure.
+     */
+    public long rowsCommitted()
+    {
+        return rowsCommitted;
+    }
+
+    /**
+     * Creates a BulkLoadException.
+     * @param rowsCommitted Number of input rows committed before the failure.
+     * @param cause The exception causing the failure.
+     */
+    public BulkLoadException(long rowsCommitted, SQLException cause)
+    {
+        super(String.format("Load failed after %s rows committed: %s", rowsCommitted, cause.getMessage()),
+              cause.getSQLState(),
+              cause.getErrorCode(),
+              cause);
+        this.rowsCommitted = rowsCommitted;
+    }
+
+    // Object state
+
+    private final long rowsCommitted;
+}
@@ -0,0 +1,229 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Loads rows into a table with a z-value column, using a parameterized insert statement, e.g.
+ * <pre>
+ *     insert into place(latitude, longitude, description, z) values (?, ?, ?, ?)
+ * </pre>
+ * Each input row supplies values for all parameters but the last, in order. The last parameter is the
+ * z-value, which is computed from the row's x and y values. The positions of the x and y values within
+ * each row are specified when the BulkLoader is created.
+ * <p>
+ * Rows are loaded in units of commitSize rows. The z-values of a unit's rows are computed together,
+ * optionally in a ForkJoinPool. The rows are then optionally sorted by z-value, so that insertions into
+ * the z-value index are sequential. Rows are inserted in JDBC batches of batchSize rows, and the unit is
+ * committed. (With MySQL, setting rewriteBatchedStatements=true on the connection turns each batch into
+ * a multi-row insert.)
+ * <p>
+ * Because sorting does not cross unit boundaries, the committed rows are always a prefix of the input.
+ * If a load fails, the unit in progress is rolled back, and a {@link BulkLoadException} reports the
+ * number of input rows committed. Passing that number to {@link #load(Connection, Iterator, long)}
+ * resumes the load.
+ * <p>
+ * Configuration methods should not be called concurrently with loads. Otherwise, a BulkLoader may be
+ * used by any number of threads, each with its own connection.
+ */
+
+public class BulkLoader
+{
+    /**
+     * Sets the batch and commit sizes, and specifies whether rows are sorted by z-value before insertion.
+     * @param batchSize Number of rows in each JDBC batch.
+     * @param commitSize Number of rows in each transaction. Must be a multiple of batchSize.
+     * @param sortByZ If true, the rows of each transaction are inserted in z-value order.
+     */
+    public void configure(int batchSize, int commitSize, boolean sortByZ)
+    {
+        if (batchSize <= 0 || commitSize <= 0 || commitSize % batchSize != 0) {
+            throw new IllegalArgumentException(String.format("batchSize: %s, commitSize: %s",
+                                                             batchSize, commitSize));
+        }
+        this.batchSize = batchSize;
+        this.commitSize = commitSize;
+        this.sortByZ = sortByZ;
+    }
+
+    /**
+     * Specifies a pool in which z-values are computed. If pool is null, (the default), z-values are
+     * computed by the thread doing the load.
+     * @param pool Pool in which z-values are computed.
+     */
+    public void computeKeysIn(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Loads rows. Equivalent to load(connection, rows, 0).
+     * @param connection Connection through which rows are inserted.
+     * @param rows Input rows.
+     * @return Statistics describing the load.
+     * @throws BulkLoadException If the load fails.
+     */
+    public LoadStatistics load(Connection connection, Iterator<Object[]> rows) throws BulkLoadException
+    {
+        return load(connection, rows, 0);
+    }
+
+    /**
+     * Loads rows, skipping the first skip input rows. The connection's auto-commit setting is turned off
+     * for the duration of the load.
+     * @param connection Connection through which rows are inserted.
+     * @param rows Input rows.
+     * @param skip Number of input rows to skip, e.g. {@link BulkLoadException#rowsCommitted()} of a failed
+     *             load.
+     * @return Statistics describing the load. Skipped rows are not counted.
+     * @throws BulkLoadException If the load fails.
+     */
+    public LoadStatistics load(Connection connection, Iterator<Object[]> rows, long skip) throws BulkLoadException
+    {
+        int batchSize = this.batchSize;
+        int commitSize = this.commitSize;
+        boolean sortByZ = this.sortByZ;
+        ForkJoinPool pool = this.pool;
+        long start = System.currentTimeMillis();
+        long rowsCommitted = 0;
+        long commits = 0;
+        for (long s = 0; s < skip && rows.hasNext(); s++) {
+            rows.next();
+        }
+        Object[][] unit = new Object[commitSize][];
+        double[] xs = new double[commitSize];
+        double[] ys = new double[commitSize];
+        long[] zs = new long[commitSize];
+        Integer[] order = new Integer[commitSize];
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement statement = connection.prepareStatement(insert)) {
+                int n;
+                while ((n = read(rows, unit, xs, ys)) > 0) {
+                    if (pool == null) {
+                        spaceSuit.spatialIndexKeys(xs, ys, zs, 0, n);
+                    } else {
+                        spaceSuit.spatialIndexKeys(xs, ys, zs, 0, n, pool);
+                    }
+                    for (int i = 0; i < n; i++) {
+                        order[i] = i;
+                    }
+                    if (sortByZ) {
+                        sortByZ(order, n, zs);
+                    }
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            int r = order[i];
+                            Object[] row = unit[r];
+                            for (int c = 0; c < row.length; c++) {
+                                statement.setObject(c + 1, row[c]);
+                            }
+                            statement.setLong(row.length + 1, zs[r]);
+                            statement.addBatch();
+                            if ((i + 1) % batchSize == 0 || i == n - 1) {
+                                statement.executeBatch();
+                            }
+                        }
+                        connection.commit();
+                    } catch (SQLException e) {
+                        statement.clearBatch();
+                        connection.rollback();
+                        throw e;
+                    }
+                    rowsCommitted += n;
+                    commits++;
+                }
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            throw new BulkLoadException(skip + rowsCommitted, e);
+        }
+        return new LoadStatistics(rowsCommitted, commits, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Creates a BulkLoader. Rows are loaded in transactions of 10,000 rows, in batches of 1,000 rows,
+     * sorted by z-value, unless changed by {@link #configure(int, int, boolean)}.
+     * @param spaceSuit SpaceSuit object describing the space in which the points exist.
+     * @param insert Insert statement. The last parameter is the z-value.
+     * @param xPosition Position of the x value within each input row, (counting from 0).
+     * @param yPosition Position of the y value within each input row, (counting from 0).
+     * @return A new BulkLoader.
+     */
+    public static BulkLoader create(SpaceSuit spaceSuit, String insert, int xPosition, int yPosition)
+    {
+        return new BulkLoader(spaceSuit, insert, xPosition, yPosition);
+    }
+
+    // For use by this class
+
+    // Reads up to unit.length rows, returning the number read.
+    private int read(Iterator<Object[]> rows, Object[][] unit, double[] xs, double[] ys)
+    {
+        int n = 0;
+        while (n < unit.length && rows.hasNext()) {
+            Object[] row = rows.next();
+            unit[n] = row;
+            xs[n] = ((Number) row[xPosition]).doubleValue();
+            ys[n] = ((Number) row[yPosition]).doubleValue();
+            n++;
+        }
+        for (int i = n; i < unit.length; i++) {
+            unit[i] = null;
+        }
+        return n;
+    }
+
+    private static void sortByZ(Integer[] order, int n, final long[] zs)
+    {
+        Arrays.sort(order, 0, n,
+                    new Comparator<Integer>()
+                    {
+                        @Override
+                        public int compare(Integer x, Integer y)
+                        {
+                            return Long.compare(zs[x], zs[y]);
+                        }
+                    });
+    }
+
+    private BulkLoader(SpaceSuit spaceSuit, String insert, int xPosition, int yPosition)
+    {
+        if (xPosition < 0 || yPosition < 0 || xPosition == yPosition) {
+            throw new IllegalArgumentException(String.format("xPosition: %s, yPosition: %s", xPosition, yPosition));
+        }
+        this.spaceSuit = spaceSuit;
+        this.insert = insert;
+        this.xPosition = xPosition;
+        this.yPosition = yPosition;
+    }
+
+    // Class state
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    private static final int DEFAULT_COMMIT_SIZE = 10_000;
+
+    // Object state
+
+    private final SpaceSuit spaceSuit;
+    private final String insert;
+    private final int xPosition;
+    private final int yPosition;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile int commitSize = DEFAULT_COMMIT_SIZE;
+    private volatile boolean sortByZ = true;
+    private volatile ForkJoinPool pool;
+}
@@ -0,0 +1,78 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * A snapshot of the statistics of a cache.
+ */
+
+public class CacheStatistics
+{
+    /**
+     * Returns the number of lookups that found an entry.
+     * @return The number of lookups that found an entry.
+     */
+    public long hits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that did not find an entry.
+     * @return The number of lookups that did not find an entry.
+     */
+    public long misses()
+    {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries evicted to keep the cache within its size limit.
+     * @return The number of entries evicted.
+     */
+    public long evictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * Returns the number of entries in the cache.
+     * @return The number of entries in the cache.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("hits: %s, misses: %s, evictions: %s, size: %s", hits, misses, evictions, size);
+    }
+
+    /**
+     * Creates a CacheStatistics object.
+     * @param hits Number of lookups that found an entry.
+     * @param misses Number of lookups that did not find an entry.
+     * @param evictions Number of entries evicted.
+     * @param size Number of entries in the cache.
+     */
+    public CacheStatistics(long hits, long misses, long evictions, int size)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    // Object state
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int size;
+}
@@ -0,0 +1,147 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Generates DDL for an index covering spatial queries on a table: the spatial index key column, followed by
+ * the coordinate columns, e.g. (z, x, y), and optionally, the other columns retrieved by the queries. A
+ * rewritten query scans a range of the key column, and then filters by the coordinates. Using a covering
+ * index, the coordinates are read from the index, and rows outside the query box are discarded without
+ * reading the table. If the retrieved columns are included, the table is not read at all. To make sure the
+ * optimizer uses the index, see {@link SpaceSuit#enableIndexHint(SqlDialect, IndexHint, String)}.
+ * <p>
+ * Including many or wide columns makes the index larger, and slows down updates. Note that a MySQL (InnoDB)
+ * secondary index always contains the primary key columns, so they need not be included.
+ */
+
+public class CoveringIndex
+{
+    /**
+     * Specifies additional columns to be stored in the index, e.g. the columns retrieved by spatial queries,
+     * replacing those specified by a previous call.
+     * @param columns Names of the columns.
+     */
+    public void include(String... columns)
+    {
+        List<String> all = new ArrayList<>(keyAndCoordinateColumns);
+        all.addAll(Arrays.asList(columns));
+        checkColumns(all);
+        includedColumns = columns.clone();
+    }
+
+    /**
+     * Returns the name of the index.
+     * @return The name of the index.
+     */
+    public String name()
+    {
+        return indexName;
+    }
+
+    /**
+     * Returns a create index statement.
+     * @param dialect Database system in which the index is to be created. For PostgreSQL, included columns
+     *                are specified using include (PostgreSQL 11 or later). Otherwise, they follow the
+     *                coordinate columns in the index key.
+     * @return The create index statement.
+     */
+    public String ddl(SqlDialect dialect)
+    {
+        String[] includedColumns = this.includedColumns;
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(String.format("create index %s on %s(", indexName, table));
+        appendColumns(buffer, keyAndCoordinateColumns);
+        if (dialect == SqlDialect.POSTGRESQL) {
+            buffer.append(')');
+            if (includedColumns.length > 0) {
+                buffer.append(" include (");
+                appendColumns(buffer, Arrays.asList(includedColumns));
+                buffer.append(')');
+            }
+        } else {
+            if (includedColumns.length > 0) {
+                buffer.append(", ");
+                appendColumns(buffer, Arrays.asList(includedColumns));
+            }
+            buffer.append(')');
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Creates a CoveringIndex.
+     * @param indexName Name of the index.
+     * @param table Name of the table, optionally qualified by a schema name.
+     * @param keyColumn Name of the spatial index key column.
+     * @param coordinateColumns Names of the coordinate columns, in the order of the Space's dimensions, e.g.
+     *                          x and y.
+     * @return A new CoveringIndex.
+     */
+    public static CoveringIndex create(String indexName, String table, String keyColumn, String... coordinateColumns)
+    {
+        return new CoveringIndex(indexName, table, keyColumn, coordinateColumns);
+    }
+
+    // For use by this class
+
+    private static void appendColumns(StringBuilder buffer, List<String> columns)
+    {
+        for (int c = 0; c < columns.size(); c++) {
+            if (c > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(columns.get(c));
+        }
+    }
+
+    private static void checkColumns(List<String> columns)
+    {
+        Set<String> names = new HashSet<>();
+        for (String column : columns) {
+            if (column == null || !NAME.matcher(column).matches() || !names.add(column.toLowerCase())) {
+                throw new IllegalArgumentException(String.format("Invalid or duplicate column: %s", column));
+            }
+        }
+    }
+
+    private CoveringIndex(String indexName, String table, String keyColumn, String[] coordinateColumns)
+    {
+        if (indexName == null || !NAME.matcher(indexName).matches() ||
+            table == null || !QUALIFIED_NAME.matcher(table).matches()) {
+            throw new IllegalArgumentException(String.format("index: %s, table: %s", indexName, table));
+        }
+        if (coordinateColumns.length == 0) {
+            throw new IllegalArgumentException("No coordinate columns");
+        }
+        List<String> columns = new ArrayList<>();
+        columns.add(keyColumn);
+        columns.addAll(Arrays.asList(coordinateColumns));
+        checkColumns(columns);
+        this.indexName = indexName;
+        this.table = table;
+        this.keyAndCoordinateColumns = columns;
+    }
+
+    // Class state
+
+    private static final Pattern NAME = Pattern.compile("[\\w$]+");
+    private static final Pattern QUALIFIED_NAME = Pattern.compile("[\\w$]+(\\.[\\w$]+)?");
+
+    // Object state
+
+    private final String indexName;
+    private final String table;
+    private final List<String> keyAndCoordinateColumns;
+    private volatile String[] includedColumns = new String[0];
+}
@@ -0,0 +1,108 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, with buckets whose bounds are powers of 2: bucket 0 counts the
+ * value 0, and bucket b &gt; 0 counts values v with 2<sup>b-1</sup> &lt;= v &lt; 2<sup>b</sup>. Recording a
+ * value does not allocate memory or acquire locks. A Histogram may be used by any number of threads.
+ */
+
+public class Histogram
+{
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value Value to be recorded.
+     */
+    public void record(long value)
+    {
+        value = Math.max(0, value);
+        counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+        counts.addAndGet(SUM, value);
+    }
+
+    /**
+     * Returns the number of values recorded.
+     * @return The number of values recorded.
+     */
+    public long count()
+    {
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += counts.get(b);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of the values recorded.
+     * @return The sum of the values recorded.
+     */
+    public long sum()
+    {
+        return counts.get(SUM);
+    }
+
+    /**
+     * Returns the number of values recorded in a bucket.
+     * @param bucket Bucket number, 0 &lt;= bucket &lt; 64.
+     * @return The number of values recorded in the bucket.
+     */
+    public long bucket(int bucket)
+    {
+        if (bucket < 0 || bucket >= BUCKETS) {
+            throw new IllegalArgumentException(String.format("bucket: %s", bucket));
+        }
+        return counts.get(bucket);
+    }
+
+    /**
+     * Returns an upper bound on the given percentile of the values recorded: the upper bound of the bucket
+     * containing the percentile.
+     * @param percentile Percentile, between 0 and 100.
+     * @return An upper bound on the percentile, or 0 if no values have been recorded.
+     */
+    public long percentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(String.format("percentile: %s", percentile));
+        }
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            snapshot[b] = counts.get(b);
+            count += snapshot[b];
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long cumulative = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            cumulative += snapshot[b];
+            if (cumulative >= rank && cumulative > 0) {
+                return b == 0 ? 0 : (1L << b) - 1; // b = 63 yields Long.MAX_VALUE
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count: %s, mean: %.1f, p50: %s, p99: %s",
+                             count(), count() == 0 ? 0.0 : (double) sum() / count(), percentile(50), percentile(99));
+    }
+
+    // Class state
+
+    private static final int BUCKETS = Long.SIZE;
+    private static final int SUM = BUCKETS;
+
+    // Object state
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+}
@@ -0,0 +1,27 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Specifies the index hint added to rewritten queries, see
+ * {@link SpaceSuit#enableIndexHint(SqlDialect, IndexHint, String)}. The distinction between the two is
+ * made by MySQL. Other dialects write both the same way.
+ */
+
+public enum IndexHint
+{
+    /**
+     * The optimizer considers only the named index, but may still choose a table scan.
+     */
+    USE,
+
+    /**
+     * The optimizer considers only the named index, and chooses a table scan only if the index cannot be
+     * used.
+     */
+    FORCE
+}
@@ -0,0 +1,29 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Specifies the space-filling curve that orders spatial index keys. Keys, and the key ranges of queries,
+ * follow the chosen curve. A table's keys must be computed by a SpaceSuit using the same encoding, and the
+ * same Space, as the SpaceSuit used to query it.
+ */
+
+public enum KeyEncoding
+{
+    /**
+     * Z-order, as computed by geophile. Keys are interleaved grid coordinates. This is the default.
+     */
+    Z_ORDER,
+
+    /**
+     * The Hilbert curve. Cells that are adjacent on the curve are adjacent in space, so a query box is
+     * usually covered by fewer key ranges, or by ranges containing fewer points outside the box, than with
+     * z-order. Key computation is somewhat slower. Every dimension of the Space must have the same number
+     * of bits.
+     */
+    HILBERT
+}
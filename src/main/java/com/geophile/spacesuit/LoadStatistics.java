@@ -0,0 +1,76 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Statistics describing a load done by {@link BulkLoader}, or a run of a {@link Backfill}.
+ */
+
+public class LoadStatistics
+{
+    /**
+     * Returns the number of rows inserted.
+     * @return The number of rows inserted.
+     */
+    public long rows()
+    {
+        return rows;
+    }
+
+    /**
+     * Returns the number of transactions committed.
+     * @return The number of transactions committed.
+     */
+    public long commits()
+    {
+        return commits;
+    }
+
+    /**
+     * Returns the elapsed time of the load, in milliseconds.
+     * @return The elapsed time of the load, in milliseconds.
+     */
+    public long milliseconds()
+    {
+        return milliseconds;
+    }
+
+    /**
+     * Returns the load rate.
+     * @return Rows inserted per second.
+     */
+    public double rowsPerSecond()
+    {
+        return milliseconds == 0 ? 0 : rows * 1000.0 / milliseconds;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("rows: %s, commits: %s, msec: %s, rows/sec: %.0f",
+                             rows, commits, milliseconds, rowsPerSecond());
+    }
+
+    /**
+     * Creates a LoadStatistics object.
+     * @param rows Number of rows inserted.
+     * @param commits Number of transactions committed.
+     * @param milliseconds Elapsed time, in milliseconds.
+     */
+    public LoadStatistics(long rows, long commits, long milliseconds)
+    {
+        this.rows = rows;
+        this.commits = commits;
+        this.milliseconds = milliseconds;
+    }
+
+    // Object state
+
+    private final long rows;
+    private final long commits;
+    private final long milliseconds;
+}
@@ -0,0 +1,214 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The rows of a set of ResultSets, merged by a {@link ResultMerger}. Rows are read from the ResultSets
+ * only as needed: at any time, at most one row per ResultSet has been read but not yet returned.
+ * A MergedResult is not thread-safe, and should be consumed by one thread. It should be closed when no
+ * longer needed. It is closed automatically once all rows, or the limit, have been returned.
+ */
+
+public class MergedResult implements AutoCloseable
+{
+    /**
+     * Returns the next row, or null if there are no more rows.
+     * @return The column values of the next row, or null if there are no more rows.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public Object[] next() throws SQLException
+    {
+        if (limit == 0) {
+            close();
+        }
+        if (closed) {
+            return null;
+        }
+        if (cursors == null) {
+            start();
+        }
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            Object[] row = cursor.row;
+            boolean unique = primaryKeyColumns == null || firstOccurrence(row);
+            if (unique && ++returned == limit) {
+                close();
+                return row;
+            }
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+            if (unique) {
+                return row;
+            }
+        }
+        close();
+        return null;
+    }
+
+    /**
+     * Returns the number of rows read from the ResultSets so far, including rows not yet returned and
+     * duplicates.
+     * @return The number of rows read from the ResultSets.
+     */
+    public long rowsRead()
+    {
+        return rowsRead;
+    }
+
+    /**
+     * Closes the ResultSets being merged, and any statements created for them by the {@link ResultMerger}.
+     * @throws SQLException Thrown by the JDBC driver. All ResultSets and statements are closed, even if
+     *                      closing one of them fails.
+     */
+    @Override
+    public void close() throws SQLException
+    {
+        if (!closed) {
+            closed = true;
+            seen = null;
+            SQLException exception = null;
+            for (ResultSet resultSet : resultSets) {
+                try {
+                    resultSet.close();
+                } catch (SQLException e) {
+                    exception = exception == null ? e : exception;
+                }
+            }
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    exception = exception == null ? e : exception;
+                }
+            }
+            if (exception != null) {
+                throw exception;
+            }
+        }
+    }
+
+    // For use by this package
+
+    MergedResult(List<ResultSet> resultSets,
+                 List<Statement> statements,
+                 Comparator<Object[]> order,
+                 int[] primaryKeyColumns,
+                 boolean adjacentDuplicates,
+                 long limit)
+    {
+        this.resultSets = new ArrayList<>(resultSets);
+        this.statements = statements;
+        this.order = order;
+        this.primaryKeyColumns = primaryKeyColumns;
+        this.adjacentDuplicates = adjacentDuplicates;
+        this.limit = limit;
+    }
+
+    // For use by this class
+
+    private void start() throws SQLException
+    {
+        cursors = new PriorityQueue<>(Math.max(resultSets.size(), 1),
+                                      new Comparator<Cursor>()
+                                      {
+                                          @Override
+                                          public int compare(Cursor x, Cursor y)
+                                          {
+                                              int c = order.compare(x.row, y.row);
+                                              // Ties are broken by input position, so the merge is stable.
+                                              return c != 0 ? c : x.position - y.position;
+                                          }
+                                      });
+        if (primaryKeyColumns != null && !adjacentDuplicates) {
+            seen = new HashSet<>();
+        }
+        for (int r = 0; r < resultSets.size(); r++) {
+            Cursor cursor = new Cursor(resultSets.get(r), r);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    private boolean firstOccurrence(Object[] row)
+    {
+        Object[] key = new Object[primaryKeyColumns.length];
+        for (int k = 0; k < key.length; k++) {
+            key[k] = row[primaryKeyColumns[k] - 1];
+        }
+        List<Object> keyList = Arrays.asList(key);
+        boolean first;
+        if (adjacentDuplicates) {
+            first = !keyList.equals(previousKey);
+            previousKey = keyList;
+        } else {
+            first = seen.add(keyList);
+        }
+        return first;
+    }
+
+    // Object state
+
+    private final List<ResultSet> resultSets;
+    private final List<Statement> statements;
+    private final Comparator<Object[]> order;
+    private final int[] primaryKeyColumns;
+    private final boolean adjacentDuplicates;
+    private final long limit;
+    private PriorityQueue<Cursor> cursors;
+    private Set<List<Object>> seen;
+    private List<Object> previousKey;
+    private long returned = 0;
+    private long rowsRead = 0;
+    private boolean closed = false;
+
+    // Inner classes
+
+    private class Cursor
+    {
+        boolean advance() throws SQLException
+        {
+            if (resultSet.next()) {
+                if (columns < 0) {
+                    columns = resultSet.getMetaData().getColumnCount();
+                }
+                row = new Object[columns];
+                for (int c = 0; c < row.length; c++) {
+                    row[c] = resultSet.getObject(c + 1);
+                }
+                rowsRead++;
+                return true;
+            } else {
+                row = null;
+                return false;
+            }
+        }
+
+        Cursor(ResultSet resultSet, int position)
+        {
+            this.resultSet = resultSet;
+            this.position = position;
+        }
+
+        final ResultSet resultSet;
+        final int position;
+        int columns = -1;
+        Object[] row;
+    }
+}
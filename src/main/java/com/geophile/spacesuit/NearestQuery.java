@@ -0,0 +1,188 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Function;
+import com.geophile.spacesuit.apiimpl.Nearest;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.spacesuit.apiimpl.ZRanges;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A compiled k-nearest-neighbor query, created by {@link SpaceSuit#prepareNearest(String)}, e.g.
+ * <pre>
+ *     select id, x, y, description from place where &lt;&lt; nearest(z, x, y, ?, ?, ?) &gt;&gt;
+ * </pre>
+ * The query point and the number of neighbors are supplied when the query is run. The query must select
+ * the x and y columns.
+ * <p>
+ * The search starts with the z-value ranges covering a small square around the query point. Each range
+ * is queried, and every row retrieved is a candidate. Rows within the square's inscribed circle are
+ * confirmed: no row outside the square can be closer. If fewer than k rows are confirmed, the square is
+ * enlarged, and only the z-value ranges not already queried are queried. The search stops once k rows are
+ * confirmed, or the square covers the entire space.
+ * <p>
+ * A NearestQuery may be used by any number of threads.
+ */
+
+public class NearestQuery
+{
+    /**
+     * Returns the SQL text run for each z-value range. The parameters of the query preceding the
+     * nearest invocation come first, followed by the bounds of the z-value range.
+     * @return The SQL text run for each z-value range.
+     */
+    public String sql()
+    {
+        return sql;
+    }
+
+    /**
+     * Finds the k rows nearest to a point.
+     * @param connection Connection on which to run the query.
+     * @param px X coordinate of the query point.
+     * @param py Y coordinate of the query point.
+     * @param k Number of rows to find.
+     * @param maxZValues Maximum number of z-value ranges queried for each enlargement of the search square,
+     *                   or {@link SpaceSuit#AUTO_Z_VALUES}.
+     * @param parameters Values of the query's parameters preceding the nearest invocation.
+     * @return The column values of the k rows nearest to (px, py), (fewer if there are fewer than k rows),
+     * in order of increasing distance from (px, py).
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public List<Object[]> execute(Connection connection,
+                                  double px, double py, int k,
+                                  int maxZValues,
+                                  Object ... parameters) throws SQLException
+    {
+        if (k <= 0) {
+            throw new IllegalArgumentException(String.format("k: %s", k));
+        }
+        if (parameters.length != firstParameter - 1) {
+            throw new IllegalArgumentException(String.format("Expected %s parameters, found %s",
+                                                             firstParameter - 1, parameters.length));
+        }
+        nearest.checkPoint(px, py);
+        List<Neighbor> candidates = new ArrayList<>();
+        ZRanges scanned = ZRanges.empty();
+        double radius = Math.max(nearest.xExtent(), nearest.yExtent()) * INITIAL_RADIUS_FRACTION * Math.sqrt(k);
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int p = 0; p < parameters.length; p++) {
+                statement.setObject(p + 1, parameters[p]);
+            }
+            boolean done = false;
+            while (!done) {
+                ZRanges ranges = nearest.decompose(px, py, radius, maxZValues).minus(scanned);
+                for (int r = 0; r < ranges.count(); r++) {
+                    statement.setLong(firstParameter, ranges.lo(r));
+                    statement.setLong(firstParameter + 1, ranges.hi(r));
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        int columns = resultSet.getMetaData().getColumnCount();
+                        while (resultSet.next()) {
+                            Object[] row = new Object[columns];
+                            for (int c = 0; c < columns; c++) {
+                                row[c] = resultSet.getObject(c + 1);
+                            }
+                            double dx = resultSet.getDouble(xColumn) - px;
+                            double dy = resultSet.getDouble(yColumn) - py;
+                            candidates.add(new Neighbor(row, Math.sqrt(dx * dx + dy * dy)));
+                        }
+                    }
+                }
+                scanned = scanned.union(ranges);
+                int confirmed = 0;
+                for (Neighbor candidate : candidates) {
+                    if (candidate.distance <= radius) {
+                        confirmed++;
+                    }
+                }
+                if (confirmed >= k || nearest.coversSpace(px, py, radius)) {
+                    done = true;
+                } else if (confirmed == 0) {
+                    radius *= EMPTY_GROWTH;
+                } else {
+                    // Assume uniform density within the search square.
+                    radius *= Math.max(MIN_GROWTH, Math.sqrt((double) k / confirmed) * GROWTH_MARGIN);
+                }
+            }
+        }
+        Collections.sort(candidates,
+                         new Comparator<Neighbor>()
+                         {
+                             @Override
+                             public int compare(Neighbor x, Neighbor y)
+                             {
+                                 return Double.compare(x.distance, y.distance);
+                             }
+                         });
+        List<Object[]> neighbors = new ArrayList<>(k);
+        for (int i = 0; i < k && i < candidates.size(); i++) {
+            neighbors.add(candidates.get(i).row);
+        }
+        return neighbors;
+    }
+
+    // For use by this package
+
+    NearestQuery(Decomposer decomposer, QueryTemplate template)
+    {
+        Transformer transformer = new Transformer(decomposer);
+        transformer.parse(template.invocation());
+        Function function = transformer.function();
+        if (!(function instanceof Nearest)) {
+            throw new IllegalArgumentException(String.format("Expected nearest: %s", template.invocation()));
+        }
+        List<String> arguments = transformer.arguments();
+        this.nearest = (Nearest) function;
+        this.sql = template.rewrite(nearest.parameterizedPredicate(arguments));
+        this.xColumn = nearest.xColumn(arguments);
+        this.yColumn = nearest.yColumn(arguments);
+        this.firstParameter = template.prefixParameters() + 1;
+        if (template.suffixParameters() > 0) {
+            throw new IllegalArgumentException("Parameters not permitted following nearest invocation");
+        }
+    }
+
+    // Class state
+
+    private static final double INITIAL_RADIUS_FRACTION = 1.0 / 1024;
+    private static final double EMPTY_GROWTH = 4;
+    private static final double MIN_GROWTH = 1.5;
+    private static final double GROWTH_MARGIN = 1.2;
+
+    // Object state
+
+    private final Nearest nearest;
+    private final String sql;
+    private final String xColumn;
+    private final String yColumn;
+    private final int firstParameter;
+
+    // Inner classes
+
+    private static class Neighbor
+    {
+        Neighbor(Object[] row, double distance)
+        {
+            this.row = row;
+            this.distance = distance;
+        }
+
+        final Object[] row;
+        final double distance;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Specifies how the z-value ranges of a spatial query are turned into SQL.
+ */
+
+public enum OutputMode
+{
+    /**
+     * One query per z-value range. Each query can be run as an index range scan, but each also requires
+     * a round trip to the database.
+     */
+    SEPARATE,
+
+    /**
+     * A single query, combining the per-range queries using UNION ALL. One round trip, and each
+     * subquery can still be run as an index range scan. The text following the function invocation is
+     * repeated in each subquery, so it must not contain order by, limit, fetch or offset.
+     */
+    UNION_ALL,
+
+    /**
+     * A single query, in which the z-value ranges are combined in one disjunction, e.g.
+     * (z between a and b or z between c and d). One round trip, but the database
+     * may or may not run the disjunction as a set of index range scans.
+     */
+    DISJUNCTION
+}
@@ -0,0 +1,409 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Function;
+import com.geophile.spacesuit.apiimpl.InBox;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.spacesuit.apiimpl.ZRanges;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled box query whose rows are retrieved a page at a time, created by
+ * {@link SpaceSuit#preparePaged(String, String)}, e.g.
+ * <pre>
+ *     select id, x, y, z from place where &lt;&lt; inbox(z, x, ?, ?, y, ?, ?) &gt;&gt;
+ * </pre>
+ * Rows are returned in order of the spatial index key and then the primary key, so the query must select
+ * both columns. Each page ends with a continuation token recording the z-value range reached, and the
+ * spatial index key and primary key of the last row returned. The next page resumes within that range,
+ * following that row, so that the cost of a page depends on the page size, and not on the number of rows
+ * in earlier pages, as it would using offset. An index on (z, primary key) lets the database retrieve
+ * exactly the rows of a page. (A MySQL InnoDB index on z suffices, as it implicitly ends with the primary
+ * key.) Rows inserted or deleted between pages behind the continuation point are not seen.
+ * <p>
+ * A PagedQuery may be used by any number of threads.
+ */
+
+public class PagedQuery
+{
+    /**
+     * Returns the SQL text run to start retrieving the rows of a z-value range. The parameters of the query
+     * preceding the inbox invocation come first, followed by the bounds of the z-value range, and then the
+     * bounds of the query box.
+     * @return The SQL text run to start retrieving a z-value range.
+     */
+    public String sql()
+    {
+        return sql;
+    }
+
+    /**
+     * Returns the SQL text run to resume retrieving the rows of a z-value range. The parameters are those of
+     * {@link #sql()}, followed by the spatial index key, (twice), and then the primary key of the last row
+     * retrieved.
+     * @return The SQL text run to resume retrieving a z-value range.
+     */
+    public String continuationSQL()
+    {
+        return continuationSQL;
+    }
+
+    /**
+     * Retrieves one page of the rows inside a query box.
+     * @param connection Connection on which to run the query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param continuation null for the first page. Otherwise, the continuation token of the preceding page,
+     *                     obtained with the same query box.
+     * @param pageSize Maximum number of rows returned.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The page, containing the rows following those of the preceding page.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public Page page(Connection connection,
+                     double xLo, double xHi, double yLo, double yHi,
+                     int maxZValues,
+                     String continuation,
+                     int pageSize,
+                     Object ... parameters) throws SQLException
+    {
+        return page(connection, new double[]{xLo, yLo}, new double[]{xHi, yHi}, maxZValues,
+                    continuation, pageSize, parameters);
+    }
+
+    /**
+     * Retrieves one page of the rows inside a query box, in a space of any number of dimensions.
+     * @param connection Connection on which to run the query.
+     * @param lo Low coordinates of the query box, one for each dimension of the space.
+     * @param hi High coordinates of the query box, one for each dimension of the space.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param continuation null for the first page. Otherwise, the continuation token of the preceding page,
+     *                     obtained with the same query box.
+     * @param pageSize Maximum number of rows returned.
+     * @param parameters Values of the query's parameters preceding the inbox invocation.
+     * @return The page, containing the rows following those of the preceding page.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public Page page(Connection connection,
+                     double[] lo, double[] hi,
+                     int maxZValues,
+                     String continuation,
+                     int pageSize,
+                     Object ... parameters) throws SQLException
+    {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException(String.format("pageSize: %s", pageSize));
+        }
+        if (parameters.length != firstParameter - 1) {
+            throw new IllegalArgumentException(String.format("Expected %s parameters, found %s",
+                                                             firstParameter - 1, parameters.length));
+        }
+        ZRanges ranges = inBox.decompose(lo, hi, maxZValues);
+        int range = 0;
+        long lastZ = 0;
+        Object lastPrimaryKey = null;
+        if (continuation != null) {
+            Continuation position = Continuation.parse(continuation);
+            range = position.range(ranges);
+            lastZ = position.z;
+            lastPrimaryKey = position.primaryKey;
+        }
+        List<Object[]> rows = new ArrayList<>(pageSize);
+        PreparedStatement start = null;
+        PreparedStatement resume = null;
+        try {
+            while (rows.size() < pageSize && range < ranges.count()) {
+                PreparedStatement statement;
+                if (lastPrimaryKey == null) {
+                    if (start == null) {
+                        start = prepare(connection, sql, parameters);
+                    }
+                    statement = start;
+                } else {
+                    if (resume == null) {
+                        resume = prepare(connection, continuationSQL, parameters);
+                    }
+                    statement = resume;
+                }
+                long zLo = lastPrimaryKey == null ? ranges.lo(range) : Math.max(lastZ, ranges.lo(range));
+                int p = firstParameter;
+                statement.setLong(p++, zLo);
+                statement.setLong(p++, ranges.hi(range));
+                for (int d = 0; d < lo.length; d++) {
+                    statement.setDouble(p++, lo[d]);
+                    statement.setDouble(p++, hi[d]);
+                }
+                if (lastPrimaryKey != null) {
+                    statement.setLong(p++, lastZ);
+                    statement.setLong(p++, lastZ);
+                    Continuation.bindPrimaryKey(statement, p, lastPrimaryKey);
+                }
+                int remaining = pageSize - rows.size();
+                statement.setMaxRows(remaining);
+                int retrieved = 0;
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    int columns = resultSet.getMetaData().getColumnCount();
+                    while (resultSet.next()) {
+                        Object[] row = new Object[columns];
+                        for (int c = 0; c < columns; c++) {
+                            row[c] = resultSet.getObject(c + 1);
+                        }
+                        rows.add(row);
+                        lastZ = resultSet.getLong(zLabel);
+                        lastPrimaryKey = Continuation.primaryKey(resultSet.getObject(primaryKeyLabel));
+                        retrieved++;
+                    }
+                }
+                if (retrieved < remaining) {
+                    // The range is exhausted
+                    range++;
+                    lastPrimaryKey = null;
+                }
+            }
+        } finally {
+            if (start != null) {
+                start.close();
+            }
+            if (resume != null) {
+                resume.close();
+            }
+        }
+        // If rows remain, the page is full, and ends within a range.
+        return new Page(rows,
+                        range < ranges.count() ? new Continuation(range, lastZ, lastPrimaryKey).toString() : null);
+    }
+
+    // For use by this package
+
+    PagedQuery(Decomposer decomposer, QueryTemplate template, String primaryKeyColumn)
+    {
+        Transformer transformer = new Transformer(decomposer);
+        transformer.parse(template.invocation());
+        Function function = transformer.function();
+        if (!(function instanceof InBox)) {
+            throw new IllegalArgumentException(String.format("Only inbox can be paged: %s",
+                                                             template.invocation()));
+        }
+        if (primaryKeyColumn == null || !COLUMN.matcher(primaryKeyColumn).matches()) {
+            throw new IllegalArgumentException(String.format("primaryKeyColumn: %s", primaryKeyColumn));
+        }
+        if (template.suffixParameters() > 0) {
+            throw new IllegalArgumentException("Parameters not permitted following inbox invocation");
+        }
+        if (ORDERING.matcher(template.suffix()).find()) {
+            throw new IllegalArgumentException(
+                String.format("The query must not be ordered, grouped or limited: %s", template.suffix()));
+        }
+        List<String> arguments = transformer.arguments();
+        this.inBox = (InBox) function;
+        String zColumn = inBox.zColumn(arguments);
+        String predicate = inBox.parameterizedPredicate(arguments);
+        String orderBy = String.format(" order by %s, %s", zColumn, primaryKeyColumn);
+        this.sql = template.rewrite(predicate) + orderBy;
+        this.continuationSQL =
+            template.rewrite(String.format("(%s and (%s > ? or %s = ? and %s > ?))",
+                                           predicate, zColumn, zColumn, primaryKeyColumn)) + orderBy;
+        this.zLabel = label(zColumn);
+        this.primaryKeyLabel = label(primaryKeyColumn);
+        this.firstParameter = template.prefixParameters() + 1;
+    }
+
+    // For use by this class
+
+    private static PreparedStatement prepare(Connection connection, String sql, Object[] parameters)
+        throws SQLException
+    {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        for (int p = 0; p < parameters.length; p++) {
+            statement.setObject(p + 1, parameters[p]);
+        }
+        return statement;
+    }
+
+    // Returns the label of a (possibly qualified) column in a ResultSet.
+    private static String label(String column)
+    {
+        return column.substring(column.lastIndexOf('.') + 1);
+    }
+
+    // Class state
+
+    private static final Pattern COLUMN = Pattern.compile("[\\w$]+(\\.[\\w$]+)?");
+    private static final Pattern ORDERING =
+        Pattern.compile("\\b(order|group|limit|fetch|offset|union)\\b", Pattern.CASE_INSENSITIVE);
+
+    // Object state
+
+    private final InBox inBox;
+    private final String sql;
+    private final String continuationSQL;
+    private final String zLabel;
+    private final String primaryKeyLabel;
+    private final int firstParameter;
+
+    // Inner classes
+
+    /**
+     * One page of the rows of a {@link PagedQuery}.
+     */
+    public static class Page
+    {
+        /**
+         * Returns the rows of the page, in order of spatial index key and then primary key.
+         * @return The column values of each row of the page.
+         */
+        public List<Object[]> rows()
+        {
+            return rows;
+        }
+
+        /**
+         * Returns the continuation token to be passed to
+         * {@link PagedQuery#page(Connection, double, double, double, double, int, String, int, Object...)}
+         * to retrieve the next page. The token is a short string of letters, digits, '.' and '-'.
+         * @return The continuation token, or null if this is the last page.
+         */
+        public String continuation()
+        {
+            return continuation;
+        }
+
+        Page(List<Object[]> rows, String continuation)
+        {
+            this.rows = rows;
+            this.continuation = continuation;
+        }
+
+        private final List<Object[]> rows;
+        private final String continuation;
+    }
+
+    // The position following the last row of a page: range.z.key, with numbers in base 36. key is n followed
+    // by an integer primary key, or s followed by the hex encoding of a string's UTF-8 bytes.
+    private static class Continuation
+    {
+        @Override
+        public String toString()
+        {
+            String key;
+            if (primaryKey instanceof Long) {
+                key = "n" + Long.toString((Long) primaryKey, RADIX);
+            } else {
+                StringBuilder buffer = new StringBuilder("s");
+                for (byte b : ((String) primaryKey).getBytes(StandardCharsets.UTF_8)) {
+                    buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+                    buffer.append(Character.forDigit(b & 0xf, 16));
+                }
+                key = buffer.toString();
+            }
+            return String.format("%s.%s.%s", Long.toString(range, RADIX), Long.toString(z, RADIX), key);
+        }
+
+        // Returns the range in which to continue. The range recorded in the token is normally correct, but
+        // the decomposition of the query box may have changed, (e.g. if the decomposition depends on a
+        // histogram). Because ranges are ordered by z, the range can be found from z.
+        int range(ZRanges ranges)
+        {
+            if (this.range < ranges.count() && ranges.lo(this.range) <= z && z <= ranges.hi(this.range)) {
+                return this.range;
+            }
+            int r = 0;
+            while (r < ranges.count() && ranges.hi(r) < z) {
+                r++;
+            }
+            return r;
+        }
+
+        static Continuation parse(String token)
+        {
+            String[] fields = token.split("\\.", -1);
+            try {
+                if (fields.length == 3 && !fields[2].isEmpty()) {
+                    int range = Integer.parseInt(fields[0], RADIX);
+                    long z = Long.parseLong(fields[1], RADIX);
+                    String key = fields[2].substring(1);
+                    Object primaryKey;
+                    switch (fields[2].charAt(0)) {
+                        case 'n':
+                            primaryKey = Long.parseLong(key, RADIX);
+                            break;
+                        case 's':
+                            if (key.length() % 2 != 0) {
+                                throw new NumberFormatException(key);
+                            }
+                            byte[] bytes = new byte[key.length() / 2];
+                            for (int i = 0; i < bytes.length; i++) {
+                                bytes[i] = (byte) Integer.parseInt(key.substring(2 * i, 2 * i + 2), 16);
+                            }
+                            primaryKey = new String(bytes, StandardCharsets.UTF_8);
+                            break;
+                        default:
+                            primaryKey = INVALID;
+                            break;
+                    }
+                    if (range >= 0 && primaryKey != INVALID) {
+                        return new Continuation(range, z, primaryKey);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // Report as an invalid token below
+            }
+            throw new IllegalArgumentException(String.format("Invalid continuation token: %s", token));
+        }
+
+        static Object primaryKey(Object value)
+        {
+            if (value instanceof Long || value instanceof Integer || value instanceof Short ||
+                value instanceof Byte) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String) {
+                return value;
+            }
+            throw new IllegalArgumentException(
+                String.format("Primary key must be an integer or a string: %s",
+                              value == null ? null : value.getClass().getName()));
+        }
+
+        static void bindPrimaryKey(PreparedStatement statement, int p, Object primaryKey) throws SQLException
+        {
+            if (primaryKey instanceof Long) {
+                statement.setLong(p, (Long) primaryKey);
+            } else {
+                statement.setString(p, (String) primaryKey);
+            }
+        }
+
+        Continuation(int range, long z, Object primaryKey)
+        {
+            this.range = range;
+            this.z = z;
+            this.primaryKey = primaryKey;
+        }
+
+        private static final int RADIX = 36;
+        private static final Object INVALID = new Object();
+
+        final int range;
+        final long z;
+        final Object primaryKey; // Long or String
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A data-adaptive partitioning of a Space, built from a sample of the data. A Space's grid divides each
+ * dimension into equal intervals, so when the data is clustered, the points of a dense region share a few
+ * grid cells, and a query box in that region retrieves many points outside the box. A Partitioning
+ * transforms each coordinate before keys are computed, stretching dense intervals and shrinking sparse
+ * ones, so that each grid interval of a dimension holds roughly the same number of sampled points.
+ * <p>
+ * The transform of each dimension is monotonic, so query boxes are transformed by transforming their
+ * corners, and queries return the same rows as without a Partitioning. Only the keys, and the key ranges of
+ * queries, change. A table's keys must be computed and queried using the same Partitioning. A Partitioning is
+ * Serializable, so that it can be computed once, stored, and shared by the processes loading and querying a
+ * table.
+ */
+
+public class Partitioning implements Serializable
+{
+    /**
+     * Transforms a coordinate. Coordinates outside the bounds of the dimension are not transformed.
+     * @param dimension Dimension of the coordinate, in the Space's dimension order.
+     * @param coordinate The coordinate.
+     * @return The coordinate used to compute keys.
+     */
+    public double transform(int dimension, double coordinate)
+    {
+        double lo = this.lo[dimension];
+        double hi = this.hi[dimension];
+        if (!(coordinate > lo && coordinate < hi)) {
+            return coordinate;
+        }
+        double[] knots = this.knots[dimension];
+        int intervals = knots.length - 1;
+        int i = Arrays.binarySearch(knots, coordinate);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        double fraction = (coordinate - knots[i]) / (knots[i + 1] - knots[i]);
+        double transformed = lo + (i + fraction) * ((hi - lo) / intervals);
+        return Math.min(transformed, Math.nextAfter(hi, lo));
+    }
+
+    /**
+     * Returns the number of intervals of a dimension, bounded by the Space's bounds and sampled quantiles.
+     * This is the number of intervals requested when the Partitioning was created, unless the sample has
+     * fewer distinct values.
+     * @param dimension Dimension, in the Space's dimension order.
+     * @return The number of intervals.
+     */
+    public int intervals(int dimension)
+    {
+        return knots[dimension].length - 1;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder("Partitioning(");
+        for (int d = 0; d < knots.length; d++) {
+            if (d > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(String.format("[%s, %s]: %s intervals", lo[d], hi[d], intervals(d)));
+        }
+        buffer.append(')');
+        return buffer.toString();
+    }
+
+    /**
+     * Creates a Partitioning of a space from a sample of the data. Each dimension is divided at quantiles of
+     * the sampled coordinates of that dimension. A sample of a few thousand points per interval is usually
+     * sufficient.
+     * @param space Space in which the data points exist.
+     * @param intervals Number of intervals into which each dimension is divided. Must be at least 1.
+     * @param sample Sampled coordinates, one array for each dimension, in the Space's dimension order, e.g.
+     *               create(space, 1000, xs, ys). The arrays are not modified.
+     * @return A new Partitioning.
+     */
+    public static Partitioning create(Space space, int intervals, double[]... sample)
+    {
+        int dimensions = space.dimensions();
+        if (intervals < 1) {
+            throw new IllegalArgumentException(String.format("intervals: %s", intervals));
+        }
+        if (sample.length != dimensions) {
+            throw new IllegalArgumentException(String.format("Expected a sample of %s dimensions, found %s",
+                                                             dimensions, sample.length));
+        }
+        double[] lo = new double[dimensions];
+        double[] hi = new double[dimensions];
+        double[][] knots = new double[dimensions][];
+        for (int d = 0; d < dimensions; d++) {
+            if (sample[d].length == 0) {
+                throw new IllegalArgumentException(String.format("Empty sample for dimension %s", d));
+            }
+            lo[d] = space.lo(d);
+            hi[d] = space.hi(d);
+            knots[d] = knots(sample[d], intervals, lo[d], hi[d]);
+        }
+        return new Partitioning(lo, hi, knots);
+    }
+
+    // For use by this package
+
+    void checkSpace(Space space)
+    {
+        boolean matches = space.dimensions() == knots.length;
+        for (int d = 0; matches && d < knots.length; d++) {
+            matches = space.lo(d) == lo[d] && space.hi(d) == hi[d];
+        }
+        if (!matches) {
+            throw new IllegalArgumentException(String.format("%s does not describe %s", this, space));
+        }
+    }
+
+    // For use by this class
+
+    // Returns the bounds of the intervals of a dimension: lo, the sampled quantiles lying strictly between lo
+    // and hi, and hi. Duplicate quantiles are dropped, so the bounds are strictly increasing.
+    private static double[] knots(double[] sample, int intervals, double lo, double hi)
+    {
+        double[] sorted = sample.clone();
+        Arrays.sort(sorted);
+        double[] knots = new double[intervals + 1];
+        int n = 0;
+        knots[n++] = lo;
+        for (int i = 1; i < intervals; i++) {
+            double quantile = sorted[(int) ((long) i * sorted.length / intervals)];
+            if (quantile > knots[n - 1] && quantile < hi) {
+                knots[n++] = quantile;
+            }
+        }
+        knots[n++] = hi;
+        return Arrays.copyOf(knots, n);
+    }
+
+    private Partitioning(double[] lo, double[] hi, double[][] knots)
+    {
+        this.lo = lo;
+        this.hi = hi;
+        this.knots = knots;
+    }
+
+    // Class state
+
+    private static final long serialVersionUID = 1L;
+
+    // Object state
+
+    private final double[] lo;
+    private final double[] hi;
+    private final double[][] knots; // knots[d]: Bounds of the intervals of dimension d
+}
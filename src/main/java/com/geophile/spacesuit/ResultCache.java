@@ -0,0 +1,340 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.DecompositionCache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Caches the rows of spatial queries, for applications that query the same boxes repeatedly while the data
+ * changes slowly. Rows are cached per z-value range: a query box is assembled from the cached rows of its
+ * ranges, and only the missing ranges are fetched from the database. A cached range is identified by the
+ * SQL text, the non-spatial parameter values, and the bounds of the range. All the rows of a range are
+ * cached, including those outside the query box, together with their coordinates, and the rows are checked
+ * against the query box when read. So boxes whose decompositions share ranges share the cached rows of
+ * those ranges. For this reason, the query must begin with select, and must not be distinct, aggregated,
+ * grouped, ordered or limited, or have parameters following the spatial predicate.
+ * <p>
+ * When a row is inserted, updated or deleted, the application must call {@link #invalidate(long)} with the
+ * spatial index key of the row (see {@link SpaceSuit#spatialIndexKey(double, double)}), after the change
+ * is committed. For an update that moves a point, both the old and the new key must be invalidated. Only
+ * the cached ranges containing the key are evicted. Changes to non-spatial columns that a query filters on
+ * must be invalidated in the same way. A fetch that overlaps an invalidation of its range is not cached.
+ * <p>
+ * The cache is bounded by the number of rows it holds, and evicts the least recently used ranges. A
+ * ResultCache may be used by any number of threads.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *     SpatialQuery query = spaceSuit.prepare("select id, x, y from t where &lt;&lt;inbox(...)&gt;&gt;");
+ *     ResultCache cache = ResultCache.create(100_000);
+ *     List&lt;Object[]&gt; rows = cache.execute(connection, query.bind(xLo, xHi, yLo, yHi, maxZValues));
+ *     ...
+ *     update.executeUpdate();
+ *     connection.commit();
+ *     cache.invalidate(spaceSuit.spatialIndexKey(x, y));
+ * </pre>
+ */
+
+public class ResultCache
+{
+    /**
+     * Returns the rows of a spatial query, from the cache for ranges that are cached, and from the
+     * database otherwise. Rows are grouped by z-value range, in the order of the ranges.
+     * @param connection Connection used to fetch the missing ranges.
+     * @param binding Query box of a query prepared with {@link OutputMode#SEPARATE}. The query must be
+     *                one whose rows can be cached, as described above.
+     * @param parameters Values of the parameters preceding the spatial predicate. The values must implement
+     *                   equals and hashCode by value.
+     * @return The rows of the query. Each row contains one value per column of the result.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public List<Object[]> execute(Connection connection, SpatialQuery.Binding binding, Object ... parameters)
+        throws SQLException
+    {
+        SpatialQuery query = binding.query();
+        if (query.outputMode() != OutputMode.SEPARATE) {
+            throw new IllegalArgumentException(String.format("Only %s queries can be cached: %s",
+                                                             OutputMode.SEPARATE, query.outputMode()));
+        }
+        if (parameters.length != query.firstParameter() - 1) {
+            throw new IllegalArgumentException(String.format("Expected %s parameters, found %s",
+                                                             query.firstParameter() - 1, parameters.length));
+        }
+        String sql = query.rangeSQL();
+        List<Object> parameterList = Arrays.asList(parameters.clone());
+        double[] lo = binding.lo();
+        double[] hi = binding.hi();
+        List<Object[]> rows = new ArrayList<>();
+        PreparedStatement statement = null;
+        try {
+            for (int r = 0; r < binding.ranges(); r++) {
+                long zLo = binding.zLo(r);
+                long zHi = binding.zHi(r);
+                List<Object> key = DecompositionCache.key(sql, parameterList, zLo, zHi);
+                List<Object[]> rangeRows = get(key);
+                if (rangeRows == null) {
+                    if (statement == null) {
+                        statement = connection.prepareStatement(sql);
+                        for (int p = 0; p < parameters.length; p++) {
+                            statement.setObject(p + 1, parameters[p]);
+                        }
+                    }
+                    long generation = generation();
+                    statement.setLong(query.firstParameter(), zLo);
+                    statement.setLong(query.firstParameter() + 1, zHi);
+                    rangeRows = fetch(statement);
+                    put(key, zLo, zHi, rangeRows, generation);
+                }
+                // Each cached row starts with the coordinates of the point.
+                for (Object[] row : rangeRows) {
+                    if (inside(row, lo, hi)) {
+                        rows.add(Arrays.copyOfRange(row, lo.length, row.length));
+                    }
+                }
+            }
+        } finally {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Evicts the cached ranges containing a spatial index key. This method should be called after a change
+     * affecting a row with that key is committed.
+     * @param z Spatial index key of an inserted, updated or deleted row.
+     */
+    public synchronized void invalidate(long z)
+    {
+        recentInvalidations[(int) (invalidations % recentInvalidations.length)] = z;
+        invalidations++;
+        // Entries whose range contains z have zLo in [z - maxSpan, z].
+        Entry probe = new Entry(null, z, z, null, Long.MAX_VALUE);
+        Iterator<Entry> candidates = entriesByZLo.headSet(probe, true).descendingIterator();
+        while (candidates.hasNext()) {
+            Entry entry = candidates.next();
+            if (z - entry.zLo > maxSpan) {
+                break;
+            }
+            if (entry.zHi >= z) {
+                candidates.remove();
+                entries.remove(entry.key);
+                cachedRows -= entry.cost();
+            }
+        }
+    }
+
+    /**
+     * Evicts all cached ranges, e.g. following a bulk change to the table.
+     */
+    public synchronized void clear()
+    {
+        // Fetches in progress must not be cached either.
+        invalidations += recentInvalidations.length + 1;
+        entries.clear();
+        entriesByZLo.clear();
+        cachedRows = 0;
+        maxSpan = 0;
+    }
+
+    /**
+     * Returns the statistics of the cache. Hits and misses count z-value ranges.
+     * @return The statistics of the cache.
+     */
+    public synchronized CacheStatistics statistics()
+    {
+        return new CacheStatistics(hits, misses, evictions, entries.size());
+    }
+
+    /**
+     * Returns the number of rows in the cache. An empty range counts as one row.
+     * @return The number of rows in the cache.
+     */
+    public synchronized long rows()
+    {
+        return cachedRows;
+    }
+
+    /**
+     * Creates a ResultCache.
+     * @param maxRows Maximum number of rows cached, across all ranges. An empty range counts as one row.
+     *                A range with more rows than this is never cached.
+     * @return A new ResultCache.
+     */
+    public static ResultCache create(long maxRows)
+    {
+        return new ResultCache(maxRows);
+    }
+
+    // For use by this class
+
+    private synchronized List<Object[]> get(List<Object> key)
+    {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.rows;
+    }
+
+    private synchronized long generation()
+    {
+        return invalidations;
+    }
+
+    private synchronized void put(List<Object> key, long zLo, long zHi, List<Object[]> rows, long generation)
+    {
+        if (invalidatedSince(generation, zLo, zHi)) {
+            return;
+        }
+        Entry entry = new Entry(key, zLo, zHi, rows, sequence++);
+        if (entry.cost() > maxRows) {
+            return;
+        }
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            entriesByZLo.remove(replaced);
+            cachedRows -= replaced.cost();
+        }
+        entriesByZLo.add(entry);
+        cachedRows += entry.cost();
+        maxSpan = Math.max(maxSpan, zHi - zLo);
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (cachedRows > maxRows) {
+            Entry evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            entriesByZLo.remove(evicted);
+            cachedRows -= evicted.cost();
+            evictions++;
+        }
+    }
+
+    // Returns true if a key in [zLo, zHi] has been invalidated since the given generation, or if that can no
+    // longer be determined.
+    private boolean invalidatedSince(long generation, long zLo, long zHi)
+    {
+        if (invalidations - generation > recentInvalidations.length) {
+            return true;
+        }
+        for (long g = generation; g < invalidations; g++) {
+            long z = recentInvalidations[(int) (g % recentInvalidations.length)];
+            if (z >= zLo && z <= zHi) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean inside(Object[] row, double[] lo, double[] hi)
+    {
+        for (int d = 0; d < lo.length; d++) {
+            if (row[d] == null) {
+                return false;
+            }
+            double coordinate = ((Number) row[d]).doubleValue();
+            if (coordinate < lo[d] || coordinate > hi[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<Object[]> fetch(PreparedStatement statement) throws SQLException
+    {
+        List<Object[]> rows = new ArrayList<>();
+        try (ResultSet resultSet = statement.executeQuery()) {
+            int columns = resultSet.getMetaData().getColumnCount();
+            while (resultSet.next()) {
+                Object[] row = new Object[columns];
+                for (int c = 0; c < columns; c++) {
+                    row[c] = resultSet.getObject(c + 1);
+                }
+                rows.add(row);
+            }
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    private ResultCache(long maxRows)
+    {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException(String.format("maxRows: %s", maxRows));
+        }
+        this.maxRows = maxRows;
+    }
+
+    // Class state
+
+    private static final int RECENT_INVALIDATIONS = 1024;
+    private static final Comparator<Entry> BY_Z_LO =
+        new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry x, Entry y)
+            {
+                int c = Long.compare(x.zLo, y.zLo);
+                return c != 0 ? c : Long.compare(x.sequence, y.sequence);
+            }
+        };
+
+    // Object state
+
+    private final long maxRows;
+    // In LRU order
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeSet<Entry> entriesByZLo = new TreeSet<>(BY_Z_LO);
+    // Keys of the most recent invalidations, indexed by invalidation count modulo the array length
+    private final long[] recentInvalidations = new long[RECENT_INVALIDATIONS];
+    private long invalidations;
+    private long cachedRows;
+    private long maxSpan;
+    private long sequence;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    // Inner classes
+
+    private static class Entry
+    {
+        long cost()
+        {
+            return Math.max(1, rows.size());
+        }
+
+        Entry(List<Object> key, long zLo, long zHi, List<Object[]> rows, long sequence)
+        {
+            this.key = key;
+            this.zLo = zLo;
+            this.zHi = zHi;
+            this.rows = rows;
+            this.sequence = sequence;
+        }
+
+        final List<Object> key;
+        final long zLo;
+        final long zHi;
+        final List<Object[]> rows;
+        final long sequence;
+    }
+}
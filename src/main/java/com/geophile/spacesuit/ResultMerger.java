@@ -0,0 +1,211 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges the rows of the per-range queries of a spatial query into a single ordered stream. Each input
+ * ResultSet must already be ordered by the merge key, e.g. by ordering the query by z.
+ * The ResultSets are then merged k-way, reading one row at a time from each, so that rows are pulled from
+ * the database only as they are consumed. Optionally, duplicate rows, identified by primary key columns,
+ * are dropped, and the number of rows returned is limited. Once the limit is reached, all ResultSets are
+ * closed. A ResultMerger may be used by any number of threads; the {@link MergedResult}s it creates may not.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *     SpatialQuery query = spaceSuit.prepare("select id, x, y, z from t where &lt;&lt;inbox(...)&gt;&gt; order by z");
+ *     ResultMerger merger = ResultMerger.create(4);
+ *     merger.distinct(1);
+ *     merger.limit(100);
+ *     try (MergedResult result = merger.merge(connection, query.bind(xLo, xHi, yLo, yHi, maxZValues))) {
+ *         Object[] row;
+ *         while ((row = result.next()) != null) {
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ */
+
+public class ResultMerger
+{
+    /**
+     * Specifies the columns identifying a row. Rows whose values in these columns match those of a row
+     * already returned are dropped. If the merge key starts with these columns, only the previous row's key
+     * needs to be remembered. Otherwise, the keys of all rows returned are retained until the
+     * {@link MergedResult} is closed.
+     * @param primaryKeyColumns Positions of the primary key columns, starting at 1. If none are given,
+     *                          duplicates are not dropped (the default).
+     */
+    public void distinct(int ... primaryKeyColumns)
+    {
+        checkColumns(primaryKeyColumns);
+        this.primaryKeyColumns = primaryKeyColumns.length == 0 ? null : primaryKeyColumns.clone();
+    }
+
+    /**
+     * Limits the number of rows returned by each {@link MergedResult}.
+     * @param limit Maximum number of rows returned. Long.MAX_VALUE (the default) for no limit.
+     */
+    public void limit(long limit)
+    {
+        if (limit < 0) {
+            throw new IllegalArgumentException(String.format("limit: %s", limit));
+        }
+        this.limit = limit;
+    }
+
+    /**
+     * Merges the given ResultSets, each of which must be ordered by the merge key. The returned
+     * MergedResult takes ownership of the ResultSets, and closes them when it is closed.
+     * @param resultSets ResultSets to be merged.
+     * @return The merged rows.
+     */
+    public MergedResult merge(List<ResultSet> resultSets)
+    {
+        return mergedResult(resultSets, new ArrayList<Statement>(), limit);
+    }
+
+    /**
+     * Runs each query of a spatial query, and merges the results. Each query gets its own PreparedStatement,
+     * on the given connection, and all of their ResultSets are open at once. The JDBC driver must permit
+     * this. If a limit has been set, no query retrieves more rows than the limit.
+     * @param connection Connection on which to run the queries.
+     * @param binding The z-value ranges and coordinates of the query box.
+     * @param parameters Values of the query's parameters preceding the spatial predicate.
+     * @return The merged rows.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public MergedResult merge(Connection connection, SpatialQuery.Binding binding, Object ... parameters)
+        throws SQLException
+    {
+        List<Statement> statements = new ArrayList<>();
+        List<ResultSet> resultSets = new ArrayList<>();
+        long limit = this.limit;
+        try {
+            for (int q = 0; q < binding.queries(); q++) {
+                PreparedStatement statement = binding.prepareStatement(connection);
+                statements.add(statement);
+                for (int p = 0; p < parameters.length; p++) {
+                    statement.setObject(p + 1, parameters[p]);
+                }
+                binding.bind(statement, q);
+                if (limit < Integer.MAX_VALUE) {
+                    statement.setMaxRows((int) Math.max(limit, 1));
+                }
+                resultSets.add(statement.executeQuery());
+            }
+        } catch (SQLException e) {
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException closeException) {
+                    // Report the original exception.
+                }
+            }
+            throw e;
+        }
+        return mergedResult(resultSets, statements, limit);
+    }
+
+    /**
+     * Creates a ResultMerger that merges by the values of the given columns, e.g. the z-value column.
+     * Column values must be Comparable. Nulls sort first.
+     * @param orderColumns Positions of the merge key columns, starting at 1.
+     * @return A new ResultMerger.
+     */
+    public static ResultMerger create(final int ... orderColumns)
+    {
+        if (orderColumns.length == 0) {
+            throw new IllegalArgumentException("No order columns");
+        }
+        checkColumns(orderColumns);
+        final int[] columns = orderColumns.clone();
+        return new ResultMerger(
+            new Comparator<Object[]>()
+            {
+                @Override
+                public int compare(Object[] x, Object[] y)
+                {
+                    for (int column : columns) {
+                        int c = compareValues(x[column - 1], y[column - 1]);
+                        if (c != 0) {
+                            return c;
+                        }
+                    }
+                    return 0;
+                }
+            },
+            columns);
+    }
+
+    /**
+     * Creates a ResultMerger that merges using the given Comparator.
+     * @param order Comparator of rows, consistent with the order of each input ResultSet.
+     * @return A new ResultMerger.
+     */
+    public static ResultMerger create(Comparator<Object[]> order)
+    {
+        if (order == null) {
+            throw new IllegalArgumentException("null order");
+        }
+        return new ResultMerger(order, null);
+    }
+
+    // For use by this class
+
+    private ResultMerger(Comparator<Object[]> order, int[] orderColumns)
+    {
+        this.order = order;
+        this.orderColumns = orderColumns;
+    }
+
+    private MergedResult mergedResult(List<ResultSet> resultSets, List<Statement> statements, long limit)
+    {
+        int[] primaryKeyColumns = this.primaryKeyColumns;
+        // Duplicates are adjacent in the merged stream if the merge key starts with the primary key.
+        boolean adjacent =
+            primaryKeyColumns != null &&
+            orderColumns != null &&
+            orderColumns.length >= primaryKeyColumns.length &&
+            Arrays.equals(Arrays.copyOf(orderColumns, primaryKeyColumns.length), primaryKeyColumns);
+        return new MergedResult(resultSets, statements, order, primaryKeyColumns, adjacent, limit);
+    }
+
+    private static void checkColumns(int[] columns)
+    {
+        for (int column : columns) {
+            if (column < 1) {
+                throw new IllegalArgumentException(String.format("column: %s", column));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object x, Object y)
+    {
+        return
+            x == null ? (y == null ? 0 : -1) :
+            y == null ? 1 :
+            ((Comparable<Object>) x).compareTo(y);
+    }
+
+    // Object state
+
+    private final Comparator<Object[]> order;
+    private final int[] orderColumns;
+    private volatile int[] primaryKeyColumns;
+    private volatile long limit = Long.MAX_VALUE;
+}
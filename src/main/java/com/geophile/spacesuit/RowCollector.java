@@ -0,0 +1,145 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Collects all rows of a spatial query, for SpatialQueryExecutor.submit. Calls to the RowSubscriber methods
+// are serialized by the subscription. The latch makes the rows visible to threads calling get. Listeners
+// are guarded by this.
+
+class RowCollector implements RowSubscriber, SpatialQueryFuture
+{
+    @Override
+    public void onSubscribe(RowSubscription subscription)
+    {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(Object[] row)
+    {
+        rows.add(row);
+    }
+
+    @Override
+    public void onError(Throwable exception)
+    {
+        failure = exception;
+        finish();
+    }
+
+    @Override
+    public void onComplete()
+    {
+        finish();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        if (isDone()) {
+            return false;
+        }
+        cancelled = true;
+        subscription.cancel();
+        finish();
+        return true;
+    }
+
+    @Override
+    public void addListener(Runnable listener, Executor executor)
+    {
+        synchronized (this) {
+            if (!isDone()) {
+                listeners.add(listener);
+                listenerExecutors.add(executor);
+                return;
+            }
+        }
+        executor.execute(listener);
+    }
+
+    @Override
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return finished.getCount() == 0;
+    }
+
+    @Override
+    public List<Object[]> get() throws InterruptedException, ExecutionException
+    {
+        finished.await();
+        return result();
+    }
+
+    @Override
+    public List<Object[]> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if (!finished.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    // For use by this class
+
+    private void finish()
+    {
+        List<Runnable> listeners;
+        List<Executor> listenerExecutors;
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            finished.countDown();
+            listeners = new ArrayList<>(this.listeners);
+            listenerExecutors = new ArrayList<>(this.listenerExecutors);
+            this.listeners.clear();
+            this.listenerExecutors.clear();
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listenerExecutors.get(i).execute(listeners.get(i));
+        }
+    }
+
+    private List<Object[]> result() throws ExecutionException
+    {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return rows;
+    }
+
+    // Object state
+
+    private final List<Object[]> rows = new ArrayList<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile RowSubscription subscription;
+    private final List<Runnable> listeners = new ArrayList<>();
+    private final List<Executor> listenerExecutors = new ArrayList<>();
+    private volatile Throwable failure;
+    private volatile boolean cancelled = false;
+}
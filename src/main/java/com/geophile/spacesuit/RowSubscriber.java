@@ -0,0 +1,48 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Receives the rows of a spatial query started by
+ * {@link SpatialQueryExecutor#subscribe(SpatialQuery, double, double, double, double, int, long,
+ * java.util.concurrent.TimeUnit, RowSubscriber, Object...)}, following the protocol of a reactive streams
+ * subscriber: {@link #onSubscribe(RowSubscription)} is called first, then {@link #onNext(Object[])} is
+ * called once per row, no more often than rows have been requested, and finally, one of
+ * {@link #onComplete()} or {@link #onError(Throwable)} is called, unless the subscription is cancelled.
+ * Calls are not concurrent, but may be made by different threads of the executor. Methods should return
+ * quickly and must not throw exceptions. The methods correspond one for one to those of
+ * org.reactivestreams.Subscriber, so that a RowSubscriber can delegate to a reactive streams subscriber.
+ */
+
+public interface RowSubscriber
+{
+    /**
+     * Called before any other method. No rows are retrieved until the subscriber requests them, using
+     * {@link RowSubscription#request(long)}.
+     * @param subscription Used to request rows, or to cancel the query.
+     */
+    void onSubscribe(RowSubscription subscription);
+
+    /**
+     * Called for each row retrieved.
+     * @param row The column values of the row.
+     */
+    void onNext(Object[] row);
+
+    /**
+     * Called when a range query fails (java.sql.SQLException), when the timeout expires
+     * (java.sql.SQLTimeoutException), or when {@link RowSubscription#request(long)} is called with a number
+     * of rows that is not positive (IllegalArgumentException). No further methods are called.
+     * @param exception Describes the failure.
+     */
+    void onError(Throwable exception);
+
+    /**
+     * Called when all rows have been delivered. No further methods are called.
+     */
+    void onComplete();
+}
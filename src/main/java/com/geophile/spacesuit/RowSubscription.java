@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Controls the delivery of rows to a {@link RowSubscriber}. Methods may be called by any thread, including
+ * from within the subscriber's methods.
+ */
+
+public interface RowSubscription
+{
+    /**
+     * Requests more rows. Requests are cumulative. Range queries are started only while requested rows are
+     * outstanding, so that no more range queries are in flight than the number of rows requested. A range
+     * query that has retrieved as many rows as were requested is suspended, without occupying a thread,
+     * until more rows are requested.
+     * @param rows Number of additional rows requested. Long.MAX_VALUE requests all rows. If rows is not
+     *             positive, the subscription is cancelled, and {@link RowSubscriber#onError(Throwable)} is called
+     *             with an IllegalArgumentException.
+     */
+    void request(long rows);
+
+    /**
+     * Stops the delivery of rows, cancels range queries that are running, and releases their resources.
+     */
+    void cancel();
+}
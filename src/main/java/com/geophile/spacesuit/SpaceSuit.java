@@ -7,8 +7,18 @@
 package com.geophile.spacesuit;
 
 import com.geophile.z.Space;
+import com.geophile.spacesuit.apiimpl.Curve;
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.DecompositionCache;
+import com.geophile.spacesuit.apiimpl.IndexHinter;
+import com.geophile.spacesuit.apiimpl.KeyComputation;
+import com.geophile.spacesuit.apiimpl.Planner;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
 import com.geophile.spacesuit.apiimpl.Transformer;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * Utility for running fast spatial searches on top of a database system that does not support spatial
  * indexes.
@@ -17,21 +27,88 @@ import com.geophile.spacesuit.apiimpl.Transformer;
 public class SpaceSuit
 {
     /**
-     * Returns the value to be assigned to the spatial index column of a table.
+     * When passed as maxZValues, e.g. to {@link #transformQuery(String, int)}, the number of z-value ranges
+     * is chosen automatically. See {@link #enableAutomaticZValues(ZHistogram, double, int)}.
+     */
+    public static final int AUTO_Z_VALUES = Decomposer.AUTO;
+
+    /**
+     * Returns the value to be assigned to the spatial index column of a table. This method may be called
+     * concurrently from multiple threads.
      * @param x X coordinate.
      * @param y Y coordinate.
      * @return Spatial index key corresponding to (x, y).
      */
     public long spatialIndexKey(double x, double y)
     {
+        checkPlanar();
+        double[] xy = this.xy.get();
         xy[0] = x;
         xy[1] = y;
-        return space.spatialIndexKey(xy);
+        return curve.key(xy);
+    }
+
+    /**
+     * Returns the value to be assigned to the spatial index column of a table, for a point in a space of any
+     * number of dimensions. This method may be called concurrently from multiple threads.
+     * @param coordinates Coordinates of the point, one for each dimension of the space.
+     * @return Spatial index key corresponding to the point.
+     */
+    public long spatialIndexKey(double ... coordinates)
+    {
+        if (coordinates.length != space.dimensions()) {
+            throw new IllegalArgumentException(String.format("Expected %s coordinates, found %s",
+                                                             space.dimensions(), coordinates.length));
+        }
+        return curve.key(coordinates);
+    }
+
+    /**
+     * Computes spatial index keys for a set of points. Equivalent to
+     * spatialIndexKeys(xs, ys, out, 0, xs.length).
+     * @param xs X coordinates.
+     * @param ys Y coordinates.
+     * @param out Spatial index keys. out[i] is set to the key of (xs[i], ys[i]).
+     */
+    public void spatialIndexKeys(double[] xs, double[] ys, long[] out)
+    {
+        spatialIndexKeys(xs, ys, out, 0, xs.length);
+    }
+
+    /**
+     * Computes spatial index keys for points (xs[i], ys[i]), offset &lt;= i &lt; offset + length.
+     * No memory is allocated per point. This method may be called concurrently from multiple threads.
+     * @param xs X coordinates.
+     * @param ys Y coordinates.
+     * @param out Spatial index keys. out[i] is set to the key of (xs[i], ys[i]).
+     * @param offset Position of the first point.
+     * @param length Number of points.
+     */
+    public void spatialIndexKeys(double[] xs, double[] ys, long[] out, int offset, int length)
+    {
+        checkBounds(xs, ys, out, offset, length);
+        new KeyComputation(curve, xs, ys, out, offset, length).compute();
+    }
+
+    /**
+     * Computes spatial index keys for points (xs[i], ys[i]), offset &lt;= i &lt; offset + length, splitting
+     * the work across the threads of a ForkJoinPool. The method returns when all keys have been computed.
+     * @param xs X coordinates.
+     * @param ys Y coordinates.
+     * @param out Spatial index keys. out[i] is set to the key of (xs[i], ys[i]).
+     * @param offset Position of the first point.
+     * @param length Number of points.
+     * @param pool Pool in which key computation is done.
+     */
+    public void spatialIndexKeys(double[] xs, double[] ys, long[] out, int offset, int length, ForkJoinPool pool)
+    {
+        checkBounds(xs, ys, out, offset, length);
+        pool.invoke(new KeyComputation(curve, xs, ys, out, offset, length));
     }
 
     /**
      * Given a query containing an invocation of the inbox function, returns a set of standard SQL queries
-     * implementing the spatial search.
+     * implementing the spatial search. Equivalent to transformQuery(query, maxZValues, OutputMode.SEPARATE).
      * @param query SQL query containing an invocation of the inbox function.
      * @param maxZValues Maximum number of queries to be returned.
      * @return Standard SQL queries that can be executed. The combined query results provide the complete
@@ -39,44 +116,345 @@ public class SpaceSuit
      */
     public String[] transformQuery(String query, int maxZValues)
     {
-        String[] rewrites;
-        int leftDelimiterPosition = query.indexOf(leftDelimiter);
-        int invocationStart = leftDelimiterPosition + leftDelimiter.length();
-        if (leftDelimiterPosition < 0) {
-            throw new IllegalArgumentException(String.format("Missing left delimiter %s", leftDelimiter));
+        return transformQuery(query, maxZValues, OutputMode.SEPARATE);
+    }
+
+    /**
+     * Given a query containing an invocation of the inbox function, returns standard SQL implementing
+     * the spatial search.
+     * @param query SQL query containing an invocation of the inbox function.
+     * @param maxZValues Maximum number of z-value ranges used to implement the search, or
+     * {@link #AUTO_Z_VALUES}.
+     * @param outputMode Determines how the z-value ranges are turned into SQL. For
+     * {@link OutputMode#SEPARATE}, one query is returned per z-value range. Otherwise, a single query is
+     * returned.
+     * @return Standard SQL queries that can be executed. The combined query results provide the complete
+     * result of the spatial query.
+     */
+    public String[] transformQuery(String query, int maxZValues, OutputMode outputMode)
+    {
+        Decomposer decomposer = this.decomposer;
+        IndexHinter indexHinter = this.indexHinter;
+        DecompositionCache cache = decomposer.cache();
+        if (cache == null) {
+            return rewrite(query, maxZValues, outputMode, decomposer, indexHinter).queries;
         }
-        if (query.indexOf(leftDelimiter, invocationStart) >= 0) {
-            throw new IllegalArgumentException(String.format("Multiple occurrences of left delimiter %s",
-                                                             leftDelimiter));
+        List<Object> key = DecompositionCache.key(query, maxZValues, outputMode,
+                                                  decomposer.refinement(), decomposer.maxGapCells(),
+                                                  decomposer.planner(),
+                                                  indexHinter);
+        SpaceSuitListener listener = decomposer.listener();
+        long start = listener == null ? 0 : System.nanoTime();
+        Rewrite rewrite = (Rewrite) cache.getRewrite(key);
+        if (rewrite == null) {
+            rewrite = rewrite(query, maxZValues, outputMode, decomposer, indexHinter);
+            cache.putRewrite(key, rewrite);
+        } else if (listener != null) {
+            // The decomposition was found in the cache, as part of the rewrite.
+            listener.decomposed(rewrite.ranges, System.nanoTime() - start);
         }
-        int rightDelimiterPosition = query.indexOf(rightDelimiter);
-        int invocationEnd = rightDelimiterPosition;
-        if (rightDelimiterPosition < 0) {
-            throw new IllegalArgumentException(String.format("Missing right delimiter %s", rightDelimiter));
+        return rewrite.queries.clone();
+    }
+
+    /**
+     * Compiles a query containing an invocation of the inbox function, in which the box coordinates are
+     * given as parameters, e.g. inbox(z, x, ?, ?, y, ?, ?). Equivalent to
+     * prepare(template, OutputMode.SEPARATE).
+     * @param template SQL query containing an invocation of the inbox function.
+     * @return A compiled query.
+     */
+    public SpatialQuery prepare(String template)
+    {
+        return prepare(template, OutputMode.SEPARATE);
+    }
+
+    /**
+     * Compiles a query containing an invocation of the inbox function, in which the box coordinates are
+     * given as parameters, e.g. inbox(z, x, ?, ?, y, ?, ?). The result can be reused, by any number
+     * of threads, to bind box coordinates and z-value ranges to a PreparedStatement.
+     * @param template SQL query containing an invocation of the inbox function.
+     * @param outputMode Determines how the z-value ranges are turned into SQL.
+     * @return A compiled query.
+     */
+    public SpatialQuery prepare(String template, OutputMode outputMode)
+    {
+        return new SpatialQuery(decomposer, template(template), outputMode);
+    }
+
+    /**
+     * Compiles a query containing an invocation of the nearest function, e.g.
+     * nearest(z, x, y, ?, ?, ?). The arguments are the names of the z-value column and the coordinate
+     * columns, followed by parameters for the query point's coordinates and the number of neighbors to be
+     * found. These are supplied when the query is run, by {@link NearestQuery#execute}.
+     * @param template SQL query containing an invocation of the nearest function.
+     * @return A compiled nearest-neighbor query.
+     */
+    public NearestQuery prepareNearest(String template)
+    {
+        return new NearestQuery(decomposer, template(template));
+    }
+
+    /**
+     * Compiles a query containing an invocation of the inbox function, in which the box coordinates are
+     * given as parameters, e.g. inbox(z, x, ?, ?, y, ?, ?), for retrieval one page at a time, by
+     * {@link PagedQuery#page}. Pages are ordered by the spatial index key and the primary key, so the query
+     * must select both columns, and must not be ordered itself.
+     * @param template SQL query containing an invocation of the inbox function.
+     * @param primaryKeyColumn Name of the primary key column, an integer or string column.
+     * @return A compiled paged query.
+     */
+    public PagedQuery preparePaged(String template, String primaryKeyColumn)
+    {
+        return new PagedQuery(decomposer, template(template), primaryKeyColumn);
+    }
+
+    /**
+     * Compiles a query computing aggregates of the rows inside a box, e.g.
+     * select count(*), avg(price) from place where inbox(z, x, ?, ?, y, ?, ?). The select list must consist
+     * of invocations of count, sum, min, max and avg, which are computed for each z-value range by the
+     * database, and combined by {@link AggregateQuery#execute}.
+     * @param template SQL query containing an invocation of the inbox function.
+     * @return A compiled aggregate query.
+     */
+    public AggregateQuery prepareAggregate(String template)
+    {
+        return new AggregateQuery(decomposer, template(template));
+    }
+
+    /**
+     * Compiles a spatial join of two queries, each containing an invocation of inbox whose box coordinates
+     * are parameters, e.g. inbox(z, x, ?, ?, y, ?, ?). The box and the join distance are supplied when
+     * the join is run, by {@link SpatialJoin#execute}.
+     * @param outerTemplate SQL query retrieving the outer rows.
+     * @param innerTemplate SQL query retrieving the inner rows, ordered by z-value.
+     * @return A compiled spatial join.
+     */
+    public SpatialJoin prepareJoin(String outerTemplate, String innerTemplate)
+    {
+        return new SpatialJoin(decomposer,
+                               template(outerTemplate),
+                               template(innerTemplate));
+    }
+
+    /**
+     * Enables caching of decompositions and rewritten queries, using a cache with a bounded number of
+     * entries. Least recently used entries are evicted first. Query boxes are not rounded. Queries compiled
+     * by {@link #prepare(String, OutputMode)} use the cache that was enabled at the time they were compiled.
+     * @param maxEntries Maximum number of cached decompositions, and of cached rewritten queries.
+     */
+    public void enableDecompositionCache(int maxEntries)
+    {
+        enableDecompositionCache(maxEntries, new double[0]);
+    }
+
+    /**
+     * Enables caching of decompositions and rewritten queries, using a cache with a bounded number of
+     * entries. Least recently used entries are evicted first. Before decomposition, query boxes are expanded
+     * so that their bounds are multiples of the given quanta, e.g. the sizes of map tiles. This lets nearby
+     * query boxes share a cache entry. The rewritten queries still contain the exact query box.
+     * @param maxEntries Maximum number of cached decompositions, and of cached rewritten queries.
+     * @param quanta Query box coordinates of dimension d (x, y, ...) are rounded to multiples of quanta[d].
+     *               0 for no rounding. Coordinates of dimensions beyond quanta.length are not rounded.
+     */
+    public void enableDecompositionCache(int maxEntries, double ... quanta)
+    {
+        if (quanta.length > space.dimensions()) {
+            throw new IllegalArgumentException(String.format("Expected at most %s quanta, found %s",
+                                                             space.dimensions(), quanta.length));
         }
-        if (query.indexOf(rightDelimiter, rightDelimiterPosition + rightDelimiter.length()) >= 0) {
-            throw new IllegalArgumentException(String.format("Multiple occurrences of right delimiter %s",
-                                                             rightDelimiter));
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         new DecompositionCache(maxEntries, quanta),
+                                         decomposer.refinement(),
+                                         decomposer.maxGapCells(),
+                                         decomposer.planner(),
+                                         decomposer.listener());
+    }
+
+    /**
+     * Disables caching of decompositions and rewritten queries.
+     */
+    public void disableDecompositionCache()
+    {
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         null,
+                                         decomposer.refinement(),
+                                         decomposer.maxGapCells(),
+                                         decomposer.planner(),
+                                         decomposer.listener());
+    }
+
+    /**
+     * Returns statistics of the decomposition cache, counting lookups of decompositions. A query rewritten
+     * by {@link #transformQuery(String, int, OutputMode)} is decomposed only if the rewritten query is not
+     * cached.
+     * @return Statistics of the decomposition cache, or null if the cache is not enabled.
+     */
+    public CacheStatistics decompositionCacheStatistics()
+    {
+        DecompositionCache cache = decomposer.cache();
+        return cache == null ? null : cache.statistics();
+    }
+
+    /**
+     * Returns statistics of the rewritten queries held by the decomposition cache, counting lookups by
+     * {@link #transformQuery(String, int, OutputMode)}.
+     * @return Statistics of the rewritten queries, or null if the cache is not enabled.
+     */
+    public CacheStatistics rewriteCacheStatistics()
+    {
+        DecompositionCache cache = decomposer.cache();
+        return cache == null ? null : cache.rewriteStatistics();
+    }
+
+    /**
+     * Configures the merging of z-value ranges. Overlapping and contiguous z-value ranges are always merged,
+     * since this reduces the number of index range scans without increasing the number of rows retrieved.
+     * This method enables two further optimizations:
+     * <ul>
+     *     <li>A query box is decomposed into up to refinement * maxZValues z-value ranges, which are then
+     *     merged, closing the smallest gaps first, until at most maxZValues ranges remain. The resulting
+     *     ranges usually fit the query box more tightly than a direct decomposition into maxZValues ranges.
+     *     <li>Ranges separated by at most maxGapCells cells of the space's grid are merged, reducing the
+     *     number of index range scans at the cost of a bounded number of additional rows retrieved.
+     * </ul>
+     * By default, refinement is 1 and maxGapCells is 0.
+     * Queries compiled by {@link #prepare(String, OutputMode)} use the configuration in effect at the time
+     * they were compiled.
+     * @param refinement Factor by which the number of z-values is increased before merging. Must be at least 1.
+     * @param maxGapCells Ranges separated by no more than this many grid cells are merged.
+     */
+    public void configureRangeMerging(int refinement, long maxGapCells)
+    {
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         decomposer.cache(),
+                                         refinement,
+                                         maxGapCells,
+                                         decomposer.planner(),
+                                         decomposer.listener());
+    }
+
+    /**
+     * Enables automatic selection of the number of z-value ranges, requested by passing
+     * {@link #AUTO_Z_VALUES} as maxZValues. Candidate numbers of ranges, up to maxZValues, are evaluated
+     * using a cost model: rangeCost * (number of ranges) + (estimated number of rows in the ranges).
+     * The number of rows is estimated using a histogram of the table's spatial index keys.
+     * Queries compiled by {@link #prepare(String, OutputMode)} use the configuration in effect at the time
+     * they were compiled.
+     * @param histogram Distribution of the table's spatial index keys.
+     * @param rangeCost Cost of an index range scan, (including a round trip to the database for
+     * {@link OutputMode#SEPARATE}), relative to the cost of retrieving one row.
+     * @param maxZValues Maximum number of z-value ranges to be considered.
+     */
+    public void enableAutomaticZValues(ZHistogram histogram, double rangeCost, int maxZValues)
+    {
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         decomposer.cache(),
+                                         decomposer.refinement(),
+                                         decomposer.maxGapCells(),
+                                         new Planner(histogram, rangeCost, maxZValues),
+                                         decomposer.listener());
+    }
+
+    /**
+     * Disables automatic selection of the number of z-value ranges.
+     */
+    public void disableAutomaticZValues()
+    {
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         decomposer.cache(),
+                                         decomposer.refinement(),
+                                         decomposer.maxGapCells(),
+                                         null,
+                                         decomposer.listener());
+    }
+
+    /**
+     * Installs a listener, notified of each stage of query transformation: parsing, decomposition and
+     * SQL generation. Only one listener is installed at a time. Queries compiled by
+     * {@link #prepare(String, OutputMode)} use the listener installed at the time they were compiled.
+     * @param listener Listener to be installed, e.g. a {@link SpaceSuitMetrics}.
+     */
+    public void enableInstrumentation(SpaceSuitListener listener)
+    {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
         }
-        String invocation = query.substring(invocationStart, invocationEnd);
-        Transformer transformer = new Transformer(space);
-        String[] replacements = transformer.transform(invocation, maxZValues);
-        rewrites = new String[replacements.length];
-        String prefix = query.substring(0, leftDelimiterPosition);
-        String suffix = query.substring(rightDelimiterPosition + rightDelimiter.length());
-        StringBuilder buffer = new StringBuilder();
-        buffer.append(prefix);
-        for (int r = 0; r < replacements.length; r++) {
-            buffer.setLength(prefix.length());
-            buffer.append(replacements[r]);
-            buffer.append(suffix);
-            rewrites[r] = buffer.toString();
+        replaceListener(listener);
+    }
+
+    /**
+     * Removes the listener installed by {@link #enableInstrumentation(SpaceSuitListener)}, if any.
+     */
+    public void disableInstrumentation()
+    {
+        replaceListener(null);
+    }
+
+    /**
+     * Reports the rows retrieved for one z-value range, to the installed listener, if any. This lets the
+     * application's observations, e.g. rows examined as reported by the database, contribute to
+     * over-fetch metrics.
+     * @param rowsInRange Number of rows whose z-values are in the range.
+     * @param rowsInBox Number of those rows inside the query region.
+     */
+    public void reportRows(long rowsInRange, long rowsInBox)
+    {
+        SpaceSuitListener listener = decomposer.listener();
+        if (listener != null) {
+            listener.rowsRetrieved(rowsInRange, rowsInBox);
         }
-        return rewrites;
     }
 
     /**
-     * Creates a new SpaceSuit object.
+     * Adds an index hint to the queries produced by this SpaceSuit, so that the optimizer uses the named
+     * index, e.g. a {@link CoveringIndex}, for the table containing the spatial index key column. If the
+     * key column is qualified in the function invocation, e.g. inbox(c.z, ...), the hint applies to the
+     * table with that alias or name. Otherwise, the query must reference a single table before the
+     * invocation. The hint applies to queries transformed, and compiled by prepare, prepareNearest,
+     * preparePaged, prepareAggregate and prepareJoin, after this call.
+     * @param dialect Database system, determining the syntax of the hint.
+     * @param hint Strength of the hint.
+     * @param indexName Name of the index.
+     */
+    public void enableIndexHint(SqlDialect dialect, IndexHint hint, String indexName)
+    {
+        indexHinter = new IndexHinter(dialect, hint, indexName);
+    }
+
+    /**
+     * Stops adding index hints to queries produced by this SpaceSuit.
+     */
+    public void disableIndexHint()
+    {
+        indexHinter = null;
+    }
+
+    /**
+     * Returns the encoding of the spatial index keys computed and queried by this SpaceSuit.
+     * @return The key encoding.
+     */
+    public KeyEncoding keyEncoding()
+    {
+        return curve.encoding();
+    }
+
+    /**
+     * Returns the Partitioning applied to coordinates before keys are computed.
+     * @return The Partitioning, or null if keys are computed from coordinates directly.
+     */
+    public Partitioning partitioning()
+    {
+        return partitioning;
+    }
+
+    /**
+     * Creates a new SpaceSuit object, using z-order keys. Equivalent to
+     * create(space, KeyEncoding.Z_ORDER, leftDelimiter, rightDelimiter).
      * @param space Space describing the space in which the data points exist.
      * @param leftDelimiter Left delimiter for the inbox invocation.
      * @param rightDelimiter Right delimiter for the inbox invocation.
@@ -84,12 +462,111 @@ public class SpaceSuit
      */
     public static SpaceSuit create(Space space, String leftDelimiter, String rightDelimiter)
     {
-        return new SpaceSuit(space, leftDelimiter, rightDelimiter);
+        return create(space, KeyEncoding.Z_ORDER, leftDelimiter, rightDelimiter);
+    }
+
+    /**
+     * Creates a new SpaceSuit object.
+     * @param space Space describing the space in which the data points exist.
+     * @param keyEncoding Space-filling curve followed by the spatial index keys, and by the key ranges of
+     *                    queries.
+     * @param leftDelimiter Left delimiter for the inbox invocation.
+     * @param rightDelimiter Right delimiter for the inbox invocation.
+     * @return A new SpaceSuit object.
+     */
+    public static SpaceSuit create(Space space, KeyEncoding keyEncoding, String leftDelimiter, String rightDelimiter)
+    {
+        return create(space, keyEncoding, null, leftDelimiter, rightDelimiter);
+    }
+
+    /**
+     * Creates a new SpaceSuit object, which transforms coordinates by a Partitioning before computing keys.
+     * Query boxes are transformed in the same way, so queries return the same rows as without a
+     * Partitioning, but their key ranges retrieve fewer rows outside the query boxes when the data is
+     * clustered.
+     * @param space Space describing the space in which the data points exist.
+     * @param keyEncoding Space-filling curve followed by the spatial index keys, and by the key ranges of
+     *                    queries.
+     * @param partitioning Partitioning of the space, created from a sample of the data, or null.
+     * @param leftDelimiter Left delimiter for the inbox invocation.
+     * @param rightDelimiter Right delimiter for the inbox invocation.
+     * @return A new SpaceSuit object.
+     */
+    public static SpaceSuit create(Space space,
+                                   KeyEncoding keyEncoding,
+                                   Partitioning partitioning,
+                                   String leftDelimiter,
+                                   String rightDelimiter)
+    {
+        if (partitioning != null) {
+            partitioning.checkSpace(space);
+        }
+        return new SpaceSuit(Curve.create(space, keyEncoding, partitioning),
+                             partitioning,
+                             leftDelimiter,
+                             rightDelimiter);
     }
 
     // For use by this class
+
+    private Rewrite rewrite(String query,
+                            int maxZValues,
+                            OutputMode outputMode,
+                            Decomposer decomposer,
+                            IndexHinter indexHinter)
+    {
+        QueryTemplate template = new QueryTemplate(query, leftDelimiter, rightDelimiter, indexHinter);
+        Transformer transformer = new Transformer(decomposer);
+        String[] replacements = transformer.transform(template.invocation(), maxZValues, outputMode);
+        String[] rewrites;
+        if (outputMode == OutputMode.UNION_ALL) {
+            rewrites = new String[]{template.rewriteUnionAll(replacements)};
+        } else {
+            rewrites = new String[replacements.length];
+            for (int r = 0; r < replacements.length; r++) {
+                rewrites[r] = template.rewrite(replacements[r]);
+            }
+        }
+        return new Rewrite(rewrites, transformer.function().ranges());
+    }
+
+    private QueryTemplate template(String query)
+    {
+        return new QueryTemplate(query, leftDelimiter, rightDelimiter, indexHinter);
+    }
+
+    private void replaceListener(SpaceSuitListener listener)
+    {
+        Decomposer decomposer = this.decomposer;
+        this.decomposer = new Decomposer(curve,
+                                         decomposer.cache(),
+                                         decomposer.refinement(),
+                                         decomposer.maxGapCells(),
+                                         decomposer.planner(),
+                                         listener);
+    }
+
+    private void checkBounds(double[] xs, double[] ys, long[] out, int offset, int length)
+    {
+        checkPlanar();
+        if (offset < 0 || length < 0 ||
+            length > xs.length - offset ||
+            length > ys.length - offset ||
+            length > out.length - offset) {
+            throw new IllegalArgumentException(String.format("xs: %s, ys: %s, out: %s, offset: %s, length: %s",
+                                                             xs.length, ys.length, out.length, offset, length));
+        }
+    }
     
-    private SpaceSuit(Space space, String leftDelimiter, String rightDelimiter)
+    private void checkPlanar()
+    {
+        if (space.dimensions() != 2) {
+            throw new IllegalArgumentException(String.format("Expected a 2-dimensional space, found %s dimensions",
+                                                             space.dimensions()));
+        }
+    }
+
+    private SpaceSuit(Curve curve, Partitioning partitioning, String leftDelimiter, String rightDelimiter)
     {
         if (leftDelimiter.length() == 0 ||
             rightDelimiter.length() == 0 ||
@@ -97,15 +574,45 @@ public class SpaceSuit
             throw new IllegalArgumentException(String.format("left delimiter: \"%s\", right delimiter: \"%s\"",
                                                              leftDelimiter, rightDelimiter));
         }
-        this.space = space;
+        this.curve = curve;
+        this.space = curve.space();
+        this.partitioning = partitioning;
         this.leftDelimiter = leftDelimiter;
         this.rightDelimiter = rightDelimiter;
+        this.decomposer = new Decomposer(curve, null, 1, 0, null, null);
     }
     
     // Object state
 
+    private final Curve curve;
     private final Space space;
+    private final Partitioning partitioning;
     private final String leftDelimiter;
     private final String rightDelimiter;
-    private final double[] xy = new double[2];
+    private volatile Decomposer decomposer;
+    private volatile IndexHinter indexHinter;
+    private final ThreadLocal<double[]> xy =
+        new ThreadLocal<double[]>()
+        {
+            @Override
+            protected double[] initialValue()
+            {
+                return new double[2];
+            }
+        };
+
+    // Inner classes
+
+    // A rewritten query, cached with the number of z-value ranges, for reporting to the listener.
+    private static class Rewrite
+    {
+        Rewrite(String[] queries, int ranges)
+        {
+            this.queries = queries;
+            this.ranges = ranges;
+        }
+
+        final String[] queries;
+        final int ranges;
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Receives notification of each stage of spatial query transformation, and of rows retrieved, as reported
+ * by the application. A listener is installed by {@link SpaceSuit#enableInstrumentation(SpaceSuitListener)}.
+ * When no listener is installed, no timing is done. Methods may be called concurrently from multiple
+ * threads, and should return quickly. {@link SpaceSuitMetrics} is an implementation that accumulates
+ * counters and histograms.
+ */
+
+public interface SpaceSuitListener
+{
+    /**
+     * Called after a function invocation is parsed.
+     * @param nanos Time taken to parse the invocation, in nanoseconds.
+     */
+    void parsed(long nanos);
+
+    /**
+     * Called after a query region is decomposed into z-value ranges, (including decompositions found in
+     * the decomposition cache).
+     * @param ranges Number of z-value ranges.
+     * @param nanos Time taken to decompose the region, in nanoseconds.
+     */
+    void decomposed(int ranges, long nanos);
+
+    /**
+     * Called after the SQL replacing a function invocation is generated.
+     * @param queries Number of SQL predicates generated.
+     * @param nanos Time taken to generate the SQL, in nanoseconds.
+     */
+    void rendered(int queries, long nanos);
+
+    /**
+     * Called by {@link SpaceSuit#reportRows(long, long)}, to report the rows retrieved for one z-value range.
+     * @param rowsInRange Number of rows whose z-values are in the range.
+     * @param rowsInBox Number of those rows inside the query region.
+     */
+    void rowsRetrieved(long rowsInRange, long rowsInBox);
+}
@@ -0,0 +1,121 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SpaceSuitListener} accumulating latency histograms for each stage of query transformation,
+ * the distribution of the number of z-value ranges per decomposition, and, from rows reported by the
+ * application, the over-fetch ratio. Latencies are in nanoseconds. Metrics are live: the histograms and
+ * counters may be read, e.g. for export to a monitoring system, while they are being updated.
+ */
+
+public class SpaceSuitMetrics implements SpaceSuitListener
+{
+    @Override
+    public void parsed(long nanos)
+    {
+        parseLatency.record(nanos);
+    }
+
+    @Override
+    public void decomposed(int ranges, long nanos)
+    {
+        decomposeLatency.record(nanos);
+        rangesPerDecomposition.record(ranges);
+    }
+
+    @Override
+    public void rendered(int queries, long nanos)
+    {
+        renderLatency.record(nanos);
+    }
+
+    @Override
+    public void rowsRetrieved(long rowsInRange, long rowsInBox)
+    {
+        rowsPerRange.record(rowsInRange);
+        this.rowsInRange.addAndGet(rowsInRange);
+        this.rowsInBox.addAndGet(rowsInBox);
+    }
+
+    /**
+     * Returns the histogram of parse latencies.
+     * @return The histogram of parse latencies, in nanoseconds.
+     */
+    public Histogram parseLatency()
+    {
+        return parseLatency;
+    }
+
+    /**
+     * Returns the histogram of decomposition latencies.
+     * @return The histogram of decomposition latencies, in nanoseconds.
+     */
+    public Histogram decomposeLatency()
+    {
+        return decomposeLatency;
+    }
+
+    /**
+     * Returns the histogram of SQL generation latencies.
+     * @return The histogram of SQL generation latencies, in nanoseconds.
+     */
+    public Histogram renderLatency()
+    {
+        return renderLatency;
+    }
+
+    /**
+     * Returns the histogram of the number of z-value ranges produced by each decomposition.
+     * @return The histogram of the number of z-value ranges produced by each decomposition.
+     */
+    public Histogram rangesPerDecomposition()
+    {
+        return rangesPerDecomposition;
+    }
+
+    /**
+     * Returns the histogram of the number of rows in each z-value range, as reported by the application.
+     * @return The histogram of the number of rows in each z-value range.
+     */
+    public Histogram rowsPerRange()
+    {
+        return rowsPerRange;
+    }
+
+    /**
+     * Returns the over-fetch ratio: the fraction of rows in the z-value ranges reported by the application
+     * lying outside the query region.
+     * @return The over-fetch ratio, or 0 if no rows have been reported.
+     */
+    public double overfetchRatio()
+    {
+        long inRange = rowsInRange.get();
+        long inBox = rowsInBox.get();
+        return inRange == 0 ? 0 : (double) (inRange - inBox) / inRange;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("parse: (%s), decompose: (%s), render: (%s), ranges: (%s), overfetch: %.3f",
+                             parseLatency, decomposeLatency, renderLatency, rangesPerDecomposition,
+                             overfetchRatio());
+    }
+
+    // Object state
+
+    private final Histogram parseLatency = new Histogram();
+    private final Histogram decomposeLatency = new Histogram();
+    private final Histogram renderLatency = new Histogram();
+    private final Histogram rangesPerDecomposition = new Histogram();
+    private final Histogram rowsPerRange = new Histogram();
+    private final AtomicLong rowsInRange = new AtomicLong();
+    private final AtomicLong rowsInBox = new AtomicLong();
+}
@@ -0,0 +1,307 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Function;
+import com.geophile.spacesuit.apiimpl.InBox;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.spacesuit.apiimpl.ZRanges;
+import com.geophile.z.Space;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A compiled spatial join, created by {@link SpaceSuit#prepareJoin(String, String)}. A spatial join pairs
+ * each row of an outer query with the rows of an inner query lying within a given distance along each
+ * axis, e.g. stores and the customers within a box around each store:
+ * <pre>
+ *     outer: select id, x, y from store where &lt;&lt; inbox(z, x, ?, ?, y, ?, ?) &gt;&gt;
+ *     inner: select id, x, y, z from customer where &lt;&lt; inbox(z, x, ?, ?, y, ?, ?) &gt;&gt; order by z
+ * </pre>
+ * The box bounds are supplied when the join is run, and limit the outer rows. The outer query must select
+ * the x and y columns. The inner query must select the z, x and y columns, and must order by z.
+ * Neither query may have parameters outside the inbox invocation.
+ * <p>
+ * The outer rows are retrieved first, and the window around each outer row is decomposed into z-value
+ * ranges. The inner rows are then retrieved, in z-value order, from the z-value ranges covering the query
+ * box, enlarged by the window size. A single merge of the inner rows with the windows' z-value ranges,
+ * (sorted by lower bound), finds candidate pairs, which are then checked using the coordinates of both rows.
+ * So each table is read once, instead of querying the inner table once for each outer row.
+ * <p>
+ * A SpatialJoin may be used by any number of threads.
+ */
+
+public class SpatialJoin
+{
+    /**
+     * Receives the pairs of rows found by a spatial join.
+     */
+    public interface Handler
+    {
+        /**
+         * Called for each pair of rows found by the join.
+         * @param outer Column values of the outer row.
+         * @param inner Column values of the inner row.
+         * @throws SQLException May be thrown by the handler, to terminate the join.
+         */
+        void pair(Object[] outer, Object[] inner) throws SQLException;
+    }
+
+    /**
+     * Returns the SQL text run for each z-value range of the outer query.
+     * @return The SQL text run for each z-value range of the outer query.
+     */
+    public String outerSql()
+    {
+        return outerSql;
+    }
+
+    /**
+     * Returns the SQL text run for each z-value range of the inner query.
+     * @return The SQL text run for each z-value range of the inner query.
+     */
+    public String innerSql()
+    {
+        return innerSql;
+    }
+
+    /**
+     * Runs the join. Each outer row in the query box is paired with each inner row whose x coordinate is
+     * within xDistance, and whose y coordinate is within yDistance, of the outer row's coordinates.
+     * @param connection Connection on which to run the queries.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param xDistance Half the width of the window around each outer row.
+     * @param yDistance Half the height of the window around each outer row.
+     * @param maxZValues Maximum number of z-value ranges used for each of the outer and inner queries,
+     *                   or {@link SpaceSuit#AUTO_Z_VALUES}.
+     * @param handler Receives each pair of rows.
+     * @throws SQLException Thrown by the JDBC driver or the handler.
+     */
+    public void execute(Connection connection,
+                        double xLo, double xHi, double yLo, double yHi,
+                        double xDistance, double yDistance,
+                        int maxZValues,
+                        Handler handler) throws SQLException
+    {
+        if (xDistance < 0 || yDistance < 0) {
+            throw new IllegalArgumentException(String.format("distance: (%s, %s)", xDistance, yDistance));
+        }
+        // Outer rows, and the z-value ranges of their windows, sorted by lower bound.
+        List<Window> windows = new ArrayList<>();
+        List<WindowRange> windowRanges = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(outerSql)) {
+            ZRanges ranges = inBox.decompose(xLo, xHi, yLo, yHi, maxZValues);
+            for (int r = 0; r < ranges.count(); r++) {
+                bind(statement, ranges.lo(r), ranges.hi(r), xLo, xHi, yLo, yHi);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        Window window = new Window(row(resultSet),
+                                                   resultSet.getDouble(outerXColumn),
+                                                   resultSet.getDouble(outerYColumn));
+                        windows.add(window);
+                        ZRanges windowZRanges = inBox.decompose(clip(0, window.x - xDistance),
+                                                                clip(0, window.x + xDistance),
+                                                                clip(1, window.y - yDistance),
+                                                                clip(1, window.y + yDistance),
+                                                                WINDOW_Z_VALUES);
+                        for (int w = 0; w < windowZRanges.count(); w++) {
+                            windowRanges.add(new WindowRange(windowZRanges.lo(w), windowZRanges.hi(w), window));
+                        }
+                    }
+                }
+            }
+        }
+        if (windows.isEmpty()) {
+            return;
+        }
+        Collections.sort(windowRanges,
+                         new Comparator<WindowRange>()
+                         {
+                             @Override
+                             public int compare(WindowRange x, WindowRange y)
+                             {
+                                 return Long.compare(x.lo, y.lo);
+                             }
+                         });
+        // Merge the inner rows, in z-value order, with the window ranges. active contains the window ranges
+        // containing the current inner row's z-value, ordered by upper bound.
+        PriorityQueue<WindowRange> active =
+            new PriorityQueue<>(11,
+                                new Comparator<WindowRange>()
+                                {
+                                    @Override
+                                    public int compare(WindowRange x, WindowRange y)
+                                    {
+                                        return Long.compare(x.hi, y.hi);
+                                    }
+                                });
+        int next = 0;
+        double innerXLo = clip(0, xLo - xDistance);
+        double innerXHi = clip(0, xHi + xDistance);
+        double innerYLo = clip(1, yLo - yDistance);
+        double innerYHi = clip(1, yHi + yDistance);
+        try (PreparedStatement statement = connection.prepareStatement(innerSql)) {
+            ZRanges ranges = inBox.decompose(innerXLo, innerXHi, innerYLo, innerYHi, maxZValues);
+            for (int r = 0; r < ranges.count() && (next < windowRanges.size() || !active.isEmpty()); r++) {
+                bind(statement, ranges.lo(r), ranges.hi(r), innerXLo, innerXHi, innerYLo, innerYHi);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        long z = resultSet.getLong(innerZColumn);
+                        while (next < windowRanges.size() && windowRanges.get(next).lo <= z) {
+                            active.add(windowRanges.get(next++));
+                        }
+                        while (!active.isEmpty() && active.peek().hi < z) {
+                            active.poll();
+                        }
+                        if (!active.isEmpty()) {
+                            double x = resultSet.getDouble(innerXColumn);
+                            double y = resultSet.getDouble(innerYColumn);
+                            Object[] inner = null;
+                            for (WindowRange windowRange : active) {
+                                Window window = windowRange.window;
+                                if (Math.abs(x - window.x) <= xDistance && Math.abs(y - window.y) <= yDistance) {
+                                    if (inner == null) {
+                                        inner = row(resultSet);
+                                    }
+                                    handler.pair(window.row, inner);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // For use by this package
+
+    SpatialJoin(Decomposer decomposer, QueryTemplate outerTemplate, QueryTemplate innerTemplate)
+    {
+        if (decomposer.space().dimensions() != 2) {
+            throw new IllegalArgumentException("Spatial joins require a 2-dimensional space");
+        }
+        this.space = decomposer.space();
+        this.inBox = new InBox(decomposer);
+        List<String> outerArguments = inBoxArguments(decomposer, outerTemplate);
+        List<String> innerArguments = inBoxArguments(decomposer, innerTemplate);
+        this.outerSql = outerTemplate.rewrite(inBox.parameterizedPredicate(outerArguments));
+        this.innerSql = innerTemplate.rewrite(inBox.parameterizedPredicate(innerArguments));
+        this.outerXColumn = inBox.xColumn(outerArguments);
+        this.outerYColumn = inBox.yColumn(outerArguments);
+        this.innerZColumn = inBox.zColumn(innerArguments);
+        this.innerXColumn = inBox.xColumn(innerArguments);
+        this.innerYColumn = inBox.yColumn(innerArguments);
+        String innerSuffix = innerTemplate.suffix().trim().replaceAll("\\s+", " ").toLowerCase();
+        if (!innerSuffix.endsWith("order by " + innerZColumn.toLowerCase())) {
+            throw new IllegalArgumentException(String.format("Inner query must order by %s", innerZColumn));
+        }
+    }
+
+    // For use by this class
+
+    private static List<String> inBoxArguments(Decomposer decomposer, QueryTemplate template)
+    {
+        Transformer transformer = new Transformer(decomposer);
+        transformer.parse(template.invocation());
+        Function function = transformer.function();
+        if (!(function instanceof InBox)) {
+            throw new IllegalArgumentException(String.format("Expected inbox: %s", template.invocation()));
+        }
+        if (template.prefixParameters() > 0 || template.suffixParameters() > 0) {
+            throw new IllegalArgumentException("Parameters not permitted outside inbox invocation");
+        }
+        return transformer.arguments();
+    }
+
+    // Clips a coordinate of dimension d to the space.
+    private double clip(int d, double coordinate)
+    {
+        return Math.min(Math.max(coordinate, space.lo(d)), space.hi(d));
+    }
+
+    private static void bind(PreparedStatement statement,
+                             long zLo, long zHi,
+                             double xLo, double xHi, double yLo, double yHi) throws SQLException
+    {
+        int p = 1;
+        statement.setLong(p++, zLo);
+        statement.setLong(p++, zHi);
+        statement.setDouble(p++, xLo);
+        statement.setDouble(p++, xHi);
+        statement.setDouble(p++, yLo);
+        statement.setDouble(p, yHi);
+    }
+
+    private static Object[] row(ResultSet resultSet) throws SQLException
+    {
+        int columns = resultSet.getMetaData().getColumnCount();
+        Object[] row = new Object[columns];
+        for (int c = 0; c < columns; c++) {
+            row[c] = resultSet.getObject(c + 1);
+        }
+        return row;
+    }
+
+    // Class state
+
+    private static final int WINDOW_Z_VALUES = 4;
+
+    // Object state
+
+    private final Space space;
+    private final InBox inBox;
+    private final String outerSql;
+    private final String innerSql;
+    private final String outerXColumn;
+    private final String outerYColumn;
+    private final String innerZColumn;
+    private final String innerXColumn;
+    private final String innerYColumn;
+
+    // Inner classes
+
+    private static class Window
+    {
+        Window(Object[] row, double x, double y)
+        {
+            this.row = row;
+            this.x = x;
+            this.y = y;
+        }
+
+        final Object[] row;
+        final double x;
+        final double y;
+    }
+
+    private static class WindowRange
+    {
+        WindowRange(long lo, long hi, Window window)
+        {
+            this.lo = lo;
+            this.hi = hi;
+            this.window = window;
+        }
+
+        final long lo;
+        final long hi;
+        final Window window;
+    }
+}
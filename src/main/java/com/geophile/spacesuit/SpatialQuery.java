@@ -0,0 +1,393 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.spacesuit.apiimpl.Decomposer;
+import com.geophile.spacesuit.apiimpl.Function;
+import com.geophile.spacesuit.apiimpl.InBox;
+import com.geophile.spacesuit.apiimpl.QueryTemplate;
+import com.geophile.spacesuit.apiimpl.Transformer;
+import com.geophile.spacesuit.apiimpl.ZRanges;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled spatial query, created by {@link SpaceSuit#prepare(String, OutputMode)}. The inbox invocation
+ * is replaced by a predicate whose z-value bounds and box coordinates are parameters, so the statement text
+ * does not depend on the query box. With {@link OutputMode#SEPARATE}, a single PreparedStatement can be used
+ * for every z-value range of every query. Otherwise, the statement text depends only on the number of
+ * z-value ranges, and the text for each number of ranges is computed once and cached.
+ * A SpatialQuery may be used by any number of threads.
+ * <p>
+ * Typical usage:
+ * <pre>
+ *     SpatialQuery.Binding binding = spatialQuery.bind(xLo, xHi, yLo, yHi, maxZValues);
+ *     PreparedStatement statement = binding.prepareStatement(connection);
+ *     for (int q = 0; q &lt; binding.queries(); q++) {
+ *         binding.bind(statement, q);
+ *         ResultSet resultSet = statement.executeQuery();
+ *         ...
+ *     }
+ * </pre>
+ * Parameters occurring in the query before the inbox invocation are bound by the application, as usual.
+ * The parameters of the spatial predicate follow, starting at {@link #firstParameter()}. For
+ * {@link OutputMode#UNION_ALL}, the query must not have parameters outside the inbox invocation.
+ */
+
+public class SpatialQuery
+{
+    /**
+     * Returns the output mode of this query.
+     * @return The output mode of this query.
+     */
+    public OutputMode outputMode()
+    {
+        return outputMode;
+    }
+
+    /**
+     * Returns the SQL text of the compiled query, for a single z-value range.
+     * @return The SQL text of the compiled query.
+     */
+    public String sql()
+    {
+        return sql(1);
+    }
+
+    /**
+     * Returns the SQL text of the compiled query, for the given number of z-value ranges. For
+     * {@link OutputMode#SEPARATE}, the text does not depend on the number of ranges.
+     * @param ranges Number of z-value ranges.
+     * @return The SQL text of the compiled query.
+     */
+    public String sql(int ranges)
+    {
+        if (outputMode == OutputMode.SEPARATE) {
+            return separateSQL;
+        }
+        String sql = sqlByRanges.get(ranges);
+        if (sql == null) {
+            sql = combinedSQL(ranges);
+            sqlByRanges.putIfAbsent(ranges, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Returns the position of the first parameter of the spatial predicate. For {@link OutputMode#SEPARATE},
+     * the parameters are the bounds of the z-value range, followed by the x bounds and then the y bounds of
+     * the query box, and then the bounds of any further dimensions. For {@link OutputMode#DISJUNCTION}, the
+     * bounds of all z-value ranges come first. For {@link OutputMode#UNION_ALL}, each subquery has its own z-value and box parameters.
+     * @return Position of the first parameter of the spatial predicate.
+     */
+    public int firstParameter()
+    {
+        return firstParameter;
+    }
+
+    /**
+     * Prepares the compiled query, for a single z-value range, on the given connection.
+     * @param connection Connection on which to prepare the statement.
+     * @return A PreparedStatement for the compiled query.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public PreparedStatement prepareStatement(Connection connection) throws SQLException
+    {
+        return connection.prepareStatement(sql());
+    }
+
+    /**
+     * Computes the z-value ranges for a query box.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges, or {@link SpaceSuit#AUTO_Z_VALUES}.
+     * @return A Binding, used to bind parameters for each z-value range.
+     */
+    public Binding bind(double xLo, double xHi, double yLo, double yHi, int maxZValues)
+    {
+        return bind(new double[]{xLo, yLo}, new double[]{xHi, yHi}, maxZValues);
+    }
+
+    /**
+     * Computes the z-value ranges for a query box, in a space of any number of dimensions.
+     * @param lo Low coordinates of the query box, one for each dimension of the space.
+     * @param hi High coordinates of the query box, one for each dimension of the space.
+     * @param maxZValues Maximum number of z-value ranges, or {@link SpaceSuit#AUTO_Z_VALUES}.
+     * @return A Binding, used to bind parameters for each z-value range.
+     */
+    public Binding bind(double[] lo, double[] hi, int maxZValues)
+    {
+        return new Binding(inBox.decompose(lo, hi, maxZValues), lo.clone(), hi.clone());
+    }
+
+    // For use by this package
+
+    // Returns the SQL text retrieving the rows of one z-value range, regardless of the query box, with the
+    // coordinate columns of the invocation preceding the columns of the select list. The parameters of the
+    // range predicate, starting at firstParameter(), are the bounds of the range. Throws
+    // IllegalArgumentException if the rows of the range can't be filtered by the box afterward.
+    String rangeSQL()
+    {
+        String rangeSQL = this.rangeSQL;
+        if (rangeSQL == null) {
+            rangeSQL = rangeSQL(template, inBox, arguments);
+            this.rangeSQL = rangeSQL;
+        }
+        return rangeSQL;
+    }
+
+    SpatialQuery(Decomposer decomposer, QueryTemplate template, OutputMode outputMode)
+    {
+        Transformer transformer = new Transformer(decomposer);
+        transformer.parse(template.invocation());
+        Function function = transformer.function();
+        if (!(function instanceof InBox)) {
+            throw new IllegalArgumentException(String.format("Only inbox can be prepared: %s",
+                                                             template.invocation()));
+        }
+        this.inBox = (InBox) function;
+        this.template = template;
+        this.arguments = new ArrayList<>(transformer.arguments());
+        this.outputMode = outputMode;
+        this.separateSQL = template.rewrite(inBox.parameterizedPredicate(arguments));
+        this.firstParameter = template.prefixParameters() + 1;
+        if (outputMode == OutputMode.UNION_ALL &&
+            (firstParameter > 1 || template.suffixParameters() > 0)) {
+            throw new IllegalArgumentException(String.format("Parameters not permitted with %s", outputMode));
+        }
+        if (outputMode == OutputMode.UNION_ALL) {
+            template.checkUnionAll();
+        }
+    }
+
+    // For use by this class
+
+    private String combinedSQL(int ranges)
+    {
+        String sql;
+        if (outputMode == OutputMode.UNION_ALL) {
+            String[] predicates = new String[ranges];
+            String predicate = inBox.parameterizedPredicate(arguments, ranges, outputMode);
+            for (int r = 0; r < ranges; r++) {
+                predicates[r] = predicate;
+            }
+            sql = template.rewriteUnionAll(predicates);
+        } else {
+            sql = template.rewrite(inBox.parameterizedPredicate(arguments, ranges, outputMode));
+        }
+        return sql;
+    }
+
+    // Returns the SQL text of rangeSQL(). The rows of the range must be exactly those that the query would
+    // return for the range and an unbounded box: parameters following the invocation would not be bound,
+    // ordering or limiting would apply before the box, and grouping, aggregation or distinct would combine rows
+    // inside and outside the box, (and the coordinate columns as well).
+    private static String rangeSQL(QueryTemplate template, InBox inBox, List<String> arguments)
+    {
+        String prefix = template.prefix();
+        String suffix = template.suffix();
+        Matcher select = SELECT.matcher(prefix);
+        if (!select.lookingAt()) {
+            throw new IllegalArgumentException(String.format("Expected select: %s", prefix));
+        }
+        if (select.group(4) != null) {
+            throw new IllegalArgumentException(String.format("The query must not be distinct: %s", prefix));
+        }
+        if (template.suffixParameters() > 0) {
+            throw new IllegalArgumentException("Parameters not permitted following inbox invocation");
+        }
+        if (UNCOMBINABLE.matcher(suffix).find()) {
+            throw new IllegalArgumentException(
+                String.format("The query must not be grouped, ordered or limited: %s", suffix));
+        }
+        String selectList = prefix.substring(select.end(), QueryTemplate.from(prefix, select.end()));
+        if (AGGREGATE.matcher(selectList).find()) {
+            throw new IllegalArgumentException(
+                String.format("The select list must not contain aggregates: %s", selectList));
+        }
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(prefix, 0, select.end());
+        for (String column : inBox.coordinateColumns(arguments)) {
+            buffer.append(column);
+            buffer.append(", ");
+        }
+        buffer.append(prefix, select.end(), prefix.length());
+        buffer.append(inBox.rangePredicate(arguments));
+        buffer.append(template.suffix());
+        return buffer.toString();
+    }
+
+    // Class state
+
+    // Matches select, followed by any hint and set quantifier.
+    private static final Pattern SELECT =
+        Pattern.compile("\\s*(/\\*.*?\\*/\\s*)?select\\s+(/\\*.*?\\*/\\s*)?(all\\s+|(distinct\\s+))?",
+                        Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern UNCOMBINABLE =
+        Pattern.compile("\\b(group|having|order|limit|fetch|offset|union)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern AGGREGATE =
+        Pattern.compile("\\b(count|sum|min|max|avg)\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+    // Object state
+
+    private final InBox inBox;
+    private final QueryTemplate template;
+    private final List<String> arguments;
+    private final OutputMode outputMode;
+    private final String separateSQL;
+    private volatile String rangeSQL;
+    private final int firstParameter;
+    private final ConcurrentMap<Integer, String> sqlByRanges = new ConcurrentHashMap<>();
+
+    // Inner classes
+
+    /**
+     * The z-value ranges and coordinates of one query box.
+     */
+    public class Binding
+    {
+        /**
+         * Returns the number of z-value ranges.
+         * @return The number of z-value ranges.
+         */
+        public int ranges()
+        {
+            return zRanges.count();
+        }
+
+        /**
+         * Returns the number of times the query has to be run: the number of z-value ranges for
+         * {@link OutputMode#SEPARATE}, 1 otherwise.
+         * @return The number of queries to be run.
+         */
+        public int queries()
+        {
+            return outputMode == OutputMode.SEPARATE ? zRanges.count() : 1;
+        }
+
+        /**
+         * Returns the SQL text for this binding.
+         * @return The SQL text for this binding.
+         */
+        public String sql()
+        {
+            return SpatialQuery.this.sql(zRanges.count());
+        }
+
+        /**
+         * Prepares the SQL text for this binding on the given connection.
+         * @param connection Connection on which to prepare the statement.
+         * @return A PreparedStatement for this binding.
+         * @throws SQLException Thrown by the JDBC driver.
+         */
+        public PreparedStatement prepareStatement(Connection connection) throws SQLException
+        {
+            return connection.prepareStatement(sql());
+        }
+
+        /**
+         * Returns the low bound of a z-value range.
+         * @param range Identifies the range, 0 &lt;= range &lt; ranges().
+         * @return The low bound of the range.
+         */
+        public long zLo(int range)
+        {
+            return zRanges.lo(range);
+        }
+
+        /**
+         * Returns the high bound of a z-value range.
+         * @param range Identifies the range, 0 &lt;= range &lt; ranges().
+         * @return The high bound of the range.
+         */
+        public long zHi(int range)
+        {
+            return zRanges.hi(range);
+        }
+
+        /**
+         * Binds the parameters of the spatial predicate for one query.
+         * @param statement Statement created by {@link #prepareStatement(java.sql.Connection)}.
+         * @param query Identifies the query, 0 &lt;= query &lt; queries(). For {@link OutputMode#SEPARATE},
+         *              this is the z-value range.
+         * @throws SQLException Thrown by the JDBC driver.
+         */
+        public void bind(PreparedStatement statement, int query) throws SQLException
+        {
+            int p = firstParameter;
+            switch (outputMode) {
+                case SEPARATE:
+                    bindRange(statement, p, query);
+                    break;
+                case UNION_ALL:
+                    for (int r = 0; r < zRanges.count(); r++) {
+                        p = bindRange(statement, p, r);
+                    }
+                    break;
+                case DISJUNCTION:
+                    for (int r = 0; r < zRanges.count(); r++) {
+                        statement.setLong(p++, zLo(r));
+                        statement.setLong(p++, zHi(r));
+                    }
+                    bindBox(statement, p);
+                    break;
+            }
+        }
+
+        SpatialQuery query()
+        {
+            return SpatialQuery.this;
+        }
+
+        double[] lo()
+        {
+            return lo;
+        }
+
+        double[] hi()
+        {
+            return hi;
+        }
+
+        private int bindRange(PreparedStatement statement, int p, int range) throws SQLException
+        {
+            statement.setLong(p++, zLo(range));
+            statement.setLong(p++, zHi(range));
+            return bindBox(statement, p);
+        }
+
+        private int bindBox(PreparedStatement statement, int p) throws SQLException
+        {
+            for (int d = 0; d < lo.length; d++) {
+                statement.setDouble(p++, lo[d]);
+                statement.setDouble(p++, hi[d]);
+            }
+            return p;
+        }
+
+        private Binding(ZRanges zRanges, double[] lo, double[] hi)
+        {
+            this.zRanges = zRanges;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        private final ZRanges zRanges;
+        private final double[] lo;
+        private final double[] hi;
+    }
+}
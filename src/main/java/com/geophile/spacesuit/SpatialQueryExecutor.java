@@ -0,0 +1,182 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import javax.sql.DataSource;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the z-value range queries of a spatial query concurrently, and merges their rows into a single
+ * stream. Each range query runs on its own connection, obtained from a DataSource, in a thread of an
+ * ExecutorService. The number of range queries in flight is therefore bounded by the size of the
+ * executor's thread pool (and of the DataSource's connection pool). Rows are passed to the consumer through
+ * a bounded buffer, so range queries stall when the consumer falls behind. Alternatively, rows can be
+ * delivered to a {@link RowSubscriber}, without blocking the caller or the executor's threads, or collected
+ * in the background, yielding a {@link SpatialQueryFuture}.
+ */
+
+public class SpatialQueryExecutor
+{
+    /**
+     * Starts running a spatial query. The query's output mode determines the statements run:
+     * for {@link OutputMode#SEPARATE}, each z-value range is queried concurrently; otherwise, a single
+     * statement is run.
+     * @param query Compiled spatial query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param timeout Maximum time for the entire query, including all range queries. When the timeout
+     *                expires, all range queries are cancelled, and {@link SpatialResult#next()} throws
+     *                java.sql.SQLTimeoutException.
+     * @param unit Unit of timeout.
+     * @param parameters Values of the query's parameters preceding the spatial predicate.
+     * @return The query result.
+     * @throws java.util.concurrent.RejectedExecutionException If the executor does not accept a range query.
+     *         Range queries already started are cancelled.
+     */
+    public SpatialResult execute(SpatialQuery query,
+                                 double xLo, double xHi, double yLo, double yHi,
+                                 int maxZValues,
+                                 long timeout, TimeUnit unit,
+                                 Object ... parameters)
+    {
+        SpatialQuery.Binding binding = bind(query, xLo, xHi, yLo, yHi, maxZValues, parameters);
+        SpatialResult result = new SpatialResult(dataSource,
+                                                 binding,
+                                                 parameters,
+                                                 bufferedRows,
+                                                 System.currentTimeMillis() + unit.toMillis(timeout));
+        result.start(executor);
+        return result;
+    }
+
+    /**
+     * Starts running a spatial query without blocking, delivering rows to a subscriber as it requests them.
+     * The calling thread returns once {@link RowSubscriber#onSubscribe(RowSubscription)} has returned. Range
+     * queries are started, in threads of the executor, only while requested rows are outstanding. A range
+     * query that has no more requested rows to deliver is suspended, holding its connection but not a
+     * thread, until the subscriber requests more rows or cancels the subscription. The query's output mode
+     * determines the statements run, as for {@link #execute(SpatialQuery, double, double, double, double,
+     * int, long, TimeUnit, Object...)}.
+     * @param query Compiled spatial query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param timeout Maximum time for the entire query. When the timeout expires, running range queries are
+     *                cancelled, and {@link RowSubscriber#onError(Throwable)} is called with a
+     *                java.sql.SQLTimeoutException. A suspended range query times out when it is resumed.
+     * @param unit Unit of timeout.
+     * @param subscriber Receives the rows.
+     * @param parameters Values of the query's parameters preceding the spatial predicate.
+     */
+    public void subscribe(SpatialQuery query,
+                          double xLo, double xHi, double yLo, double yHi,
+                          int maxZValues,
+                          long timeout, TimeUnit unit,
+                          RowSubscriber subscriber,
+                          Object ... parameters)
+    {
+        SpatialQuery.Binding binding = bind(query, xLo, xHi, yLo, yHi, maxZValues, parameters);
+        new SpatialSubscription(dataSource,
+                                binding,
+                                parameters,
+                                subscriber,
+                                System.currentTimeMillis() + unit.toMillis(timeout),
+                                executor).start();
+    }
+
+    /**
+     * Starts running a spatial query without blocking, collecting all of its rows. Range queries run
+     * concurrently, as for {@link #execute(SpatialQuery, double, double, double, double, int, long, TimeUnit,
+     * Object...)}. The rows can be obtained without blocking by a listener added to the returned
+     * {@link SpatialQueryFuture}. Cancelling the future cancels the range queries still running.
+     * @param query Compiled spatial query.
+     * @param xLo Low x coordinate of the query box.
+     * @param xHi High x coordinate of the query box.
+     * @param yLo Low y coordinate of the query box.
+     * @param yHi High y coordinate of the query box.
+     * @param maxZValues Maximum number of z-value ranges.
+     * @param timeout Maximum time for the entire query. When the timeout expires, the future's get method
+     *                throws an ExecutionException caused by a java.sql.SQLTimeoutException.
+     * @param unit Unit of timeout.
+     * @param parameters Values of the query's parameters preceding the spatial predicate.
+     * @return The rows of the query, in the order in which they arrived. Each row contains one value per
+     *         column of the result. The get method throws an ExecutionException if a range query fails.
+     */
+    public SpatialQueryFuture submit(SpatialQuery query,
+                                     double xLo, double xHi, double yLo, double yHi,
+                                     int maxZValues,
+                                     long timeout, TimeUnit unit,
+                                     Object ... parameters)
+    {
+        RowCollector collector = new RowCollector();
+        subscribe(query, xLo, xHi, yLo, yHi, maxZValues, timeout, unit, collector, parameters);
+        return collector;
+    }
+
+    /**
+     * Creates a SpatialQueryExecutor, buffering up to 1000 rows between the range queries and the consumer.
+     * @param dataSource Source of connections for the range queries.
+     * @param executor Runs the range queries.
+     * @return A new SpatialQueryExecutor.
+     */
+    public static SpatialQueryExecutor create(DataSource dataSource, ExecutorService executor)
+    {
+        return create(dataSource, executor, DEFAULT_BUFFERED_ROWS);
+    }
+
+    /**
+     * Creates a SpatialQueryExecutor.
+     * @param dataSource Source of connections for the range queries.
+     * @param executor Runs the range queries.
+     * @param bufferedRows Maximum number of rows retrieved from the database but not yet consumed.
+     * @return A new SpatialQueryExecutor.
+     */
+    public static SpatialQueryExecutor create(DataSource dataSource, ExecutorService executor, int bufferedRows)
+    {
+        return new SpatialQueryExecutor(dataSource, executor, bufferedRows);
+    }
+
+    // For use by this class
+
+    private static SpatialQuery.Binding bind(SpatialQuery query,
+                                             double xLo, double xHi, double yLo, double yHi,
+                                             int maxZValues,
+                                             Object[] parameters)
+    {
+        if (parameters.length != query.firstParameter() - 1) {
+            throw new IllegalArgumentException(String.format("Expected %s parameters, found %s",
+                                                             query.firstParameter() - 1, parameters.length));
+        }
+        return query.bind(xLo, xHi, yLo, yHi, maxZValues);
+    }
+
+    private SpatialQueryExecutor(DataSource dataSource, ExecutorService executor, int bufferedRows)
+    {
+        if (bufferedRows <= 0) {
+            throw new IllegalArgumentException(String.format("bufferedRows: %s", bufferedRows));
+        }
+        this.dataSource = dataSource;
+        this.executor = executor;
+        this.bufferedRows = bufferedRows;
+    }
+
+    // Class state
+
+    private static final int DEFAULT_BUFFERED_ROWS = 1000;
+
+    // Object state
+
+    private final DataSource dataSource;
+    private final ExecutorService executor;
+    private final int bufferedRows;
+}
@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * The rows of a spatial query running in the background, started by
+ * {@link SpatialQueryExecutor#submit(SpatialQuery, double, double, double, double, int, long,
+ * java.util.concurrent.TimeUnit, Object...)}. Besides blocking in get, the rows can be obtained by a listener,
+ * run when the query completes, fails or is cancelled, (as by Guava's ListenableFuture).
+ */
+
+public interface SpatialQueryFuture extends Future<List<Object[]>>
+{
+    /**
+     * Arranges for a listener to be run when the query is done, i.e. once {@link #isDone()} returns true.
+     * If the query is already done, the listener is submitted to the executor immediately. The listener can
+     * then call get without blocking.
+     * @param listener Run when the query is done.
+     * @param executor Runs the listener, e.g. an executor running tasks in the calling thread, for a
+     *                 listener that returns quickly.
+     */
+    void addListener(Runnable listener, Executor executor);
+}
@@ -0,0 +1,237 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The rows of a spatial query run by a {@link SpatialQueryExecutor}. Rows from the range queries are
+ * returned in the order in which they arrive. A SpatialResult is not thread-safe, and should be consumed
+ * by one thread. It should be closed when no longer needed. Closing a SpatialResult before all rows have
+ * been consumed cancels the range queries that are still running.
+ */
+
+public class SpatialResult implements AutoCloseable
+{
+    /**
+     * Returns the next row, or null if there are no more rows. Once a range query has failed, or the
+     * timeout has expired, every call throws the exception.
+     * @return The column values of the next row, or null if there are no more rows.
+     * @throws SQLException If a range query failed, or if the timeout expired (SQLTimeoutException).
+     */
+    public Object[] next() throws SQLException
+    {
+        try {
+            while (running > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    failure.compareAndSet(null, new SQLTimeoutException("Spatial query timed out"));
+                    checkFailure();
+                }
+                Object row = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (row == END) {
+                    running--;
+                    checkFailure();
+                } else if (row != null) {
+                    return (Object[]) row;
+                }
+            }
+            checkFailure();
+            return null;
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Cancels range queries that are still running, and releases their resources.
+     */
+    @Override
+    public void close()
+    {
+        if (!cancelled) {
+            cancelled = true;
+            synchronized (statements) {
+                for (PreparedStatement statement : statements) {
+                    try {
+                        statement.cancel();
+                    } catch (SQLException e) {
+                        // Query may have completed. Nothing else to do.
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            queue.clear();
+            running = 0;
+        }
+    }
+
+    // For use by this package
+
+    SpatialResult(DataSource dataSource,
+                  SpatialQuery.Binding binding,
+                  Object[] parameters,
+                  int bufferedRows,
+                  long deadline)
+    {
+        this.dataSource = dataSource;
+        this.binding = binding;
+        this.parameters = parameters;
+        this.queue = new ArrayBlockingQueue<>(bufferedRows);
+        this.deadline = deadline;
+    }
+
+    void start(ExecutorService executor)
+    {
+        int queries = binding.queries();
+        running = queries;
+        try {
+            for (int q = 0; q < queries; q++) {
+                futures.add(executor.submit(new RangeQuery(q)));
+            }
+        } catch (RejectedExecutionException e) {
+            // Cancel the range queries already submitted.
+            close();
+            throw e;
+        }
+    }
+
+    // For use by this class
+
+    private void checkFailure() throws SQLException
+    {
+        SQLException exception = failure.get();
+        if (exception != null) {
+            close();
+            throw exception;
+        }
+    }
+
+    // Blocks while the queue is full, unless the query is cancelled or the timeout has expired.
+    private boolean enqueue(Object row) throws InterruptedException
+    {
+        while (!cancelled && System.currentTimeMillis() < deadline) {
+            if (queue.offer(row, ENQUEUE_WAIT_MSEC, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Class state
+
+    private static final Object END = new Object();
+    private static final long ENQUEUE_WAIT_MSEC = 100;
+
+    // Object state
+
+    private final DataSource dataSource;
+    private final SpatialQuery.Binding binding;
+    private final Object[] parameters;
+    private final BlockingQueue<Object> queue;
+    private final long deadline;
+    private final List<Future<?>> futures = new ArrayList<>();
+    private final List<PreparedStatement> statements = new ArrayList<>();
+    private final AtomicReference<SQLException> failure = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+    private int running;
+
+    // Inner classes
+
+    private class RangeQuery implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try {
+                if (!cancelled) {
+                    query();
+                }
+            } catch (SQLException e) {
+                if (!cancelled) {
+                    failure.compareAndSet(null, e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // From the driver or from row conversion. END must not be mistaken for success.
+                if (!cancelled) {
+                    failure.compareAndSet(null, new SQLException(e));
+                }
+            } finally {
+                try {
+                    enqueue(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private void query() throws SQLException, InterruptedException
+        {
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement statement = binding.prepareStatement(connection)) {
+                synchronized (statements) {
+                    statements.add(statement);
+                }
+                try {
+                    for (int p = 0; p < parameters.length; p++) {
+                        statement.setObject(p + 1, parameters[p]);
+                    }
+                    binding.bind(statement, query);
+                    long remainingSec = (deadline - System.currentTimeMillis() + 999) / 1000;
+                    if (remainingSec > 0) {
+                        statement.setQueryTimeout((int) remainingSec);
+                    }
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        int columns = resultSet.getMetaData().getColumnCount();
+                        boolean more = true;
+                        while (more && !cancelled && resultSet.next()) {
+                            Object[] row = new Object[columns];
+                            for (int c = 0; c < columns; c++) {
+                                row[c] = resultSet.getObject(c + 1);
+                            }
+                            more = enqueue(row);
+                        }
+                        if (!more && !cancelled) {
+                            throw new SQLTimeoutException("Spatial query timed out");
+                        }
+                    }
+                } finally {
+                    synchronized (statements) {
+                        statements.remove(statement);
+                    }
+                }
+            }
+        }
+
+        RangeQuery(int query)
+        {
+            this.query = query;
+        }
+
+        private final int query;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+// Delivers the rows of a spatial query to a RowSubscriber, as requested. Range queries are started while
+// requested rows are outstanding. A range query that runs out of requested rows is suspended, keeping its
+// ResultSet open, and is resubmitted to the executor when more rows are requested. Calls to the subscriber
+// are serialized by emitLock. Other state is guarded by this.
+
+class SpatialSubscription implements RowSubscription
+{
+    @Override
+    public void request(long rows)
+    {
+        if (rows <= 0) {
+            stop(new IllegalArgumentException(String.format("rows: %s", rows)));
+            return;
+        }
+        List<RangeQuery> ready;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            demand = demand > Long.MAX_VALUE - rows ? Long.MAX_VALUE : demand + rows;
+            ready = dispatch();
+        }
+        submit(ready);
+    }
+
+    @Override
+    public void cancel()
+    {
+        stop(null);
+    }
+
+    // For use by this package
+
+    SpatialSubscription(DataSource dataSource,
+                        SpatialQuery.Binding binding,
+                        Object[] parameters,
+                        RowSubscriber subscriber,
+                        long deadline,
+                        ExecutorService executor)
+    {
+        this.dataSource = dataSource;
+        this.binding = binding;
+        this.parameters = parameters;
+        this.subscriber = subscriber;
+        this.deadline = deadline;
+        this.executor = executor;
+        this.queries = binding.queries();
+    }
+
+    void start()
+    {
+        synchronized (emitLock) {
+            subscriber.onSubscribe(this);
+        }
+        boolean complete;
+        synchronized (this) {
+            complete = !done && queries == 0;
+            done |= complete;
+        }
+        if (complete) {
+            synchronized (emitLock) {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    // For use by this class
+
+    // Returns the range queries to be resumed or started, given the outstanding demand.
+    private List<RangeQuery> dispatch()
+    {
+        List<RangeQuery> ready = new ArrayList<>();
+        long resumable = Math.min(suspended.size(), demand);
+        for (long r = 0; r < resumable; r++) {
+            ready.add(suspended.remove());
+        }
+        while (nextQuery < queries && inFlight < demand) {
+            RangeQuery rangeQuery = new RangeQuery(nextQuery++);
+            started.add(rangeQuery);
+            inFlight++;
+            ready.add(rangeQuery);
+        }
+        return ready;
+    }
+
+    private void submit(List<RangeQuery> ready)
+    {
+        int submitted = 0;
+        try {
+            for (RangeQuery rangeQuery : ready) {
+                executor.submit(rangeQuery);
+                submitted++;
+            }
+        } catch (RejectedExecutionException e) {
+            // The range queries not submitted are neither suspended nor running, so stop would not release
+            // them. A resumed range query has an open ResultSet.
+            for (RangeQuery rangeQuery : ready.subList(submitted, ready.size())) {
+                rangeQuery.close();
+            }
+            stop(new SQLException(e));
+        }
+    }
+
+    // Takes one row from the outstanding demand. Returns ROW if successful, SUSPEND if there is no
+    // outstanding demand, in which case the range query is suspended, or STOP if the subscription is over.
+    private int acquire(RangeQuery rangeQuery)
+    {
+        if (System.currentTimeMillis() >= deadline) {
+            stop(new SQLTimeoutException("Spatial query timed out"));
+            return STOP;
+        }
+        synchronized (this) {
+            if (done) {
+                return STOP;
+            }
+            if (demand == 0) {
+                suspended.add(rangeQuery);
+                return SUSPEND;
+            }
+            if (demand != Long.MAX_VALUE) {
+                demand--;
+            }
+            return ROW;
+        }
+    }
+
+    private void emit(Object[] row)
+    {
+        synchronized (emitLock) {
+            if (!done) {
+                try {
+                    subscriber.onNext(row);
+                } catch (RuntimeException | Error e) {
+                    // The subscriber failed, so the subscription is cancelled, and the subscriber is not
+                    // signalled again, (as for rule 2.13 of Reactive Streams).
+                    stop(null);
+                }
+            }
+        }
+    }
+
+    // Called when a range query has no more rows, returning the row acquired but not delivered.
+    private void finished(RangeQuery rangeQuery)
+    {
+        List<RangeQuery> ready = Collections.emptyList();
+        boolean complete;
+        synchronized (this) {
+            if (demand != Long.MAX_VALUE) {
+                demand++;
+            }
+            inFlight--;
+            finishedQueries++;
+            started.remove(rangeQuery);
+            complete = !done && finishedQueries == queries;
+            done |= complete;
+            if (!done) {
+                ready = dispatch();
+            }
+        }
+        submit(ready);
+        if (complete) {
+            synchronized (emitLock) {
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    // Ends the subscription, reporting the failure, if any, to the subscriber.
+    private void stop(Throwable failure)
+    {
+        List<RangeQuery> idle;
+        List<RangeQuery> running;
+        synchronized (this) {
+            if (done) {
+                return;
+            }
+            done = true;
+            idle = new ArrayList<>(suspended);
+            suspended.clear();
+            running = new ArrayList<>(started);
+            running.removeAll(idle);
+        }
+        for (RangeQuery rangeQuery : idle) {
+            rangeQuery.close();
+        }
+        for (RangeQuery rangeQuery : running) {
+            rangeQuery.cancel();
+        }
+        if (failure != null) {
+            synchronized (emitLock) {
+                subscriber.onError(failure);
+            }
+        }
+    }
+
+    // Class state
+
+    private static final int ROW = 0;
+    private static final int SUSPEND = 1;
+    private static final int STOP = 2;
+
+    // Object state
+
+    private final DataSource dataSource;
+    private final SpatialQuery.Binding binding;
+    private final Object[] parameters;
+    private final RowSubscriber subscriber;
+    private final long deadline;
+    private final ExecutorService executor;
+    private final int queries;
+    private final Object emitLock = new Object();
+    private final Queue<RangeQuery> suspended = new ArrayDeque<>();
+    private final Set<RangeQuery> started = new HashSet<>();
+    private volatile boolean done = false;
+    private long demand;
+    private int nextQuery;
+    private int inFlight;
+    private int finishedQueries;
+
+    // Inner classes
+
+    private class RangeQuery implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            boolean suspended = false;
+            try {
+                if (done) {
+                    return;
+                }
+                if (resultSet == null) {
+                    open();
+                }
+                while (true) {
+                    int acquired = acquire(this);
+                    if (acquired == SUSPEND) {
+                        // Another thread may resume this range query from here on.
+                        suspended = true;
+                        return;
+                    }
+                    if (acquired == STOP) {
+                        return;
+                    }
+                    if (!resultSet.next()) {
+                        close();
+                        finished(this);
+                        return;
+                    }
+                    Object[] row = new Object[columns];
+                    for (int c = 0; c < columns; c++) {
+                        row[c] = resultSet.getObject(c + 1);
+                    }
+                    emit(row);
+                }
+            } catch (Throwable e) {
+                // From the driver, or from row conversion
+                if (!done) {
+                    stop(e);
+                }
+            } finally {
+                if (!suspended) {
+                    close();
+                }
+            }
+        }
+
+        void cancel()
+        {
+            PreparedStatement statement = this.statement;
+            if (statement != null) {
+                try {
+                    statement.cancel();
+                } catch (SQLException e) {
+                    // Query may have completed. Nothing else to do.
+                }
+            }
+        }
+
+        void close()
+        {
+            for (AutoCloseable closeable : new AutoCloseable[]{resultSet, statement, connection}) {
+                if (closeable != null) {
+                    try {
+                        closeable.close();
+                    } catch (Exception e) {
+                        // Nothing else to do.
+                    }
+                }
+            }
+            resultSet = null;
+            statement = null;
+            connection = null;
+        }
+
+        private void open() throws SQLException
+        {
+            connection = dataSource.getConnection();
+            statement = binding.prepareStatement(connection);
+            for (int p = 0; p < parameters.length; p++) {
+                statement.setObject(p + 1, parameters[p]);
+            }
+            binding.bind(statement, query);
+            long remainingSec = (deadline - System.currentTimeMillis() + 999) / 1000;
+            if (remainingSec > 0) {
+                statement.setQueryTimeout((int) remainingSec);
+            }
+            resultSet = statement.executeQuery();
+            columns = resultSet.getMetaData().getColumnCount();
+        }
+
+        RangeQuery(int query)
+        {
+            this.query = query;
+        }
+
+        private final int query;
+        private Connection connection;
+        private volatile PreparedStatement statement;
+        private ResultSet resultSet;
+        private int columns;
+    }
+}
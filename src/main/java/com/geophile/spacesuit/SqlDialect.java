@@ -0,0 +1,42 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+/**
+ * Identifies a database system, for the syntax of index hints, and of index definitions generated by
+ * {@link CoveringIndex}. The spatial predicates of rewritten queries are standard SQL, and do not depend on
+ * the dialect.
+ */
+
+public enum SqlDialect
+{
+    /**
+     * MySQL. An index hint, use index (idx) or force index (idx), follows the table reference.
+     */
+    MYSQL,
+
+    /**
+     * H2. An index hint, use index (idx), follows the table reference. H2 has no force index, and
+     * use index already restricts the optimizer to the named index, so both kinds of {@link IndexHint} are
+     * written as use index.
+     */
+    H2,
+
+    /**
+     * Oracle. An index hint, index(table idx), is a comment following select. Both kinds of
+     * {@link IndexHint} are written the same way.
+     */
+    ORACLE,
+
+    /**
+     * PostgreSQL, which has no index hints of its own. An index hint, IndexOnlyScan(table idx), is written
+     * as a comment at the start of the query, for the pg_hint_plan extension, and is ignored if the
+     * extension is not installed. Both kinds of {@link IndexHint} are written the same way. Covering
+     * indexes store the projected columns using include.
+     */
+    POSTGRESQL
+}
@@ -0,0 +1,153 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Describes the distribution of spatial index keys in a table, for estimating the number of rows in
+ * a range of keys. The histogram is based on a sample of keys: the number of rows in a range is estimated
+ * from the number of sampled keys in the range, interpolating between sampled keys.
+ */
+
+public class ZHistogram
+{
+    /**
+     * Returns the number of rows in the table.
+     * @return The number of rows in the table.
+     */
+    public long rowCount()
+    {
+        return rowCount;
+    }
+
+    /**
+     * Returns the estimated number of rows whose spatial index key is in the range [zLo, zHi].
+     * @param zLo Low end of the range.
+     * @param zHi High end of the range.
+     * @return Estimated number of rows in the range.
+     */
+    public double estimateRows(long zLo, long zHi)
+    {
+        return (rank(zHi, true) - rank(zLo, false)) / (quantiles.length - 1) * rowCount;
+    }
+
+    /**
+     * Creates a histogram from a sample of spatial index keys, provided by the caller.
+     * @param sample Spatial index keys of randomly selected rows.
+     * @param rowCount Number of rows in the table.
+     * @return A histogram.
+     */
+    public static ZHistogram create(long[] sample, long rowCount)
+    {
+        return new ZHistogram(sample, sample.length, rowCount);
+    }
+
+    /**
+     * Creates a histogram by sampling spatial index keys from a table. All of the table's keys are read,
+     * (typically by scanning the spatial index), and a uniform random sample of them is kept. The histogram
+     * should be recreated when the distribution of the table's keys changes significantly.
+     * @param connection Connection to the database containing the table.
+     * @param table Name of the table.
+     * @param zColumn Name of the column containing spatial index keys.
+     * @param sampleSize Maximum number of keys to be kept.
+     * @return A histogram.
+     * @throws SQLException Thrown by the JDBC driver.
+     */
+    public static ZHistogram sample(Connection connection, String table, String zColumn, int sampleSize)
+        throws SQLException
+    {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException(String.format("sampleSize: %s", sampleSize));
+        }
+        long[] sample = new long[sampleSize];
+        long rowCount = 0;
+        Random random = new Random();
+        try (Statement statement = connection.createStatement()) {
+            statement.setFetchSize(FETCH_SIZE);
+            try (ResultSet resultSet = statement.executeQuery(String.format("select %s from %s",
+                                                                            zColumn, table))) {
+                // Reservoir sampling
+                while (resultSet.next()) {
+                    long z = resultSet.getLong(1);
+                    if (rowCount < sampleSize) {
+                        sample[(int) rowCount] = z;
+                    } else {
+                        long r = (long) (random.nextDouble() * (rowCount + 1));
+                        if (r < sampleSize) {
+                            sample[(int) r] = z;
+                        }
+                    }
+                    rowCount++;
+                }
+            }
+        }
+        return new ZHistogram(sample, (int) Math.min(rowCount, sampleSize), rowCount);
+    }
+
+    // For use by this class
+
+    // Interpolated position of z among the quantiles. A key sampled more than once occupies the positions
+    // from its first to its last occurrence: the last is returned for the high end of a range, and the first
+    // for the low end, so that a range containing the key counts all of its occurrences.
+    private double rank(long z, boolean last)
+    {
+        int above = search(z, false);
+        if (quantiles[above] == z) {
+            return last ? search(z, true) - 1 : above;
+        }
+        int below = above - 1;
+        double lo = quantiles[below];
+        double hi = quantiles[above];
+        return below + (z - lo) / (hi - lo);
+    }
+
+    // Returns the position of the first quantile greater than z if after is true, or of the first quantile
+    // greater than or equal to z otherwise, (quantiles.length if there is none).
+    private int search(long z, boolean after)
+    {
+        int lo = 0;
+        int hi = quantiles.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (quantiles[mid] < z || after && quantiles[mid] == z) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private ZHistogram(long[] sample, int n, long rowCount)
+    {
+        if (n < 0 || n > sample.length || rowCount < n) {
+            throw new IllegalArgumentException(String.format("sample: %s, rowCount: %s", n, rowCount));
+        }
+        // Sampled keys, sorted, bracketed by bounds on all possible keys (which are non-negative).
+        quantiles = new long[n + 2];
+        System.arraycopy(sample, 0, quantiles, 1, n);
+        Arrays.sort(quantiles, 1, n + 1);
+        quantiles[0] = -1;
+        quantiles[n + 1] = Long.MAX_VALUE;
+        this.rowCount = rowCount;
+    }
+
+    // Class state
+
+    private static final int FETCH_SIZE = 10_000;
+
+    // Object state
+
+    private final long[] quantiles;
+    private final long rowCount;
+}
@@ -0,0 +1,154 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.spacesuit.Partitioning;
+import com.geophile.z.Space;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+// A space-filling curve through the cells of a Space's grid. Maps points to spatial index keys, and boxes to
+// prefixes of the keys of the cells they contain. Keys and prefixes have the format of geophile z-values, so
+// Space.zLo, Space.zHi and ZRanges work for any curve: the bits of the position along the curve,
+// left-justified below the sign bit, with the number of bits in the low 6 bits.
+
+public abstract class Curve
+{
+    public abstract KeyEncoding encoding();
+
+    // Returns the key of the point, whose coordinates are in the Space's dimension order.
+    public abstract long key(double[] point);
+
+    // zs is filled with the prefixes of the keys of the cells covering the box, in ascending order, followed
+    // by -1s. lo and hi hold the bounds of the box in each dimension.
+    public abstract void decompose(double[] lo, double[] hi, long[] zs);
+
+    public final Space space()
+    {
+        return space;
+    }
+
+    // Returns the grid coordinates of the cells entirely inside the box with bounds lo and hi, {cellLo, cellHi},
+    // or null if there are none. The cells containing the box's bounds may extend beyond the box, so they are
+    // excluded, unless the bound is that of the space.
+    public final long[][] innerCells(double[] lo, double[] hi)
+    {
+        long[] cellLo = cells(lo);
+        long[] cellHi = cells(hi);
+        for (int d = 0; d < cellLo.length; d++) {
+            if (lo[d] > space.lo(d)) {
+                cellLo[d]++;
+            }
+            if (hi[d] < space.hi(d)) {
+                cellHi[d]--;
+            }
+            if (cellLo[d] > cellHi[d]) {
+                return null;
+            }
+        }
+        return new long[][]{cellLo, cellHi};
+    }
+
+    // Returns true if the z-value, (a key prefix produced by decompose), covers only cells within
+    // innerCells, as returned by innerCells(lo, hi). The points with keys in the z-value's range are then
+    // inside the box, and need not be checked.
+    public final boolean inside(long z, long[][] innerCells)
+    {
+        if (innerCells == null) {
+            return false;
+        }
+        int length = (int) (z & LENGTH_MASK);
+        long prefix = length == 0 ? 0 : z >>> (63 - length);
+        return compare(prefix, length, innerCells[0], innerCells[1]) == CONTAINED;
+    }
+
+    public static Curve create(Space space, KeyEncoding encoding)
+    {
+        return encoding == KeyEncoding.HILBERT ? new HilbertCurve(space) : new ZOrder(space);
+    }
+
+    // partitioning may be null
+    public static Curve create(Space space, KeyEncoding encoding, Partitioning partitioning)
+    {
+        Curve curve = create(space, encoding);
+        return partitioning == null ? curve : new PartitionedCurve(curve, partitioning);
+    }
+
+    protected Curve(Space space)
+    {
+        this.space = space;
+    }
+
+    // Returns the grid coordinates of the cell containing the point, in each dimension.
+    protected abstract long[] cells(double[] point);
+
+    // Compares the region of space covered by the key prefix of the given length to the box of grid cells
+    // [cellLo, cellHi]. Returns DISJOINT, OVERLAPPING or CONTAINED.
+    protected abstract int compare(long prefix, int length, long[] cellLo, long[] cellHi);
+
+    // Decomposes the box of grid cells [cellLo, cellHi] into key prefixes, as Space.decompose does: regions
+    // are refined breadth-first, one bit at a time, and refinement stops when another split would produce
+    // more than zs.length prefixes.
+    protected void refine(long[] cellLo, long[] cellHi, int totalBits, long[] zs)
+    {
+        Arrays.fill(zs, -1L);
+        int n = 0;
+        Deque<long[]> queue = new ArrayDeque<>(); // {prefix, length}
+        queue.add(new long[]{0, 0});
+        while (!queue.isEmpty()) {
+            long[] region = queue.removeFirst();
+            long prefix = region[0];
+            int length = (int) region[1];
+            if (length == totalBits || compare(prefix, length, cellLo, cellHi) == CONTAINED) {
+                zs[n++] = z(prefix, length);
+            } else {
+                long[][] children = new long[2][];
+                int overlapping = 0;
+                for (int bit = 0; bit < 2; bit++) {
+                    long child = (prefix << 1) | bit;
+                    if (compare(child, length + 1, cellLo, cellHi) != DISJOINT) {
+                        children[overlapping++] = new long[]{child, length + 1};
+                    }
+                }
+                if (n + queue.size() + overlapping <= zs.length) {
+                    for (int c = 0; c < overlapping; c++) {
+                        queue.addLast(children[c]);
+                    }
+                } else {
+                    zs[n++] = z(prefix, length);
+                }
+            }
+        }
+        Arrays.sort(zs, 0, n);
+    }
+
+    // Returns the length bits of a position along the curve, or of a prefix of one, in z-value format.
+    protected static long z(long bits, int length)
+    {
+        return (bits << (63 - length)) | length;
+    }
+
+    // Bit b of a key, counting from the most significant.
+    protected static long keyBit(int b)
+    {
+        return 1L << (62 - b);
+    }
+
+    // Class state
+
+    protected static final long LENGTH_MASK = 0x3f;
+    protected static final int DISJOINT = 0;
+    protected static final int OVERLAPPING = 1;
+    protected static final int CONTAINED = 2;
+
+    // Object state
+
+    protected final Space space;
+}
@@ -0,0 +1,245 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.SpaceSuitListener;
+import com.geophile.z.Space;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Computes the z-value ranges covering a box, or a set of boxes, of the space's dimensionality, consulting the decomposition cache if there
+// is one. Each box is decomposed into up to refinement * maxRanges z-values, and the z-values of all boxes
+// are then coalesced into at most maxRanges ranges. Ranges separated by at most maxGapCells grid cells are
+// always merged. If maxRanges is AUTO, the number of ranges is chosen by the planner. If there is a listener,
+// it is notified of each decomposition. Boxes are decomposed into prefixes of the keys of the Curve.
+
+public class Decomposer
+{
+    public ZRanges decompose(double xLo, double xHi, double yLo, double yHi, int maxRanges)
+    {
+        return decompose(new double[]{xLo, xHi, yLo, yHi}, maxRanges);
+    }
+
+    // boxes contains the coordinates of one or more boxes, the low and high bounds of each dimension in turn:
+    // xLo, xHi, yLo, yHi, xLo, xHi, ... in a 2-dimensional space.
+    public ZRanges decompose(double[] boxes, int maxRanges)
+    {
+        if (listener == null) {
+            return lookupRanges(boxes, maxRanges);
+        }
+        long start = System.nanoTime();
+        ZRanges ranges = lookupRanges(boxes, maxRanges);
+        listener.decomposed(ranges.count(), System.nanoTime() - start);
+        return ranges;
+    }
+
+    // Decomposes the box with bounds lo and hi as decompose does, and splits off runs of contiguous z-values
+    // covering only cells inside the box, (see Curve.inside): up to maxRanges of the widest runs. Returns
+    // {inside, boundary}: ranges of keys that need no coordinate checks, and the remaining ranges. The cache,
+    // which may enlarge the box, is not used. If maxRanges is AUTO, the planner chooses the number of ranges
+    // to be split.
+    public ZRanges[] decomposeInside(double[] lo, double[] hi, int maxRanges)
+    {
+        long start = listener == null ? 0 : System.nanoTime();
+        if (maxRanges == AUTO) {
+            double[] box = new double[2 * lo.length];
+            for (int d = 0; d < lo.length; d++) {
+                box[2 * d] = lo[d];
+                box[2 * d + 1] = hi[d];
+            }
+            maxRanges = Math.max(1, lookupRanges(box, AUTO).count());
+        } else if (maxRanges < 0) {
+            throw new IllegalArgumentException(String.format("maxZValues: %s", maxRanges));
+        }
+        long[] zs = new long[maxRanges * refinement];
+        curve.decompose(lo, hi, zs);
+        long[][] innerCells = curve.innerCells(lo, hi);
+        long[] all = new long[zs.length];
+        long[] inside = new long[zs.length];
+        int n = 0;
+        int nInside = 0;
+        for (long z : zs) {
+            if (z != -1L) {
+                all[n++] = z;
+                if (curve.inside(z, innerCells)) {
+                    inside[nInside++] = z;
+                }
+            }
+        }
+        ZRanges ranges = ZRanges.coalesce(all, n, maxRanges, maxGap);
+        ZRanges insideRanges = ZRanges.coalesce(inside, nInside, Integer.MAX_VALUE, 0).widest(maxRanges);
+        ZRanges boundaryRanges = ranges.minus(insideRanges);
+        if (listener != null) {
+            listener.decomposed(insideRanges.count() + boundaryRanges.count(), System.nanoTime() - start);
+        }
+        return new ZRanges[]{insideRanges, boundaryRanges};
+    }
+
+    public Space space()
+    {
+        return space;
+    }
+
+    public Curve curve()
+    {
+        return curve;
+    }
+
+    public DecompositionCache cache()
+    {
+        return cache;
+    }
+
+    public int refinement()
+    {
+        return refinement;
+    }
+
+    public long maxGapCells()
+    {
+        return maxGapCells;
+    }
+
+    public Planner planner()
+    {
+        return planner;
+    }
+
+    public SpaceSuitListener listener()
+    {
+        return listener;
+    }
+
+    public Decomposer(Curve curve,
+                      DecompositionCache cache,
+                      int refinement,
+                      long maxGapCells,
+                      Planner planner,
+                      SpaceSuitListener listener)
+    {
+        if (refinement < 1 || maxGapCells < 0) {
+            throw new IllegalArgumentException(String.format("refinement: %s, maxGapCells: %s",
+                                                             refinement, maxGapCells));
+        }
+        this.curve = curve;
+        this.space = curve.space();
+        this.cache = cache;
+        this.refinement = refinement;
+        this.maxGapCells = maxGapCells;
+        this.planner = planner;
+        this.listener = listener;
+        long keysPerCell = ZRanges.keysPerCell(space);
+        this.maxGap = maxGapCells > Long.MAX_VALUE / keysPerCell ? Long.MAX_VALUE : maxGapCells * keysPerCell;
+    }
+
+    // For use by this class
+
+    private ZRanges lookupRanges(double[] boxes, int maxRanges)
+    {
+        if (maxRanges == AUTO && planner == null) {
+            throw new IllegalArgumentException("Automatic selection of z-values is not enabled");
+        }
+        if (maxRanges < 0) {
+            throw new IllegalArgumentException(String.format("maxZValues: %s", maxRanges));
+        }
+        int boxLength = 2 * space.dimensions();
+        if (boxes.length == 0 || boxes.length % boxLength != 0) {
+            throw new IllegalArgumentException(Arrays.toString(boxes));
+        }
+        if (cache == null) {
+            return computeRanges(boxes, maxRanges);
+        }
+        Object[] key = new Object[boxes.length + 5];
+        int k = 0;
+        key[k++] = BOXES;
+        boxes = boxes.clone();
+        for (int b = 0; b < boxes.length; b += boxLength) {
+            for (int d = 0; d < space.dimensions(); d++) {
+                boxes[b + 2 * d] = cache.quantizeLo(boxes[b + 2 * d], d, space.lo(d));
+                boxes[b + 2 * d + 1] = cache.quantizeHi(boxes[b + 2 * d + 1], d, space.hi(d));
+            }
+            for (int c = 0; c < boxLength; c++) {
+                key[k++] = boxes[b + c];
+            }
+        }
+        key[k++] = maxRanges;
+        key[k++] = refinement;
+        key[k++] = maxGapCells;
+        key[k] = planner;
+        List<Object> cacheKey = DecompositionCache.key(key);
+        ZRanges ranges = (ZRanges) cache.get(cacheKey);
+        if (ranges == null) {
+            ranges = computeRanges(boxes, maxRanges);
+            cache.put(cacheKey, ranges);
+        }
+        return ranges;
+    }
+
+    private ZRanges computeRanges(double[] boxes, int maxRanges)
+    {
+        return maxRanges == AUTO
+               ? planRanges(boxes)
+               : decomposeBoxes(boxes, maxRanges);
+    }
+
+    private ZRanges planRanges(double[] boxes)
+    {
+        ZRanges best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int candidate : planner.candidates()) {
+            ZRanges ranges = decomposeBoxes(boxes, candidate);
+            double cost = planner.cost(ranges);
+            if (cost < bestCost) {
+                best = ranges;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    private ZRanges decomposeBoxes(double[] boxes, int maxRanges)
+    {
+        int dimensions = space.dimensions();
+        int boxLength = 2 * dimensions;
+        int zsPerBox = maxRanges * refinement;
+        long[] zs = new long[(boxes.length / boxLength) * zsPerBox];
+        long[] boxZs = new long[zsPerBox];
+        int n = 0;
+        for (int b = 0; b < boxes.length; b += boxLength) {
+            double[] lo = new double[dimensions];
+            double[] hi = new double[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                lo[d] = boxes[b + 2 * d];
+                hi[d] = boxes[b + 2 * d + 1];
+            }
+            curve.decompose(lo, hi, boxZs);
+            for (int i = 0; i < zsPerBox; i++) {
+                if (boxZs[i] != -1L) {
+                    zs[n++] = boxZs[i];
+                }
+            }
+        }
+        return ZRanges.coalesce(zs, n, maxRanges, maxGap);
+    }
+
+    // Class state
+
+    public static final int AUTO = 0;
+    private static final String BOXES = "boxes";
+
+    // Object state
+
+    private final Curve curve;
+    private final Space space;
+    private final DecompositionCache cache; // null if decompositions are not cached
+    private final int refinement;
+    private final long maxGapCells;
+    private final long maxGap;
+    private final Planner planner; // null if automatic selection of the number of ranges is not enabled
+    private final SpaceSuitListener listener; // null if instrumentation is not enabled
+}
@@ -0,0 +1,151 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.CacheStatistics;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounded LRU caches of decompositions (z-values) and of rewritten queries. Keys are lists of the values
+// determining the cached result, e.g. function name, box coordinates and maxZValues. If quanta are
+// specified, box coordinates are expanded to multiples of the quanta before decomposition, so that nearby
+// boxes share a cache entry. This is safe because the rewritten queries retain the exact box predicate.
+// Decompositions and rewrites are held in separate maps, each with its own statistics. A rewrite that is
+// not found is followed by the lookup of its decomposition, and each lookup is counted by its own map.
+
+public class DecompositionCache
+{
+    public Object get(List<Object> key)
+    {
+        return decompositions.get(key);
+    }
+
+    public void put(List<Object> key, Object value)
+    {
+        decompositions.put(key, value);
+    }
+
+    public Object getRewrite(List<Object> key)
+    {
+        return rewrites.get(key);
+    }
+
+    public void putRewrite(List<Object> key, Object value)
+    {
+        rewrites.put(key, value);
+    }
+
+    public static List<Object> key(Object ... values)
+    {
+        return Arrays.asList(values);
+    }
+
+    public double quantizeLo(double lo, int d, double min)
+    {
+        double quantum = d < quanta.length ? quanta[d] : 0;
+        return quantum == 0 ? lo : Math.max(min, Math.floor(lo / quantum) * quantum);
+    }
+
+    public double quantizeHi(double hi, int d, double max)
+    {
+        double quantum = d < quanta.length ? quanta[d] : 0;
+        return quantum == 0 ? hi : Math.min(max, Math.ceil(hi / quantum) * quantum);
+    }
+
+    public CacheStatistics statistics()
+    {
+        return decompositions.statistics();
+    }
+
+    public CacheStatistics rewriteStatistics()
+    {
+        return rewrites.statistics();
+    }
+
+    public void clear()
+    {
+        decompositions.clear();
+        rewrites.clear();
+    }
+
+    public DecompositionCache(int maxEntries, double[] quanta)
+    {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException(String.format("maxEntries: %s", maxEntries));
+        }
+        for (double quantum : quanta) {
+            if (quantum < 0) {
+                throw new IllegalArgumentException(String.format("quanta: %s", Arrays.toString(quanta)));
+            }
+        }
+        this.quanta = quanta.clone();
+        this.decompositions = new Lru(maxEntries);
+        this.rewrites = new Lru(maxEntries);
+    }
+
+    // Object state
+
+    private final double[] quanta;
+    private final Lru decompositions;
+    private final Lru rewrites;
+
+    // Inner classes
+
+    private static class Lru
+    {
+        synchronized Object get(List<Object> key)
+        {
+            Object value = map.get(key);
+            if (value == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+            return value;
+        }
+
+        synchronized void put(List<Object> key, Object value)
+        {
+            map.put(key, value);
+        }
+
+        synchronized CacheStatistics statistics()
+        {
+            return new CacheStatistics(hits, misses, evictions, map.size());
+        }
+
+        synchronized void clear()
+        {
+            map.clear();
+        }
+
+        Lru(final int maxEntries)
+        {
+            this.map =
+                new LinkedHashMap<List<Object>, Object>(16, 0.75f, true)
+                {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest)
+                    {
+                        boolean evict = size() > maxEntries;
+                        if (evict) {
+                            evictions++;
+                        }
+                        return evict;
+                    }
+                };
+        }
+
+        private final LinkedHashMap<List<Object>, Object> map;
+        private long hits;
+        private long misses;
+        private long evictions;
+    }
+}
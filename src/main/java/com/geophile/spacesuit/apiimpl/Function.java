@@ -6,13 +6,63 @@
 
 package com.geophile.spacesuit.apiimpl;
 
+import com.geophile.spacesuit.OutputMode;
+import com.geophile.spacesuit.SpaceSuitListener;
 import com.geophile.z.Space;
 
 import java.util.List;
 
+// Classes of apiimpl may refer to the enums, listener interfaces and value classes of the API (e.g.
+// OutputMode), but never to SpaceSuit or the compiled query classes.
+
 public abstract class Function
 {
-    public abstract String[] invoke(List<String> arguments, int nZValues);
+    public abstract String[] invoke(List<String> arguments, int nZValues, OutputMode outputMode);
+
+    // Renders the SQL replacing an invocation: the z-value ranges, combined according to outputMode, and
+    // the function's predicate on the point coordinates.
+    protected String[] render(ZRanges zRanges, String zColumn, String predicate, OutputMode outputMode)
+    {
+        SpaceSuitListener listener = decomposer.listener();
+        long start = listener == null ? 0 : System.nanoTime();
+        String[] output;
+        if (outputMode == OutputMode.DISJUNCTION) {
+            StringBuilder zPredicate = new StringBuilder();
+            for (int r = 0; r < zRanges.count(); r++) {
+                if (r > 0) {
+                    zPredicate.append(" or ");
+                }
+                zPredicate.append(String.format("%s between %s and %s", zColumn, zRanges.lo(r), zRanges.hi(r)));
+            }
+            output = new String[]{String.format("((%s) and %s)", zPredicate, predicate)};
+        } else {
+            output = new String[zRanges.count()];
+            for (int r = 0; r < zRanges.count(); r++) {
+                output[r] = String.format("(%s between %s and %s and %s)",
+                                          zColumn, zRanges.lo(r), zRanges.hi(r), predicate);
+            }
+        }
+        if (listener != null) {
+            listener.rendered(output.length, System.nanoTime() - start);
+        }
+        ranges = zRanges.count();
+        return output;
+    }
+
+    // Number of z-value ranges rendered by the most recent invocation
+    public int ranges()
+    {
+        return ranges;
+    }
+
+    // For functions defined only in 2-dimensional spaces.
+    protected void checkPlanar()
+    {
+        if (space.dimensions() != 2) {
+            throw new IllegalArgumentException(String.format("%s requires a 2-dimensional space",
+                                                             getClass().getSimpleName()));
+        }
+    }
 
     protected String unquote(String s)
     {
@@ -28,21 +78,28 @@ public abstract class Function
         return s;
     }
 
-    protected Function(Space space)
+    protected Function(Decomposer decomposer)
     {
+        Space space = decomposer.space();
         this.space = space;
-        this.xMin = space.lo(0);
-        this.xMax = space.hi(0);
-        this.yMin = space.lo(1);
-        this.yMax = space.hi(1);
+        this.decomposer = decomposer;
+        if (space.dimensions() == 2) {
+            // Otherwise, invocations of planar functions are rejected by checkPlanar.
+            this.xMin = space.lo(0);
+            this.xMax = space.hi(0);
+            this.yMin = space.lo(1);
+            this.yMax = space.hi(1);
+        }
     }
 
     // Class state
 
     protected Space space;
+    protected Decomposer decomposer;
     protected double xMin;
     protected double xMax;
     protected double yMin;
     protected double yMax;
     private static final char IDENTIFIER_QUOTE = '`';
+    private int ranges;
 }
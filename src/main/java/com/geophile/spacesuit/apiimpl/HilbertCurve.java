@@ -0,0 +1,186 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.z.Space;
+
+import java.util.Arrays;
+
+// The Hilbert curve, in any number of dimensions, using Skilling's algorithm ("Programming the Hilbert curve",
+// AIP Conference Proceedings 707, 2004). A position along the curve is computed from the grid coordinates of
+// a cell in "transposed" form: bit j of coordinate i is bit (j * dimensions + dimensions - 1 - i) of the
+// position, counting from the least significant. Grid coordinates are obtained from Space.spatialIndexKey, via
+// ZOrder, so points are assigned to the same cells by both curves.
+//
+// Each level of the curve visits the subcubes of a cube consecutively, so a key prefix whose length is a
+// multiple of the number of dimensions covers one subcube. Other prefixes cover the subcubes of the next
+// level whose positions extend the prefix.
+
+public class HilbertCurve extends Curve
+{
+    @Override
+    public KeyEncoding encoding()
+    {
+        return KeyEncoding.HILBERT;
+    }
+
+    @Override
+    public long key(double[] point)
+    {
+        long[] x = this.x.get();
+        zOrder.cells(space.spatialIndexKey(point), x);
+        axesToTranspose(x);
+        long position = 0;
+        for (int j = bits - 1; j >= 0; j--) {
+            for (long coordinate : x) {
+                position = (position << 1) | ((coordinate >>> j) & 1);
+            }
+        }
+        return z(position, totalBits);
+    }
+
+    @Override
+    public void decompose(double[] lo, double[] hi, long[] zs)
+    {
+        refine(zOrder.cells(lo), zOrder.cells(hi), totalBits, zs);
+    }
+
+    public HilbertCurve(Space space)
+    {
+        super(space);
+        this.zOrder = new ZOrder(space);
+        this.dimensions = space.dimensions();
+        this.bits = zOrder.bits(0);
+        this.totalBits = zOrder.totalBits();
+        for (int d = 1; d < dimensions; d++) {
+            if (zOrder.bits(d) != bits) {
+                throw new IllegalArgumentException(String.format("Hilbert curve requires the same number of bits " +
+                                                                 "in each dimension: %s", space));
+            }
+        }
+    }
+
+    // For use by this package
+
+    @Override
+    protected long[] cells(double[] point)
+    {
+        return zOrder.cells(point);
+    }
+
+    @Override
+    protected int compare(long prefix, int length, long[] cellLo, long[] cellHi)
+    {
+        int level = (length + dimensions - 1) / dimensions;
+        int extra = level * dimensions - length;
+        int shift = bits - level; // Subcubes at this level have sides of 2^shift cells
+        long[] x = new long[dimensions];
+        boolean contained = true;
+        boolean overlapping = false;
+        for (long subcube = 0; subcube < (1L << extra); subcube++) {
+            transposeToAxes(((prefix << extra) | subcube) << (dimensions * shift), x);
+            boolean subcubeContained = true;
+            boolean subcubeDisjoint = false;
+            for (int d = 0; d < dimensions; d++) {
+                long lo = (x[d] >>> shift) << shift;
+                long hi = lo + (1L << shift) - 1;
+                if (hi < cellLo[d] || lo > cellHi[d]) {
+                    subcubeDisjoint = true;
+                }
+                if (lo < cellLo[d] || hi > cellHi[d]) {
+                    subcubeContained = false;
+                }
+            }
+            contained &= subcubeContained;
+            overlapping |= !subcubeDisjoint;
+        }
+        return contained ? CONTAINED : overlapping ? OVERLAPPING : DISJOINT;
+    }
+
+    // For use by this class
+
+    // Converts grid coordinates to the transposed form of a position along the curve, in place.
+    private void axesToTranspose(long[] x)
+    {
+        int n = dimensions;
+        long m = 1L << (bits - 1);
+        // Inverse undo
+        for (long q = m; q > 1; q >>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p; // Invert
+                } else {
+                    long t = (x[0] ^ x[i]) & p; // Exchange
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        // Gray encode
+        for (int i = 1; i < n; i++) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = m; q > 1; q >>= 1) {
+            if ((x[n - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] ^= t;
+        }
+    }
+
+    // Sets x to the grid coordinates of the cell at the given position along the curve.
+    private void transposeToAxes(long position, long[] x)
+    {
+        int n = dimensions;
+        Arrays.fill(x, 0);
+        for (int j = bits - 1; j >= 0; j--) {
+            for (int i = 0; i < n; i++) {
+                x[i] |= ((position >>> (j * n + n - 1 - i)) & 1) << j;
+            }
+        }
+        // Gray decode by h ^ (h / 2)
+        long t = x[n - 1] >> 1;
+        for (int i = n - 1; i > 0; i--) {
+            x[i] ^= x[i - 1];
+        }
+        x[0] ^= t;
+        // Undo excess work
+        for (long q = 2; q != 1L << bits; q <<= 1) {
+            long p = q - 1;
+            for (int i = n - 1; i >= 0; i--) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p;
+                } else {
+                    t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+    }
+
+    // Object state
+
+    private final ZOrder zOrder;
+    private final int dimensions;
+    private final int bits; // Bits per dimension
+    private final int totalBits;
+    private final ThreadLocal<long[]> x =
+        new ThreadLocal<long[]>()
+        {
+            @Override
+            protected long[] initialValue()
+            {
+                return new long[dimensions];
+            }
+        };
+}
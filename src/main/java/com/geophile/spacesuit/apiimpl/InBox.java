@@ -6,9 +6,10 @@
 
 package com.geophile.spacesuit.apiimpl;
 
-import com.geophile.z.Space;
-import com.geophile.z.spatialobject.d2.Box;
+import com.geophile.spacesuit.OutputMode;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /*
@@ -17,50 +18,167 @@ import java.util.List;
  * - z is the name of the column carrying z-values
  * - x, y: are the names of the columns carrying point coordinates
  * - XLO, XHI, YLO, YHI: are floating point literals describing the query box.
+ *
+ * In a space of more than two dimensions, there is one column/range triple for each dimension, in the order of
+ * the space's dimensions, e.g. inbox(z, lat, LATLO, LATHI, lon, LONLO, LONHI, t, TLO, THI).
  */
 
 public class InBox extends Function
 {
-    public InBox(Space space)
+    public InBox(Decomposer decomposer)
     {
-        super(space);
+        super(decomposer);
     }
 
-    public String[] invoke(List<String> arguments, int maxZValues)
+    public String[] invoke(List<String> arguments, int maxZValues, OutputMode outputMode)
     {
-        int a = 0;
-        String zColumn = unquote(arguments.get(a++));
-        String xColumn = unquote(arguments.get(a++));
-        double xLo = Double.parseDouble(arguments.get(a++));
-        double xHi = Double.parseDouble(arguments.get(a++));
-        String yColumn = unquote(arguments.get(a++));
-        double yLo = Double.parseDouble(arguments.get(a++));
-        double yHi = Double.parseDouble(arguments.get(a++));
-        if (xLo > xHi || yLo > yHi ||
-            xLo < xMin || xHi > xMax ||
-            yLo < yMin || yHi > yMax) {
-            throw new IllegalArgumentException(String.format("(%s : %s, %s : %s)", xLo, xHi, yLo, yHi));
+        checkArguments(arguments);
+        int dimensions = space.dimensions();
+        String zColumn = unquote(arguments.get(0));
+        double[] lo = new double[dimensions];
+        double[] hi = new double[dimensions];
+        StringBuilder predicate = new StringBuilder();
+        for (int d = 0; d < dimensions; d++) {
+            int a = 1 + 3 * d;
+            lo[d] = Double.parseDouble(arguments.get(a + 1));
+            hi[d] = Double.parseDouble(arguments.get(a + 2));
+            if (d > 0) {
+                predicate.append(" and ");
+            }
+            predicate.append(String.format("%s between %s and %s", unquote(arguments.get(a)), lo[d], hi[d]));
+        }
+        ZRanges zRanges = decompose(lo, hi, maxZValues);
+        return render(zRanges, zColumn, predicate.toString(), outputMode);
+    }
+
+    // Returns the predicate for one z-value, with parameter markers in place of the z-value bounds and the
+    // box coordinates. Parameters are bound in this order: zLo, zHi, xLo, xHi, yLo, yHi (followed by the
+    // bounds of any further dimensions). The box coordinates in the arguments must be parameter markers.
+    public String parameterizedPredicate(List<String> arguments)
+    {
+        return parameterizedPredicate(arguments, 1, OutputMode.SEPARATE);
+    }
+
+    // As above, but for the given number of z-values. For DISJUNCTION, the z-value bounds of all ranges
+    // come first: zLo0, zHi0, zLo1, zHi1, ..., followed by xLo, xHi, yLo, yHi. Otherwise, the predicate
+    // covers one z-value range.
+    public String parameterizedPredicate(List<String> arguments, int ranges, OutputMode outputMode)
+    {
+        checkArguments(arguments);
+        String zColumn = unquote(arguments.get(0));
+        StringBuilder boxPredicate = new StringBuilder();
+        for (int d = 0; d < space.dimensions(); d++) {
+            int a = 1 + 3 * d;
+            checkParameter(arguments.get(a + 1));
+            checkParameter(arguments.get(a + 2));
+            boxPredicate.append(" and ");
+            boxPredicate.append(unquote(arguments.get(a)));
+            boxPredicate.append(" between ? and ?");
+        }
+        if (outputMode == OutputMode.DISJUNCTION) {
+            StringBuilder zPredicate = new StringBuilder();
+            for (int i = 0; i < ranges; i++) {
+                if (i > 0) {
+                    zPredicate.append(" or ");
+                }
+                zPredicate.append(zColumn);
+                zPredicate.append(" between ? and ?");
+            }
+            return String.format("((%s)%s)", zPredicate, boxPredicate);
+        } else {
+            return String.format("(%s between ? and ?%s)", zColumn, boxPredicate);
+        }
+    }
+
+    // Returns the predicate for one z-value range, without the box, with parameter markers in place of the
+    // bounds of the range.
+    public String rangePredicate(List<String> arguments)
+    {
+        return String.format("(%s between ? and ?)", zColumn(arguments));
+    }
+
+    // Returns the names of the columns carrying point coordinates, in the order of the space's dimensions.
+    public List<String> coordinateColumns(List<String> arguments)
+    {
+        checkArguments(arguments);
+        List<String> columns = new ArrayList<>();
+        for (int d = 0; d < space.dimensions(); d++) {
+            columns.add(unquote(arguments.get(1 + 3 * d)));
+        }
+        return columns;
+    }
+
+    public String zColumn(List<String> arguments)
+    {
+        checkArguments(arguments);
+        return unquote(arguments.get(0));
+    }
+
+    public String xColumn(List<String> arguments)
+    {
+        checkArguments(arguments);
+        return unquote(arguments.get(1));
+    }
+
+    public String yColumn(List<String> arguments)
+    {
+        checkArguments(arguments);
+        return unquote(arguments.get(4));
+    }
+
+    // Returns the z-value ranges covering the box, at most maxZValues of them.
+    public ZRanges decompose(double xLo, double xHi, double yLo, double yHi, int maxZValues)
+    {
+        return decompose(new double[]{xLo, yLo}, new double[]{xHi, yHi}, maxZValues);
+    }
+
+    // Returns the z-value ranges covering the box with bounds lo[d] and hi[d] in each dimension d, at most
+    // maxZValues of them.
+    public ZRanges decompose(double[] lo, double[] hi, int maxZValues)
+    {
+        return decomposer.decompose(box(lo, hi), maxZValues);
+    }
+
+    // Returns the z-value ranges covering the box with bounds lo[d] and hi[d] in each dimension d, as
+    // {inside, boundary}. Keys in the inside ranges are those of points inside the box. See
+    // Decomposer.decomposeInside.
+    public ZRanges[] decomposeInside(double[] lo, double[] hi, int maxZValues)
+    {
+        box(lo, hi);
+        return decomposer.decomposeInside(lo, hi, maxZValues);
+    }
+
+    // Returns the bounds of the box as xLo, xHi, yLo, yHi, ...
+    private double[] box(double[] lo, double[] hi)
+    {
+        int dimensions = space.dimensions();
+        if (lo.length != dimensions || hi.length != dimensions) {
+            throw new IllegalArgumentException(String.format("Expected %s dimensions: (%s : %s)",
+                                                             dimensions, Arrays.toString(lo), Arrays.toString(hi)));
         }
-        Box box = new Box(xLo, xHi, yLo, yHi);
-        long[] zs = new long[maxZValues];
-        space.decompose(box, zs);
-        int nOutput = 0;
-        for (int i = 0; i < zs.length; i++) {
-            if (zs[i] != -1L) {
-                nOutput++;
+        double[] box = new double[2 * dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            if (lo[d] > hi[d] || lo[d] < space.lo(d) || hi[d] > space.hi(d)) {
+                throw new IllegalArgumentException(String.format("(%s : %s)",
+                                                                 Arrays.toString(lo), Arrays.toString(hi)));
             }
+            box[2 * d] = lo[d];
+            box[2 * d + 1] = hi[d];
         }
-        String[] output = new String[nOutput];
-        for (int i = 0; i < nOutput; i++) {
-            long z = zs[i];
-            output[i] = String.format
-                ("(%s between %s and %s and" + // z
-                 " %s between %s and %s and" + // x
-                 " %s between %s and %s)",     // y
-                 zColumn, Space.zLo(z), Space.zHi(z),
-                 xColumn, xLo, xHi,
-                 yColumn, yLo, yHi);
+        return box;
+    }
+
+    private void checkArguments(List<String> arguments)
+    {
+        if (arguments.size() != 1 + 3 * space.dimensions()) {
+            throw new IllegalArgumentException(arguments.toString());
+        }
+    }
+
+    private void checkParameter(String argument)
+    {
+        if (!argument.trim().equals("?")) {
+            throw new IllegalArgumentException(String.format("Expected parameter marker: %s", argument));
         }
-        return output;
     }
 }
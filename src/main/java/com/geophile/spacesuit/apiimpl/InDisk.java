@@ -0,0 +1,173 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.OutputMode;
+
+import java.util.List;
+
+/*
+ * Invocation: indisk(z, x, PX, y, PY, R)
+ * where:
+ * - z is the name of the column carrying z-values
+ * - x, y: are the names of the columns carrying point coordinates
+ * - PX, PY: are floating point literals describing the center of the disk.
+ * - R: is a floating point literal, the radius of the disk.
+ *
+ * The haversine variant, indisk_haversine(z, lat, PLAT, lon, PLON, R), is for spaces whose coordinates are
+ * latitude and longitude, in degrees. R is a distance in meters, along the surface of the earth. Disks
+ * crossing the antimeridian are clipped to the space.
+ *
+ * The disk is covered by a stack of boxes, each as wide as the disk within the box's y range. The boxes are
+ * decomposed into z-value ranges, which therefore follow the disk more closely than the ranges of the disk's
+ * bounding box would. The generated SQL checks the bounding box, and then the exact distance.
+ */
+
+public class InDisk extends Function
+{
+    public InDisk(Decomposer decomposer, boolean haversine)
+    {
+        super(decomposer);
+        this.haversine = haversine;
+    }
+
+    public String[] invoke(List<String> arguments, int maxZValues, OutputMode outputMode)
+    {
+        checkPlanar();
+        if (arguments.size() != 6) {
+            throw new IllegalArgumentException(arguments.toString());
+        }
+        int a = 0;
+        String zColumn = unquote(arguments.get(a++));
+        String xColumn = unquote(arguments.get(a++));
+        double px = Double.parseDouble(arguments.get(a++));
+        String yColumn = unquote(arguments.get(a++));
+        double py = Double.parseDouble(arguments.get(a++));
+        double r = Double.parseDouble(arguments.get(a++));
+        if (r < 0 || px < xMin || px > xMax || py < yMin || py > yMax) {
+            throw new IllegalArgumentException(String.format("center: (%s, %s), radius: %s", px, py, r));
+        }
+        double[] boxes = haversine ? geoBoxes(px, py, r) : boxes(px, py, r);
+        ZRanges zRanges = decomposer.decompose(boxes, maxZValues);
+        double xLo = boxes[0];
+        double xHi = boxes[1];
+        double yLo = boxes[2];
+        double yHi = boxes[3];
+        for (int b = 4; b < boxes.length; b += 4) {
+            xLo = Math.min(xLo, boxes[b]);
+            xHi = Math.max(xHi, boxes[b + 1]);
+            yLo = Math.min(yLo, boxes[b + 2]);
+            yHi = Math.max(yHi, boxes[b + 3]);
+        }
+        String distancePredicate =
+            haversine
+            ? String.format("%s * asin(sqrt(power(sin(radians(%s - %s) / 2), 2) + " +
+                            "cos(radians(%s)) * cos(radians(%s)) * power(sin(radians(%s - %s) / 2), 2))) <= %s",
+                            2 * EARTH_RADIUS_METERS,
+                            xColumn, px,
+                            px, xColumn, yColumn, py,
+                            r)
+            : String.format("(%s - %s) * (%s - %s) + (%s - %s) * (%s - %s) <= %s",
+                            xColumn, px, xColumn, px,
+                            yColumn, py, yColumn, py,
+                            r * r);
+        String predicate = String.format
+            ("%s between %s and %s and" + // x
+             " %s between %s and %s and" + // y
+             " %s",                        // distance
+             xColumn, xLo, xHi,
+             yColumn, yLo, yHi,
+             distancePredicate);
+        return render(zRanges, zColumn, predicate, outputMode);
+    }
+
+    // Boxes covering the disk of radius r around (px, py). The disk is cut into STRIPS strips along the y axis.
+    // Within each strip, the disk is widest on the strip edge closest to py, (or at py, if the strip contains it).
+    private double[] boxes(double px, double py, double r)
+    {
+        double[] boxes = new double[4 * STRIPS];
+        int n = 0;
+        for (int s = 0; s < STRIPS; s++) {
+            double yLo = py - r + 2 * r * s / STRIPS;
+            double yHi = s == STRIPS - 1 ? py + r : py - r + 2 * r * (s + 1) / STRIPS;
+            double d = yLo <= py && py <= yHi ? 0 : Math.min(Math.abs(yLo - py), Math.abs(yHi - py));
+            double halfWidth = Math.sqrt(Math.max(0, r * r - d * d));
+            n = addBox(boxes, n, px - halfWidth, px + halfWidth, yLo, yHi);
+        }
+        return trim(boxes, n);
+    }
+
+    // Boxes covering the spherical cap of radius r meters around (plat, plon). The cap is cut into STRIPS
+    // strips of latitude. The longitude range of each strip is the widest longitude range of the cap within
+    // the strip's latitudes.
+    private double[] geoBoxes(double plat, double plon, double r)
+    {
+        double delta = r / EARTH_RADIUS_METERS; // angular radius
+        double latLo = Math.max(-90, plat - Math.toDegrees(delta));
+        double latHi = Math.min(90, plat + Math.toDegrees(delta));
+        // Latitude at which the cap is widest
+        double sinWidest = Math.sin(Math.toRadians(plat)) / Math.cos(delta);
+        double widest = Math.abs(sinWidest) >= 1 ? Double.NaN : Math.toDegrees(Math.asin(sinWidest));
+        double[] boxes = new double[4 * STRIPS];
+        int n = 0;
+        for (int s = 0; s < STRIPS; s++) {
+            double lo = latLo + (latHi - latLo) * s / STRIPS;
+            double hi = s == STRIPS - 1 ? latHi : latLo + (latHi - latLo) * (s + 1) / STRIPS;
+            double halfWidth = Math.max(lonHalfWidth(plat, delta, lo), lonHalfWidth(plat, delta, hi));
+            if (lo <= widest && widest <= hi) {
+                halfWidth = Math.max(halfWidth, lonHalfWidth(plat, delta, widest));
+            }
+            n = addBox(boxes, n, lo, hi, plon - halfWidth, plon + halfWidth);
+        }
+        return trim(boxes, n);
+    }
+
+    // Half of the longitude range, in degrees, of the cap of angular radius delta around latitude plat,
+    // at latitude lat.
+    private double lonHalfWidth(double plat, double delta, double lat)
+    {
+        double phi = Math.toRadians(lat);
+        double phiC = Math.toRadians(plat);
+        double denominator = Math.cos(phi) * Math.cos(phiC);
+        if (denominator <= 0) {
+            return 180; // pole
+        }
+        double cosHalfWidth = (Math.cos(delta) - Math.sin(phi) * Math.sin(phiC)) / denominator;
+        return
+            cosHalfWidth <= -1 ? 180 :
+            cosHalfWidth >= 1 ? 0 :
+            Math.toDegrees(Math.acos(cosHalfWidth));
+    }
+
+    // Adds the box, clipped to the space, unless the clipped box is empty.
+    private int addBox(double[] boxes, int n, double xLo, double xHi, double yLo, double yHi)
+    {
+        xLo = Math.max(xLo, xMin);
+        xHi = Math.min(xHi, xMax);
+        yLo = Math.max(yLo, yMin);
+        yHi = Math.min(yHi, yMax);
+        if (xLo <= xHi && yLo <= yHi) {
+            boxes[n++] = xLo;
+            boxes[n++] = xHi;
+            boxes[n++] = yLo;
+            boxes[n++] = yHi;
+        }
+        return n;
+    }
+
+    private double[] trim(double[] boxes, int n)
+    {
+        double[] trimmed = new double[n];
+        System.arraycopy(boxes, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static final int STRIPS = 8;
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+    private final boolean haversine;
+}
@@ -0,0 +1,213 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.OutputMode;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Invocation: inpolygon(z, x, y, X1, Y1, X2, Y2, X3, Y3, ...)
+ * where:
+ * - z is the name of the column carrying z-values
+ * - x, y: are the names of the columns carrying point coordinates
+ * - Xi, Yi: are floating point literals, the vertices of the polygon, in order. There must be at least three.
+ *   The polygon is closed implicitly, (the last vertex is connected to the first).
+ *
+ * The polygon is cut into horizontal strips, and within each strip, covered by boxes spanning the x ranges
+ * occupied by the polygon. The boxes are decomposed into z-value ranges, which therefore follow the shape of
+ * the polygon, including concavities, more closely than the ranges of the polygon's bounding box would.
+ * The generated SQL checks the bounding box, and then counts edge crossings (even-odd rule). Points
+ * exactly on the boundary may or may not be selected.
+ */
+
+public class InPolygon extends Function
+{
+    public InPolygon(Decomposer decomposer)
+    {
+        super(decomposer);
+    }
+
+    public String[] invoke(List<String> arguments, int maxZValues, OutputMode outputMode)
+    {
+        checkPlanar();
+        if (arguments.size() < 9 || arguments.size() % 2 == 0) {
+            throw new IllegalArgumentException(arguments.toString());
+        }
+        String zColumn = unquote(arguments.get(0));
+        String xColumn = unquote(arguments.get(1));
+        String yColumn = unquote(arguments.get(2));
+        int n = (arguments.size() - 3) / 2;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int v = 0; v < n; v++) {
+            xs[v] = Double.parseDouble(arguments.get(3 + 2 * v));
+            ys[v] = Double.parseDouble(arguments.get(4 + 2 * v));
+            if (xs[v] < xMin || xs[v] > xMax || ys[v] < yMin || ys[v] > yMax) {
+                throw new IllegalArgumentException(String.format("vertex (%s, %s) outside space", xs[v], ys[v]));
+            }
+        }
+        ZRanges zRanges = decomposer.decompose(boxes(xs, ys), maxZValues);
+        String predicate = String.format
+            ("%s between %s and %s and" + // x
+             " %s between %s and %s and" + // y
+             " mod(%s, 2) = 1",            // crossings
+             xColumn, min(xs), max(xs),
+             yColumn, min(ys), max(ys),
+             crossings(xColumn, yColumn, xs, ys));
+        return render(zRanges, zColumn, predicate, outputMode);
+    }
+
+    // For use by this class
+
+    // Sum, over the edges, of 1 if a ray from (x, y) in the +x direction crosses the edge, (i.e. x is less
+    // than the x coordinate of the edge at y), 0 otherwise.
+    // An edge crosses the horizontal line through y if y1 <= y < y2 (or y2 <= y < y1). Horizontal edges
+    // never cross.
+    private String crossings(String xColumn, String yColumn, double[] xs, double[] ys)
+    {
+        StringBuilder buffer = new StringBuilder();
+        int n = xs.length;
+        for (int v = 0; v < n; v++) {
+            double x1 = xs[v];
+            double y1 = ys[v];
+            double x2 = xs[(v + 1) % n];
+            double y2 = ys[(v + 1) % n];
+            if (y1 != y2) {
+                if (buffer.length() > 0) {
+                    buffer.append(" + ");
+                }
+                buffer.append(String.format
+                    ("case when %s >= %s and %s < %s and %s < %s + (%s - %s) * %s then 1 else 0 end",
+                     yColumn, Math.min(y1, y2), yColumn, Math.max(y1, y2),
+                     xColumn, x1, yColumn, y1, (x2 - x1) / (y2 - y1)));
+            }
+        }
+        return buffer.toString();
+    }
+
+    // Boxes covering the polygon. The polygon's y range is cut into STRIPS strips. Within a strip, any point
+    // of the polygon lies either directly below an edge (within the strip), or directly below an interior
+    // point on the strip's upper boundary. So the x ranges of the clipped edges, together with the interior
+    // x ranges along the upper boundary, cover the polygon within the strip.
+    private double[] boxes(double[] xs, double[] ys)
+    {
+        int n = xs.length;
+        double polygonYLo = min(ys);
+        double polygonYHi = max(ys);
+        double[] boxes = new double[0];
+        int nBoxes = 0;
+        double[] intervals = new double[4 * n];
+        double[] crossings = new double[n];
+        for (int s = 0; s < STRIPS; s++) {
+            double yLo = polygonYLo + (polygonYHi - polygonYLo) * s / STRIPS;
+            double yHi = s == STRIPS - 1 ? polygonYHi : polygonYLo + (polygonYHi - polygonYLo) * (s + 1) / STRIPS;
+            int nIntervals = 0;
+            // Edges, clipped to the strip
+            for (int v = 0; v < n; v++) {
+                double x1 = xs[v];
+                double y1 = ys[v];
+                double x2 = xs[(v + 1) % n];
+                double y2 = ys[(v + 1) % n];
+                if (Math.max(y1, y2) >= yLo && Math.min(y1, y2) <= yHi) {
+                    double xA;
+                    double xB;
+                    if (y1 == y2) {
+                        xA = x1;
+                        xB = x2;
+                    } else {
+                        xA = xAt(x1, y1, x2, y2, Math.max(yLo, Math.min(y1, y2)));
+                        xB = xAt(x1, y1, x2, y2, Math.min(yHi, Math.max(y1, y2)));
+                    }
+                    intervals[nIntervals++] = Math.min(xA, xB);
+                    intervals[nIntervals++] = Math.max(xA, xB);
+                }
+            }
+            // Interior along the upper boundary
+            int nCrossings = 0;
+            for (int v = 0; v < n; v++) {
+                double x1 = xs[v];
+                double y1 = ys[v];
+                double x2 = xs[(v + 1) % n];
+                double y2 = ys[(v + 1) % n];
+                if ((y1 <= yHi) != (y2 <= yHi)) {
+                    crossings[nCrossings++] = xAt(x1, y1, x2, y2, yHi);
+                }
+            }
+            Arrays.sort(crossings, 0, nCrossings);
+            for (int c = 0; c + 1 < nCrossings; c += 2) {
+                intervals[nIntervals++] = crossings[c];
+                intervals[nIntervals++] = crossings[c + 1];
+            }
+            // Merge overlapping intervals, and emit a box for each merged interval
+            sortIntervals(intervals, nIntervals);
+            int i = 0;
+            while (i < nIntervals) {
+                double xLo = intervals[i];
+                double xHi = intervals[i + 1];
+                i += 2;
+                while (i < nIntervals && intervals[i] <= xHi) {
+                    xHi = Math.max(xHi, intervals[i + 1]);
+                    i += 2;
+                }
+                if (nBoxes == boxes.length) {
+                    boxes = Arrays.copyOf(boxes, Math.max(4 * STRIPS, 2 * boxes.length));
+                }
+                boxes[nBoxes++] = xLo;
+                boxes[nBoxes++] = xHi;
+                boxes[nBoxes++] = yLo;
+                boxes[nBoxes++] = yHi;
+            }
+        }
+        return Arrays.copyOf(boxes, nBoxes);
+    }
+
+    // Sorts intervals (lo, hi pairs) by lo.
+    private static void sortIntervals(double[] intervals, int n)
+    {
+        for (int i = 2; i < n; i += 2) {
+            double lo = intervals[i];
+            double hi = intervals[i + 1];
+            int j = i - 2;
+            while (j >= 0 && intervals[j] > lo) {
+                intervals[j + 2] = intervals[j];
+                intervals[j + 3] = intervals[j + 1];
+                j -= 2;
+            }
+            intervals[j + 2] = lo;
+            intervals[j + 3] = hi;
+        }
+    }
+
+    private static double xAt(double x1, double y1, double x2, double y2, double y)
+    {
+        return x1 + (y - y1) * (x2 - x1) / (y2 - y1);
+    }
+
+    private static double min(double[] a)
+    {
+        double min = a[0];
+        for (double d : a) {
+            min = Math.min(min, d);
+        }
+        return min;
+    }
+
+    private static double max(double[] a)
+    {
+        double max = a[0];
+        for (double d : a) {
+            max = Math.max(max, d);
+        }
+        return max;
+    }
+
+    // Class state
+
+    private static final int STRIPS = 16;
+}
@@ -0,0 +1,212 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.IndexHint;
+import com.geophile.spacesuit.SqlDialect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Adds an index hint to the text of a query preceding the invocation of a spatial function, (the prefix of a
+// QueryTemplate). The hint applies to the table containing the key column, the invocation's first argument.
+// If the column is qualified, e.g. c.z, then the table is the one with that alias or name. Otherwise, the
+// prefix must reference exactly one table. Table references are found following from, join, and the commas
+// of a from list. This is not a SQL parser: a table reference in a subquery of the prefix is treated like
+// any other.
+
+public class IndexHinter
+{
+    public String hint(String prefix, String invocation)
+    {
+        String column = keyColumn(invocation);
+        if (column == null) {
+            // Let the Transformer report the malformed invocation
+            return prefix;
+        }
+        TableReference table = table(prefix, column);
+        String name = table.alias == null ? table.table : table.alias;
+        StringBuilder buffer = new StringBuilder(prefix.length() + 64);
+        switch (dialect) {
+            case MYSQL:
+                buffer.append(prefix, 0, table.end);
+                buffer.append(String.format(" %s index (%s)", hint == IndexHint.FORCE ? "force" : "use", indexName));
+                buffer.append(prefix, table.end, prefix.length());
+                break;
+            case H2:
+                buffer.append(prefix, 0, table.end);
+                buffer.append(String.format(" use index (%s)", indexName));
+                buffer.append(prefix, table.end, prefix.length());
+                break;
+            case ORACLE:
+                int select = lastSelect(prefix, table.start);
+                buffer.append(prefix, 0, select);
+                buffer.append(String.format(" /*+ index(%s %s) */", name, indexName));
+                buffer.append(prefix, select, prefix.length());
+                break;
+            case POSTGRESQL:
+                buffer.append(String.format("/*+ IndexOnlyScan(%s %s) */ ", name, indexName));
+                buffer.append(prefix);
+                break;
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s %s index %s", dialect, hint, indexName);
+    }
+
+    public IndexHinter(SqlDialect dialect, IndexHint hint, String indexName)
+    {
+        if (dialect == null || hint == null || indexName == null || !IDENTIFIER.matcher(indexName).matches()) {
+            throw new IllegalArgumentException(String.format("dialect: %s, hint: %s, index: %s",
+                                                             dialect, hint, indexName));
+        }
+        this.dialect = dialect;
+        this.hint = hint;
+        this.indexName = indexName;
+    }
+
+    // For use by this class
+
+    private static String keyColumn(String invocation)
+    {
+        int openParen = invocation.indexOf('(');
+        if (openParen == -1) {
+            return null;
+        }
+        int end = invocation.indexOf(',', openParen);
+        if (end == -1) {
+            end = invocation.indexOf(')', openParen);
+        }
+        return end == -1 ? null : invocation.substring(openParen + 1, end).trim();
+    }
+
+    private static TableReference table(String prefix, String column)
+    {
+        int dot = column.lastIndexOf('.');
+        String qualifier = dot == -1 ? null : column.substring(0, dot);
+        List<TableReference> tables = tables(prefix);
+        TableReference found = null;
+        int matches = 0;
+        for (TableReference table : tables) {
+            if (qualifier == null || table.isNamed(qualifier)) {
+                found = table;
+                matches++;
+            }
+        }
+        if (matches != 1) {
+            throw new IllegalArgumentException(
+                String.format("Unable to determine the table containing %s, in %s", column, prefix));
+        }
+        return found;
+    }
+
+    private static List<TableReference> tables(String prefix)
+    {
+        List<TableReference> tables = new ArrayList<>();
+        Matcher from = FROM_OR_JOIN.matcher(prefix);
+        while (from.find()) {
+            boolean fromList = from.group(1).equalsIgnoreCase("from");
+            int position = from.end();
+            TableReference table;
+            while ((table = tableReference(prefix, position)) != null) {
+                tables.add(table);
+                position = table.end;
+                Matcher comma = COMMA.matcher(prefix).region(position, prefix.length());
+                if (!fromList || !comma.lookingAt()) {
+                    break;
+                }
+                position = comma.end();
+            }
+        }
+        return tables;
+    }
+
+    // Returns the table reference starting at the given position, or null if there isn't one, e.g. a subquery.
+    private static TableReference tableReference(String prefix, int position)
+    {
+        Matcher table = TABLE.matcher(prefix).region(position, prefix.length());
+        if (!table.lookingAt()) {
+            return null;
+        }
+        String alias = null;
+        int end = table.end();
+        Matcher as = ALIAS.matcher(prefix).region(end, prefix.length());
+        if (as.lookingAt() && !KEYWORDS.contains(as.group(2).toLowerCase())) {
+            alias = as.group(2);
+            end = as.end();
+        }
+        return new TableReference(table.group(), alias, position, end);
+    }
+
+    private static int lastSelect(String prefix, int before)
+    {
+        Matcher select = SELECT.matcher(prefix).region(0, before);
+        int end = -1;
+        while (select.find()) {
+            end = select.end();
+        }
+        if (end == -1) {
+            throw new IllegalArgumentException(String.format("No select preceding the table reference: %s", prefix));
+        }
+        return end;
+    }
+
+    // Class state
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[\\w$]+(\\.[\\w$]+)?");
+    private static final Pattern FROM_OR_JOIN = Pattern.compile("\\b(from|join)\\s+", Pattern.CASE_INSENSITIVE);
+    private static final Pattern TABLE = Pattern.compile("[\\w$]+(\\.[\\w$]+)*");
+    private static final Pattern ALIAS = Pattern.compile("\\s+(as\\s+)?([\\w$]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern COMMA = Pattern.compile("\\s*,\\s*");
+    private static final Pattern SELECT = Pattern.compile("\\bselect\\b", Pattern.CASE_INSENSITIVE);
+    // Words that can follow a table reference without an alias
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList(
+        "where", "join", "inner", "left", "right", "outer", "full", "cross", "natural", "straight_join", "on",
+        "using", "group", "order", "having", "limit", "offset", "fetch", "for", "union", "window", "use", "force",
+        "ignore", "partition", "select", "from", "lateral"));
+
+    // Object state
+
+    private final SqlDialect dialect;
+    private final IndexHint hint;
+    private final String indexName;
+
+    // Inner classes
+
+    private static class TableReference
+    {
+        boolean isNamed(String name)
+        {
+            if (alias != null) {
+                return alias.equalsIgnoreCase(name);
+            }
+            return table.equalsIgnoreCase(name) || table.toLowerCase().endsWith("." + name.toLowerCase());
+        }
+
+        TableReference(String table, String alias, int start, int end)
+        {
+            this.table = table;
+            this.alias = alias;
+            this.start = start;
+            this.end = end;
+        }
+
+        final String table;
+        final String alias;
+        final int start;
+        final int end;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import java.util.concurrent.RecursiveAction;
+
+// Computes spatial index keys for a range of points. Ranges larger than SEQUENTIAL_THRESHOLD are split in half
+// when run in a ForkJoinPool. Each leaf allocates one coordinate array and reuses it for all of its points.
+
+public class KeyComputation extends RecursiveAction
+{
+    @Override
+    public void compute()
+    {
+        if (length <= SEQUENTIAL_THRESHOLD || getPool() == null) {
+            double[] xy = new double[2];
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                xy[0] = xs[i];
+                xy[1] = ys[i];
+                out[i] = curve.key(xy);
+            }
+        } else {
+            int half = length / 2;
+            invokeAll(new KeyComputation(curve, xs, ys, out, offset, half),
+                      new KeyComputation(curve, xs, ys, out, offset + half, length - half));
+        }
+    }
+
+    public KeyComputation(Curve curve, double[] xs, double[] ys, long[] out, int offset, int length)
+    {
+        this.curve = curve;
+        this.xs = xs;
+        this.ys = ys;
+        this.out = out;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    // Class state
+
+    private static final int SEQUENTIAL_THRESHOLD = 10_000;
+
+    // Object state
+
+    private final Curve curve;
+    private final double[] xs;
+    private final double[] ys;
+    private final long[] out;
+    private final int offset;
+    private final int length;
+}
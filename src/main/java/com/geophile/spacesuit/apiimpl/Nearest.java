@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.OutputMode;
+
+import java.util.List;
+
+/*
+ * Invocation: nearest(z, x, y, PX, PY, K)
+ * where:
+ * - z is the name of the column carrying z-values
+ * - x, y: are the names of the columns carrying point coordinates
+ * - PX, PY, K: parameter markers for the query point and the number of neighbors.
+ *
+ * A nearest-neighbor query cannot be rewritten into a fixed set of queries. It is run by
+ * com.geophile.spacesuit.NearestQuery, which queries a growing box around the query point, one set of
+ * z-value ranges at a time. The predicate generated by this function selects one z-value range.
+ */
+
+public class Nearest extends Function
+{
+    public Nearest(Decomposer decomposer)
+    {
+        super(decomposer);
+    }
+
+    public String[] invoke(List<String> arguments, int maxZValues, OutputMode outputMode)
+    {
+        throw new IllegalArgumentException("nearest cannot be transformed, use SpaceSuit.prepareNearest");
+    }
+
+    // Returns the predicate for one z-value range. Parameters are bound in this order: zLo, zHi.
+    public String parameterizedPredicate(List<String> arguments)
+    {
+        checkPlanar();
+        checkArguments(arguments);
+        return String.format("(%s between ? and ?)", unquote(arguments.get(Z)));
+    }
+
+    public String xColumn(List<String> arguments)
+    {
+        checkArguments(arguments);
+        return unquote(arguments.get(X));
+    }
+
+    public String yColumn(List<String> arguments)
+    {
+        checkArguments(arguments);
+        return unquote(arguments.get(Y));
+    }
+
+    // Returns the z-value ranges covering the square of the given radius around (px, py), clipped to the space.
+    public ZRanges decompose(double px, double py, double radius, int maxZValues)
+    {
+        return decomposer.decompose(Math.max(xMin, px - radius), Math.min(xMax, px + radius),
+                                    Math.max(yMin, py - radius), Math.min(yMax, py + radius),
+                                    maxZValues);
+    }
+
+    // True if the square of the given radius around (px, py) contains the entire space.
+    public boolean coversSpace(double px, double py, double radius)
+    {
+        return px - radius <= xMin && px + radius >= xMax && py - radius <= yMin && py + radius >= yMax;
+    }
+
+    public void checkPoint(double px, double py)
+    {
+        if (px < xMin || px > xMax || py < yMin || py > yMax) {
+            throw new IllegalArgumentException(String.format("(%s, %s)", px, py));
+        }
+    }
+
+    public double xExtent()
+    {
+        return xMax - xMin;
+    }
+
+    public double yExtent()
+    {
+        return yMax - yMin;
+    }
+
+    private void checkArguments(List<String> arguments)
+    {
+        if (arguments.size() != 6) {
+            throw new IllegalArgumentException(arguments.toString());
+        }
+        for (int a = PX; a <= K; a++) {
+            if (!arguments.get(a).trim().equals("?")) {
+                throw new IllegalArgumentException(String.format("Expected parameter marker: %s",
+                                                                 arguments.get(a)));
+            }
+        }
+    }
+
+    private static final int Z = 0;
+    private static final int X = 1;
+    private static final int Y = 2;
+    private static final int PX = 3;
+    private static final int K = 5;
+}
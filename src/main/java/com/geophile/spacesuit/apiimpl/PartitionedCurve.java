@@ -0,0 +1,89 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.spacesuit.Partitioning;
+
+// Follows another curve, after transforming coordinates by a Partitioning. The transform of each dimension is
+// monotonic, so the transformed box [T(lo), T(hi)] contains the transformed point T(p) of every point p in
+// [lo, hi], and its decomposition covers the keys of all the points in the original box.
+
+public class PartitionedCurve extends Curve
+{
+    @Override
+    public KeyEncoding encoding()
+    {
+        return curve.encoding();
+    }
+
+    @Override
+    public long key(double[] point)
+    {
+        double[] transformed = this.transformed.get();
+        transform(point, transformed);
+        return curve.key(transformed);
+    }
+
+    @Override
+    public void decompose(double[] lo, double[] hi, long[] zs)
+    {
+        double[] transformedLo = new double[dimensions];
+        double[] transformedHi = new double[dimensions];
+        transform(lo, transformedLo);
+        transform(hi, transformedHi);
+        curve.decompose(transformedLo, transformedHi, zs);
+    }
+
+    public PartitionedCurve(Curve curve, Partitioning partitioning)
+    {
+        super(curve.space());
+        this.curve = curve;
+        this.partitioning = partitioning;
+        this.dimensions = space.dimensions();
+    }
+
+    // For use by this package
+
+    @Override
+    protected long[] cells(double[] point)
+    {
+        double[] transformed = new double[dimensions];
+        transform(point, transformed);
+        return curve.cells(transformed);
+    }
+
+    @Override
+    protected int compare(long prefix, int length, long[] cellLo, long[] cellHi)
+    {
+        return curve.compare(prefix, length, cellLo, cellHi);
+    }
+
+    // For use by this class
+
+    private void transform(double[] point, double[] transformed)
+    {
+        for (int d = 0; d < dimensions; d++) {
+            transformed[d] = partitioning.transform(d, point[d]);
+        }
+    }
+
+    // Object state
+
+    private final Curve curve;
+    private final Partitioning partitioning;
+    private final int dimensions;
+    private final ThreadLocal<double[]> transformed =
+        new ThreadLocal<double[]>()
+        {
+            @Override
+            protected double[] initialValue()
+            {
+                return new double[dimensions];
+            }
+        };
+}
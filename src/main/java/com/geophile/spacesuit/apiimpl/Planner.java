@@ -0,0 +1,64 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.ZHistogram;
+
+import java.util.Arrays;
+
+// Chooses the number of z-value ranges for a query. The cost of a set of ranges is modeled as
+// rangeCost * (number of ranges) + (estimated number of rows in the ranges), i.e., rangeCost is the cost
+// of starting an index range scan (including a round trip, for OutputMode.SEPARATE), relative to the
+// cost of retrieving one row. More ranges fit the query more tightly, retrieving fewer rows that
+// are then discarded by the box predicate.
+
+public class Planner
+{
+    public double cost(ZRanges ranges)
+    {
+        double rows = 0;
+        for (int r = 0; r < ranges.count(); r++) {
+            rows += histogram.estimateRows(ranges.lo(r), ranges.hi(r));
+        }
+        return rangeCost * ranges.count() + rows;
+    }
+
+    // Candidate numbers of ranges, in increasing order: 1, 2, 3, 4, 6, 8, 12, 16, ..., up to maxRanges.
+    public int[] candidates()
+    {
+        return candidates;
+    }
+
+    public Planner(ZHistogram histogram, double rangeCost, int maxRanges)
+    {
+        if (rangeCost < 0 || maxRanges < 1) {
+            throw new IllegalArgumentException(String.format("rangeCost: %s, maxRanges: %s",
+                                                             rangeCost, maxRanges));
+        }
+        this.histogram = histogram;
+        this.rangeCost = rangeCost;
+        int n = 0;
+        int[] candidates = new int[64];
+        for (int power = 1; power <= maxRanges; power *= 2) {
+            candidates[n++] = power;
+            int between = power + power / 2;
+            if (between > power && between < 2 * power && between <= maxRanges) {
+                candidates[n++] = between;
+            }
+            if (power > Integer.MAX_VALUE / 2) {
+                break;
+            }
+        }
+        this.candidates = Arrays.copyOf(candidates, n);
+    }
+
+    // Object state
+
+    private final ZHistogram histogram;
+    private final double rangeCost;
+    private final int[] candidates;
+}
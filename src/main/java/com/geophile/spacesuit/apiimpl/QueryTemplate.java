@@ -0,0 +1,173 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import java.util.regex.Pattern;
+
+// Splits a query into the text before the left delimiter, the function invocation between the delimiters,
+// and the text after the right delimiter. If there is an IndexHinter, the index hint is added to the text
+// before the left delimiter.
+
+public class QueryTemplate
+{
+    public String prefix()
+    {
+        return prefix;
+    }
+
+    public String invocation()
+    {
+        return invocation;
+    }
+
+    public String suffix()
+    {
+        return suffix;
+    }
+
+    // Number of parameter markers preceding the invocation
+    public int prefixParameters()
+    {
+        return countParameters(prefix);
+    }
+
+    // Number of parameter markers following the invocation
+    public int suffixParameters()
+    {
+        return countParameters(suffix);
+    }
+
+    public String rewrite(String replacement)
+    {
+        StringBuilder buffer = new StringBuilder(prefix.length() + replacement.length() + suffix.length());
+        buffer.append(prefix);
+        buffer.append(replacement);
+        buffer.append(suffix);
+        return buffer.toString();
+    }
+
+    // Combines the rewrites for each replacement into one query, using union all.
+    public String rewriteUnionAll(String[] replacements)
+    {
+        checkUnionAll();
+        StringBuilder buffer = new StringBuilder();
+        for (int r = 0; r < replacements.length; r++) {
+            if (r > 0) {
+                buffer.append(UNION_ALL);
+            }
+            buffer.append(prefix);
+            buffer.append(replacements[r]);
+            buffer.append(suffix);
+        }
+        return buffer.toString();
+    }
+
+    // The suffix is repeated in each subquery of a union all, so it must not order or limit the rows. That would
+    // apply to each subquery, not to the combined result, (or be invalid).
+    public void checkUnionAll()
+    {
+        if (ORDERED_OR_LIMITED.matcher(suffix).find()) {
+            throw new IllegalArgumentException(
+                String.format("A query combined using union all must not be ordered or limited: %s", suffix));
+        }
+    }
+
+    // Returns the position of the from keyword ending the select list beginning at start.
+    public static int from(String prefix, int start)
+    {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = start; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                if (c == '(') {
+                    depth++;
+                } else if (c == ')') {
+                    depth--;
+                } else if (depth == 0 && word(prefix, i, "from")) {
+                    return i;
+                }
+            }
+        }
+        throw new IllegalArgumentException(String.format("Expected from: %s", prefix));
+    }
+
+    // Returns true if the text contains the keyword at position i.
+    public static boolean word(String text, int i, String keyword)
+    {
+        int end = i + keyword.length();
+        return i >= 0 &&
+               text.regionMatches(true, i, keyword, 0, keyword.length()) &&
+               (i == 0 || !Character.isJavaIdentifierPart(text.charAt(i - 1))) &&
+               (end == text.length() || !Character.isJavaIdentifierPart(text.charAt(end)));
+    }
+
+    public QueryTemplate(String query, String leftDelimiter, String rightDelimiter)
+    {
+        this(query, leftDelimiter, rightDelimiter, null);
+    }
+
+    // indexHinter may be null
+    public QueryTemplate(String query, String leftDelimiter, String rightDelimiter, IndexHinter indexHinter)
+    {
+        int leftDelimiterPosition = query.indexOf(leftDelimiter);
+        int invocationStart = leftDelimiterPosition + leftDelimiter.length();
+        if (leftDelimiterPosition < 0) {
+            throw new IllegalArgumentException(String.format("Missing left delimiter %s", leftDelimiter));
+        }
+        if (query.indexOf(leftDelimiter, invocationStart) >= 0) {
+            throw new IllegalArgumentException(String.format("Multiple occurrences of left delimiter %s",
+                                                             leftDelimiter));
+        }
+        int rightDelimiterPosition = query.indexOf(rightDelimiter);
+        int invocationEnd = rightDelimiterPosition;
+        if (rightDelimiterPosition < 0) {
+            throw new IllegalArgumentException(String.format("Missing right delimiter %s", rightDelimiter));
+        }
+        if (query.indexOf(rightDelimiter, rightDelimiterPosition + rightDelimiter.length()) >= 0) {
+            throw new IllegalArgumentException(String.format("Multiple occurrences of right delimiter %s",
+                                                             rightDelimiter));
+        }
+        String prefix = query.substring(0, leftDelimiterPosition);
+        this.invocation = query.substring(invocationStart, invocationEnd);
+        this.prefix = indexHinter == null ? prefix : indexHinter.hint(prefix, invocation);
+        this.suffix = query.substring(rightDelimiterPosition + rightDelimiter.length());
+    }
+
+    // For use by this class
+
+    // Counts the parameter markers outside of quotes. (A quote within a literal is written as two quotes, which
+    // leave and reenter the literal.)
+    private static int countParameters(String sql)
+    {
+        int count = 0;
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == '?' && !quoted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Class state
+
+    private static final String UNION_ALL = " union all ";
+    private static final Pattern ORDERED_OR_LIMITED =
+        Pattern.compile("\\b(order|limit|fetch|offset)\\b", Pattern.CASE_INSENSITIVE);
+
+    // Object state
+
+    private final String prefix;
+    private final String invocation;
+    private final String suffix;
+}
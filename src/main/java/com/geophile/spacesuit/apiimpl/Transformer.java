@@ -6,29 +6,47 @@
 
 package com.geophile.spacesuit.apiimpl;
 
-import com.geophile.z.Space;
+import com.geophile.spacesuit.OutputMode;
+import com.geophile.spacesuit.SpaceSuitListener;
 
 import java.util.*;
 
 public class Transformer
 {
-    public String[] transform(String invocation, int maxZValues)
+    public String[] transform(String invocation, int maxZValues, OutputMode outputMode)
     {
         parse(invocation);
+        return function().invoke(arguments, maxZValues, outputMode);
+    }
+
+    public Function function()
+    {
         Function function = functions.get(functionName);
         if (function == null) {
             throw new IllegalArgumentException(functionName);
         }
-        return function.invoke(arguments, maxZValues);
+        return function;
     }
 
-    public Transformer(Space space)
+    public List<String> arguments()
     {
-        register("inbox", new InBox(space));
+        return arguments;
     }
 
-    private void parse(String invocation)
+    public Transformer(Decomposer decomposer)
     {
+        this.listener = decomposer.listener();
+        register("inbox", new InBox(decomposer));
+        register("nearest", new Nearest(decomposer));
+        register("indisk", new InDisk(decomposer, false));
+        register("indisk_haversine", new InDisk(decomposer, true));
+        register("inpolygon", new InPolygon(decomposer));
+    }
+
+    public void parse(String invocation)
+    {
+        long start = listener == null ? 0 : System.nanoTime();
+        arguments.clear();
         invocation = invocation.trim();
         int openParen = invocation.indexOf('(');
         if (openParen == -1) {
@@ -44,6 +62,9 @@ public class Transformer
         while (tokenizer.hasMoreTokens()) {
             arguments.add(tokenizer.nextToken());
         }
+        if (listener != null) {
+            listener.parsed(System.nanoTime() - start);
+        }
     }
 
     private void register(String functionName, Function function)
@@ -54,4 +75,5 @@ public class Transformer
     protected String functionName;
     protected List<String> arguments = new ArrayList<>();
     private Map<String, Function> functions = new HashMap<>();
+    private final SpaceSuitListener listener;
 }
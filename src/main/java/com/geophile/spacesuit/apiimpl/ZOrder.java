@@ -0,0 +1,158 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.spacesuit.KeyEncoding;
+import com.geophile.z.Space;
+import com.geophile.z.spatialobject.d2.Box;
+
+import java.util.Arrays;
+
+// Z-order, the curve of geophile's Space.spatialIndexKey. Boxes in 2-dimensional spaces are decomposed by
+// Space.decompose. Geophile only provides 2-dimensional boxes, so boxes in other spaces are decomposed here,
+// into z-values in the same format. The interleaving of dimensions is discovered by probing
+// Space.spatialIndexKey, as in ZRanges.keysPerCell: setting all the bits of one dimension's grid coordinate
+// reveals which z-value bits belong to that dimension. Corners of the box are also located through
+// Space.spatialIndexKey, so the cells of a decomposition agree exactly with the keys of the points inside
+// the box.
+
+public class ZOrder extends Curve
+{
+    @Override
+    public KeyEncoding encoding()
+    {
+        return KeyEncoding.Z_ORDER;
+    }
+
+    @Override
+    public long key(double[] point)
+    {
+        return space.spatialIndexKey(point);
+    }
+
+    @Override
+    public void decompose(double[] lo, double[] hi, long[] zs)
+    {
+        if (bits.length == 2) {
+            space.decompose(new Box(lo[0], hi[0], lo[1], hi[1]), zs);
+        } else {
+            refine(cells(lo), cells(hi), totalBits, zs);
+        }
+    }
+
+    public int totalBits()
+    {
+        return totalBits;
+    }
+
+    public int bits(int d)
+    {
+        return bits[d];
+    }
+
+    // Returns the grid coordinates of the cell containing the point, in each dimension. Points on the high
+    // bound of a dimension are placed in its highest cell.
+    @Override
+    public long[] cells(double[] point)
+    {
+        int dimensions = bits.length;
+        double[] inside = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            inside[d] = point[d] >= space.hi(d) ? nearHi(d) : point[d];
+        }
+        long[] cells = new long[dimensions];
+        cells(space.spatialIndexKey(inside), cells);
+        return cells;
+    }
+
+    // Sets cells to the grid coordinates of the cell with the given z-value key.
+    public void cells(long key, long[] cells)
+    {
+        Arrays.fill(cells, 0);
+        for (int b = 0; b < totalBits; b++) {
+            int d = dimensionOfBit[b];
+            cells[d] = (cells[d] << 1) | ((key & keyBit(b)) == 0 ? 0 : 1);
+        }
+    }
+
+    public ZOrder(Space space)
+    {
+        super(space);
+        int dimensions = space.dimensions();
+        double[] point = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            point[d] = space.lo(d);
+        }
+        long origin = space.spatialIndexKey(point);
+        this.totalBits = (int) (origin & LENGTH_MASK);
+        this.dimensionOfBit = new int[totalBits];
+        this.bits = new int[dimensions];
+        Arrays.fill(dimensionOfBit, -1);
+        for (int d = 0; d < dimensions; d++) {
+            point[d] = nearHi(d);
+            long dimensionBits = (space.spatialIndexKey(point) ^ origin) & ~LENGTH_MASK;
+            point[d] = space.lo(d);
+            for (int b = 0; b < totalBits; b++) {
+                if ((dimensionBits & keyBit(b)) != 0) {
+                    if (dimensionOfBit[b] != -1) {
+                        throw new IllegalArgumentException(String.format("Unable to determine interleaving: %s",
+                                                                         space));
+                    }
+                    dimensionOfBit[b] = d;
+                    bits[d]++;
+                }
+            }
+        }
+        for (int b = 0; b < totalBits; b++) {
+            if (dimensionOfBit[b] == -1) {
+                throw new IllegalArgumentException(String.format("Unable to determine interleaving: %s", space));
+            }
+        }
+    }
+
+    // For use by this package
+
+    @Override
+    protected int compare(long prefix, int length, long[] cellLo, long[] cellHi)
+    {
+        int dimensions = bits.length;
+        long[] regionPrefix = new long[dimensions];
+        int[] used = new int[dimensions];
+        for (int b = 0; b < length; b++) {
+            int d = dimensionOfBit[b];
+            regionPrefix[d] = (regionPrefix[d] << 1) | ((prefix >>> (length - 1 - b)) & 1);
+            used[d]++;
+        }
+        int comparison = CONTAINED;
+        for (int d = 0; d < dimensions; d++) {
+            int shift = bits[d] - used[d];
+            long regionLo = regionPrefix[d] << shift;
+            long regionHi = regionLo + (1L << shift) - 1;
+            if (regionHi < cellLo[d] || regionLo > cellHi[d]) {
+                return DISJOINT;
+            }
+            if (regionLo < cellLo[d] || regionHi > cellHi[d]) {
+                comparison = OVERLAPPING;
+            }
+        }
+        return comparison;
+    }
+
+    // For use by this class
+
+    // A coordinate in the highest cell of dimension d, assuming that no dimension has more than 40 bits.
+    private double nearHi(int d)
+    {
+        return space.hi(d) - (space.hi(d) - space.lo(d)) / (1L << 40);
+    }
+
+    // Object state
+
+    private final int totalBits;
+    private final int[] dimensionOfBit; // dimensionOfBit[b]: Dimension to which bit b of a z-value belongs
+    private final int[] bits; // bits[d]: Number of bits in the grid coordinates of dimension d
+}
@@ -0,0 +1,248 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit.apiimpl;
+
+import com.geophile.z.Space;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Sorted, non-overlapping ranges of spatial index keys. A range is initially the set of keys with a given
+// z-value as prefix, [Space.zLo(z), Space.zHi(z)], but coalescing can produce ranges that do not correspond
+// to a single z-value.
+//
+// A z-value's length is stored in its low LENGTH_BITS bits, which are not cleared by Space.zLo or set by
+// Space.zHi. So if z2 is the z-value following z1 in z-order, Space.zLo(z2) - Space.zHi(z1) is not 1, but
+// (1 << LENGTH_BITS) plus the difference in lengths. Ranges separated by less than CONTIGUOUS_GAP are
+// therefore treated as contiguous.
+
+public class ZRanges
+{
+    public int count()
+    {
+        return lo.length;
+    }
+
+    public long lo(int r)
+    {
+        return lo[r];
+    }
+
+    public long hi(int r)
+    {
+        return hi[r];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder buffer = new StringBuilder();
+        buffer.append('[');
+        for (int r = 0; r < lo.length; r++) {
+            if (r > 0) {
+                buffer.append(", ");
+            }
+            buffer.append(String.format("0x%x:0x%x", lo[r], hi[r]));
+        }
+        buffer.append(']');
+        return buffer.toString();
+    }
+
+    // Returns the parts of these ranges not contained in the given ranges.
+    public ZRanges minus(ZRanges that)
+    {
+        long[] los = new long[count() + that.count()];
+        long[] his = new long[count() + that.count()];
+        int n = 0;
+        int t = 0;
+        for (int r = 0; r < count(); r++) {
+            long lo = this.lo[r];
+            long hi = this.hi[r];
+            while (t < that.count() && that.hi[t] < lo) {
+                t++;
+            }
+            int u = t;
+            while (lo <= hi && u < that.count() && that.lo[u] <= hi) {
+                if (that.lo[u] > lo) {
+                    los[n] = lo;
+                    his[n] = that.lo[u] - 1;
+                    n++;
+                }
+                lo = that.hi[u] == Long.MAX_VALUE ? hi + 1 : Math.max(lo, that.hi[u] + 1);
+                u++;
+            }
+            if (lo <= hi) {
+                los[n] = lo;
+                his[n] = hi;
+                n++;
+            }
+        }
+        return new ZRanges(Arrays.copyOf(los, n), Arrays.copyOf(his, n));
+    }
+
+    // Returns the ranges containing the keys of both these ranges and the given ranges.
+    public ZRanges union(ZRanges that)
+    {
+        long[] los = new long[count() + that.count()];
+        long[] his = new long[count() + that.count()];
+        int n = 0;
+        int r = 0;
+        int t = 0;
+        while (r < count() || t < that.count()) {
+            long lo;
+            long hi;
+            if (t == that.count() || r < count() && this.lo[r] <= that.lo[t]) {
+                lo = this.lo[r];
+                hi = this.hi[r];
+                r++;
+            } else {
+                lo = that.lo[t];
+                hi = that.hi[t];
+                t++;
+            }
+            if (n > 0 && lo <= his[n - 1]) {
+                his[n - 1] = Math.max(his[n - 1], hi);
+            } else {
+                los[n] = lo;
+                his[n] = hi;
+                n++;
+            }
+        }
+        return new ZRanges(Arrays.copyOf(los, n), Arrays.copyOf(his, n));
+    }
+
+    // Returns the n widest of these ranges, in order.
+    public ZRanges widest(int n)
+    {
+        if (count() <= n) {
+            return this;
+        }
+        Integer[] order = new Integer[count()];
+        for (int r = 0; r < order.length; r++) {
+            order[r] = r;
+        }
+        Arrays.sort(order,
+                    new Comparator<Integer>()
+                    {
+                        @Override
+                        public int compare(Integer x, Integer y)
+                        {
+                            return Long.compare(hi[y] - lo[y], hi[x] - lo[x]);
+                        }
+                    });
+        boolean[] keep = new boolean[count()];
+        for (int r = 0; r < n; r++) {
+            keep[order[r]] = true;
+        }
+        long[] los = new long[n];
+        long[] his = new long[n];
+        int k = 0;
+        for (int r = 0; r < count(); r++) {
+            if (keep[r]) {
+                los[k] = lo[r];
+                his[k] = hi[r];
+                k++;
+            }
+        }
+        return new ZRanges(los, his);
+    }
+
+    public static ZRanges empty()
+    {
+        return EMPTY;
+    }
+
+    // Creates ranges from the z-values zs[0 .. n-1]. Ranges that overlap, are contiguous, or are separated
+    // by at most maxGap keys are merged. Then, if there are more than maxRanges ranges, the ranges separated
+    // by the smallest gaps are merged, until maxRanges remain.
+    public static ZRanges coalesce(long[] zs, int n, int maxRanges, long maxGap)
+    {
+        long[] los = new long[n];
+        long[] his = new long[n];
+        long[] sorted = Arrays.copyOf(zs, n);
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            long zLo = Space.zLo(sorted[i]);
+            long zHi = Space.zHi(sorted[i]);
+            if (count > 0 && zLo - his[count - 1] - CONTIGUOUS_GAP < maxGap) {
+                his[count - 1] = Math.max(his[count - 1], zHi);
+            } else {
+                los[count] = zLo;
+                his[count] = zHi;
+                count++;
+            }
+        }
+        if (count > maxRanges) {
+            // Merging across one gap does not change any other gap, so closing the smallest
+            // count - maxRanges gaps yields maxRanges ranges with the least added coverage.
+            Integer[] gaps = new Integer[count - 1];
+            for (int g = 0; g < gaps.length; g++) {
+                gaps[g] = g;
+            }
+            final long[] gapLos = his;
+            final long[] gapHis = los;
+            Arrays.sort(gaps,
+                        new Comparator<Integer>()
+                        {
+                            @Override
+                            public int compare(Integer x, Integer y)
+                            {
+                                return Long.compare(gapHis[x + 1] - gapLos[x], gapHis[y + 1] - gapLos[y]);
+                            }
+                        });
+            boolean[] close = new boolean[count - 1];
+            for (int g = 0; g < count - maxRanges; g++) {
+                close[gaps[g]] = true;
+            }
+            int merged = 0;
+            for (int r = 0; r < count; r++) {
+                if (r > 0 && close[r - 1]) {
+                    his[merged - 1] = his[r];
+                } else {
+                    los[merged] = los[r];
+                    his[merged] = his[r];
+                    merged++;
+                }
+            }
+            count = merged;
+        }
+        return new ZRanges(Arrays.copyOf(los, count), Arrays.copyOf(his, count));
+    }
+
+    // Returns the difference between the keys of adjacent grid cells of the space.
+    public static long keysPerCell(Space space)
+    {
+        int dimensions = space.dimensions();
+        double[] point = new double[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            point[d] = space.lo(d);
+        }
+        int maxLength = (int) (space.spatialIndexKey(point) & LENGTH_MASK);
+        return 1L << (63 - maxLength);
+    }
+
+    // For use by this class
+
+    private ZRanges(long[] lo, long[] hi)
+    {
+        this.lo = lo;
+        this.hi = hi;
+    }
+
+    // Class state
+
+    private static final int LENGTH_BITS = 6;
+    private static final long LENGTH_MASK = (1L << LENGTH_BITS) - 1;
+    private static final long CONTIGUOUS_GAP = 2L << LENGTH_BITS;
+    private static final ZRanges EMPTY = new ZRanges(new long[0], new long[0]);
+
+    // Object state
+
+    private final long[] lo;
+    private final long[] hi;
+}
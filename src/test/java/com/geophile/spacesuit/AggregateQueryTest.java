@@ -0,0 +1,203 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AggregateQueryTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        Random random = new Random(661);
+        double[] sampleXs = new double[1000];
+        double[] sampleYs = new double[1000];
+        for (int i = 0; i < sampleXs.length; i++) {
+            double x = random.nextInt(1000);
+            sampleXs[i] = x * x / 1000;
+            sampleYs[i] = random.nextInt(1000);
+        }
+        SpaceSuit[] spaceSuits = {
+            SpaceSuit.create(SPACE, "<<", ">>"),
+            SpaceSuit.create(SPACE, KeyEncoding.HILBERT, "<<", ">>"),
+            SpaceSuit.create(SPACE, KeyEncoding.Z_ORDER, Partitioning.create(SPACE, 16, sampleXs, sampleYs),
+                             "<<", ">>")
+        };
+        for (int s = 0; s < SPACE_SUITS; s++) {
+            spaceSuit[s] = spaceSuits[s];
+            database[s] = new TestDatabase("aggregatequerytest" + s, spaceSuits[s], 5000, 419 + s);
+            connection[s] = database[s].dataSource().getConnection();
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        for (Connection c : connection) {
+            c.close();
+        }
+    }
+
+    @Test
+    public void aggregates() throws SQLException
+    {
+        Random random = new Random(809);
+        for (int s = 0; s < SPACE_SUITS; s++) {
+            AggregateQuery query =
+                spaceSuit[s].prepareAggregate("select count(*), sum(id), avg(x), min(id), max(y) as top " +
+                                              "from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+            for (int b = 0; b < 50; b++) {
+                double xLo = random.nextInt(1000);
+                double xHi = xLo + random.nextInt(1000 - (int) xLo);
+                double yLo = random.nextInt(1000);
+                double yHi = yLo + random.nextInt(1000 - (int) yLo);
+                for (int maxZValues : new int[]{1, 4, 16, 64}) {
+                    Object[] actual = query.execute(connection[s], xLo, xHi, yLo, yHi, maxZValues);
+                    Object[] expected = expected(database[s], xLo, xHi, yLo, yHi);
+                    assertEquals(expected[0], actual[0]);
+                    assertEquals(expected[1], actual[1]);
+                    if (expected[2] == null) {
+                        assertNull(actual[2]);
+                    } else {
+                        assertEquals((Double) expected[2], (Double) actual[2], 1e-9);
+                    }
+                    assertEquals(expected[3], actual[3]);
+                    assertEquals(expected[4], actual[4]);
+                    long approximate = query.approximateCount(connection[s], xLo, xHi, yLo, yHi, maxZValues);
+                    assertTrue(approximate >= (Long) expected[0]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void wholeSpace() throws SQLException
+    {
+        for (int s = 0; s < SPACE_SUITS; s++) {
+            AggregateQuery query =
+                spaceSuit[s].prepareAggregate("select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+            assertEquals(5000L, query.execute(connection[s], 0, 1000, 0, 1000, 8)[0]);
+            assertEquals(5000L, query.approximateCount(connection[s], 0, 1000, 0, 1000, 8));
+        }
+    }
+
+    @Test
+    public void parameters() throws SQLException
+    {
+        AggregateQuery query =
+            spaceSuit[0].prepareAggregate("select count(*), sum(x) from t where id < ? and " +
+                                          "<<inbox(z, x, ?, ?, y, ?, ?)>>");
+        assertTrue(query.sql().startsWith("select count(*), sum(x) from t where id < ? and (z between ? and ?"));
+        assertFalse(query.insideSQL().contains("x between"));
+        assertTrue(query.countSQL().startsWith("select count(*) from t where id < ? and (z between ? and ?)"));
+        long count = 0;
+        long sum = 0;
+        for (int id = 0; id < 1000; id++) {
+            double x = database[0].x(id);
+            double y = database[0].y(id);
+            if (x >= 100 && x <= 800 && y >= 200 && y <= 900) {
+                count++;
+                sum += (long) x;
+            }
+        }
+        Object[] result = query.execute(connection[0], 100, 800, 200, 900, 16, 1000);
+        assertEquals(count, result[0]);
+        assertEquals(sum, ((Number) result[1]).longValue());
+        Object[] empty = query.execute(connection[0], 100, 800, 200, 900, 16, 0);
+        assertEquals(0L, empty[0]);
+        assertNull(empty[1]);
+    }
+
+    @Test
+    public void errors() throws SQLException
+    {
+        for (String template : new String[]{
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select count(distinct id) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select sum(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select sum(x * ?) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>> group by id",
+            "select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>> and id < ?",
+            "select count(*) from t where <<nearest(z, x, y, ?, ?, ?)>>",
+            "select max(y) - min(y) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select avg(x) + avg(y) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select count() from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select count(*) from t where id = 1 or <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select count(*) from t where id = 1 or (id > 3 and <<inbox(z, x, ?, ?, y, ?, ?)>>)",
+            "select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>> or id = 1",
+            "select count(*) from t where not (<<inbox(z, x, ?, ?, y, ?, ?)>>)"}) {
+            try {
+                spaceSuit[0].prepareAggregate(template);
+                fail(template);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        // or and parentheses not containing the invocation are permitted.
+        AggregateQuery conjunct =
+            spaceSuit[0].prepareAggregate("select count(*) from t where (id = 1 or id > 3) and " +
+                                          "(<<inbox(z, x, ?, ?, y, ?, ?)>>) and (id < 10 or 'or' = 'or')");
+        assertEquals(4997L, conjunct.execute(connection[0], 0, 1000, 0, 1000, 8)[0]);
+        AggregateQuery query =
+            spaceSuit[0].prepareAggregate("select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        try {
+            query.execute(connection[0], 0, 100, 0, 100, 8, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            query.execute(connection[0], 100, 0, 0, 100, 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Returns count(*), sum(id), avg(x), min(id), max(y) of the rows inside the box.
+    private static Object[] expected(TestDatabase database, double xLo, double xHi, double yLo, double yHi)
+    {
+        long count = 0;
+        long sumId = 0;
+        double sumX = 0;
+        Integer minId = null;
+        Double maxY = null;
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                count++;
+                sumId += id;
+                sumX += x;
+                minId = minId == null ? id : Math.min(minId, id);
+                maxY = maxY == null ? y : Math.max(maxY, y);
+            }
+        }
+        return new Object[]{count, count == 0 ? null : sumId, count == 0 ? null : sumX / count, minId, maxY};
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final int SPACE_SUITS = 3;
+    private static final SpaceSuit[] spaceSuit = new SpaceSuit[SPACE_SUITS];
+    private static final TestDatabase[] database = new TestDatabase[SPACE_SUITS];
+    private static final Connection[] connection = new Connection[SPACE_SUITS];
+}
@@ -0,0 +1,302 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BackfillTest
+{
+    @Before
+    public void before() throws SQLException
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:backfilltest;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists t");
+                statement.execute("drop table if exists spacesuit_backfill");
+                statement.execute("create table t(id int not null, x double not null, y double not null, " +
+                                  "z bigint, primary key(id))");
+            }
+            Random random = new Random(463);
+            try (PreparedStatement insert = connection.prepareStatement("insert into t(id, x, y) values(?, ?, ?)")) {
+                for (int id = 0; id < ROWS; id++) {
+                    insert.setInt(1, id);
+                    insert.setDouble(2, random.nextInt(1000));
+                    insert.setDouble(3, random.nextInt(1000));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    @Test
+    public void backfill() throws SQLException
+    {
+        Backfill backfill = Backfill.create(SPACE_SUIT, "t", "id", "x", "y", "z");
+        backfill.configure(300);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            backfill.computeKeysIn(pool);
+            try (Connection connection = dataSource.getConnection()) {
+                LoadStatistics statistics = backfill.run(connection);
+                assertEquals(ROWS, statistics.rows());
+                assertEquals((ROWS + 299) / 300, statistics.commits());
+                assertTrue(connection.getAutoCommit());
+                // Nothing left to do
+                assertEquals(0, backfill.run(connection).rows());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        check();
+    }
+
+    @Test
+    public void resume() throws SQLException
+    {
+        Backfill backfill = Backfill.create(SPACE_SUIT, "t", "id", "x", "y", "z");
+        backfill.configure(500);
+        // Fail before the fourth chunk
+        backfill.throttle(new Backfill.LagMonitor()
+                          {
+                              @Override
+                              public long lagMillis() throws SQLException
+                              {
+                                  if (++calls == 4) {
+                                      throw new SQLException("replica unreachable");
+                                  }
+                                  return 0;
+                              }
+
+                              private int calls = 0;
+                          },
+                          1000);
+        try (Connection connection = dataSource.getConnection()) {
+            try {
+                backfill.run(connection);
+                fail();
+            } catch (SQLException e) {
+                // expected
+            }
+            assertEquals(1500, filled());
+            backfill.throttle(null, 0);
+            assertEquals(ROWS - 1500, backfill.run(connection).rows());
+            backfill.reset(connection);
+            assertEquals(ROWS, backfill.run(connection).rows());
+        }
+        check();
+    }
+
+    @Test
+    public void lag() throws SQLException
+    {
+        Backfill backfill = Backfill.create(SPACE_SUIT, "t", "id", "x", "y", "z");
+        backfill.configure(1000);
+        final long[] lags = {5000, 5000, 0};
+        backfill.throttle(new Backfill.LagMonitor()
+                          {
+                              @Override
+                              public long lagMillis()
+                              {
+                                  return calls < lags.length ? lags[calls++] : 0;
+                              }
+
+                              private int calls = 0;
+                          },
+                          1000);
+        TestClock clock = new TestClock();
+        backfill.clock(clock);
+        try (Connection connection = dataSource.getConnection()) {
+            backfill.run(connection);
+        }
+        // Two waits for the replicas before the first chunk, and no throttling.
+        assertEquals(2, clock.sleeps);
+        assertEquals(2000, clock.slept);
+        check();
+    }
+
+    @Test
+    public void rateLimit() throws SQLException
+    {
+        Backfill backfill = Backfill.create(SPACE_SUIT, "t", "id", "x", "y", "z");
+        backfill.configure(500);
+        backfill.throttle(10_000);
+        TestClock clock = new TestClock();
+        backfill.clock(clock);
+        try (Connection connection = dataSource.getConnection()) {
+            LoadStatistics statistics = backfill.run(connection);
+            // Time passes only while sleeping, so the backfill sleeps after each chunk, for the chunk's share of
+            // the time allowed.
+            assertEquals(ROWS / 500, clock.sleeps);
+            assertEquals(ROWS * 1000 / 10_000, clock.slept);
+            assertEquals(ROWS * 1000 / 10_000, statistics.milliseconds());
+        }
+        check();
+    }
+
+    @Test
+    public void checkpointPerColumn() throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists u");
+                statement.execute("create table u(id int not null, x double not null, y double not null, " +
+                                  "z bigint, z2 bigint, primary key(id))");
+                statement.execute("insert into u(id, x, y) select id, x, y from t");
+            }
+            Backfill backfill = Backfill.create(SPACE_SUIT, "u", "id", "x", "y", "z");
+            assertEquals(ROWS, backfill.run(connection).rows());
+            // A backfill of another column does not resume from the first one's checkpoint.
+            Backfill other = Backfill.create(SPACE_SUIT, "u", "id", "x", "y", "z2");
+            assertEquals(ROWS, other.run(connection).rows());
+            assertEquals(0, backfill.run(connection).rows());
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select count(*) from u where z2 = z")) {
+                resultSet.next();
+                assertEquals(ROWS, resultSet.getLong(1));
+            }
+        }
+    }
+
+    @Test
+    public void realCoordinates() throws SQLException
+    {
+        // Coordinates of type real are not changed by conversion to double, but the conditional update must
+        // still match them.
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists r");
+                statement.execute("create table r(id int not null, x real not null, y real not null, " +
+                                  "z bigint, primary key(id))");
+            }
+            Random random = new Random(464);
+            try (PreparedStatement insert = connection.prepareStatement("insert into r(id, x, y) values(?, ?, ?)")) {
+                for (int id = 0; id < 1000; id++) {
+                    insert.setInt(1, id);
+                    insert.setFloat(2, random.nextInt(10_000) / 10.1f);
+                    insert.setFloat(3, random.nextInt(10_000) / 10.1f);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            Backfill backfill = Backfill.create(SPACE_SUIT, "r", "id", "x", "y", "z");
+            assertEquals(1000, backfill.run(connection).rows());
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select x, y, z from r")) {
+                while (resultSet.next()) {
+                    assertEquals(SPACE_SUIT.spatialIndexKey(resultSet.getDouble(1), resultSet.getDouble(2)),
+                                 resultSet.getLong(3));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nullCoordinates() throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists n");
+                statement.execute("create table n(id int not null, x double, y double, z bigint, primary key(id))");
+                // Rows 2 through 5, (including all of the second and third chunks), have a NULL coordinate.
+                statement.execute("insert into n(id, x, y) values" +
+                                  "(0, 1, 1), (1, 2, 2), (2, null, 3), (3, 4, null), " +
+                                  "(4, null, null), (5, 6, null), (6, 7, 7), (7, 8, 8)");
+            }
+            Backfill backfill = Backfill.create(SPACE_SUIT, "n", "id", "x", "y", "z");
+            backfill.configure(2);
+            LoadStatistics statistics = backfill.run(connection);
+            assertEquals(4, statistics.rows());
+            assertEquals(4, statistics.commits());
+            assertEquals(0, backfill.run(connection).rows());
+            try (Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("select x, y, z from n")) {
+                while (resultSet.next()) {
+                    double x = resultSet.getDouble(1);
+                    boolean nullX = resultSet.wasNull();
+                    double y = resultSet.getDouble(2);
+                    boolean nullY = resultSet.wasNull();
+                    long z = resultSet.getLong(3);
+                    if (nullX || nullY) {
+                        assertTrue(resultSet.wasNull());
+                    } else {
+                        assertEquals(SPACE_SUIT.spatialIndexKey(x, y), z);
+                    }
+                }
+            }
+        }
+    }
+
+    private void check() throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select x, y, z from t")) {
+            int rows = 0;
+            while (resultSet.next()) {
+                assertEquals(SPACE_SUIT.spatialIndexKey(resultSet.getDouble(1), resultSet.getDouble(2)),
+                             resultSet.getLong(3));
+                rows++;
+            }
+            assertEquals(ROWS, rows);
+        }
+    }
+
+    private long filled() throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select count(*) from t where z is not null")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    // Time passes only while sleeping.
+    private static class TestClock implements Backfill.Clock
+    {
+        @Override
+        public long millis()
+        {
+            return slept;
+        }
+
+        @Override
+        public void sleep(long msec)
+        {
+            sleeps++;
+            slept += msec;
+        }
+
+        int sleeps;
+        long slept;
+    }
+
+    private static final int ROWS = 5000;
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private JdbcDataSource dataSource;
+}
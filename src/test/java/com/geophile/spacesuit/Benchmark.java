@@ -10,13 +10,35 @@ import com.geophile.z.Space;
 import com.geophile.z.spatialobject.d2.Box;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.Math.sqrt;
 
+// Usage: Benchmark URL USER PASSWORD ACTION ROWS QUERIES DISTRIBUTION THREADS
+// - URL: JDBC URL, e.g. jdbc:mysql://localhost/spacesuit or jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1
+// - ACTION: load, query, or all (load followed by query, required for an in-memory database)
+// - ROWS: number of rows loaded
+// - QUERIES: number of queries run for each strategy
+// - DISTRIBUTION: uniform, clustered or skewed. Query boxes are centered on points drawn from the same
+//   distribution as the data.
+// - THREADS: number of concurrent clients
+//
+// The table has two key columns: z, computed by the BulkLoader using z-order, and h, computed afterward by a
+// Backfill using the Hilbert curve. The "z covering" strategy uses an index on (z, x, y), forced by an index
+// hint.
+
 public class Benchmark
 {
-    public static void main(String[] args) throws SQLException
+    public static void main(String[] args) throws Exception
     {
         new Benchmark(args).run();
     }
@@ -24,99 +46,232 @@ public class Benchmark
     private Benchmark(String[] args)
     {
         int a = 0;
-        database = args[a++];
+        url = args[a++];
         user = args[a++];
         password = args[a++];
         action = args[a++];
+        rows = Integer.parseInt(args[a++]);
         count = Integer.parseInt(args[a++]);
+        distribution = Distribution.valueOf(args[a++].toUpperCase());
+        threads = Integer.parseInt(args[a++]);
         queries = new Box[count];
     }
 
-    private void run() throws SQLException
+    private void run() throws Exception
     {
+        connection = DriverManager.getConnection(url, user, password);
+        mysql = connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql");
+        coveringTransformer = SpaceSuit.create(SPACE, "<<", ">>");
+        coveringTransformer.enableIndexHint(dialect(), IndexHint.FORCE, COVERING_INDEX.name());
         if (action.equals("load")) {
             load();
         } else if (action.equals("query")) {
             query();
+        } else if (action.equals("all")) {
+            load();
+            query();
         } else {
             throw new IllegalArgumentException(action);
         }
+        connection.close();
     }
 
     private void load() throws SQLException
     {
-        connect();
+        connection.setAutoCommit(false);
         runDDL();
         populate();
+        connection.commit();
+        connection.setAutoCommit(true);
+        Backfill backfill = Backfill.create(HILBERT_TRANSFORMER, "t", "id", "x", "y", "h");
+        backfill.reset(connection);
+        System.out.println(backfill.run(connection));
     }
 
-    private void query() throws SQLException
+    private void query() throws Exception
     {
-        connect();
         generateQueries();
-        int rows = runQueries("no index", false);
+        System.out.println(String.format("%s rows, %s distribution, %s queries, %s threads",
+                                         tableRows, distribution.name().toLowerCase(), count, threads));
+        System.out.println(String.format("%-16s %10s %10s %10s %10s %8s %12s",
+                                         "strategy", "p50 msec", "p95 msec", "p99 msec", "queries/s",
+                                         "ranges", "overfetch"));
+        int rows = runQueries("no index", Strategy.NO_INDEX, null);
         addIndex("x");
-        int xRows = runQueries("x", false);
+        int xRows = runQueries("x", Strategy.X, null);
         addIndex("y");
-        int xyRows = runQueries("xy", false);
+        int xyRows = runQueries("xy", Strategy.XY, null);
         dropIndex("x");
         dropIndex("y");
         addIndex("z");
-        int zRows = runQueries("z", true);
+        int zRows = runQueries("z", Strategy.Z, OutputMode.SEPARATE);
+        int zUnionAllRows = runQueries("z union all", Strategy.Z, OutputMode.UNION_ALL);
+        int zDisjunctionRows = runQueries("z disjunction", Strategy.Z, OutputMode.DISJUNCTION);
         dropIndex("z");
-        if (rows != xRows || rows != xyRows || rows != zRows) {
-            throw new AssertionError(String.format("rows: %s, xRows: %s, xyRows: %s, zRows: %s",
-                                                   rows, xRows, xyRows, zRows));
+        addCoveringIndex();
+        int zCoveringRows = runQueries("z covering", Strategy.Z_COVERING, OutputMode.SEPARATE);
+        dropIndexNamed(COVERING_INDEX.name());
+        addIndex("h");
+        int hRows = runQueries("hilbert", Strategy.HILBERT, OutputMode.SEPARATE);
+        dropIndex("h");
+        if (rows != xRows || rows != xyRows || rows != zRows || rows != zUnionAllRows || rows != zDisjunctionRows ||
+            rows != zCoveringRows || rows != hRows) {
+            throw new AssertionError(String.format("rows: %s, xRows: %s, xyRows: %s, zRows: %s, " +
+                                                   "zUnionAllRows: %s, zDisjunctionRows: %s, zCoveringRows: %s, " +
+                                                   "hRows: %s",
+                                                   rows, xRows, xyRows, zRows, zUnionAllRows, zDisjunctionRows,
+                                                   zCoveringRows, hRows));
         }
     }
 
-    private void connect() throws SQLException
-    {
-        String url = String.format("jdbc:mysql://localhost/%s?user=%s&password=%s", database, user, password);
-        connection = DriverManager.getConnection(url);
-        connection.setAutoCommit(false);
-    }
-
     private void generateQueries() throws SQLException
     {
         // Find number of rows
-        int rows;
         try (Statement statement = connection.createStatement()) {
             ResultSet resultSet = statement.executeQuery(COUNT);
             resultSet.next();
-            rows = resultSet.getInt(1);
+            tableRows = resultSet.getInt(1);
             resultSet.close();
         }
-        // Size query so that the result size should be EXPECTED_ROWS. Query size is qx * qy.
-        // (qx * qy) / (NX * NY) = EXPECTED_ROWS / rows. Assume everything is square (NX = NY, qx = qy)
+        // Size query so that the result size would be EXPECTED_ROWS for uniformly distributed points.
+        // Query size is qx * qy. (qx * qy) / (NX * NY) = EXPECTED_ROWS / rows. Assume everything is square
+        // (NX = NY, qx = qy)
         assert NX == NY;
-        int qx = (int) sqrt(((double) NX * NY * EXPECTED_ROWS / rows));
+        int qx = (int) sqrt(((double) NX * NY * EXPECTED_ROWS / tableRows));
         int qy = qx;
+        double[] center = new double[2];
         for (int i = 0; i < count; i++) {
-            int xLo = random.nextInt(NX - qx);
-            int xHi = xLo + qx;
-            int yLo = random.nextInt(NY - qy);
-            int yHi = yLo + qy;
-            queries[i] = new Box(xLo, xHi, yLo, yHi);
+            distribution.point(random, center);
+            double xLo = Math.max(0, Math.min(NX - qx, center[0] - qx / 2));
+            double yLo = Math.max(0, Math.min(NY - qy, center[1] - qy / 2));
+            queries[i] = new Box(xLo, xLo + qx, yLo, yLo + qy);
         }
     }
 
-    private int runQueries(String label, boolean zQuery) throws SQLException
+    // zOutputMode is null for queries that don't use the z index. Queries are divided among the client
+    // threads, each with its own connection. Returns the total number of rows found.
+    private int runQueries(String label, final Strategy strategy, final OutputMode zOutputMode) throws Exception
     {
-        int rowsFound = 0;
+        final long[] latencies = new long[count];
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> clients = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                clients.add(executor.submit(
+                    new Callable<Integer>()
+                    {
+                        @Override
+                        public Integer call() throws SQLException
+                        {
+                            int rowsFound = 0;
+                            try (Connection connection = DriverManager.getConnection(url, user, password);
+                                 Statement statement = connection.createStatement()) {
+                                for (int i = thread; i < count; i += threads) {
+                                    long queryStart = System.nanoTime();
+                                    rowsFound +=
+                                        zOutputMode == null
+                                        ? runPlainQuery(statement, queries[i])
+                                        : runZQuery(statement, queries[i], strategy, zOutputMode);
+                                    latencies[i] = System.nanoTime() - queryStart;
+                                }
+                            }
+                            return rowsFound;
+                        }
+                    }));
+            }
+            int rowsFound = 0;
+            for (Future<Integer> client : clients) {
+                rowsFound += client.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-16s %10.3f %10.3f %10.3f %10.1f %8s %12.1f",
+                                             label,
+                                             percentile(latencies, 50),
+                                             percentile(latencies, 95),
+                                             percentile(latencies, 99),
+                                             count / seconds,
+                                             zOutputMode == null ? "-" : String.format("%.1f", ranges(strategy)),
+                                             overfetch(strategy, zOutputMode, rowsFound)));
+            return rowsFound;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    // Returns the latency at the given percentile, in msec. latencies must be sorted.
+    private static double percentile(long[] latencies, int percentile)
+    {
+        int i = (int) Math.ceil(latencies.length * percentile / 100.0) - 1;
+        return latencies[Math.max(0, i)] / 1e6;
+    }
+
+    // Average number of rows per query read by the strategy's index scan, but not in the query box. For XY,
+    // the more selective of the x and y indexes is assumed. Computed from a sample of the queries.
+    private double overfetch(Strategy strategy, OutputMode zOutputMode, int rowsFound) throws SQLException
+    {
+        if (strategy == Strategy.NO_INDEX) {
+            return tableRows - (double) rowsFound / count;
+        }
+        int sample = Math.min(count, OVERFETCH_SAMPLE);
+        long scanned = 0;
+        long found = 0;
         try (Statement statement = connection.createStatement()) {
-            long start = System.currentTimeMillis();
-            for (int i = 0; i < count; i++) {
-                if (zQuery) {
-                    rowsFound += runZQuery(statement, queries[i]);
-                } else {
-                    rowsFound += runPlainQuery(statement, queries[i]);
+            for (int i = 0; i < sample; i++) {
+                Box box = queries[i];
+                found += count(statement, String.format(COUNT_BOX, box.xLo(), box.xHi(), box.yLo(), box.yHi()));
+                switch (strategy) {
+                    case X:
+                        scanned += count(statement, String.format(COUNT_X, box.xLo(), box.xHi()));
+                        break;
+                    case XY:
+                        scanned += Math.min(count(statement, String.format(COUNT_X, box.xLo(), box.xHi())),
+                                            count(statement, String.format(COUNT_Y, box.yLo(), box.yHi())));
+                        break;
+                    case Z:
+                    case Z_COVERING:
+                    case HILBERT:
+                        SpatialQuery.Binding binding = bind(strategy, box);
+                        String countRange = strategy == Strategy.HILBERT ? COUNT_H : COUNT_Z;
+                        for (int r = 0; r < binding.ranges(); r++) {
+                            scanned += count(statement, String.format(countRange, binding.zLo(r), binding.zHi(r)));
+                        }
+                        break;
                 }
             }
-            long stop = System.currentTimeMillis();
-            double averageMsec = (double) (stop - start) / count;
-            System.out.println(String.format("%s: %s msec", label, averageMsec));
-            return rowsFound;
+        }
+        return (double) (scanned - found) / sample;
+    }
+
+    // Average number of key ranges per query, for a strategy using z-order or Hilbert keys.
+    private double ranges(Strategy strategy)
+    {
+        long ranges = 0;
+        for (Box box : queries) {
+            ranges += bind(strategy, box).ranges();
+        }
+        return (double) ranges / count;
+    }
+
+    private SpatialQuery.Binding bind(Strategy strategy, Box box)
+    {
+        SpatialQuery rangeQuery = strategy == Strategy.HILBERT ? H_RANGES : Z_RANGES;
+        return rangeQuery.bind(box.xLo(), box.xHi(), box.yLo(), box.yHi(), MAX_Z_VALUES);
+    }
+
+    private long count(Statement statement, String query) throws SQLException
+    {
+        try (ResultSet resultSet = statement.executeQuery(query)) {
+            resultSet.next();
+            return resultSet.getLong(1);
         }
     }
 
@@ -124,9 +279,6 @@ public class Benchmark
     {
         try (Statement statement = connection.createStatement()) {
             for (String ddl : SCHEMA) {
-                if (ddl.contains("%s")) {
-                    ddl = String.format(ddl, database);
-                }
                 statement.execute(ddl);
             }
         }
@@ -147,11 +299,17 @@ public class Benchmark
         return rowsFound;
     }
 
-    private int runZQuery(Statement statement, Box box) throws SQLException
+    private int runZQuery(Statement statement, Box box, Strategy strategy, OutputMode outputMode)
+        throws SQLException
     {
         int rowsFound = 0;
-        String zQuery = String.format(Z_QUERY, box.xLo(), box.xHi(), box.yLo(), box.yHi());
-        String[] queries = QUERY_TRANSFORMER.transformQuery(zQuery, 6);
+        SpaceSuit transformer =
+            strategy == Strategy.HILBERT ? HILBERT_TRANSFORMER :
+            strategy == Strategy.Z_COVERING ? coveringTransformer :
+            QUERY_TRANSFORMER;
+        String zQuery = String.format(strategy == Strategy.HILBERT ? H_QUERY : Z_QUERY,
+                                      box.xLo(), box.xHi(), box.yLo(), box.yHi());
+        String[] queries = transformer.transformQuery(zQuery, MAX_Z_VALUES, outputMode);
         for (String query : queries) {
             ResultSet resultSet = statement.executeQuery(query);
             while (resultSet.next()) {
@@ -169,36 +327,65 @@ public class Benchmark
     {
         try (Statement statement = connection.createStatement()) {
             statement.execute(String.format(ADD_INDEX, indexName(columnName), columnName));
-            statement.execute(ANALYZE);
+            statement.execute(mysql ? ANALYZE_MYSQL : ANALYZE);
+        }
+    }
+
+    private void addCoveringIndex() throws SQLException
+    {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(COVERING_INDEX.ddl(dialect()));
+            statement.execute(mysql ? ANALYZE_MYSQL : ANALYZE);
         }
     }
 
     private void dropIndex(String columnName) throws SQLException
+    {
+        dropIndexNamed(indexName(columnName));
+    }
+
+    private void dropIndexNamed(String indexName) throws SQLException
     {
         try (Statement statement = connection.createStatement()) {
-            statement.execute(String.format(DROP_INDEX, indexName(columnName)));
-            statement.execute(ANALYZE);
+            statement.execute(String.format(mysql ? DROP_INDEX_MYSQL : DROP_INDEX, indexName));
+            statement.execute(mysql ? ANALYZE_MYSQL : ANALYZE);
         }
     }
 
+    private SqlDialect dialect()
+    {
+        return mysql ? SqlDialect.MYSQL : SqlDialect.H2;
+    }
+
     private void populate() throws SQLException
     {
-        double[] point = new double[2];
-        try (Statement statement = connection.createStatement()) {
-            for (int i = 0; i < count; i++) {
-                if (i % 1000 == 0) {
-                    connection.commit();
+        BulkLoader loader = BulkLoader.create(QUERY_TRANSFORMER, INSERT, 1, 2);
+        Iterator<Object[]> rows =
+            new Iterator<Object[]>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return i < Benchmark.this.rows;
                 }
-                double x = random.nextInt(NX);
-                double y = random.nextInt(NY);
-                point[0] = x;
-                point[1] = y;
-                long z = SPACE.spatialIndexKey(point);
-                String sql = String.format(INSERT, x, y, z, FILLER);
-                statement.executeUpdate(sql);
-            }
-        }
-        connection.commit();
+
+                @Override
+                public Object[] next()
+                {
+                    distribution.point(random, point);
+                    return new Object[]{i++, point[0], point[1], FILLER};
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+
+                private int i = 0;
+                private final double[] point = new double[2];
+            };
+        System.out.println(loader.load(connection, rows));
     }
 
     private String indexName(String columnName)
@@ -208,16 +395,17 @@ public class Benchmark
 
     private static String[] SCHEMA = new String[]
         {
-            "drop table if exists %s.t", // database
-            "create table t(id int not null auto_increment, " +
+            "drop table if exists t",
+            "create table t(id int not null, " +
             "               x double not null, " +
             "               y double not null, " +
             "               z bigint not null, " +
+            "               h bigint, " +
             "               filler varchar(100), " +
             "               primary key(id))"
         };
     private static final String INSERT =
-        "insert into t(x, y, z, filler) values(%s, %s, %s, '%s')";
+        "insert into t(id, x, y, filler, z) values(?, ?, ?, ?, ?)";
     private static final String PLAIN_QUERY =
         "select id, x, y " +
         "from t " +
@@ -227,13 +415,31 @@ public class Benchmark
         "select id, x, y " +
         "from t " +
         "where << inbox(z, x, %s, %s, y, %s, %s) >>";
+    private static final String H_QUERY =
+        "select id, x, y " +
+        "from t " +
+        "where << inbox(h, x, %s, %s, y, %s, %s) >>";
     private static final String COUNT =
         "select count(*) from t";
+    private static final String COUNT_BOX =
+        "select count(*) from t where x between %s and %s and y between %s and %s";
+    private static final String COUNT_X =
+        "select count(*) from t where x between %s and %s";
+    private static final String COUNT_Y =
+        "select count(*) from t where y between %s and %s";
+    private static final String COUNT_Z =
+        "select count(*) from t where z between %s and %s";
+    private static final String COUNT_H =
+        "select count(*) from t where h between %s and %s";
     private static final String ADD_INDEX =
         "create index %s on t(%s)";
     private static final String DROP_INDEX =
+        "drop index %s";
+    private static final String DROP_INDEX_MYSQL =
         "drop index %s on t";
     private static final String ANALYZE =
+        "analyze";
+    private static final String ANALYZE_MYSQL =
         "analyze table t";
     private static final int NX = 1_000_000;
     private static final int NY = 1_000_000;
@@ -243,6 +449,13 @@ public class Benchmark
                                                       new double[]{NX, NY},
                                                       new int[]{X_BITS, Y_BITS});
     private static final SpaceSuit QUERY_TRANSFORMER = SpaceSuit.create(SPACE, "<<", ">>");
+    private static final SpaceSuit HILBERT_TRANSFORMER = SpaceSuit.create(SPACE, KeyEncoding.HILBERT, "<<", ">>");
+    private static final CoveringIndex COVERING_INDEX = CoveringIndex.create("idx_zxy", "t", "z", "x", "y");
+    // Used only for the key ranges of query boxes
+    private static final SpatialQuery Z_RANGES =
+        QUERY_TRANSFORMER.prepare("select id from t where << inbox(z, x, ?, ?, y, ?, ?) >>");
+    private static final SpatialQuery H_RANGES =
+        HILBERT_TRANSFORMER.prepare("select id from t where << inbox(h, x, ?, ?, y, ?, ?) >>");
     private static final String FILLER =
         "abcdefghijklmnopqrst" +
         "abcdefghijklmnopqrst" +
@@ -250,13 +463,101 @@ public class Benchmark
         "abcdefghijklmnopqrst" +
         "abcdefghijklmnopqrst";
     private static final int EXPECTED_ROWS = 10;
+    private static final int MAX_Z_VALUES = 6;
+    private static final int OVERFETCH_SAMPLE = 100;
 
-    private final String database;
+    private final String url;
     private final String user;
     private final String password;
     private final String action;
+    private final int rows;
     private final int count;
+    private final Distribution distribution;
+    private final int threads;
     private Connection connection;
+    private boolean mysql;
+    private SpaceSuit coveringTransformer;
+    private int tableRows;
     private final Random random = new Random(System.currentTimeMillis());
     private Box[] queries;
+
+    private enum Strategy
+    {
+        NO_INDEX, X, XY, Z, Z_COVERING, HILBERT
+    }
+
+    private enum Distribution
+    {
+        // Uniformly distributed over the space
+        UNIFORM
+        {
+            void point(Random random, double[] xy)
+            {
+                xy[0] = random.nextInt(NX);
+                xy[1] = random.nextInt(NY);
+            }
+        },
+
+        // Equally sized gaussian clusters, with centers uniformly distributed
+        CLUSTERED
+        {
+            void point(Random random, double[] xy)
+            {
+                int cluster = random.nextInt(CLUSTERS);
+                gaussian(random, xy, CLUSTER_CENTERS[cluster], CLUSTER_SIGMA);
+            }
+        },
+
+        // Like populated places: cluster sizes follow Zipf's law, and larger clusters are more spread out.
+        // A few percent of the points are uniformly distributed.
+        SKEWED
+        {
+            void point(Random random, double[] xy)
+            {
+                if (random.nextDouble() < SKEWED_BACKGROUND) {
+                    UNIFORM.point(random, xy);
+                } else {
+                    int cluster = Arrays.binarySearch(ZIPF_CDF, random.nextDouble());
+                    if (cluster < 0) {
+                        cluster = -cluster - 1;
+                    }
+                    cluster = Math.min(cluster, CLUSTERS - 1);
+                    gaussian(random, xy, CLUSTER_CENTERS[cluster], CLUSTER_SIGMA * 4 / sqrt(cluster + 1));
+                }
+            }
+        };
+
+        abstract void point(Random random, double[] xy);
+
+        private static void gaussian(Random random, double[] xy, double[] center, double sigma)
+        {
+            xy[0] = clip(Math.floor(center[0] + random.nextGaussian() * sigma), NX);
+            xy[1] = clip(Math.floor(center[1] + random.nextGaussian() * sigma), NY);
+        }
+
+        private static double clip(double coordinate, int n)
+        {
+            return Math.max(0, Math.min(n - 1, coordinate));
+        }
+
+        private static final int CLUSTERS = 100;
+        private static final double CLUSTER_SIGMA = NX / 200.0;
+        private static final double SKEWED_BACKGROUND = 0.05;
+        private static final double[][] CLUSTER_CENTERS = new double[CLUSTERS][];
+        private static final double[] ZIPF_CDF = new double[CLUSTERS];
+
+        static {
+            Random random = new Random(419);
+            double total = 0;
+            for (int c = 0; c < CLUSTERS; c++) {
+                CLUSTER_CENTERS[c] = new double[]{random.nextInt(NX), random.nextInt(NY)};
+                total += 1.0 / (c + 1);
+            }
+            double cumulative = 0;
+            for (int c = 0; c < CLUSTERS; c++) {
+                cumulative += 1.0 / (c + 1) / total;
+                ZIPF_CDF[c] = cumulative;
+            }
+        }
+    }
 }
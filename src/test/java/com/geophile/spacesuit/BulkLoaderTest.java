@@ -0,0 +1,151 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkLoaderTest
+{
+    @Before
+    public void before() throws SQLException
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:bulkloadertest;DB_CLOSE_DELAY=-1");
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists t");
+            statement.execute("create table t(id int not null, x double not null, y double not null, " +
+                              "z bigint not null, primary key(id))");
+        }
+    }
+
+    @Test
+    public void load() throws SQLException
+    {
+        List<Object[]> rows = rows(25_000);
+        BulkLoader loader = BulkLoader.create(SPACE_SUIT, INSERT, 1, 2);
+        loader.configure(100, 1000, true);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            loader.computeKeysIn(pool);
+            try (Connection connection = dataSource.getConnection()) {
+                LoadStatistics statistics = loader.load(connection, rows.iterator());
+                assertEquals(25_000, statistics.rows());
+                assertEquals(25, statistics.commits());
+                assertTrue(connection.getAutoCommit());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        check(rows);
+    }
+
+    @Test
+    public void unsorted() throws SQLException
+    {
+        List<Object[]> rows = rows(2_500);
+        BulkLoader loader = BulkLoader.create(SPACE_SUIT, INSERT, 1, 2);
+        loader.configure(100, 1000, false);
+        try (Connection connection = dataSource.getConnection()) {
+            assertEquals(3, loader.load(connection, rows.iterator()).commits());
+        }
+        check(rows);
+    }
+
+    @Test
+    public void resume() throws SQLException
+    {
+        List<Object[]> rows = rows(5_000);
+        // Duplicate key in the third transaction
+        List<Object[]> bad = new ArrayList<>(rows);
+        bad.set(2_500, new Object[]{0, 1.0, 1.0});
+        BulkLoader loader = BulkLoader.create(SPACE_SUIT, INSERT, 1, 2);
+        loader.configure(100, 1000, true);
+        long rowsCommitted = -1;
+        try (Connection connection = dataSource.getConnection()) {
+            try {
+                loader.load(connection, bad.iterator());
+                fail();
+            } catch (BulkLoadException e) {
+                rowsCommitted = e.rowsCommitted();
+            }
+            assertEquals(2_000, rowsCommitted);
+            assertEquals(2_000, count());
+            assertEquals(3_000, loader.load(connection, rows.iterator(), rowsCommitted).rows());
+        }
+        check(rows);
+    }
+
+    @Test
+    public void badConfiguration()
+    {
+        BulkLoader loader = BulkLoader.create(SPACE_SUIT, INSERT, 1, 2);
+        try {
+            loader.configure(300, 1000, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private List<Object[]> rows(int n)
+    {
+        Random random = new Random(461);
+        List<Object[]> rows = new ArrayList<>();
+        for (int id = 0; id < n; id++) {
+            rows.add(new Object[]{id, (double) random.nextInt(1000), (double) random.nextInt(1000)});
+        }
+        return rows;
+    }
+
+    private void check(List<Object[]> rows) throws SQLException
+    {
+        assertEquals(rows.size(), count());
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select id, x, y, z from t order by id")) {
+            for (Object[] row : rows) {
+                assertTrue(resultSet.next());
+                assertEquals(row[0], resultSet.getInt(1));
+                assertEquals(SPACE_SUIT.spatialIndexKey((Double) row[1], (Double) row[2]), resultSet.getLong(4));
+            }
+        }
+    }
+
+    private long count() throws SQLException
+    {
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select count(*) from t")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    private static final String INSERT = "insert into t(id, x, y, z) values(?, ?, ?, ?)";
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private JdbcDataSource dataSource;
+}
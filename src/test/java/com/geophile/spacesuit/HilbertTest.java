@@ -0,0 +1,263 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HilbertTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("hilberttest", SPACE_SUIT, 10_000, 437);
+    }
+
+    @Test
+    public void adjacent2d()
+    {
+        checkAdjacent(2, 4);
+    }
+
+    @Test
+    public void adjacent3d()
+    {
+        checkAdjacent(3, 3);
+    }
+
+    @Test
+    public void transformQuery() throws SQLException
+    {
+        Random random = new Random(438);
+        try (Connection connection = database.dataSource().getConnection();
+             Statement statement = connection.createStatement()) {
+            for (int q = 0; q < 50; q++) {
+                double xLo = random.nextInt(900);
+                double xHi = xLo + random.nextInt(100);
+                double yLo = random.nextInt(900);
+                double yHi = yLo + random.nextInt(100);
+                OutputMode outputMode = OutputMode.values()[q % OutputMode.values().length];
+                String[] queries =
+                    SPACE_SUIT.transformQuery(String.format("select id from t where <<inbox(z, x, %s, %s, y, %s, %s)>>",
+                                                            xLo, xHi, yLo, yHi),
+                                              q % 8 + 1,
+                                              outputMode);
+                Set<Integer> actual = new HashSet<>();
+                for (String query : queries) {
+                    try (ResultSet resultSet = statement.executeQuery(query)) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+                assertEquals(expected(xLo, xHi, yLo, yHi), actual);
+            }
+        }
+    }
+
+    @Test
+    public void prepare() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        Random random = new Random(439);
+        try (Connection connection = database.dataSource().getConnection();
+             PreparedStatement statement = query.prepareStatement(connection)) {
+            for (int q = 0; q < 50; q++) {
+                double xLo = random.nextInt(900);
+                double xHi = xLo + random.nextInt(100);
+                double yLo = random.nextInt(900);
+                double yHi = yLo + random.nextInt(100);
+                SpatialQuery.Binding binding = query.bind(xLo, xHi, yLo, yHi, 8);
+                Set<Integer> actual = new HashSet<>();
+                for (int r = 0; r < binding.queries(); r++) {
+                    binding.bind(statement, r);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+                assertEquals(expected(xLo, xHi, yLo, yHi), actual);
+            }
+        }
+    }
+
+    @Test
+    public void rangesCover3d()
+    {
+        Space space = Space.newSpace(new double[]{0, 0, 0}, new double[]{1000, 1000, 1000}, new int[]{8, 8, 8});
+        SpaceSuit spaceSuit = SpaceSuit.create(space, KeyEncoding.HILBERT, "<<", ">>");
+        SpatialQuery query = spaceSuit.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?, t, ?, ?)>>");
+        Random random = new Random(440);
+        for (int q = 0; q < 50; q++) {
+            double[] lo = new double[3];
+            double[] hi = new double[3];
+            for (int d = 0; d < 3; d++) {
+                lo[d] = random.nextInt(800);
+                hi[d] = lo[d] + random.nextInt(200);
+            }
+            SpatialQuery.Binding binding = query.bind(lo, hi, q % 8 + 1);
+            for (int p = 0; p < 100; p++) {
+                double[] point = new double[3];
+                for (int d = 0; d < 3; d++) {
+                    point[d] = lo[d] + random.nextDouble() * (hi[d] - lo[d]);
+                }
+                long key = spaceSuit.spatialIndexKey(point);
+                boolean covered = false;
+                for (int r = 0; r < binding.ranges(); r++) {
+                    covered |= key >= binding.zLo(r) && key <= binding.zHi(r);
+                }
+                assertTrue(covered);
+            }
+        }
+    }
+
+    @Test
+    public void lessOverfetch()
+    {
+        // When each box is decomposed into more z-values than the number of ranges, the z-values are coalesced.
+        // Cells that are close on a Hilbert curve are usually close in space, so coalescing Hilbert ranges
+        // adds fewer rows outside the query boxes.
+        SpaceSuit hilbert = SpaceSuit.create(SPACE, KeyEncoding.HILBERT, "<<", ">>");
+        SpaceSuit zOrder = SpaceSuit.create(SPACE, KeyEncoding.Z_ORDER, "<<", ">>");
+        hilbert.configureRangeMerging(8, 0);
+        zOrder.configureRangeMerging(8, 0);
+        double[] xs = new double[database.n()];
+        double[] ys = new double[database.n()];
+        for (int id = 0; id < database.n(); id++) {
+            xs[id] = database.x(id);
+            ys[id] = database.y(id);
+        }
+        long[] hilbertKeys = new long[xs.length];
+        long[] zOrderKeys = new long[xs.length];
+        hilbert.spatialIndexKeys(xs, ys, hilbertKeys);
+        zOrder.spatialIndexKeys(xs, ys, zOrderKeys);
+        Arrays.sort(hilbertKeys);
+        Arrays.sort(zOrderKeys);
+        String inbox = "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>";
+        SpatialQuery hilbertQuery = hilbert.prepare(inbox);
+        SpatialQuery zOrderQuery = zOrder.prepare(inbox);
+        Random random = new Random(441);
+        long hilbertRows = 0;
+        long zOrderRows = 0;
+        for (int q = 0; q < 200; q++) {
+            double xLo = random.nextInt(900);
+            double xHi = xLo + random.nextInt(100);
+            double yLo = random.nextInt(900);
+            double yHi = yLo + random.nextInt(100);
+            hilbertRows += rowsInRanges(hilbertKeys, hilbertQuery.bind(xLo, xHi, yLo, yHi, 8));
+            zOrderRows += rowsInRanges(zOrderKeys, zOrderQuery.bind(xLo, xHi, yLo, yHi, 8));
+        }
+        assertTrue(hilbertRows < zOrderRows);
+        assertEquals(KeyEncoding.HILBERT, hilbert.keyEncoding());
+        assertEquals(KeyEncoding.Z_ORDER, zOrder.keyEncoding());
+    }
+
+    @Test
+    public void unequalBits()
+    {
+        Space space = Space.newSpace(new double[]{0, 0}, new double[]{1000, 1000}, new int[]{10, 11});
+        try {
+            SpaceSuit.create(space, KeyEncoding.HILBERT, "<<", ">>");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Visits the cells of a space in key order, checking that each cell is visited once, and that consecutive
+    // cells are adjacent.
+    private void checkAdjacent(int dimensions, int bits)
+    {
+        double[] lo = new double[dimensions];
+        double[] hi = new double[dimensions];
+        int[] bitsPerDimension = new int[dimensions];
+        Arrays.fill(hi, 1 << bits);
+        Arrays.fill(bitsPerDimension, bits);
+        SpaceSuit spaceSuit = SpaceSuit.create(Space.newSpace(lo, hi, bitsPerDimension), KeyEncoding.HILBERT,
+                                               "<<", ">>");
+        int cells = 1 << (dimensions * bits);
+        int[][] cellByPosition = new int[cells][];
+        for (int c = 0; c < cells; c++) {
+            int[] cell = new int[dimensions];
+            double[] center = new double[dimensions];
+            for (int d = 0; d < dimensions; d++) {
+                cell[d] = (c >> (d * bits)) & ((1 << bits) - 1);
+                center[d] = cell[d] + 0.5;
+            }
+            long key = spaceSuit.spatialIndexKey(center);
+            assertEquals(dimensions * bits, key & 0x3f);
+            int position = (int) (key >>> (63 - dimensions * bits));
+            assertEquals(null, cellByPosition[position]);
+            cellByPosition[position] = cell;
+        }
+        for (int p = 1; p < cells; p++) {
+            int distance = 0;
+            for (int d = 0; d < dimensions; d++) {
+                distance += Math.abs(cellByPosition[p][d] - cellByPosition[p - 1][d]);
+            }
+            assertEquals(1, distance);
+        }
+    }
+
+    private Set<Integer> expected(double xLo, double xHi, double yLo, double yHi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    // keys must be sorted
+    private long rowsInRanges(long[] keys, SpatialQuery.Binding binding)
+    {
+        long rows = 0;
+        for (int r = 0; r < binding.ranges(); r++) {
+            rows += position(keys, binding.zHi(r) + 1) - position(keys, binding.zLo(r));
+        }
+        return rows;
+    }
+
+    // Position of the first key >= the given key.
+    private int position(long[] keys, long key)
+    {
+        int p = Arrays.binarySearch(keys, key);
+        if (p < 0) {
+            return -p - 1;
+        }
+        while (p > 0 && keys[p - 1] == key) {
+            p--;
+        }
+        return p;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, KeyEncoding.HILBERT, "<<", ">>");
+    private static TestDatabase database;
+}
@@ -0,0 +1,172 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InDiskTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("indisktest", SPACE_SUIT, 10_000, 421);
+    }
+
+    @Test
+    public void inDisk() throws SQLException
+    {
+        Random random = new Random(431);
+        try (Connection connection = database.dataSource().getConnection()) {
+            for (int q = 0; q < 50; q++) {
+                double px = random.nextInt(1000);
+                double py = random.nextInt(1000);
+                double r = 1 + random.nextInt(200);
+                String[] queries =
+                    SPACE_SUIT.transformQuery(String.format("select id from t where <<indisk(z, x, %s, y, %s, %s)>>",
+                                                            px, py, r),
+                                              q % 8 + 1);
+                Set<Integer> actual = ids(connection, queries);
+                Set<Integer> expected = new HashSet<>();
+                for (int id = 0; id < database.n(); id++) {
+                    double dx = database.x(id) - px;
+                    double dy = database.y(id) - py;
+                    if (dx * dx + dy * dy <= r * r) {
+                        expected.add(id);
+                    }
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void tighterThanBox()
+    {
+        String disk = SPACE_SUIT.transformQuery("select id from t where <<indisk(z, x, 500, y, 500, 300)>>",
+                                                64, OutputMode.DISJUNCTION)[0];
+        String box = SPACE_SUIT.transformQuery("select id from t where <<inbox(z, x, 200, 800, y, 200, 800)>>",
+                                               64, OutputMode.DISJUNCTION)[0];
+        assertTrue(coverage(disk) < coverage(box));
+    }
+
+    @Test
+    public void centerOutsideSpace()
+    {
+        try {
+            SPACE_SUIT.transformQuery("select id from t where <<indisk(z, x, 1500, y, 500, 10)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void haversine() throws SQLException
+    {
+        Space space = Space.newSpace(new double[]{-90, -180}, new double[]{90, 180}, new int[]{20, 20});
+        SpaceSuit spaceSuit = SpaceSuit.create(space, "<<", ">>");
+        Random random = new Random(433);
+        double[] lats = new double[10_000];
+        double[] lons = new double[lats.length];
+        try (Connection connection = database.dataSource().getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("drop table if exists geo");
+                statement.execute("create table geo(id int not null, lat double not null, lon double not null, " +
+                                  "z bigint not null, primary key(id))");
+            }
+            try (PreparedStatement insert = connection.prepareStatement("insert into geo values(?, ?, ?, ?)")) {
+                for (int id = 0; id < lats.length; id++) {
+                    lats[id] = 40 + random.nextDouble() * 10;
+                    lons[id] = -80 + random.nextDouble() * 10;
+                    insert.setInt(1, id);
+                    insert.setDouble(2, lats[id]);
+                    insert.setDouble(3, lons[id]);
+                    insert.setLong(4, spaceSuit.spatialIndexKey(lats[id], lons[id]));
+                    insert.executeUpdate();
+                }
+            }
+            for (int q = 0; q < 20; q++) {
+                double plat = 41 + random.nextDouble() * 8;
+                double plon = -79 + random.nextDouble() * 8;
+                double r = 10_000 + random.nextInt(200_000);
+                String[] queries =
+                    spaceSuit.transformQuery(String.format("select id from geo where " +
+                                                           "<<indisk_haversine(z, lat, %s, lon, %s, %s)>>",
+                                                           plat, plon, r),
+                                             8);
+                Set<Integer> actual = ids(connection, queries);
+                for (int id = 0; id < lats.length; id++) {
+                    double d = haversineMeters(plat, plon, lats[id], lons[id]);
+                    // Allow for rounding at the boundary
+                    if (d < r * 0.9999) {
+                        assertTrue(actual.contains(id));
+                    } else if (d > r * 1.0001) {
+                        assertTrue(!actual.contains(id));
+                    }
+                }
+            }
+        }
+    }
+
+    private Set<Integer> ids(Connection connection, String[] queries) throws SQLException
+    {
+        Set<Integer> ids = new HashSet<>();
+        try (Statement statement = connection.createStatement()) {
+            for (String query : queries) {
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    while (resultSet.next()) {
+                        ids.add(resultSet.getInt(1));
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Total number of z-values covered by the ranges in a disjunction
+    private double coverage(String query)
+    {
+        double coverage = 0;
+        String[] tokens = query.split("[ ()]+");
+        for (int t = 0; t < tokens.length - 4; t++) {
+            if (tokens[t].equals("between") && tokens[t - 1].equals("z")) {
+                coverage += (double) Long.parseLong(tokens[t + 3]) - Long.parseLong(tokens[t + 1]);
+            }
+        }
+        return coverage;
+    }
+
+    private static double haversineMeters(double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.pow(Math.sin(dLat / 2), 2) +
+                   Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * 6_371_008.8 * Math.asin(Math.sqrt(a));
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+}
@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InPolygonTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("inpolygontest", SPACE_SUIT, 10_000, 439);
+    }
+
+    @Test
+    public void inPolygon() throws SQLException
+    {
+        Random random = new Random(443);
+        try (Connection connection = database.dataSource().getConnection()) {
+            for (int q = 0; q < 50; q++) {
+                // Star-shaped, and usually concave, polygon around a random center
+                int n = 3 + random.nextInt(10);
+                double cx = 200 + random.nextInt(600);
+                double cy = 200 + random.nextInt(600);
+                double[] xs = new double[n];
+                double[] ys = new double[n];
+                StringBuilder vertices = new StringBuilder();
+                for (int v = 0; v < n; v++) {
+                    double angle = 2 * Math.PI * v / n;
+                    double r = 20 + random.nextInt(180);
+                    xs[v] = Math.round(cx + r * Math.cos(angle));
+                    ys[v] = Math.round(cy + r * Math.sin(angle));
+                    vertices.append(String.format(", %s, %s", xs[v], ys[v]));
+                }
+                String[] queries =
+                    SPACE_SUIT.transformQuery(String.format("select id from t where <<inpolygon(z, x, y%s)>>",
+                                                            vertices),
+                                              q % 8 + 1);
+                Set<Integer> actual = ids(connection, queries);
+                for (int id = 0; id < database.n(); id++) {
+                    double x = database.x(id);
+                    double y = database.y(id);
+                    if (!onBoundary(x, y, xs, ys)) {
+                        assertEquals(inside(x, y, xs, ys), actual.contains(id));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tighterThanBox()
+    {
+        // Thin diagonal strip
+        String polygon =
+            SPACE_SUIT.transformQuery("select id from t where <<inpolygon(z, x, y, 0, 0, 20, 0, 1000, 980, 1000, 1000, 980, 1000, 0, 20)>>",
+                                      64, OutputMode.DISJUNCTION)[0];
+        String box =
+            SPACE_SUIT.transformQuery("select id from t where <<inbox(z, x, 0, 1000, y, 0, 1000)>>",
+                                      64, OutputMode.DISJUNCTION)[0];
+        assertTrue(coverage(polygon) < coverage(box) / 2);
+    }
+
+    @Test
+    public void tooFewVertices()
+    {
+        try {
+            SPACE_SUIT.transformQuery("select id from t where <<inpolygon(z, x, y, 0, 0, 10, 0)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void vertexOutsideSpace()
+    {
+        try {
+            SPACE_SUIT.transformQuery("select id from t where <<inpolygon(z, x, y, 0, 0, 1010, 0, 0, 10)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private Set<Integer> ids(Connection connection, String[] queries) throws SQLException
+    {
+        Set<Integer> ids = new HashSet<>();
+        try (Statement statement = connection.createStatement()) {
+            for (String query : queries) {
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    while (resultSet.next()) {
+                        ids.add(resultSet.getInt(1));
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static boolean inside(double x, double y, double[] xs, double[] ys)
+    {
+        boolean inside = false;
+        int n = xs.length;
+        for (int v = 0; v < n; v++) {
+            double x1 = xs[v];
+            double y1 = ys[v];
+            double x2 = xs[(v + 1) % n];
+            double y2 = ys[(v + 1) % n];
+            if ((y1 > y) != (y2 > y) && x < x1 + (y - y1) * (x2 - x1) / (y2 - y1)) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    private static boolean onBoundary(double x, double y, double[] xs, double[] ys)
+    {
+        int n = xs.length;
+        for (int v = 0; v < n; v++) {
+            double x1 = xs[v];
+            double y1 = ys[v];
+            double x2 = xs[(v + 1) % n];
+            double y2 = ys[(v + 1) % n];
+            double cross = (x2 - x1) * (y - y1) - (y2 - y1) * (x - x1);
+            if (Math.abs(cross) < 1e-6 &&
+                x >= Math.min(x1, x2) && x <= Math.max(x1, x2) &&
+                y >= Math.min(y1, y2) && y <= Math.max(y1, y2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Total number of z-values covered by the ranges in a disjunction
+    private double coverage(String query)
+    {
+        double coverage = 0;
+        String[] tokens = query.split("[ ()]+");
+        for (int t = 1; t < tokens.length - 4; t++) {
+            if (tokens[t].equals("between") && tokens[t - 1].equals("z")) {
+                coverage += (double) Long.parseLong(tokens[t + 3]) - Long.parseLong(tokens[t + 1]);
+            }
+        }
+        return coverage;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+}
@@ -0,0 +1,213 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IndexHintTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("indexhinttest", SPACE_SUIT, 10_000, 447);
+        connection = database.dataSource().getConnection();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CoveringIndex.create("idx_zxy", "t", "z", "x", "y").ddl(SqlDialect.H2));
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void coveringIndex() throws SQLException
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        spaceSuit.enableIndexHint(SqlDialect.H2, IndexHint.FORCE, "idx_zxy");
+        String query = "select id from t where <<inbox(z, x, 100, 300, y, 200, 400)>>";
+        for (OutputMode outputMode : OutputMode.values()) {
+            Set<Integer> actual = new HashSet<>();
+            try (Statement statement = connection.createStatement()) {
+                for (String rewrite : spaceSuit.transformQuery(query, 8, outputMode)) {
+                    assertTrue(rewrite.contains("from t use index (idx_zxy) where"));
+                    try (ResultSet resultSet = statement.executeQuery("explain " + rewrite)) {
+                        resultSet.next();
+                        assertTrue(resultSet.getString(1).contains("IDX_ZXY"));
+                    }
+                    try (ResultSet resultSet = statement.executeQuery(rewrite)) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+            }
+            assertEquals(expected(100, 300, 200, 400), actual);
+        }
+    }
+
+    @Test
+    public void prepare() throws SQLException
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        spaceSuit.enableIndexHint(SqlDialect.H2, IndexHint.USE, "idx_zxy");
+        SpatialQuery query = spaceSuit.prepare("select id from t as c where <<inbox(c.z, c.x, ?, ?, c.y, ?, ?)>>");
+        assertTrue(query.sql().startsWith("select id from t as c use index (idx_zxy) where"));
+        SpatialQuery.Binding binding = query.bind(500, 700, 100, 150, 8);
+        Set<Integer> actual = new HashSet<>();
+        try (PreparedStatement statement = query.prepareStatement(connection)) {
+            for (int r = 0; r < binding.queries(); r++) {
+                binding.bind(statement, r);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        assertTrue(actual.add(resultSet.getInt(1)));
+                    }
+                }
+            }
+        }
+        assertEquals(expected(500, 700, 100, 150), actual);
+    }
+
+    @Test
+    public void dialects()
+    {
+        assertTrue(hinted(SqlDialect.MYSQL, IndexHint.FORCE, "select id from t where <<inbox(z, x, 1, 2, y, 3, 4)>>")
+                       .startsWith("select id from t force index (idx_zxy) where "));
+        assertTrue(hinted(SqlDialect.MYSQL, IndexHint.USE, "select id from t c where <<inbox(c.z, x, 1, 2, y, 3, 4)>>")
+                       .startsWith("select id from t c use index (idx_zxy) where "));
+        assertTrue(hinted(SqlDialect.ORACLE, IndexHint.FORCE, "select id from t where <<inbox(z, x, 1, 2, y, 3, 4)>>")
+                       .startsWith("select /*+ index(t idx_zxy) */ id from t where "));
+        assertTrue(hinted(SqlDialect.POSTGRESQL, IndexHint.USE, "select id from t where <<inbox(z, x, 1, 2, y, 3, 4)>>")
+                       .startsWith("/*+ IndexOnlyScan(t idx_zxy) */ select id from t where "));
+    }
+
+    @Test
+    public void joins()
+    {
+        assertTrue(hinted(SqlDialect.MYSQL, IndexHint.FORCE,
+                          "select s.id, c.id from store s join customer c on s.region = c.region " +
+                          "where <<inbox(c.z, c.x, 1, 2, c.y, 3, 4)>>")
+                       .startsWith("select s.id, c.id from store s join customer c force index (idx_zxy) on "));
+        assertTrue(hinted(SqlDialect.MYSQL, IndexHint.FORCE,
+                          "select s.id, customer.id from store as s, customer " +
+                          "where s.region = customer.region and <<inbox(customer.z, x, 1, 2, y, 3, 4)>>")
+                       .startsWith("select s.id, customer.id from store as s, customer force index (idx_zxy) where "));
+        assertTrue(hinted(SqlDialect.ORACLE, IndexHint.FORCE,
+                          "select s.id, c.id from store s, customer c where <<inbox(c.z, c.x, 1, 2, c.y, 3, 4)>>")
+                       .startsWith("select /*+ index(c idx_zxy) */ s.id, c.id from store s, customer c where "));
+        try {
+            hinted(SqlDialect.MYSQL, IndexHint.FORCE,
+                   "select * from store s, customer c where <<inbox(z, x, 1, 2, y, 3, 4)>>");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            hinted(SqlDialect.MYSQL, IndexHint.FORCE,
+                   "select * from store s, customer c where <<inbox(q.z, x, 1, 2, y, 3, 4)>>");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void enableAndDisable()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        spaceSuit.enableDecompositionCache(100);
+        String query = "select id from t where <<inbox(z, x, 1, 2, y, 3, 4)>>";
+        assertFalse(spaceSuit.transformQuery(query, 4, OutputMode.UNION_ALL)[0].contains("index"));
+        spaceSuit.enableIndexHint(SqlDialect.MYSQL, IndexHint.USE, "idx_zxy");
+        assertTrue(spaceSuit.transformQuery(query, 4, OutputMode.UNION_ALL)[0].contains("use index (idx_zxy)"));
+        spaceSuit.disableIndexHint();
+        assertFalse(spaceSuit.transformQuery(query, 4, OutputMode.UNION_ALL)[0].contains("index"));
+        try {
+            spaceSuit.enableIndexHint(SqlDialect.MYSQL, IndexHint.USE, "idx zxy");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void ddl()
+    {
+        CoveringIndex index = CoveringIndex.create("idx_zxy", "spacesuit.place", "z", "latitude", "longitude");
+        assertEquals("create index idx_zxy on spacesuit.place(z, latitude, longitude)", index.ddl(SqlDialect.MYSQL));
+        index.include("id", "description");
+        assertEquals("idx_zxy", index.name());
+        assertEquals("create index idx_zxy on spacesuit.place(z, latitude, longitude, id, description)",
+                     index.ddl(SqlDialect.MYSQL));
+        assertEquals("create index idx_zxy on spacesuit.place(z, latitude, longitude) include (id, description)",
+                     index.ddl(SqlDialect.POSTGRESQL));
+        try {
+            index.include("description", "latitude");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            CoveringIndex.create("idx_zxy", "place", "z");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            CoveringIndex.create("idx_zxy", "place; drop table place", "z", "x", "y");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Returns the single query produced by a SpaceSuit using the given hint.
+    private String hinted(SqlDialect dialect, IndexHint hint, String query)
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        spaceSuit.enableIndexHint(dialect, hint, "idx_zxy");
+        return spaceSuit.transformQuery(query, 4, OutputMode.DISJUNCTION)[0];
+    }
+
+    private Set<Integer> expected(double xLo, double xHi, double yLo, double yHi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+    private static Connection connection;
+}
@@ -0,0 +1,90 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class NearestQueryTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("nearestquerytest", SPACE_SUIT, 10_000, 419);
+    }
+
+    @Test
+    public void nearest() throws SQLException
+    {
+        NearestQuery query = SPACE_SUIT.prepareNearest("select id, x, y from t where <<nearest(z, x, y, ?, ?, ?)>>");
+        Random random = new Random(423);
+        try (Connection connection = database.dataSource().getConnection()) {
+            for (int q = 0; q < 50; q++) {
+                double px = random.nextInt(1000);
+                double py = random.nextInt(1000);
+                int k = 1 + random.nextInt(q % 2 == 0 ? 10 : 200);
+                List<Object[]> neighbors = query.execute(connection, px, py, k, 8);
+                assertEquals(k, neighbors.size());
+                double[] expected = distances(px, py);
+                for (int i = 0; i < k; i++) {
+                    Object[] row = neighbors.get(i);
+                    double dx = (Double) row[1] - px;
+                    double dy = (Double) row[2] - py;
+                    assertEquals(expected[i], Math.sqrt(dx * dx + dy * dy), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void moreThanAll() throws SQLException
+    {
+        NearestQuery query = SPACE_SUIT.prepareNearest("select id, x, y from t where id < ? and <<nearest(z, x, y, ?, ?, ?)>>");
+        try (Connection connection = database.dataSource().getConnection()) {
+            assertEquals(20, query.execute(connection, 500, 500, 100, 8, 20).size());
+        }
+    }
+
+    @Test
+    public void transform()
+    {
+        try {
+            SPACE_SUIT.transformQuery("select id, x, y from t where <<nearest(z, x, y, ?, ?, ?)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private double[] distances(double px, double py)
+    {
+        double[] distances = new double[database.n()];
+        for (int id = 0; id < database.n(); id++) {
+            double dx = database.x(id) - px;
+            double dy = database.y(id) - py;
+            distances[id] = Math.sqrt(dx * dx + dy * dy);
+        }
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+}
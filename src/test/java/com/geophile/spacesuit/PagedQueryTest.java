@@ -0,0 +1,219 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PagedQueryTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        // A coarse space, so that many rows share a z-value.
+        database = new TestDatabase("pagedquerytest", SPACE_SUIT, 10_000, 457);
+        connection = database.dataSource().getConnection();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create index idx_z_id on t(z, id)");
+            statement.execute("create table s(name varchar(20) not null, x double not null, y double not null, " +
+                              "z bigint not null, primary key(name))");
+        }
+        try (PreparedStatement insert = connection.prepareStatement("insert into s values(?, ?, ?, ?)")) {
+            for (int id = 0; id < 1000; id++) {
+                double x = database.x(id);
+                double y = database.y(id);
+                insert.setString(1, String.format("p\u00e5ge-%s", id));
+                insert.setDouble(2, x);
+                insert.setDouble(3, y);
+                insert.setLong(4, SPACE_SUIT.spatialIndexKey(x, y));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void pages() throws SQLException
+    {
+        PagedQuery query = SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>>", "id");
+        Set<Integer> expected = expected(100, 600, 250, 700);
+        for (int pageSize : new int[]{1, 7, 100, expected.size(), 100_000}) {
+            List<Object[]> rows = new ArrayList<>();
+            String continuation = null;
+            do {
+                PagedQuery.Page page = query.page(connection, 100, 600, 250, 700, 8, continuation, pageSize);
+                continuation = page.continuation();
+                if (continuation != null) {
+                    assertEquals(pageSize, page.rows().size());
+                    assertTrue(continuation.matches("[0-9a-z.-]+"));
+                }
+                rows.addAll(page.rows());
+            } while (continuation != null);
+            checkOrder(rows);
+            Set<Integer> actual = new HashSet<>();
+            for (Object[] row : rows) {
+                assertTrue(actual.add((Integer) row[0]));
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    @Test
+    public void changingDecomposition() throws SQLException
+    {
+        // The range in a continuation token doesn't match the ranges of the next page.
+        PagedQuery query = SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>>", "id");
+        List<Object[]> rows = new ArrayList<>();
+        String continuation = null;
+        int maxZValues = 1;
+        do {
+            maxZValues = maxZValues % 16 + 3;
+            PagedQuery.Page page = query.page(connection, 333, 777, 111, 555, maxZValues, continuation, 50);
+            continuation = page.continuation();
+            rows.addAll(page.rows());
+        } while (continuation != null);
+        checkOrder(rows);
+        Set<Integer> actual = new HashSet<>();
+        for (Object[] row : rows) {
+            assertTrue(actual.add((Integer) row[0]));
+        }
+        assertEquals(expected(333, 777, 111, 555), actual);
+    }
+
+    @Test
+    public void stringKeys() throws SQLException
+    {
+        PagedQuery query = SPACE_SUIT.preparePaged("select name, z from s where <<inbox(s.z, x, ?, ?, y, ?, ?)>>",
+                                                   "s.name");
+        Set<String> expected = new HashSet<>();
+        for (int id = 0; id < 1000; id++) {
+            if (database.x(id) <= 500 && database.y(id) <= 500) {
+                expected.add(String.format("p\u00e5ge-%s", id));
+            }
+        }
+        Set<String> actual = new HashSet<>();
+        String continuation = null;
+        do {
+            PagedQuery.Page page = query.page(connection, 0, 500, 0, 500, 8, continuation, 9);
+            continuation = page.continuation();
+            for (Object[] row : page.rows()) {
+                assertTrue(actual.add((String) row[0]));
+            }
+        } while (continuation != null);
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void parameters() throws SQLException
+    {
+        PagedQuery query =
+            SPACE_SUIT.preparePaged("select id, z from t where id < ? and <<inbox(z, x, ?, ?, y, ?, ?)>>", "id");
+        assertTrue(query.sql().endsWith(" order by z, id"));
+        Set<Integer> actual = new HashSet<>();
+        String continuation = null;
+        do {
+            PagedQuery.Page page = query.page(connection, 0, 999, 0, 999, 8, continuation, 30, 100);
+            continuation = page.continuation();
+            for (Object[] row : page.rows()) {
+                actual.add((Integer) row[0]);
+            }
+        } while (continuation != null);
+        assertEquals(100, actual.size());
+        PagedQuery.Page empty = query.page(connection, 0, 999, 0, 999, 8, null, 30, 0);
+        assertEquals(0, empty.rows().size());
+        assertNull(empty.continuation());
+    }
+
+    @Test
+    public void errors() throws SQLException
+    {
+        PagedQuery query = SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>>", "id");
+        for (String continuation : new String[]{"", "x", "1.2", "1.2.q3", "-1.2.n3", "1.2.", "1.2.sz"}) {
+            try {
+                query.page(connection, 0, 100, 0, 100, 8, continuation, 10);
+                fail(continuation);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        try {
+            query.page(connection, 0, 100, 0, 100, 8, null, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>> order by id", "id");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>>", "id; drop table t");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.preparePaged("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>> and id < ?", "id");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Checks that rows, (id, z), are ordered by z and then id.
+    private static void checkOrder(List<Object[]> rows)
+    {
+        for (int r = 1; r < rows.size(); r++) {
+            long previousZ = (Long) rows.get(r - 1)[1];
+            long z = (Long) rows.get(r)[1];
+            assertTrue(previousZ < z || previousZ == z && (Integer) rows.get(r - 1)[0] < (Integer) rows.get(r)[0]);
+        }
+    }
+
+    private Set<Integer> expected(double xLo, double xHi, double yLo, double yHi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{6, 6});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+    private static Connection connection;
+}
@@ -0,0 +1,291 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Table c(id, x, y, p) of points in tight clusters, in [0, 1000) x [0, 1000). p is computed using a Partitioning
+// created from a sample of the points.
+
+public class PartitioningTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        Random random = new Random(443);
+        double[][] centers = new double[CLUSTERS][];
+        for (int c = 0; c < CLUSTERS; c++) {
+            centers[c] = new double[]{50 + random.nextInt(900), 50 + random.nextInt(900)};
+        }
+        for (int id = 0; id < N; id++) {
+            double[] center = centers[random.nextInt(CLUSTERS)];
+            xs[id] = center[0] + random.nextGaussian() * SIGMA;
+            ys[id] = center[1] + random.nextGaussian() * SIGMA;
+        }
+        double[] sampleXs = new double[N / 10];
+        double[] sampleYs = new double[N / 10];
+        for (int i = 0; i < N / 10; i++) {
+            sampleXs[i] = xs[i * 10];
+            sampleYs[i] = ys[i * 10];
+        }
+        partitioning = Partitioning.create(SPACE, 256, sampleXs, sampleYs);
+        spaceSuit = SpaceSuit.create(SPACE, KeyEncoding.Z_ORDER, partitioning, "<<", ">>");
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:partitioningtest;DB_CLOSE_DELAY=-1");
+        connection = dataSource.getConnection();
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table c(id int not null, x double not null, y double not null, " +
+                              "p bigint not null, primary key(id))");
+            statement.execute("create index idx_p on c(p)");
+        }
+        try (PreparedStatement insert = connection.prepareStatement("insert into c values(?, ?, ?, ?)")) {
+            for (int id = 0; id < N; id++) {
+                insert.setInt(1, id);
+                insert.setDouble(2, xs[id]);
+                insert.setDouble(3, ys[id]);
+                insert.setLong(4, spaceSuit.spatialIndexKey(xs[id], ys[id]));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void transformQuery() throws SQLException
+    {
+        Random random = new Random(444);
+        try (Statement statement = connection.createStatement()) {
+            for (int q = 0; q < 100; q++) {
+                double[] box = randomBox(random, q);
+                String[] queries =
+                    spaceSuit.transformQuery(String.format("select id from c where <<inbox(p, x, %s, %s, y, %s, %s)>>",
+                                                           box[0], box[1], box[2], box[3]),
+                                             q % 8 + 1);
+                Set<Integer> actual = new HashSet<>();
+                for (String query : queries) {
+                    try (ResultSet resultSet = statement.executeQuery(query)) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+                assertEquals(expected(box), actual);
+            }
+        }
+    }
+
+    @Test
+    public void hilbert() throws SQLException
+    {
+        SpaceSuit hilbert = SpaceSuit.create(SPACE, KeyEncoding.HILBERT, partitioning, "<<", ">>");
+        long[] keys = new long[N];
+        hilbert.spatialIndexKeys(xs, ys, keys);
+        SpatialQuery query = hilbert.prepare("select id from c where <<inbox(p, x, ?, ?, y, ?, ?)>>");
+        Random random = new Random(445);
+        for (int q = 0; q < 100; q++) {
+            double[] box = randomBox(random, q);
+            SpatialQuery.Binding binding = query.bind(box[0], box[1], box[2], box[3], q % 8 + 1);
+            for (int id : expected(box)) {
+                boolean covered = false;
+                for (int r = 0; r < binding.ranges(); r++) {
+                    covered |= keys[id] >= binding.zLo(r) && keys[id] <= binding.zHi(r);
+                }
+                assertTrue(covered);
+            }
+        }
+    }
+
+    @Test
+    public void lessOverfetch()
+    {
+        SpaceSuit uniform = SpaceSuit.create(SPACE, "<<", ">>");
+        long[] uniformKeys = new long[N];
+        long[] partitionedKeys = new long[N];
+        uniform.spatialIndexKeys(xs, ys, uniformKeys);
+        spaceSuit.spatialIndexKeys(xs, ys, partitionedKeys);
+        Arrays.sort(uniformKeys);
+        Arrays.sort(partitionedKeys);
+        String inbox = "select id from c where <<inbox(p, x, ?, ?, y, ?, ?)>>";
+        SpatialQuery uniformQuery = uniform.prepare(inbox);
+        SpatialQuery partitionedQuery = spaceSuit.prepare(inbox);
+        Random random = new Random(446);
+        long inBoxes = 0;
+        long uniformRows = 0;
+        long partitionedRows = 0;
+        for (int q = 0; q < 200; q++) {
+            // Small boxes around data points, i.e. inside clusters
+            int id = random.nextInt(N);
+            double[] box = new double[]{xs[id] - 1, xs[id] + 1, ys[id] - 1, ys[id] + 1};
+            inBoxes += expected(box).size();
+            uniformRows += rowsInRanges(uniformKeys, uniformQuery.bind(box[0], box[1], box[2], box[3], 4));
+            partitionedRows += rowsInRanges(partitionedKeys, partitionedQuery.bind(box[0], box[1], box[2], box[3], 4));
+        }
+        assertTrue(partitionedRows >= inBoxes);
+        assertTrue((partitionedRows - inBoxes) * 2 < uniformRows - inBoxes);
+    }
+
+    @Test
+    public void serialize() throws IOException, ClassNotFoundException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(partitioning);
+        }
+        Partitioning copy;
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (Partitioning) input.readObject();
+        }
+        SpaceSuit querier = SpaceSuit.create(SPACE, KeyEncoding.Z_ORDER, copy, "<<", ">>");
+        assertSame(copy, querier.partitioning());
+        long[] expected = new long[N];
+        long[] actual = new long[N];
+        spaceSuit.spatialIndexKeys(xs, ys, expected);
+        querier.spatialIndexKeys(xs, ys, actual);
+        assertArrayEquals(expected, actual);
+        String query = "select id from c where <<inbox(p, x, 100, 200, y, 300, 400)>>";
+        assertArrayEquals(spaceSuit.transformQuery(query, 8), querier.transformQuery(query, 8));
+    }
+
+    @Test
+    public void transform()
+    {
+        for (int d = 0; d < 2; d++) {
+            assertEquals(0, partitioning.transform(d, 0), 0);
+            assertEquals(1000, partitioning.transform(d, 1000), 0);
+            assertEquals(-1, partitioning.transform(d, -1), 0);
+            assertTrue(partitioning.intervals(d) <= 256);
+            double previous = 0;
+            for (double coordinate = 0; coordinate < 1000; coordinate += 0.25) {
+                double transformed = partitioning.transform(d, coordinate);
+                assertTrue(transformed >= previous);
+                assertTrue(transformed < 1000);
+                previous = transformed;
+            }
+        }
+    }
+
+    @Test
+    public void badArguments()
+    {
+        double[] sample = new double[]{1, 2, 3};
+        try {
+            Partitioning.create(SPACE, 0, sample, sample);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Partitioning.create(SPACE, 10, sample);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Partitioning.create(SPACE, 10, sample, new double[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            Space other = Space.newSpace(new double[]{0, 0}, new double[]{1000, 2000}, new int[]{8, 8});
+            SpaceSuit.create(other, KeyEncoding.Z_ORDER, partitioning, "<<", ">>");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Boxes are alternately small boxes around data points, and larger boxes anywhere.
+    private double[] randomBox(Random random, int q)
+    {
+        if (q % 2 == 0) {
+            int id = random.nextInt(N);
+            double size = 1 + random.nextInt(10);
+            return new double[]{xs[id] - size, xs[id] + size, ys[id] - size, ys[id] + size};
+        } else {
+            double xLo = random.nextInt(900);
+            double yLo = random.nextInt(900);
+            return new double[]{xLo, xLo + random.nextInt(100), yLo, yLo + random.nextInt(100)};
+        }
+    }
+
+    private Set<Integer> expected(double[] box)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < N; id++) {
+            if (xs[id] >= box[0] && xs[id] <= box[1] && ys[id] >= box[2] && ys[id] <= box[3]) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    // keys must be sorted
+    private long rowsInRanges(long[] keys, SpatialQuery.Binding binding)
+    {
+        long rows = 0;
+        for (int r = 0; r < binding.ranges(); r++) {
+            rows += position(keys, binding.zHi(r) + 1) - position(keys, binding.zLo(r));
+        }
+        return rows;
+    }
+
+    // Position of the first key >= the given key.
+    private int position(long[] keys, long key)
+    {
+        int p = Arrays.binarySearch(keys, key);
+        if (p < 0) {
+            return -p - 1;
+        }
+        while (p > 0 && keys[p - 1] == key) {
+            p--;
+        }
+        return p;
+    }
+
+    private static final int N = 10_000;
+    private static final int CLUSTERS = 10;
+    private static final double SIGMA = 2;
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{8, 8});
+    private static final double[] xs = new double[N];
+    private static final double[] ys = new double[N];
+    private static Partitioning partitioning;
+    private static SpaceSuit spaceSuit;
+    private static Connection connection;
+}
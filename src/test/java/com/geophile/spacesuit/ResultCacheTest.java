@@ -0,0 +1,246 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResultCacheTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("resultcachetest", SPACE_SUIT, 10_000, 449);
+        connection = database.dataSource().getConnection();
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void hits() throws SQLException
+    {
+        ResultCache cache = ResultCache.create(100_000);
+        SpatialQuery.Binding binding = QUERY.bind(100, 300, 200, 400, 8);
+        assertEquals(expected(100, 300, 200, 400), ids(cache.execute(connection, binding)));
+        CacheStatistics statistics = cache.statistics();
+        assertEquals(0, statistics.hits());
+        assertEquals(binding.ranges(), statistics.misses());
+        assertEquals(binding.ranges(), statistics.size());
+        assertEquals(expected(100, 300, 200, 400), ids(cache.execute(connection, QUERY.bind(100, 300, 200, 400, 8))));
+        assertEquals(binding.ranges(), cache.statistics().hits());
+        assertEquals(binding.ranges(), cache.statistics().misses());
+        // A different box hits the ranges it shares with the first one, and the cached rows of those ranges are
+        // checked against the new box.
+        SpatialQuery.Binding smaller = QUERY.bind(120, 300, 200, 400, 8);
+        int shared = 0;
+        for (int r = 0; r < smaller.ranges(); r++) {
+            for (int s = 0; s < binding.ranges(); s++) {
+                if (smaller.zLo(r) == binding.zLo(s) && smaller.zHi(r) == binding.zHi(s)) {
+                    shared++;
+                }
+            }
+        }
+        assertTrue(shared > 0);
+        assertEquals(expected(120, 300, 200, 400), ids(cache.execute(connection, smaller)));
+        assertEquals(binding.ranges() + shared, cache.statistics().hits());
+        assertEquals(binding.ranges() + smaller.ranges() - shared, cache.statistics().misses());
+    }
+
+    @Test
+    public void selectList() throws SQLException
+    {
+        ResultCache cache = ResultCache.create(100_000);
+        // The coordinates of cached rows are not returned.
+        SpatialQuery query = SPACE_SUIT.prepare("select id, y from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        List<Object[]> rows = cache.execute(connection, query.bind(0, 100, 0, 100, 4));
+        for (Object[] row : rows) {
+            assertEquals(2, row.length);
+            assertEquals(database.y((Integer) row[0]), ((Number) row[1]).doubleValue(), 0);
+        }
+        assertEquals(expected(0, 100, 0, 100), ids(rows));
+    }
+
+    @Test
+    public void uncacheable() throws SQLException
+    {
+        // The rows of a range, for an unbounded box, can't be obtained from these queries.
+        ResultCache cache = ResultCache.create(100_000);
+        for (String template : new String[]{
+            "with u as (select * from t) select id from u where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>> and id < ?",
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>> order by id",
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>> limit 10",
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>> fetch first 10 rows only",
+            "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>> offset 10 rows",
+            "select count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+            "select id, count(*) from t where <<inbox(z, x, ?, ?, y, ?, ?)>> group by id",
+            "select distinct id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>"}) {
+            SpatialQuery query = SPACE_SUIT.prepare(template);
+            try {
+                cache.execute(connection, query.bind(0, 100, 0, 100, 4));
+                fail(template);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.statistics().misses());
+        // Aggregates outside the select list are permitted.
+        SpatialQuery query =
+            SPACE_SUIT.prepare("select id from t where id >= (select min(id) from t) and " +
+                               "<<inbox(z, x, ?, ?, y, ?, ?)>>");
+        assertEquals(expected(0, 100, 0, 100), ids(cache.execute(connection, query.bind(0, 100, 0, 100, 4))));
+    }
+
+    @Test
+    public void targetedInvalidation() throws SQLException
+    {
+        ResultCache cache = ResultCache.create(100_000);
+        SpatialQuery.Binding binding = QUERY.bind(450, 650, 450, 650, 8);
+        assertTrue(binding.ranges() > 1);
+        cache.execute(connection, binding);
+        int id = database.n();
+        double x = 600;
+        double y = 600;
+        long z = SPACE_SUIT.spatialIndexKey(x, y);
+        int containing = 0;
+        for (int r = 0; r < binding.ranges(); r++) {
+            if (binding.zLo(r) <= z && z <= binding.zHi(r)) {
+                containing++;
+            }
+        }
+        assertEquals(1, containing);
+        try (PreparedStatement insert = connection.prepareStatement("insert into t values(?, ?, ?, ?)")) {
+            insert.setInt(1, id);
+            insert.setDouble(2, x);
+            insert.setDouble(3, y);
+            insert.setLong(4, z);
+            insert.executeUpdate();
+        }
+        try {
+            // Not yet invalidated: the cached rows are returned
+            assertFalse(ids(cache.execute(connection, binding)).contains(id));
+            cache.invalidate(z);
+            assertEquals(binding.ranges() - 1, cache.statistics().size());
+            long misses = cache.statistics().misses();
+            Set<Integer> expected = expected(450, 650, 450, 650);
+            expected.add(id);
+            assertEquals(expected, ids(cache.execute(connection, binding)));
+            assertEquals(misses + 1, cache.statistics().misses());
+            // A key outside the cached ranges evicts nothing
+            cache.invalidate(SPACE_SUIT.spatialIndexKey(10, 10));
+            assertEquals(binding.ranges(), cache.statistics().size());
+        } finally {
+            try (PreparedStatement delete = connection.prepareStatement("delete from t where id = ?")) {
+                delete.setInt(1, id);
+                delete.executeUpdate();
+            }
+        }
+        cache.invalidate(z);
+        assertEquals(expected(450, 650, 450, 650), ids(cache.execute(connection, binding)));
+    }
+
+    @Test
+    public void eviction() throws SQLException
+    {
+        ResultCache cache = ResultCache.create(500);
+        for (int i = 0; i < 20; i++) {
+            double xLo = 50 * i;
+            assertEquals(expected(xLo, xLo + 40, 0, 400),
+                         ids(cache.execute(connection, QUERY.bind(xLo, xLo + 40, 0, 400, 8))));
+            assertTrue(cache.rows() <= 500);
+        }
+        assertTrue(cache.statistics().evictions() > 0);
+        cache.clear();
+        assertEquals(0, cache.rows());
+        assertEquals(0, cache.statistics().size());
+        // Too many rows to be cached
+        ResultCache small = ResultCache.create(10);
+        assertEquals(expected(0, 999, 0, 999), ids(small.execute(connection, QUERY.bind(0, 999, 0, 999, 1))));
+        assertEquals(0, small.statistics().size());
+    }
+
+    @Test
+    public void parameters() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where id < ? and <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        ResultCache cache = ResultCache.create(100_000);
+        SpatialQuery.Binding binding = query.bind(0, 500, 0, 500, 4);
+        Set<Integer> all = ids(cache.execute(connection, binding, 10_000));
+        Set<Integer> some = ids(cache.execute(connection, binding, 100));
+        assertEquals(0, cache.statistics().hits());
+        for (int id : all) {
+            assertEquals(id < 100, some.contains(id));
+        }
+        try {
+            cache.execute(connection, binding);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            cache.execute(connection, SPACE_SUIT.prepare(TEMPLATE, OutputMode.DISJUNCTION).bind(0, 1, 0, 1, 4));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ResultCache.create(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Set<Integer> ids(List<Object[]> rows)
+    {
+        Set<Integer> ids = new HashSet<>();
+        for (Object[] row : rows) {
+            assertTrue(ids.add((Integer) row[0]));
+        }
+        return ids;
+    }
+
+    private Set<Integer> expected(double xLo, double xHi, double yLo, double yHi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static final String TEMPLATE = "select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>";
+    private static final SpatialQuery QUERY = SPACE_SUIT.prepare(TEMPLATE);
+    private static TestDatabase database;
+    private static Connection connection;
+}
@@ -0,0 +1,229 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResultMergerTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("resultmergertest", SPACE_SUIT, 10_000, 421);
+        connection = database.dataSource().getConnection();
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void mergeByZ() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>> order by z");
+        SpatialQuery.Binding binding = query.bind(100, 400, 200, 500, 8);
+        assertTrue(binding.queries() > 1);
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            if (inBox(id, 100, 400, 200, 500)) {
+                expected.add(id);
+            }
+        }
+        Set<Integer> actual = new HashSet<>();
+        long previousZ = Long.MIN_VALUE;
+        try (MergedResult result = ResultMerger.create(2).merge(connection, binding)) {
+            Object[] row;
+            while ((row = result.next()) != null) {
+                long z = (Long) row[1];
+                assertTrue(z >= previousZ);
+                previousZ = z;
+                assertTrue(actual.add((Integer) row[0]));
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void mergeByKey() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where id < ? and <<inbox(z, x, ?, ?, y, ?, ?)>> " +
+                                                "order by id");
+        SpatialQuery.Binding binding = query.bind(0, 1000, 0, 1000, 8);
+        int previousId = -1;
+        int count = 0;
+        try (MergedResult result = ResultMerger.create(1).merge(connection, binding, 500)) {
+            Object[] row;
+            while ((row = result.next()) != null) {
+                int id = (Integer) row[0];
+                assertTrue(id > previousId);
+                previousId = id;
+                count++;
+            }
+        }
+        assertEquals(500, count);
+    }
+
+    @Test
+    public void comparator() throws SQLException
+    {
+        ResultMerger merger = ResultMerger.create(
+            new Comparator<Object[]>()
+            {
+                @Override
+                public int compare(Object[] x, Object[] y)
+                {
+                    return Integer.compare((Integer) y[0], (Integer) x[0]);
+                }
+            });
+        List<ResultSet> resultSets = new ArrayList<>();
+        resultSets.add(query("select id from t where id < 100 and mod(id, 2) = 0 order by id desc"));
+        resultSets.add(query("select id from t where id < 100 and mod(id, 2) = 1 order by id desc"));
+        int expected = 99;
+        try (MergedResult result = merger.merge(resultSets)) {
+            Object[] row;
+            while ((row = result.next()) != null) {
+                assertEquals(expected--, row[0]);
+            }
+        }
+        assertEquals(-1, expected);
+    }
+
+    @Test
+    public void distinctAdjacent() throws SQLException
+    {
+        ResultMerger merger = ResultMerger.create(1);
+        merger.distinct(1);
+        checkDistinct(merger, "order by id");
+    }
+
+    @Test
+    public void distinctAnywhere() throws SQLException
+    {
+        ResultMerger merger = ResultMerger.create(2);
+        merger.distinct(1);
+        checkDistinct(merger, "order by z");
+    }
+
+    @Test
+    public void limit() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>> order by z");
+        SpatialQuery.Binding binding = query.bind(0, 1000, 0, 1000, 8);
+        ResultMerger merger = ResultMerger.create(2);
+        merger.limit(10);
+        MergedResult result = merger.merge(connection, binding);
+        int count = 0;
+        while (result.next() != null) {
+            count++;
+        }
+        assertEquals(10, count);
+        // Each range query is read at most one row beyond the rows returned.
+        assertTrue(result.rowsRead() <= 10 + binding.queries());
+        assertNull(result.next());
+        result.close();
+    }
+
+    @Test
+    public void limitZero() throws SQLException
+    {
+        List<ResultSet> resultSets = new ArrayList<>();
+        resultSets.add(query("select id from t order by id"));
+        ResultMerger merger = ResultMerger.create(1);
+        merger.limit(0);
+        MergedResult result = merger.merge(resultSets);
+        assertNull(result.next());
+        assertEquals(0, result.rowsRead());
+        assertTrue(resultSets.get(0).isClosed());
+    }
+
+    @Test
+    public void badArguments()
+    {
+        try {
+            ResultMerger.create(new int[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ResultMerger.create(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ResultMerger.create(1).limit(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            ResultMerger.create(1).distinct(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Merges two overlapping ResultSets, ids 0-99 and 50-149.
+    private void checkDistinct(ResultMerger merger, String orderBy) throws SQLException
+    {
+        List<ResultSet> resultSets = new ArrayList<>();
+        resultSets.add(query("select id, z from t where id < 100 " + orderBy));
+        resultSets.add(query("select id, z from t where id between 50 and 149 " + orderBy));
+        Set<Integer> ids = new HashSet<>();
+        try (MergedResult result = merger.merge(resultSets)) {
+            Object[] row;
+            while ((row = result.next()) != null) {
+                assertTrue(ids.add((Integer) row[0]));
+            }
+            assertEquals(200, result.rowsRead());
+        }
+        assertEquals(150, ids.size());
+    }
+
+    private ResultSet query(String sql) throws SQLException
+    {
+        Statement statement = connection.createStatement();
+        statement.closeOnCompletion();
+        return statement.executeQuery(sql);
+    }
+
+    private boolean inBox(int id, double xLo, double xHi, double yLo, double yHi)
+    {
+        double x = database.x(id);
+        double y = database.y(id);
+        return x >= xLo && x <= xHi && y >= yLo && y <= yHi;
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+    private static Connection connection;
+}
@@ -9,7 +9,14 @@ package com.geophile.spacesuit;
 import com.geophile.z.Space;
 import org.junit.Test;
 
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 public class SpaceSuitTest
@@ -118,6 +125,310 @@ public class SpaceSuitTest
         assertEquals(expectedQuery(524287, 524288, 0x6000000000000028L, 0x60000000007fffe8L), transformed[3]);
     }
 
+    @Test
+    public void transformQueryUnionAll()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        String[] transformed = spaceSuit.transformQuery("select ... <<inbox(spatialIndexKey, x, 524287, 524288, y, 524287, 524288)>> ...", 4, OutputMode.UNION_ALL);
+        assertEquals(1, transformed.length);
+        assertEquals(expectedQuery(524287, 524288, 0x1fffffffff800028L, 0x1fffffffffffffe8L) + " union all " +
+                     expectedQuery(524287, 524288, 0x3555555555000028L, 0x35555555557fffe8L) + " union all " +
+                     expectedQuery(524287, 524288, 0x4aaaaaaaaa800028L, 0x4aaaaaaaaaffffe8L) + " union all " +
+                     expectedQuery(524287, 524288, 0x6000000000000028L, 0x60000000007fffe8L),
+                     transformed[0]);
+    }
+
+    @Test
+    public void transformQueryDisjunction()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        String[] transformed = spaceSuit.transformQuery("select ... <<inbox(spatialIndexKey, x, 524287, 524288, y, 524287, 524288)>> ...", 4, OutputMode.DISJUNCTION);
+        assertEquals(1, transformed.length);
+        assertEquals(String.format("select ... ((spatialIndexKey between %s and %s or spatialIndexKey between %s and %s or " +
+                                   "spatialIndexKey between %s and %s or spatialIndexKey between %s and %s) and " +
+                                   "x between 524287.0 and 524288.0 and y between 524287.0 and 524288.0) ...",
+                                   0x1fffffffff800028L, 0x1fffffffffffffe8L,
+                                   0x3555555555000028L, 0x35555555557fffe8L,
+                                   0x4aaaaaaaaa800028L, 0x4aaaaaaaaaffffe8L,
+                                   0x6000000000000028L, 0x60000000007fffe8L),
+                     transformed[0]);
+    }
+
+    @Test
+    public void prepareDisjunction()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        SpatialQuery query = spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...", OutputMode.DISJUNCTION);
+        SpatialQuery.Binding binding = query.bind(524287, 524288, 524287, 524288, 4);
+        assertEquals(4, binding.ranges());
+        assertEquals(1, binding.queries());
+        assertEquals("select ... ((spatialIndexKey between ? and ? or spatialIndexKey between ? and ? or " +
+                     "spatialIndexKey between ? and ? or spatialIndexKey between ? and ?) and " +
+                     "x between ? and ? and y between ? and ?) ...",
+                     binding.sql());
+        assertSame(binding.sql(), query.sql(4));
+    }
+
+    @Test
+    public void prepareUnionAllWithParameters()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        try {
+            spaceSuit.prepare("select ... where a = ? and <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>>", OutputMode.UNION_ALL);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void unionAllOrderedOrLimited()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        for (String suffix : new String[]{" order by id", " limit 10", " fetch first 10 rows only", " offset 5"}) {
+            try {
+                spaceSuit.transformQuery("select ... <<inbox(spatialIndexKey, x, 1, 2, y, 1, 2)>>" + suffix,
+                                         4, OutputMode.UNION_ALL);
+                fail(suffix);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>>" + suffix,
+                                  OutputMode.UNION_ALL);
+                fail(suffix);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            spaceSuit.transformQuery("select ... <<inbox(spatialIndexKey, x, 1, 2, y, 1, 2)>>" + suffix,
+                                     4, OutputMode.SEPARATE);
+        }
+    }
+
+    @Test
+    public void prepare()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        SpatialQuery query = spaceSuit.prepare("select ... where a = ? and <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...");
+        assertEquals("select ... where a = ? and (spatialIndexKey between ? and ? and x between ? and ? and y between ? and ?) ...",
+                     query.sql());
+        assertEquals(2, query.firstParameter());
+        SpatialQuery.Binding binding = query.bind(524287, 524288, 524287, 524288, 4);
+        assertEquals(4, binding.ranges());
+        assertEquals(0x1fffffffff800028L, binding.zLo(0));
+        assertEquals(0x1fffffffffffffe8L, binding.zHi(0));
+        assertEquals(0x6000000000000028L, binding.zLo(3));
+        assertEquals(0x60000000007fffe8L, binding.zHi(3));
+    }
+
+    @Test
+    public void prepareWithQuotedMarkers()
+    {
+        // Question marks in string literals are not parameters.
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        SpatialQuery query = spaceSuit.prepare("select ... where a = '?' and b = 'it''s ?' and c = ? and " +
+                                               "<<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> and d <> '?'");
+        assertEquals(2, query.firstParameter());
+        spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> and d <> '?'",
+                          OutputMode.UNION_ALL);
+    }
+
+    @Test
+    public void prepareWithLiteral()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        try {
+            spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, 1, ?, y, ?, ?)>> ...");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void decompositionCache()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        assertNull(spaceSuit.decompositionCacheStatistics());
+        spaceSuit.enableDecompositionCache(1);
+        String query = "select ... <<inbox(spatialIndexKey, x, 524287, 524288, y, 524287, 524288)>> ...";
+        String[] miss = spaceSuit.transformQuery(query, 4);
+        String[] hit = spaceSuit.transformQuery(query, 4);
+        assertArrayEquals(miss, hit);
+        assertEquals(expectedQuery(524287, 524288, 0x1fffffffff800028L, 0x1fffffffffffffe8L), hit[0]);
+        // The second rewrite is found, so the query is decomposed once.
+        CacheStatistics rewrites = spaceSuit.rewriteCacheStatistics();
+        assertEquals(1, rewrites.hits());
+        assertEquals(1, rewrites.misses());
+        assertEquals(0, rewrites.evictions());
+        assertEquals(1, rewrites.size());
+        CacheStatistics decompositions = spaceSuit.decompositionCacheStatistics();
+        assertEquals(0, decompositions.hits());
+        assertEquals(1, decompositions.misses());
+        assertEquals(1, decompositions.size());
+        // Each map is bounded separately.
+        spaceSuit.transformQuery(query, 8);
+        assertEquals(1, spaceSuit.rewriteCacheStatistics().evictions());
+        assertEquals(1, spaceSuit.decompositionCacheStatistics().evictions());
+        assertEquals(1, spaceSuit.rewriteCacheStatistics().size());
+        assertEquals(1, spaceSuit.decompositionCacheStatistics().size());
+        spaceSuit.disableDecompositionCache();
+        assertNull(spaceSuit.rewriteCacheStatistics());
+    }
+
+    @Test
+    public void quantizedDecompositionCache()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        spaceSuit.enableDecompositionCache(100, 1024, 1024);
+        SpatialQuery query = spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...");
+        SpatialQuery.Binding a = query.bind(1100, 1200, 1100, 1200, 4);
+        SpatialQuery.Binding b = query.bind(1030, 2000, 1050, 1900, 4);
+        assertEquals(1, spaceSuit.decompositionCacheStatistics().hits());
+        assertEquals(a.ranges(), b.ranges());
+        for (int r = 0; r < a.ranges(); r++) {
+            assertEquals(a.zLo(r), b.zLo(r));
+            assertEquals(a.zHi(r), b.zHi(r));
+        }
+        // The z-value ranges cover the entire tile, so they cover both query boxes.
+        assertTrue(covered(a, 1024, 1024));
+        assertTrue(covered(a, 2047, 2047));
+        assertTrue(covered(a, 1024, 2047));
+        assertTrue(covered(a, 2047, 1024));
+    }
+
+    @Test
+    public void rangeMerging()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        SpatialQuery plain = spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...");
+        spaceSuit.configureRangeMerging(8, 0);
+        SpatialQuery refined = spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...");
+        spaceSuit.configureRangeMerging(1, 1L << 40);
+        SpatialQuery merged = spaceSuit.prepare("select ... <<inbox(spatialIndexKey, x, ?, ?, y, ?, ?)>> ...");
+        Random random = new Random(421);
+        for (int q = 0; q < 100; q++) {
+            int xLo = random.nextInt(1 << 19);
+            int xHi = xLo + random.nextInt(1 << 19);
+            int yLo = random.nextInt(1 << 19);
+            int yHi = yLo + random.nextInt(1 << 19);
+            SpatialQuery.Binding plainBinding = plain.bind(xLo, xHi, yLo, yHi, 6);
+            SpatialQuery.Binding refinedBinding = refined.bind(xLo, xHi, yLo, yHi, 6);
+            SpatialQuery.Binding mergedBinding = merged.bind(xLo, xHi, yLo, yHi, 6);
+            checkRanges(plainBinding, xLo, xHi, yLo, yHi, random);
+            checkRanges(refinedBinding, xLo, xHi, yLo, yHi, random);
+            checkRanges(mergedBinding, xLo, xHi, yLo, yHi, random);
+            assertTrue(refinedBinding.ranges() <= 6);
+            assertTrue(coverage(refinedBinding) <= coverage(plainBinding));
+            assertEquals(1, mergedBinding.ranges());
+        }
+    }
+
+    @Test
+    public void histogram()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        ZHistogram histogram = uniformHistogram(spaceSuit);
+        assertEquals(1_000_000, histogram.estimateRows(0, Long.MAX_VALUE), 1);
+        // Left half of the space
+        long zMid = expectedZ(1 << 19, 0);
+        assertEquals(500_000, histogram.estimateRows(0, zMid), 50_000);
+    }
+
+    @Test
+    public void histogramDuplicates()
+    {
+        // 7 intervals between the sampled keys and the bounds, of 1 row each. The 3 intervals between the
+        // occurrences of 20 are empty, so their rows have key 20.
+        ZHistogram histogram = ZHistogram.create(new long[]{20, 30, 20, 10, 20, 20}, 7);
+        assertEquals(6, histogram.estimateRows(10, Long.MAX_VALUE), 1e-9);
+        assertEquals(3, histogram.estimateRows(20, 20), 1e-9);
+        assertEquals(4, histogram.estimateRows(15, 25), 1e-9);
+        assertEquals(4, histogram.estimateRows(20, 30), 1e-9);
+        assertEquals(0.5, histogram.estimateRows(10, 15), 1e-9);
+        assertEquals(0, histogram.estimateRows(21, 21), 1e-9);
+    }
+
+    @Test
+    public void automaticZValues()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        String query = "select ... <<inbox(spatialIndexKey, x, 100000, 300000, y, 200000, 600000)>> ...";
+        try {
+            spaceSuit.transformQuery(query, SpaceSuit.AUTO_Z_VALUES);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        ZHistogram histogram = uniformHistogram(spaceSuit);
+        // Expensive ranges: use one
+        spaceSuit.enableAutomaticZValues(histogram, 1e9, 32);
+        assertEquals(1, spaceSuit.transformQuery(query, SpaceSuit.AUTO_Z_VALUES).length);
+        // Free ranges: use as many as possible, to minimize rows retrieved
+        spaceSuit.enableAutomaticZValues(histogram, 0, 32);
+        int ranges = spaceSuit.transformQuery(query, SpaceSuit.AUTO_Z_VALUES).length;
+        assertTrue(ranges > 1 && ranges <= 32);
+    }
+
+    @Test
+    public void instrumentation()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        String query = "select ... <<inbox(spatialIndexKey, x, 100000, 300000, y, 200000, 600000)>> ...";
+        SpaceSuitMetrics metrics = new SpaceSuitMetrics();
+        spaceSuit.enableInstrumentation(metrics);
+        int queries = spaceSuit.transformQuery(query, 4).length;
+        assertEquals(1, metrics.parseLatency().count());
+        assertEquals(1, metrics.decomposeLatency().count());
+        assertEquals(1, metrics.renderLatency().count());
+        assertEquals(1, metrics.rangesPerDecomposition().count());
+        assertEquals(queries, metrics.rangesPerDecomposition().sum());
+        spaceSuit.reportRows(100, 75);
+        spaceSuit.reportRows(100, 25);
+        assertEquals(0.5, metrics.overfetchRatio(), 0);
+        assertEquals(127, metrics.rowsPerRange().percentile(50));
+        spaceSuit.disableInstrumentation();
+        spaceSuit.transformQuery(query, 4);
+        spaceSuit.reportRows(100, 0);
+        assertEquals(1, metrics.parseLatency().count());
+        assertEquals(0.5, metrics.overfetchRatio(), 0);
+    }
+
+    @Test
+    public void instrumentationWithCache()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        String query = "select ... <<inbox(spatialIndexKey, x, 100000, 300000, y, 200000, 600000)>> ...";
+        spaceSuit.enableDecompositionCache(100);
+        SpaceSuitMetrics metrics = new SpaceSuitMetrics();
+        spaceSuit.enableInstrumentation(metrics);
+        int ranges = spaceSuit.transformQuery(query, 4).length;
+        // The second rewrite is found in the cache, and still reports its decomposition.
+        spaceSuit.transformQuery(query, 4, OutputMode.DISJUNCTION);
+        spaceSuit.transformQuery(query, 4, OutputMode.DISJUNCTION);
+        assertEquals(3, metrics.decomposeLatency().count());
+        assertEquals(3, metrics.rangesPerDecomposition().count());
+        assertEquals(3 * ranges, metrics.rangesPerDecomposition().sum());
+    }
+
+    @Test
+    public void latencyHistogram()
+    {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.percentile(50));
+        histogram.record(0);
+        for (int i = 0; i < 98; i++) {
+            histogram.record(5);
+        }
+        histogram.record(1000);
+        assertEquals(100, histogram.count());
+        assertEquals(0, histogram.percentile(1));
+        assertEquals(7, histogram.percentile(50));
+        assertEquals(7, histogram.percentile(99));
+        assertEquals(1023, histogram.percentile(100));
+        assertEquals(98, histogram.bucket(3));
+    }
+
     @Test
     public void transformInsert()
     {
@@ -126,12 +437,104 @@ public class SpaceSuitTest
         assertEquals(expectedZ(1048575, 1048575), z);
     }
 
+    @Test
+    public void bulkKeys()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        int n = 100_000;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        Random random = new Random(419);
+        for (int i = 0; i < n; i++) {
+            xs[i] = random.nextInt(1 << 20);
+            ys[i] = random.nextInt(1 << 20);
+        }
+        long[] sequential = new long[n];
+        spaceSuit.spatialIndexKeys(xs, ys, sequential);
+        long[] parallel = new long[n];
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            spaceSuit.spatialIndexKeys(xs, ys, parallel, 0, n, pool);
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals(expectedZ(xs[i], ys[i]), sequential[i]);
+            assertEquals(sequential[i], parallel[i]);
+        }
+    }
+
+    @Test
+    public void bulkKeysOutOfBounds()
+    {
+        SpaceSuit spaceSuit = SpaceSuit.create(SPACE, "<<", ">>");
+        try {
+            spaceSuit.spatialIndexKeys(new double[10], new double[10], new long[5], 0, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        // offset + length overflows
+        try {
+            spaceSuit.spatialIndexKeys(new double[10], new double[10], new long[10], Integer.MAX_VALUE, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     private String expectedQuery(long xyLo, long xyHi, long zLo, long zHi)
     {
         return String.format("select ... (spatialIndexKey between %s and %s and x between %s.0 and %s.0 and y between %s.0 and %s.0) ...",
                              zLo, zHi, xyLo, xyHi, xyLo, xyHi);
     }
 
+    private ZHistogram uniformHistogram(SpaceSuit spaceSuit)
+    {
+        Random random = new Random(422);
+        long[] sample = new long[1000];
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = spaceSuit.spatialIndexKey(random.nextInt(1 << 20), random.nextInt(1 << 20));
+        }
+        return ZHistogram.create(sample, 1_000_000);
+    }
+
+    // Checks that ranges are ordered and disjoint, and that they cover the points of the box.
+    private void checkRanges(SpatialQuery.Binding binding, int xLo, int xHi, int yLo, int yHi, Random random)
+    {
+        for (int r = 0; r < binding.ranges(); r++) {
+            assertTrue(binding.zLo(r) <= binding.zHi(r));
+            if (r > 0) {
+                assertTrue(binding.zHi(r - 1) < binding.zLo(r));
+            }
+        }
+        for (int p = 0; p < 100; p++) {
+            double x = xLo + random.nextInt(xHi - xLo + 1);
+            double y = yLo + random.nextInt(yHi - yLo + 1);
+            assertTrue(covered(binding, x, y));
+        }
+    }
+
+    private double coverage(SpatialQuery.Binding binding)
+    {
+        double coverage = 0;
+        for (int r = 0; r < binding.ranges(); r++) {
+            coverage += (double) binding.zHi(r) - binding.zLo(r);
+        }
+        return coverage;
+    }
+
+    private boolean covered(SpatialQuery.Binding binding, double x, double y)
+    {
+        long z = expectedZ(x, y);
+        for (int r = 0; r < binding.ranges(); r++) {
+            if (binding.zLo(r) <= z && z <= binding.zHi(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private long expectedZ(double x, double y)
     {
         return SPACE.spatialIndexKey(new double[]{x, y});
@@ -0,0 +1,233 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Table e(id, x, y, t, z) of events in a 3-dimensional space: [0, 1000) x [0, 1000) x [0, 10000).
+
+public class SpaceTimeTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:spacetimetest;DB_CLOSE_DELAY=-1");
+        connection = dataSource.getConnection();
+        Random random = new Random(433);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table e(id int not null, x double not null, y double not null, " +
+                              "t double not null, z bigint not null, primary key(id))");
+            statement.execute("create index idx_z on e(z)");
+        }
+        try (PreparedStatement insert = connection.prepareStatement("insert into e values(?, ?, ?, ?, ?)")) {
+            for (int id = 0; id < N; id++) {
+                xs[id] = random.nextInt(1000);
+                ys[id] = random.nextInt(1000);
+                ts[id] = random.nextInt(10000);
+                insert.setInt(1, id);
+                insert.setDouble(2, xs[id]);
+                insert.setDouble(3, ys[id]);
+                insert.setDouble(4, ts[id]);
+                insert.setLong(5, SPACE_SUIT.spatialIndexKey(xs[id], ys[id], ts[id]));
+                insert.executeUpdate();
+            }
+        }
+    }
+
+    @AfterClass
+    public static void afterClass() throws SQLException
+    {
+        connection.close();
+    }
+
+    @Test
+    public void transformQuery() throws SQLException
+    {
+        Random random = new Random(434);
+        for (int q = 0; q < 30; q++) {
+            double[] lo = randomLo(random);
+            double[] hi = randomHi(random, lo);
+            String[] queries =
+                SPACE_SUIT.transformQuery(String.format("select id from e " +
+                                                        "where <<inbox(z, x, %s, %s, y, %s, %s, t, %s, %s)>>",
+                                                        lo[0], hi[0], lo[1], hi[1], lo[2], hi[2]),
+                                          q % 8 + 1);
+            Set<Integer> actual = new HashSet<>();
+            try (Statement statement = connection.createStatement()) {
+                for (String query : queries) {
+                    try (ResultSet resultSet = statement.executeQuery(query)) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+            }
+            assertEquals(expected(lo, hi), actual);
+        }
+    }
+
+    @Test
+    public void prepare() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from e where <<inbox(z, x, ?, ?, y, ?, ?, t, ?, ?)>>");
+        Random random = new Random(435);
+        try (PreparedStatement statement = query.prepareStatement(connection)) {
+            for (int q = 0; q < 30; q++) {
+                double[] lo = randomLo(random);
+                double[] hi = randomHi(random, lo);
+                SpatialQuery.Binding binding = query.bind(lo, hi, 8);
+                Set<Integer> actual = new HashSet<>();
+                for (int r = 0; r < binding.queries(); r++) {
+                    binding.bind(statement, r);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            assertTrue(actual.add(resultSet.getInt(1)));
+                        }
+                    }
+                }
+                assertEquals(expected(lo, hi), actual);
+            }
+        }
+    }
+
+    @Test
+    public void timeNarrowsRanges() throws SQLException
+    {
+        // The z-value ranges for a short time window retrieve far fewer rows than those for the same area at
+        // all times.
+        SpatialQuery query = SPACE_SUIT.prepare("select id from e where <<inbox(z, x, ?, ?, y, ?, ?, t, ?, ?)>>");
+        long allTimes = rowsInRanges(query.bind(new double[]{200, 200, 0}, new double[]{400, 400, 10000}, 32));
+        long window = rowsInRanges(query.bind(new double[]{200, 200, 5000}, new double[]{400, 400, 5500}, 32));
+        assertTrue(window * 5 < allTimes);
+    }
+
+    @Test
+    public void wrongDimensions()
+    {
+        try {
+            SPACE_SUIT.spatialIndexKey(1, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.spatialIndexKey(1, 2, 3, 4);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.transformQuery("select id from e where <<inbox(z, x, 0, 10, y, 0, 10)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.transformQuery("select id from e where <<indisk(z, x, 500, y, 500, 10)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SPACE_SUIT.prepare("select id from e where <<inbox(z, x, ?, ?, y, ?, ?, t, ?, ?)>>")
+                      .bind(0, 10, 0, 10, 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void planarKeys()
+    {
+        Space space = Space.newSpace(new double[]{0, 0}, new double[]{1000, 1000}, new int[]{10, 10});
+        SpaceSuit spaceSuit = SpaceSuit.create(space, "<<", ">>");
+        assertEquals(spaceSuit.spatialIndexKey(123.0, 456.0), spaceSuit.spatialIndexKey(new double[]{123, 456}));
+    }
+
+    @Test
+    public void oneDimension()
+    {
+        Space space = Space.newSpace(new double[]{0}, new double[]{1000}, new int[]{10});
+        SpaceSuit spaceSuit = SpaceSuit.create(space, "<<", ">>");
+        String[] queries = spaceSuit.transformQuery("select id from e where <<inbox(z, t, 100, 200)>>", 4);
+        assertTrue(queries.length >= 1 && queries.length <= 4);
+        try {
+            spaceSuit.transformQuery("select id from e where <<indisk(z, x, 500, y, 500, 10)>>", 8);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private double[] randomLo(Random random)
+    {
+        return new double[]{random.nextInt(900), random.nextInt(900), random.nextInt(9000)};
+    }
+
+    private double[] randomHi(Random random, double[] lo)
+    {
+        return new double[]{lo[0] + random.nextInt(100), lo[1] + random.nextInt(100), lo[2] + random.nextInt(1000)};
+    }
+
+    private Set<Integer> expected(double[] lo, double[] hi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < N; id++) {
+            if (xs[id] >= lo[0] && xs[id] <= hi[0] &&
+                ys[id] >= lo[1] && ys[id] <= hi[1] &&
+                ts[id] >= lo[2] && ts[id] <= hi[2]) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    private long rowsInRanges(SpatialQuery.Binding binding) throws SQLException
+    {
+        long rows = 0;
+        try (PreparedStatement count = connection.prepareStatement("select count(*) from e where z between ? and ?")) {
+            for (int r = 0; r < binding.ranges(); r++) {
+                count.setLong(1, binding.zLo(r));
+                count.setLong(2, binding.zHi(r));
+                try (ResultSet resultSet = count.executeQuery()) {
+                    resultSet.next();
+                    rows += resultSet.getLong(1);
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static final int N = 10_000;
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0, 0},
+                                                      new double[]{1000, 1000, 10000},
+                                                      new int[]{10, 10, 12});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static final double[] xs = new double[N];
+    private static final double[] ys = new double[N];
+    private static final double[] ts = new double[N];
+    private static Connection connection;
+}
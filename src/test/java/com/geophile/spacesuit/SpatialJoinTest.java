@@ -0,0 +1,105 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class SpatialJoinTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("spatialjointest", SPACE_SUIT, 10_000, 449);
+    }
+
+    @Test
+    public void join() throws SQLException
+    {
+        SpatialJoin join = SPACE_SUIT.prepareJoin(OUTER, INNER);
+        Random random = new Random(457);
+        try (Connection connection = database.dataSource().getConnection()) {
+            for (int q = 0; q < 20; q++) {
+                double xLo = random.nextInt(800);
+                double xHi = xLo + random.nextInt(200);
+                double yLo = random.nextInt(800);
+                double yHi = yLo + random.nextInt(200);
+                double xDistance = random.nextInt(30);
+                double yDistance = random.nextInt(30);
+                final Set<List<Object>> actual = new HashSet<>();
+                join.execute(connection, xLo, xHi, yLo, yHi, xDistance, yDistance, q % 8 + 1,
+                             new SpatialJoin.Handler()
+                             {
+                                 @Override
+                                 public void pair(Object[] outer, Object[] inner)
+                                 {
+                                     assertEquals(true, actual.add(Arrays.asList(outer[0], inner[0])));
+                                 }
+                             });
+                Set<List<Object>> expected = new HashSet<>();
+                for (int o = 0; o < OUTER_ROWS; o++) {
+                    double ox = database.x(o);
+                    double oy = database.y(o);
+                    if (ox >= xLo && ox <= xHi && oy >= yLo && oy <= yHi) {
+                        for (int i = 0; i < database.n(); i++) {
+                            if (Math.abs(database.x(i) - ox) <= xDistance &&
+                                Math.abs(database.y(i) - oy) <= yDistance) {
+                                expected.add(Arrays.<Object>asList(o, i));
+                            }
+                        }
+                    }
+                }
+                assertEquals(expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void innerNotOrdered()
+    {
+        try {
+            SPACE_SUIT.prepareJoin(OUTER, "select id, x, y, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void parametersOutsideInvocation()
+    {
+        try {
+            SPACE_SUIT.prepareJoin("select id, x, y from t where id < ? and <<inbox(z, x, ?, ?, y, ?, ?)>>", INNER);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static final int OUTER_ROWS = 500;
+    private static final String OUTER =
+        String.format("select id, x, y from t where id < %s and <<inbox(z, x, ?, ?, y, ?, ?)>>", OUTER_ROWS);
+    private static final String INNER =
+        "select id, x, y, z from t where <<inbox(z, x, ?, ?, y, ?, ?)>> order by z";
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static TestDatabase database;
+}
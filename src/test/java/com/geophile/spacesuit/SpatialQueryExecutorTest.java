@@ -0,0 +1,547 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import com.geophile.z.Space;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpatialQueryExecutorTest
+{
+    @BeforeClass
+    public static void beforeClass() throws SQLException
+    {
+        database = new TestDatabase("spatialqueryexecutortest", SPACE_SUIT, 10_000, 419);
+        dataSource = database.dataSource();
+    }
+
+    @AfterClass
+    public static void afterClass()
+    {
+        EXECUTOR.shutdown();
+    }
+
+    @Test
+    public void separate() throws SQLException
+    {
+        check(OutputMode.SEPARATE);
+    }
+
+    @Test
+    public void unionAll() throws SQLException
+    {
+        check(OutputMode.UNION_ALL);
+    }
+
+    @Test
+    public void disjunction() throws SQLException
+    {
+        check(OutputMode.DISJUNCTION);
+    }
+
+    @Test
+    public void parameters() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where id < ? and <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+        Set<Integer> actual = new HashSet<>();
+        try (SpatialResult result = executor.execute(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS, 100)) {
+            Object[] row;
+            while ((row = result.next()) != null) {
+                actual.add((Integer) row[0]);
+            }
+        }
+        assertEquals(100, actual.size());
+    }
+
+    @Test
+    public void timeout() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        // Tiny buffer and a consumer that stops consuming: range queries stall, and the timeout expires.
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR, 1);
+        try (SpatialResult result = executor.execute(query, 0, 1000, 0, 1000, 8, 200, TimeUnit.MILLISECONDS)) {
+            result.next();
+            sleep(300);
+            try {
+                while (result.next() != null) {
+                }
+                fail();
+            } catch (SQLTimeoutException e) {
+                // expected
+            }
+            // The timeout is not mistaken for the end of the rows.
+            try {
+                result.next();
+                fail();
+            } catch (SQLTimeoutException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void rangeQueryFailure() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        TestDataSource failing = new TestDataSource(50);
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(failing.dataSource(), EXECUTOR);
+        try (SpatialResult result = executor.execute(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS)) {
+            try {
+                while (result.next() != null) {
+                }
+                fail();
+            } catch (SQLException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            try {
+                result.next();
+                fail();
+            } catch (SQLException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        awaitClosed(failing);
+    }
+
+    @Test
+    public void rejectedRangeQuery() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        TestDataSource counting = new TestDataSource(-1);
+        // The first range query runs, and blocks because the buffer is full. Submitting the second one fails.
+        RejectingExecutor rejecting = new RejectingExecutor(1);
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(counting.dataSource(), rejecting, 1);
+        try {
+            executor.execute(query, 100, 300, 200, 400, 8, 10, TimeUnit.SECONDS);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        // The first range query is cancelled.
+        rejecting.shutdown();
+        assertTrue(rejecting.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, counting.open.get());
+    }
+
+    @Test
+    public void close() throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR, 1);
+        SpatialResult result = executor.execute(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS);
+        result.next();
+        result.close();
+        assertNull(result.next());
+    }
+
+    @Test
+    public void submit() throws Exception
+    {
+        for (OutputMode outputMode : OutputMode.values()) {
+            SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+                                                    outputMode);
+            SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+            final SpatialQueryFuture future =
+                executor.submit(query, 100, 300, 200, 400, 8, 10, TimeUnit.SECONDS);
+            final Set<Integer> actual = Collections.synchronizedSet(new HashSet<Integer>());
+            final CountDownLatch listened = new CountDownLatch(1);
+            future.addListener(new Runnable()
+                               {
+                                   @Override
+                                   public void run()
+                                   {
+                                       assertTrue(future.isDone());
+                                       try {
+                                           for (Object[] row : future.get(0, TimeUnit.SECONDS)) {
+                                               assertTrue(actual.add((Integer) row[0]));
+                                           }
+                                       } catch (Exception e) {
+                                           fail(e.toString());
+                                       }
+                                       listened.countDown();
+                                   }
+                               },
+                               EXECUTOR);
+            assertTrue(listened.await(10, TimeUnit.SECONDS));
+            assertEquals(expected(100, 300, 200, 400), actual);
+            // A listener added when the query is done runs immediately.
+            final CountDownLatch late = new CountDownLatch(1);
+            future.addListener(new Runnable()
+                               {
+                                   @Override
+                                   public void run()
+                                   {
+                                       late.countDown();
+                                   }
+                               },
+                               EXECUTOR);
+            assertTrue(late.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void invalidRequest() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+        TestSubscriber subscriber = new TestSubscriber();
+        executor.subscribe(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS, subscriber);
+        subscriber.subscription.request(2);
+        awaitRows(subscriber, 2);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.failure instanceof IllegalArgumentException);
+        assertFalse(subscriber.completed);
+        assertEquals(2, subscriber.rows.size());
+    }
+
+    @Test
+    public void demand() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+        TestSubscriber subscriber = new TestSubscriber();
+        executor.subscribe(query, 150, 350, 150, 350, 8, 10, TimeUnit.SECONDS, subscriber);
+        sleep(100);
+        assertEquals(0, subscriber.rows.size());
+        subscriber.subscription.request(5);
+        awaitRows(subscriber, 5);
+        sleep(100);
+        assertEquals(5, subscriber.rows.size());
+        assertFalse(subscriber.finished.await(0, TimeUnit.MILLISECONDS));
+        // Request the remaining rows one at a time, from the subscriber.
+        subscriber.requestEach = true;
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+        assertNull(subscriber.failure);
+        assertTrue(subscriber.completed);
+        assertEquals(expected(150, 350, 150, 350), new HashSet<>(subscriber.rows));
+    }
+
+    @Test
+    public void cancel() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+        TestSubscriber subscriber = new TestSubscriber();
+        executor.subscribe(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS, subscriber);
+        subscriber.subscription.request(3);
+        awaitRows(subscriber, 3);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(Long.MAX_VALUE);
+        sleep(100);
+        assertEquals(3, subscriber.rows.size());
+        assertFalse(subscriber.finished.await(0, TimeUnit.MILLISECONDS));
+        SpatialQueryFuture future = executor.submit(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS);
+        future.cancel(true);
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void subscriptionTimeout() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR);
+        TestSubscriber subscriber = new TestSubscriber();
+        executor.subscribe(query, 0, 1000, 0, 1000, 8, 200, TimeUnit.MILLISECONDS, subscriber);
+        subscriber.subscription.request(1);
+        sleep(300);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.failure instanceof SQLTimeoutException);
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    public void subscriptionFailure() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        TestDataSource failing = new TestDataSource(50);
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(failing.dataSource(), EXECUTOR);
+        SpatialQueryFuture future = executor.submit(query, 0, 1000, 0, 1000, 8, 10, TimeUnit.SECONDS);
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        awaitClosed(failing);
+    }
+
+    @Test
+    public void subscriptionRejected() throws Exception
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>");
+        TestDataSource counting = new TestDataSource(-1);
+        RejectingExecutor rejecting = new RejectingExecutor(1);
+        try {
+            SpatialQueryExecutor executor = SpatialQueryExecutor.create(counting.dataSource(), rejecting);
+            TestSubscriber subscriber = new TestSubscriber();
+            executor.subscribe(query, 100, 300, 200, 400, 8, 10, TimeUnit.SECONDS, subscriber);
+            // The first range query delivers a row and is suspended, holding its connection.
+            subscriber.subscription.request(1);
+            awaitRows(subscriber, 1);
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (rejecting.getCompletedTaskCount() < 1 && System.currentTimeMillis() < deadline) {
+                sleep(10);
+            }
+            assertEquals(1, counting.open.get());
+            // Resuming it is rejected, and its connection is released.
+            subscriber.subscription.request(5);
+            assertTrue(subscriber.finished.await(10, TimeUnit.SECONDS));
+            assertTrue(subscriber.failure.getCause() instanceof RejectedExecutionException);
+            assertEquals(0, counting.open.get());
+        } finally {
+            rejecting.shutdown();
+        }
+    }
+
+    private void check(OutputMode outputMode) throws SQLException
+    {
+        SpatialQuery query = SPACE_SUIT.prepare("select id from t where <<inbox(z, x, ?, ?, y, ?, ?)>>",
+                                                outputMode);
+        SpatialQueryExecutor executor = SpatialQueryExecutor.create(dataSource, EXECUTOR, 10);
+        Random random = new Random(420);
+        for (int q = 0; q < 20; q++) {
+            double xLo = random.nextInt(900);
+            double xHi = xLo + random.nextInt(100);
+            double yLo = random.nextInt(900);
+            double yHi = yLo + random.nextInt(100);
+            Set<Integer> expected = new HashSet<>();
+            for (int id = 0; id < database.n(); id++) {
+                double x = database.x(id);
+                double y = database.y(id);
+                if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                    expected.add(id);
+                }
+            }
+            Set<Integer> actual = new HashSet<>();
+            try (SpatialResult result = executor.execute(query, xLo, xHi, yLo, yHi, 8, 10, TimeUnit.SECONDS)) {
+                Object[] row;
+                while ((row = result.next()) != null) {
+                    actual.add((Integer) row[0]);
+                }
+            }
+            assertEquals(expected, actual);
+        }
+    }
+
+    private Set<Integer> expected(double xLo, double xHi, double yLo, double yHi)
+    {
+        Set<Integer> expected = new HashSet<>();
+        for (int id = 0; id < database.n(); id++) {
+            double x = database.x(id);
+            double y = database.y(id);
+            if (x >= xLo && x <= xHi && y >= yLo && y <= yHi) {
+                expected.add(id);
+            }
+        }
+        return expected;
+    }
+
+    private void awaitRows(TestSubscriber subscriber, int rows)
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (subscriber.rows.size() < rows && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+    }
+
+    private void awaitClosed(TestDataSource dataSource)
+    {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (dataSource.open.get() > 0 && System.currentTimeMillis() < deadline) {
+            sleep(10);
+        }
+        assertEquals(0, dataSource.open.get());
+    }
+
+    private void sleep(long msec)
+    {
+        try {
+            Thread.sleep(msec);
+        } catch (InterruptedException e) {
+            fail();
+        }
+    }
+
+    private static final Space SPACE = Space.newSpace(new double[]{0, 0},
+                                                      new double[]{1000, 1000},
+                                                      new int[]{10, 10});
+    private static final SpaceSuit SPACE_SUIT = SpaceSuit.create(SPACE, "<<", ">>");
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4);
+    private static TestDatabase database;
+    private static DataSource dataSource;
+
+    private static class TestSubscriber implements RowSubscriber
+    {
+        @Override
+        public void onSubscribe(RowSubscription subscription)
+        {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Object[] row)
+        {
+            rows.add((Integer) row[0]);
+            if (requestEach) {
+                subscription.request(1);
+            }
+        }
+
+        @Override
+        public void onError(Throwable exception)
+        {
+            failure = exception;
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete()
+        {
+            completed = true;
+            finished.countDown();
+        }
+
+        final List<Integer> rows = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        volatile RowSubscription subscription;
+        volatile boolean requestEach;
+        volatile Throwable failure;
+        volatile boolean completed;
+    }
+
+    // Counts the open connections of the test database. If failAfterRows is not negative, fetching a column value
+    // fails, with an IllegalStateException, once that many rows have been read from all result sets.
+    private static class TestDataSource
+    {
+        DataSource dataSource()
+        {
+            return (DataSource) wrap(DataSource.class, dataSource);
+        }
+
+        TestDataSource(int failAfterRows)
+        {
+            this.failAfterRows = failAfterRows;
+        }
+
+        // Returns a proxy for the target. Connections, statements and result sets obtained through the proxy
+        // are wrapped in turn.
+        private Object wrap(final Class<?> type, final Object target)
+        {
+            return Proxy.newProxyInstance(type.getClassLoader(),
+                                          new Class<?>[]{type},
+                                          new InvocationHandler()
+                                          {
+                                              @Override
+                                              public Object invoke(Object proxy, Method method, Object[] args)
+                                                  throws Throwable
+                                              {
+                                                  String name = method.getName();
+                                                  if (type == ResultSet.class && name.equals("getObject") &&
+                                                      failAfterRows >= 0 && rows.get() > failAfterRows) {
+                                                      throw new IllegalStateException("row conversion");
+                                                  }
+                                                  Object result = call(target, method, args);
+                                                  if (name.equals("getConnection")) {
+                                                      open.incrementAndGet();
+                                                      return wrap(Connection.class, result);
+                                                  } else if (type == Connection.class && name.equals("close") &&
+                                                             !closed) {
+                                                      closed = true;
+                                                      open.decrementAndGet();
+                                                  } else if (name.equals("prepareStatement")) {
+                                                      return wrap(PreparedStatement.class, result);
+                                                  } else if (name.equals("executeQuery")) {
+                                                      return wrap(ResultSet.class, result);
+                                                  } else if (type == ResultSet.class && name.equals("next")) {
+                                                      rows.incrementAndGet();
+                                                  }
+                                                  return result;
+                                              }
+
+                                              private boolean closed;
+                                          });
+        }
+
+        private static Object call(Object target, Method method, Object[] args) throws Throwable
+        {
+            try {
+                return method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        final AtomicInteger open = new AtomicInteger();
+        private final AtomicInteger rows = new AtomicInteger();
+        private final int failAfterRows;
+    }
+
+    // Accepts a number of tasks, and rejects the rest.
+    private static class RejectingExecutor extends ThreadPoolExecutor
+    {
+        @Override
+        public void execute(Runnable task)
+        {
+            if (accepted.getAndIncrement() >= accept) {
+                throw new RejectedExecutionException();
+            }
+            super.execute(task);
+        }
+
+        RejectingExecutor(int accept)
+        {
+            super(4, 4, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            this.accept = accept;
+        }
+
+        private final int accept;
+        private final AtomicInteger accepted = new AtomicInteger();
+    }
+}
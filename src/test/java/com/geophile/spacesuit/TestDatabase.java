@@ -0,0 +1,71 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package com.geophile.spacesuit;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+// In-memory H2 database containing table t(id, x, y, z), with n random points in [0, 1000) x [0, 1000).
+
+public class TestDatabase
+{
+    public JdbcDataSource dataSource()
+    {
+        return dataSource;
+    }
+
+    public double x(int id)
+    {
+        return xs[id];
+    }
+
+    public double y(int id)
+    {
+        return ys[id];
+    }
+
+    public int n()
+    {
+        return xs.length;
+    }
+
+    public TestDatabase(String name, SpaceSuit spaceSuit, int n, long seed) throws SQLException
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL(String.format("jdbc:h2:mem:%s;DB_CLOSE_DELAY=-1", name));
+        xs = new double[n];
+        ys = new double[n];
+        Random random = new Random(seed);
+        try (Connection connection = dataSource.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop table if exists t");
+            statement.execute("create table t(id int not null, x double not null, y double not null, " +
+                              "z bigint not null, primary key(id))");
+            statement.execute("create index idx_z on t(z)");
+            try (PreparedStatement insert = connection.prepareStatement("insert into t values(?, ?, ?, ?)")) {
+                for (int id = 0; id < n; id++) {
+                    xs[id] = random.nextInt(1000);
+                    ys[id] = random.nextInt(1000);
+                    insert.setInt(1, id);
+                    insert.setDouble(2, xs[id]);
+                    insert.setDouble(3, ys[id]);
+                    insert.setLong(4, spaceSuit.spatialIndexKey(xs[id], ys[id]));
+                    insert.executeUpdate();
+                }
+            }
+        }
+    }
+
+    private final JdbcDataSource dataSource;
+    private final double[] xs;
+    private final double[] ys;
+}
@@ -1,5 +1,6 @@
 package com.geophile.spacesuit.example;
 
+import com.geophile.spacesuit.BulkLoader;
 import com.geophile.spacesuit.SpaceSuit;
 import com.geophile.z.Space;
 
@@ -9,7 +10,7 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Iterator;
 
 public class PopulateDB
 {
@@ -36,26 +37,54 @@ public class PopulateDB
         // Create SpaceSuit object
         SpaceSuit spaceSuit = SpaceSuit.create(space, "<<", ">>");
         // Prepare to read input file, containing lines containing latitude, longitude, description.
-        BufferedReader input = new BufferedReader(new FileReader(inputFileName));
-        String line;
+        final BufferedReader input = new BufferedReader(new FileReader(inputFileName));
+        Iterator<Object[]> rows =
+            new Iterator<Object[]>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    if (line == null) {
+                        try {
+                            line = input.readLine();
+                        } catch (IOException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return line != null;
+                }
+
+                @Override
+                public Object[] next()
+                {
+                    hasNext();
+                    // Parse line
+                    String[] fields = parseLine(line);
+                    line = null;
+                    double latitude = Double.parseDouble(fields[0]);
+                    double longitude = Double.parseDouble(fields[1]);
+                    return new Object[]{latitude, longitude, fields[2]};
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+
+                private String line;
+            };
         // Connect to the database
         Class.forName("com.mysql.jdbc.Driver");
-        String url = String.format("jdbc:mysql://localhost/%s?user=%s&password=%s", database, user, password);
+        String url = String.format("jdbc:mysql://localhost/%s?user=%s&password=%s&rewriteBatchedStatements=true",
+                                   database, user, password);
         Connection connection = DriverManager.getConnection(url);
-        Statement statement = connection.createStatement();
-        while ((line = input.readLine()) != null) {
-            // Read and parse line
-            String[] fields = parseLine(line);
-            double latitude = Double.parseDouble(fields[0]);
-            double longitude = Double.parseDouble(fields[1]);
-            String description = escapeQuote(fields[2]);
-            // Compute spatialIndexKey-value
-            long z = spaceSuit.spatialIndexKey(latitude, longitude);
-            // Insert to database
-            String query = String.format("insert into place(latitude, longitude, description, z) values (%s, %s, '%s', %s)",
-                                         latitude, longitude, description, z);
-            statement.executeUpdate(query);
-        }
+        // Insert to database, computing z-values from latitude and longitude
+        BulkLoader loader =
+            BulkLoader.create(spaceSuit,
+                              "insert into place(latitude, longitude, description, z) values (?, ?, ?, ?)",
+                              0, 1);
+        System.out.println(loader.load(connection, rows));
     }
 
     private String[] parseLine(String line)
@@ -77,11 +106,6 @@ public class PopulateDB
         return fields;
     }
 
-    private String escapeQuote(String s)
-    {
-        return s.replace("'", "\\'");
-    }
-
     private final String inputFileName;
     private final String database;
     private final String user;